@@ -155,34 +155,28 @@ void nativeLlcpConnectionlessSocket_abortWait() { sem_post(&sConnlessRecvSem); }
 
 /*******************************************************************************
 **
-** Function:        nativeLlcpConnectionlessSocket_doReceiveFrom
+** Function:        connectionlessWaitForData
 **
-** Description:     Receive data from a peer.
-**                  e: JVM environment.
-**                  o: Java object.
+** Description:     Wait for the next datagram from a peer. On success it is
+**                  in sConnlessRecvBuf, and connectionlessCleanup() must be
+**                  called once it has been copied out.
 **                  linkMiu: max info unit
 **
-** Returns:         LlcpPacket Java object.
+** Returns:         True if ok.
 **
 *******************************************************************************/
-static jobject nativeLlcpConnectionlessSocket_doReceiveFrom(JNIEnv* e, jobject,
-                                                            jint linkMiu) {
-  DLOG_IF(INFO, nfc_debug_enabled)
-      << StringPrintf("%s: linkMiu = %d", __func__, linkMiu);
-  jobject llcpPacket = NULL;
-  ScopedLocalRef<jclass> clsLlcpPacket(e, NULL);
-
+static bool connectionlessWaitForData(jint linkMiu) {
   if (sConnlessRecvWaitingForData != JNI_FALSE) {
     DLOG_IF(INFO, nfc_debug_enabled)
         << StringPrintf("%s: Already waiting for incoming data", __func__);
-    return NULL;
+    return false;
   }
 
   sConnlessRecvBuf = (uint8_t*)malloc(linkMiu);
   if (sConnlessRecvBuf == NULL) {
     DLOG_IF(INFO, nfc_debug_enabled) << StringPrintf(
         "%s: Failed to allocate %d bytes memory buffer", __func__, linkMiu);
-    return NULL;
+    return false;
   }
   sConnlessRecvLen = linkMiu;
 
@@ -190,17 +184,52 @@ static jobject nativeLlcpConnectionlessSocket_doReceiveFrom(JNIEnv* e, jobject,
   if (sem_init(&sConnlessRecvSem, 0, 0) == -1) {
     LOG(ERROR) << StringPrintf("%s: semaphore creation failed (errno=0x%08x)",
                                __func__, errno);
-    return connectionlessCleanup();
+    connectionlessCleanup();
+    return false;
   }
 
   sConnlessRecvWaitingForData = JNI_TRUE;
 
   // Wait for sConnlessRecvSem completion status
+  bool received = true;
   if (sem_wait(&sConnlessRecvSem)) {
     LOG(ERROR) << StringPrintf(
         "%s: Failed to wait for write semaphore (errno=0x%08x)", __func__,
         errno);
-    goto TheEnd;
+    received = false;
+  }
+  if (sem_destroy(&sConnlessRecvSem)) {
+    LOG(ERROR) << StringPrintf(
+        "%s: Failed to destroy sConnlessRecvSem semaphore (errno=0x%08x)",
+        __func__, errno);
+  }
+  if (!received) {
+    connectionlessCleanup();
+  }
+  return received;
+}
+
+/*******************************************************************************
+**
+** Function:        nativeLlcpConnectionlessSocket_doReceiveFrom
+**
+** Description:     Receive data from a peer.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  linkMiu: max info unit
+**
+** Returns:         LlcpPacket Java object.
+**
+*******************************************************************************/
+static jobject nativeLlcpConnectionlessSocket_doReceiveFrom(JNIEnv* e, jobject,
+                                                            jint linkMiu) {
+  DLOG_IF(INFO, nfc_debug_enabled)
+      << StringPrintf("%s: linkMiu = %d", __func__, linkMiu);
+  jobject llcpPacket = NULL;
+  ScopedLocalRef<jclass> clsLlcpPacket(e, NULL);
+
+  if (!connectionlessWaitForData(linkMiu)) {
+    return NULL;
   }
 
   // Create new LlcpPacket object
@@ -237,17 +266,52 @@ static jobject nativeLlcpConnectionlessSocket_doReceiveFrom(JNIEnv* e, jobject,
     e->SetObjectField(llcpPacket, f, receivedData.get());
   }
 
-TheEnd:  // TODO: should all the "return connectionlessCleanup()"s in this
-         // function jump here instead?
   connectionlessCleanup();
-  if (sem_destroy(&sConnlessRecvSem)) {
-    LOG(ERROR) << StringPrintf(
-        "%s: Failed to destroy sConnlessRecvSem semaphore (errno=0x%08x)",
-        __func__, errno);
-  }
   return llcpPacket;
 }
 
+/*******************************************************************************
+**
+** Function:        nativeLlcpConnectionlessSocket_doReceiveInto
+**
+** Description:     Receive data from a peer into a caller owned buffer, and
+**                  store the SAP of the sender in mReceivedRemoteSap.
+**                  e: JVM environment.
+**                  o: Java object.
+**                  linkMiu: max info unit
+**                  buffer: receives the data, truncated to its length.
+**
+** Returns:         Number of bytes received, or -1 on failure.
+**
+*******************************************************************************/
+static jint nativeLlcpConnectionlessSocket_doReceiveInto(JNIEnv* e, jobject o,
+                                                         jint linkMiu,
+                                                         jbyteArray buffer) {
+  DLOG_IF(INFO, nfc_debug_enabled)
+      << StringPrintf("%s: linkMiu = %d", __func__, linkMiu);
+
+  if (buffer == NULL || !connectionlessWaitForData(linkMiu)) {
+    return -1;
+  }
+
+  jint len = sConnlessRecvLen;
+  jint bufferLen = e->GetArrayLength(buffer);
+  if (len > bufferLen) {
+    len = bufferLen;
+  }
+  e->SetByteArrayRegion(buffer, 0, len, (jbyte*)sConnlessRecvBuf);
+
+  ScopedLocalRef<jclass> c(e, e->GetObjectClass(o));
+  jfieldID f = e->GetFieldID(c.get(), "mReceivedRemoteSap", "I");
+  e->SetIntField(o, f, (jint)sConnlessRecvRemoteSap);
+
+  DLOG_IF(INFO, nfc_debug_enabled)
+      << StringPrintf("%s: Received Llcp packet buffer size = %d", __func__,
+                      len);
+  connectionlessCleanup();
+  return len;
+}
+
 /*******************************************************************************
 **
 ** Function:        nativeLlcpConnectionlessSocket_doClose
@@ -284,6 +348,8 @@ static const JNINativeMethod gMethods[] = {
     {"doSendTo", "(I[B)Z", (void*)nativeLlcpConnectionlessSocket_doSendTo},
     {"doReceiveFrom", "(I)Lcom/android/nfc/LlcpPacket;",
      (void*)nativeLlcpConnectionlessSocket_doReceiveFrom},
+    {"doReceiveInto", "(I[B)I",
+     (void*)nativeLlcpConnectionlessSocket_doReceiveInto},
     {"doClose", "()Z", (void*)nativeLlcpConnectionlessSocket_doClose},
 };
 
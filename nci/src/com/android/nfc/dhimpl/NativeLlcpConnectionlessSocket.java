@@ -30,6 +30,8 @@ public class NativeLlcpConnectionlessSocket implements DeviceHost.LlcpConnection
     private int mHandle;
     private int mSap;
     private int mLinkMiu;
+    // Set by doReceiveInto()
+    private int mReceivedRemoteSap;
 
     public NativeLlcpConnectionlessSocket() { }
 
@@ -37,6 +39,8 @@ public class NativeLlcpConnectionlessSocket implements DeviceHost.LlcpConnection
 
     public native LlcpPacket doReceiveFrom(int linkMiu);
 
+    public native int doReceiveInto(int linkMiu, byte[] buffer);
+
     public native boolean doClose();
 
     @Override
@@ -65,6 +69,20 @@ public class NativeLlcpConnectionlessSocket implements DeviceHost.LlcpConnection
         return packet;
     }
 
+    @Override
+    public int receive(LlcpPacket packet) throws IOException {
+        byte[] buffer = packet.getDataBuffer();
+        if (buffer == null || buffer.length < mLinkMiu) {
+            buffer = new byte[mLinkMiu];
+        }
+        int length = doReceiveInto(mLinkMiu, buffer);
+        if (length < 0) {
+            throw new IOException();
+        }
+        packet.set(mReceivedRemoteSap, buffer, length);
+        return length;
+    }
+
     public int getHandle(){
         return mHandle;
     }
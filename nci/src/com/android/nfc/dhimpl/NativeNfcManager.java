@@ -23,6 +23,8 @@ import android.nfc.tech.TagTechnology;
 import android.util.Log;
 
 import com.android.nfc.DeviceHost;
+import com.android.nfc.LlcpBufferPool;
+import com.android.nfc.LlcpEventLoop;
 import com.android.nfc.LlcpException;
 import com.android.nfc.NfcDiscoveryParameters;
 
@@ -54,6 +56,8 @@ public class NativeNfcManager implements DeviceHost {
 
     private final Object mLock = new Object();
     private final HashMap<Integer, byte[]> mT3tIdentifiers = new HashMap<Integer, byte[]>();
+    // Completes the operations of asynchronous LLCP sockets
+    private final LlcpEventLoop mLlcpEventLoop = new LlcpEventLoop("NfcLlcpLoop");
 
     public NativeNfcManager(Context context, DeviceHostListener listener) {
         mListener = listener;
@@ -116,7 +120,10 @@ public class NativeNfcManager implements DeviceHost {
 
     @Override
     public boolean deinitialize() {
-        return doDeinitialize();
+        boolean result = doDeinitialize();
+        // No LLCP link can come up again until the next initialize()
+        LlcpBufferPool.getInstance().clear();
+        return result;
     }
 
     @Override
@@ -279,6 +286,23 @@ public class NativeNfcManager implements DeviceHost {
         }
     }
 
+    @Override
+    public LlcpAsyncServerSocket createLlcpAsyncServerSocket(
+            int nSap, String sn, int miu, int rw, int linearBufferLength) throws LlcpException {
+        return mLlcpEventLoop.wrap(createLlcpServerSocket(nSap, sn, miu, rw, linearBufferLength));
+    }
+
+    @Override
+    public LlcpAsyncSocket createLlcpAsyncSocket(int sap, int miu, int rw,
+            int linearBufferLength) throws LlcpException {
+        return mLlcpEventLoop.wrap(createLlcpSocket(sap, miu, rw, linearBufferLength));
+    }
+
+    @Override
+    public void postLlcpEvent(Runnable task) {
+        mLlcpEventLoop.post(task);
+    }
+
     @Override
     public native boolean doCheckLlcp();
 
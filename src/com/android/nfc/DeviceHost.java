@@ -165,6 +165,53 @@ public interface DeviceHost {
         public void close() throws IOException;
     }
 
+    /**
+     * Completes an asynchronous LLCP operation. Called on the LLCP event
+     * thread, which must not be blocked.
+     */
+    public interface LlcpCompletion<T> {
+        public void onComplete(T result);
+
+        public void onError(IOException e);
+    }
+
+    /**
+     * A LLCP data link connection with completion based operations.
+     *
+     * Sends complete in the order they were issued, and so do receives. Only
+     * one operation of each kind is in progress at a time, the others wait
+     * for their turn.
+     */
+    public interface LlcpAsyncSocket {
+        public void connectToSap(int sap, LlcpCompletion<Void> completion);
+
+        public void connectToService(String serviceName, LlcpCompletion<Void> completion);
+
+        public void send(byte[] data, LlcpCompletion<Void> completion);
+
+        /** Completes with the number of bytes received, or -1 once closed */
+        public void receive(byte[] recvBuff, LlcpCompletion<Integer> completion);
+
+        /** Closes the connection, failing the operations that are waiting */
+        public void close();
+
+        public int getRemoteMiu();
+
+        public int getRemoteRw();
+
+        public int getLocalSap();
+
+        public int getLocalMiu();
+
+        public int getLocalRw();
+    }
+
+    public interface LlcpAsyncServerSocket {
+        public void accept(LlcpCompletion<LlcpAsyncSocket> completion);
+
+        public void close();
+    }
+
     public interface LlcpConnectionlessSocket {
         public int getLinkMiu();
 
@@ -174,6 +221,12 @@ public interface DeviceHost {
 
         public LlcpPacket receive() throws IOException;
 
+        /**
+         * Receives the next datagram into the given packet, reusing its data
+         * buffer when it can hold the link MIU, and returns its length.
+         */
+        public int receive(LlcpPacket packet) throws IOException;
+
         public void close() throws IOException;
     }
 
@@ -223,6 +276,18 @@ public interface DeviceHost {
     public LlcpSocket createLlcpSocket(int sap, int miu, int rw,
             int linearBufferLength) throws LlcpException;
 
+    public LlcpAsyncServerSocket createLlcpAsyncServerSocket(int nSap, String sn, int miu,
+            int rw, int linearBufferLength) throws LlcpException;
+
+    public LlcpAsyncSocket createLlcpAsyncSocket(int sap, int miu, int rw,
+            int linearBufferLength) throws LlcpException;
+
+    /**
+     * Runs a task on the thread that completes asynchronous LLCP operations,
+     * so that services can keep their state on that one thread.
+     */
+    public void postLlcpEvent(Runnable task);
+
     public boolean doCheckLlcp();
 
     public boolean doActivateLlcp();
@@ -19,33 +19,52 @@ import android.app.ActivityManager;
 import android.os.SystemProperties;
 import android.util.Log;
 import android.util.SparseArray;
-import android.util.SparseBooleanArray;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ForegroundUtils implements ActivityManager.OnUidImportanceListener {
     static final boolean DBG = SystemProperties.getBoolean("persist.nfc.debug_enabled", false);;
     private final String TAG = "ForegroundUtils";
     private final ActivityManager mActivityManager;
 
+    private static final int[] EMPTY_UIDS = new int[0];
+
+    // Protects mBackgroundCallbacks only. The foreground set itself is lock-free,
+    // so importance callbacks from ActivityManager never wait for NFC callers.
     private final Object mLock = new Object();
-    // We need to keep track of the individual PIDs per UID,
-    // since a single UID may have multiple processes running
-    // that transition into foreground/background state.
-    private final SparseArray<SparseBooleanArray> mForegroundUidPids =
-            new SparseArray<SparseBooleanArray>();
     private final SparseArray<List<Callback>> mBackgroundCallbacks =
             new SparseArray<List<Callback>>();
 
-    private final SparseBooleanArray mForegroundUids = new SparseBooleanArray();
+    // Sorted, immutable snapshot of the UIDs currently in the foreground. A new
+    // array is published with compare-and-set on every transition; readers only
+    // ever see complete snapshots and never allocate.
+    private final AtomicReference<int[]> mForegroundUids =
+            new AtomicReference<int[]>(EMPTY_UIDS);
+
+    private final CopyOnWriteArrayList<ForegroundListener> mForegroundListeners =
+            new CopyOnWriteArrayList<ForegroundListener>();
 
     private static class Singleton {
         private static ForegroundUtils sInstance = null;
     }
 
     private ForegroundUtils(ActivityManager am) {
+        this(am, true);
+    }
+
+    /**
+     * @param listen whether to follow the importance changes reported by
+     *     ActivityManager; tests that call onUidImportance() themselves do not
+     */
+    ForegroundUtils(ActivityManager am, boolean listen) {
         mActivityManager = am;
+        if (!listen) {
+            return;
+        }
         try {
             mActivityManager.addOnUidImportanceListener(this,
                     ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
@@ -59,6 +78,14 @@ public class ForegroundUtils implements ActivityManager.OnUidImportanceListener
         void onUidToBackground(int uid);
     }
 
+    /**
+     * Told about every UID that enters the foreground set, on the thread
+     * ActivityManager reports importance changes on. Must not block.
+     */
+    public interface ForegroundListener {
+        void onUidToForeground(int uid);
+    }
+
     /**
      * Get an instance of the ForegroundUtils sinleton
      *
@@ -84,27 +111,58 @@ public class ForegroundUtils implements ActivityManager.OnUidImportanceListener
      * , false otherwise
      */
     public boolean registerUidToBackgroundCallback(Callback callback, int uid) {
+        boolean inForegroundSet = isUidInForegroundSet(uid);
+        if (!inForegroundSet && !queryUidImportance(uid)) {
+            return false;
+        }
         synchronized (mLock) {
-            if (!isInForegroundLocked(uid)) {
-                return false;
-            }
             // This uid is in the foreground; register callback for when it moves
             // into the background.
             List<Callback> callbacks = mBackgroundCallbacks.get(uid, new ArrayList<Callback>());
             callbacks.add(callback);
             mBackgroundCallbacks.put(uid, callbacks);
+            // If the uid left the foreground set before the callback was added,
+            // handleUidToBackground() has already run and will not see it.
+            if (inForegroundSet && !isUidInForegroundSet(uid)) {
+                callbacks.remove(callback);
+                if (callbacks.isEmpty()) {
+                    mBackgroundCallbacks.remove(uid);
+                }
+                return false;
+            }
             return true;
         }
     }
 
+    public void addForegroundListener(ForegroundListener listener) {
+        mForegroundListeners.add(listener);
+    }
+
     /**
      * @param uid The UID to be checked
      * @return whether the UID has any activities running in the foreground
      */
     public boolean isInForeground(int uid) {
-        synchronized (mLock) {
-            return isInForegroundLocked(uid);
-        }
+        return isUidInForegroundSet(uid) || queryUidImportance(uid);
+    }
+
+    /**
+     * Checks the cached foreground set only, without falling back to ActivityManager.
+     * Lock-free and allocation-free.
+     *
+     * @param uid The UID to be checked
+     * @return whether the UID is known to be in the foreground
+     */
+    public boolean isUidInForegroundSet(int uid) {
+        return Arrays.binarySearch(mForegroundUids.get(), uid) >= 0;
+    }
+
+    /**
+     * @return a sorted snapshot of the UIDs currently in the foreground. The array
+     *         is shared and must not be modified.
+     */
+    public int[] getForegroundUidsSnapshot() {
+        return mForegroundUids.get();
     }
 
     /**
@@ -112,28 +170,57 @@ public class ForegroundUtils implements ActivityManager.OnUidImportanceListener
      *         if none are found.
      */
     public List<Integer> getForegroundUids() {
-        ArrayList<Integer> uids = new ArrayList<Integer>(mForegroundUids.size());
-        synchronized (mLock) {
-            for (int i = 0; i < mForegroundUids.size(); i++) {
-                if (mForegroundUids.valueAt(i)) {
-                    uids.add(mForegroundUids.keyAt(i));
-                }
-            }
+        int[] snapshot = mForegroundUids.get();
+        ArrayList<Integer> uids = new ArrayList<Integer>(snapshot.length);
+        for (int uid : snapshot) {
+            uids.add(uid);
         }
         return uids;
     }
 
-    private boolean isInForegroundLocked(int uid) {
-        if (mForegroundUids.get(uid)) {
-            return true;
-        }
+    private boolean queryUidImportance(int uid) {
         if (DBG) Log.d(TAG, "Checking UID:" + Integer.toString(uid));
         // If the onForegroundActivitiesChanged() has not yet been called,
         // check whether the UID is in an active state to use the NFC.
+        // No lock is held here, so this never blocks importance callbacks.
         return (mActivityManager.getUidImportance(uid)
                 == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
     }
 
+    private boolean addForegroundUid(int uid) {
+        while (true) {
+            int[] current = mForegroundUids.get();
+            int index = Arrays.binarySearch(current, uid);
+            if (index >= 0) {
+                return false;
+            }
+            int insert = -index - 1;
+            int[] updated = new int[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, insert);
+            updated[insert] = uid;
+            System.arraycopy(current, insert, updated, insert + 1, current.length - insert);
+            if (mForegroundUids.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean removeForegroundUid(int uid) {
+        while (true) {
+            int[] current = mForegroundUids.get();
+            int index = Arrays.binarySearch(current, uid);
+            if (index < 0) {
+                return false;
+            }
+            int[] updated = current.length == 1 ? EMPTY_UIDS : new int[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (mForegroundUids.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
     private void handleUidToBackground(int uid) {
         ArrayList<Callback> pendingCallbacks = null;
         synchronized (mLock) {
@@ -154,34 +241,25 @@ public class ForegroundUtils implements ActivityManager.OnUidImportanceListener
 
     @Override
     public void onUidImportance(int uid, int importance) {
-        boolean uidToBackground = false;
-        synchronized (mLock) {
-            if (importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_GONE) {
-                mForegroundUids.delete(uid);
+        if (importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_GONE) {
+            removeForegroundUid(uid);
+            synchronized (mLock) {
                 mBackgroundCallbacks.remove(uid);
-                if (DBG) Log.d(TAG, "UID: " + Integer.toString(uid) + " deleted.");
-                return;
             }
-            if (importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
-                mForegroundUids.put(uid, true);
-            } else {
-                if (mForegroundUids.get(uid)) {
-                    uidToBackground = true;
-                    mForegroundUids.put(uid, false);
+            if (DBG) Log.d(TAG, "UID: " + Integer.toString(uid) + " deleted.");
+            return;
+        }
+        if (importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
+            if (addForegroundUid(uid)) {
+                for (ForegroundListener listener : mForegroundListeners) {
+                    listener.onUidToForeground(uid);
                 }
             }
-        }
-        if (uidToBackground) {
+        } else if (removeForegroundUid(uid)) {
             handleUidToBackground(uid);
         }
         if (DBG) {
-            Log.d(TAG, "Foreground UID status:");
-            synchronized (mLock) {
-                for (int j = 0; j < mForegroundUids.size(); j++) {
-                    Log.d(TAG, "UID: " + Integer.toString(mForegroundUids.keyAt(j))
-                            + " is in foreground: " + Boolean.toString(mForegroundUids.valueAt(j)));
-                }
-            }
+            Log.d(TAG, "Foreground UIDs: " + Arrays.toString(mForegroundUids.get()));
         }
     }
 }
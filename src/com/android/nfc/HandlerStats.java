@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per message type queue depth and wait time of a Handler lane.
+ *
+ * The wait time is measured from the time a message was due to the time it
+ * was dispatched, so delayed messages only count the time they were late.
+ * Posted Runnables have no message type of their own, they are counted
+ * together in a separate slot rather than as message 0.
+ */
+public class HandlerStats {
+    final String mName;
+    final int mMaxWhat;
+    /** Slot of posted Runnables, after the message types */
+    final int mRunnableSlot;
+    final AtomicIntegerArray mPending;
+    final AtomicIntegerArray mMaxPending;
+    final AtomicLongArray mHandled;
+    final AtomicLongArray mTotalWaitMs;
+    final AtomicLongArray mMaxWaitMs;
+
+    public HandlerStats(String name, int maxWhat) {
+        mName = name;
+        mMaxWhat = maxWhat;
+        mRunnableSlot = maxWhat + 1;
+        mPending = new AtomicIntegerArray(maxWhat + 2);
+        mMaxPending = new AtomicIntegerArray(maxWhat + 2);
+        mHandled = new AtomicLongArray(maxWhat + 2);
+        mTotalWaitMs = new AtomicLongArray(maxWhat + 2);
+        mMaxWaitMs = new AtomicLongArray(maxWhat + 2);
+    }
+
+    public void onEnqueued(int what) {
+        if (what < 0 || what > mMaxWhat) return;
+        onEnqueuedSlot(what);
+    }
+
+    public void onRunnableEnqueued() {
+        onEnqueuedSlot(mRunnableSlot);
+    }
+
+    void onEnqueuedSlot(int what) {
+        int pending = mPending.incrementAndGet(what);
+        int max = mMaxPending.get(what);
+        while (pending > max && !mMaxPending.compareAndSet(what, max, pending)) {
+            max = mMaxPending.get(what);
+        }
+    }
+
+    /**
+     * Called when a message is dispatched. {@code stillQueued} tells whether
+     * more messages of the same type are waiting, which resynchronizes the
+     * pending count after messages were dropped with removeMessages().
+     */
+    public void onDispatched(int what, long waitMs, boolean stillQueued) {
+        if (what < 0 || what > mMaxWhat) return;
+        onDispatchedSlot(what, waitMs, stillQueued);
+    }
+
+    /** Like onDispatched(), for a posted Runnable. */
+    public void onRunnableDispatched(long waitMs, boolean stillQueued) {
+        onDispatchedSlot(mRunnableSlot, waitMs, stillQueued);
+    }
+
+    void onDispatchedSlot(int what, long waitMs, boolean stillQueued) {
+        if (stillQueued) {
+            if (mPending.decrementAndGet(what) < 0) mPending.set(what, 0);
+        } else {
+            mPending.set(what, 0);
+        }
+        mHandled.incrementAndGet(what);
+        if (waitMs < 0) waitMs = 0;
+        mTotalWaitMs.addAndGet(what, waitMs);
+        long max = mMaxWaitMs.get(what);
+        while (waitMs > max && !mMaxWaitMs.compareAndSet(what, max, waitMs)) {
+            max = mMaxWaitMs.get(what);
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(mName + " handler lane:");
+        for (int what = 0; what <= mRunnableSlot; what++) {
+            long handled = mHandled.get(what);
+            if (handled == 0 && mPending.get(what) == 0) continue;
+            pw.println("    " + (what == mRunnableSlot ? "runnables" : "msg " + what)
+                    + ": handled=" + handled
+                    + " pending=" + mPending.get(what)
+                    + " maxPending=" + mMaxPending.get(what)
+                    + " avgWaitMs=" + (handled > 0 ? mTotalWaitMs.get(what) / handled : 0)
+                    + " maxWaitMs=" + mMaxWaitMs.get(what));
+        }
+    }
+}
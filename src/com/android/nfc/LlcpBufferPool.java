@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of LLCP receive buffers.
+ *
+ * Connections borrow a buffer of their MIU for as long as they receive, and
+ * return it when they are done, so a P2P session does not allocate one per
+ * connection. Buffers are kept per length, since sockets of one link share
+ * their MIU, and a limited number of each length is kept.
+ */
+public final class LlcpBufferPool {
+    static final String TAG = "LlcpBufferPool";
+    static final boolean DBG =
+            SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    // The largest MIU LLCP allows, the default 128 bytes plus a MIUX of 0x7FF
+    static final int MAX_POOLED_LENGTH = 128 + 0x7FF;
+    static final int MAX_BUFFERS_PER_LENGTH = 8;
+
+    static LlcpBufferPool sInstance;
+
+    final int mMaxBuffersPerLength;
+
+    // Locked on this
+    final SparseArray<ArrayDeque<byte[]>> mBuffers = new SparseArray<>();
+    int mAcquired;
+    int mReused;
+    int mAllocated;
+    int mDropped;
+
+    public static synchronized LlcpBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new LlcpBufferPool(MAX_BUFFERS_PER_LENGTH);
+        }
+        return sInstance;
+    }
+
+    LlcpBufferPool(int maxBuffersPerLength) {
+        mMaxBuffersPerLength = maxBuffersPerLength;
+    }
+
+    /**
+     * Returns a buffer of exactly the given length. Its content is whatever
+     * its previous user left in it.
+     */
+    public byte[] acquire(int length) {
+        synchronized (this) {
+            mAcquired++;
+            ArrayDeque<byte[]> buffers = mBuffers.get(length);
+            if (buffers != null && !buffers.isEmpty()) {
+                mReused++;
+                return buffers.pop();
+            }
+            mAllocated++;
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)}. The caller must
+     * not touch it afterwards.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) return;
+        int length = buffer.length;
+        synchronized (this) {
+            if (length == 0 || length > MAX_POOLED_LENGTH) {
+                mDropped++;
+                return;
+            }
+            ArrayDeque<byte[]> buffers = mBuffers.get(length);
+            if (buffers == null) {
+                buffers = new ArrayDeque<>();
+                mBuffers.put(length, buffers);
+            }
+            if (buffers.size() >= mMaxBuffersPerLength) {
+                mDropped++;
+                return;
+            }
+            buffers.push(buffer);
+        }
+    }
+
+    /** Drops the pooled buffers, once no link is left to use them. */
+    public synchronized void clear() {
+        if (DBG) Log.d(TAG, "Dropping " + getPooledCountLocked() + " buffers");
+        mBuffers.clear();
+    }
+
+    int getPooledCountLocked() {
+        int count = 0;
+        for (int i = 0; i < mBuffers.size(); i++) {
+            count += mBuffers.valueAt(i).size();
+        }
+        return count;
+    }
+
+    synchronized int getPooledCount() {
+        return getPooledCountLocked();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("LLCP buffer pool: pooled=" + getPooledCountLocked()
+                + " acquired=" + mAcquired
+                + " reused=" + mReused
+                + " allocated=" + mAllocated
+                + " dropped=" + mDropped);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.nfc.DeviceHost.LlcpAsyncServerSocket;
+import com.android.nfc.DeviceHost.LlcpAsyncSocket;
+import com.android.nfc.DeviceHost.LlcpCompletion;
+import com.android.nfc.DeviceHost.LlcpServerSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completes asynchronous operations on blocking LLCP sockets.
+ *
+ * Every completion runs on one event thread, so services built on the
+ * asynchronous sockets need no thread of their own, nor locks for their
+ * state. The blocking calls themselves run on the bounded pool of the
+ * LlcpServiceRuntime, shared with the blocking servers, and only hold a
+ * thread while they are in progress. A call that finds no thread fails with
+ * an IOException rather than wait, since it could be waiting for a call of
+ * its own service to complete.
+ */
+public final class LlcpEventLoop {
+    static final String TAG = "LlcpEventLoop";
+    static final boolean DBG =
+            SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    /** A blocking socket call */
+    interface Call<T> {
+        T call() throws IOException, LlcpException;
+    }
+
+    /** A call waiting to run, and what to complete with its outcome */
+    final class Op<T> {
+        final Call<T> mCall;
+        final LlcpCompletion<T> mCompletion;
+
+        Op(Call<T> call, LlcpCompletion<T> completion) {
+            mCall = call;
+            mCompletion = completion;
+        }
+
+        void run() {
+            T result = null;
+            IOException error = null;
+            try {
+                result = mCall.call();
+            } catch (IOException e) {
+                error = e;
+            } catch (LlcpException e) {
+                error = new IOException(e);
+            }
+            complete(mCompletion, result, error);
+        }
+
+        void fail(IOException e) {
+            complete(mCompletion, null, e);
+        }
+    }
+
+    /** Runs the calls of one socket and direction in order, one at a time. */
+    final class Channel {
+        // Locked on this
+        final ArrayDeque<Op<?>> mPending = new ArrayDeque<>();
+        boolean mBusy;
+        boolean mClosed;
+
+        <T> void submit(Call<T> call, LlcpCompletion<T> completion) {
+            Op<T> op = new Op<>(call, completion);
+            synchronized (this) {
+                if (mClosed) {
+                    op.fail(new IOException("Socket closed"));
+                    return;
+                }
+                mPending.add(op);
+                if (mBusy) {
+                    return;
+                }
+                mBusy = true;
+            }
+            if (!mRuntime.executeCall(this::drain)) {
+                Log.e(TAG, "No thread for an LLCP call");
+                failPending(false);
+            }
+        }
+
+        /** Runs the pending calls, on one I/O thread until none is left. */
+        void drain() {
+            while (true) {
+                Op<?> op;
+                synchronized (this) {
+                    op = mPending.poll();
+                    if (op == null) {
+                        mBusy = false;
+                        return;
+                    }
+                }
+                op.run();
+            }
+        }
+
+        /** Fails the calls that have not started. */
+        void close() {
+            failPending(true);
+        }
+
+        /**
+         * Fails the calls that have not started, and then every later one
+         * if closing. Otherwise no drain was started for them.
+         */
+        void failPending(boolean close) {
+            ArrayList<Op<?>> pending;
+            synchronized (this) {
+                if (close) {
+                    mClosed = true;
+                } else {
+                    mBusy = false;
+                }
+                pending = new ArrayList<>(mPending);
+                mPending.clear();
+            }
+            for (Op<?> op : pending) {
+                op.fail(new IOException(close ? "Socket closed" : "No thread for the call"));
+            }
+        }
+    }
+
+    final class AsyncSocket implements LlcpAsyncSocket {
+        final LlcpSocket mSocket;
+        // Connecting goes through the send channel, before any send
+        final Channel mSendChannel = new Channel();
+        final Channel mReceiveChannel = new Channel();
+
+        AsyncSocket(LlcpSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void connectToSap(int sap, LlcpCompletion<Void> completion) {
+            mSendChannel.submit(() -> {
+                mSocket.connectToSap(sap);
+                return null;
+            }, completion);
+        }
+
+        @Override
+        public void connectToService(String serviceName, LlcpCompletion<Void> completion) {
+            mSendChannel.submit(() -> {
+                mSocket.connectToService(serviceName);
+                return null;
+            }, completion);
+        }
+
+        @Override
+        public void send(byte[] data, LlcpCompletion<Void> completion) {
+            mSendChannel.submit(() -> {
+                mSocket.send(data);
+                return null;
+            }, completion);
+        }
+
+        @Override
+        public void receive(byte[] recvBuff, LlcpCompletion<Integer> completion) {
+            mReceiveChannel.submit(() -> mSocket.receive(recvBuff), completion);
+        }
+
+        @Override
+        public void close() {
+            mSendChannel.close();
+            mReceiveChannel.close();
+            // Closing unblocks the calls in progress, which then fail
+            closeQuietly(mSocket::close);
+        }
+
+        @Override
+        public int getRemoteMiu() {
+            return mSocket.getRemoteMiu();
+        }
+
+        @Override
+        public int getRemoteRw() {
+            return mSocket.getRemoteRw();
+        }
+
+        @Override
+        public int getLocalSap() {
+            return mSocket.getLocalSap();
+        }
+
+        @Override
+        public int getLocalMiu() {
+            return mSocket.getLocalMiu();
+        }
+
+        @Override
+        public int getLocalRw() {
+            return mSocket.getLocalRw();
+        }
+    }
+
+    final class AsyncServerSocket implements LlcpAsyncServerSocket {
+        final LlcpServerSocket mServerSocket;
+        final Channel mAcceptChannel = new Channel();
+
+        AsyncServerSocket(LlcpServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public void accept(LlcpCompletion<LlcpAsyncSocket> completion) {
+            mAcceptChannel.submit(() -> wrap(mServerSocket.accept()), completion);
+        }
+
+        @Override
+        public void close() {
+            mAcceptChannel.close();
+            closeQuietly(mServerSocket::close);
+        }
+    }
+
+    interface Closer {
+        void close() throws IOException;
+    }
+
+    final ThreadPoolExecutor mEventExecutor;
+    final LlcpServiceRuntime mRuntime;
+    volatile Thread mEventThread;
+
+    public LlcpEventLoop(String name) {
+        this(name, LlcpServiceRuntime.getInstance());
+    }
+
+    LlcpEventLoop(String name, LlcpServiceRuntime runtime) {
+        mRuntime = runtime;
+        mEventExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r, name + "-events");
+                    mEventThread = thread;
+                    return thread;
+                });
+    }
+
+    public LlcpAsyncSocket wrap(LlcpSocket socket) {
+        return new AsyncSocket(socket);
+    }
+
+    public LlcpAsyncServerSocket wrap(LlcpServerSocket serverSocket) {
+        return new AsyncServerSocket(serverSocket);
+    }
+
+    /** Runs a task on the event thread. */
+    public void post(Runnable task) {
+        mEventExecutor.execute(task);
+    }
+
+    public boolean isEventThread() {
+        return Thread.currentThread() == mEventThread;
+    }
+
+    <T> void complete(LlcpCompletion<T> completion, T result, IOException error) {
+        post(() -> {
+            if (error != null) {
+                if (DBG) Log.d(TAG, "Operation failed: " + error);
+                completion.onError(error);
+            } else {
+                completion.onComplete(result);
+            }
+        });
+    }
+
+    /**
+     * Closes a socket on a thread of the runtime, since closing may wait for
+     * the peer, or right away if there is none.
+     */
+    void closeQuietly(Closer closer) {
+        Runnable close = () -> {
+            try {
+                closer.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        };
+        if (!mRuntime.executeCall(close)) {
+            close.run();
+        }
+    }
+}
@@ -18,6 +18,9 @@ package com.android.nfc;
 
 /**
  * Represents a LLCP packet received in a LLCP Connectionless communication;
+ *
+ * A packet can be reused across receives, in which case its data buffer is
+ * only valid up to {@link #getDataLength()}.
  */
 public class LlcpPacket {
 
@@ -25,10 +28,18 @@ public class LlcpPacket {
 
     private byte[] mDataBuffer;
 
+    // -1 when the whole data buffer is valid
+    private int mDataLength = -1;
+
     public LlcpPacket() {
 
     }
 
+    LlcpPacket(int remoteSap, byte[] dataBuffer) {
+        mRemoteSap = remoteSap;
+        mDataBuffer = dataBuffer;
+    }
+
     /**
      * Returns the remote Service Access Point number
      */
@@ -43,4 +54,23 @@ public class LlcpPacket {
         return mDataBuffer;
     }
 
+    /**
+     * Returns the number of valid bytes at the start of the data buffer
+     */
+    public int getDataLength() {
+        if (mDataLength < 0) {
+            return mDataBuffer != null ? mDataBuffer.length : 0;
+        }
+        return mDataLength;
+    }
+
+    /**
+     * Fills this packet with a received datagram
+     */
+    public void set(int remoteSap, byte[] dataBuffer, int dataLength) {
+        mRemoteSap = remoteSap;
+        mDataBuffer = dataBuffer;
+        mDataLength = dataLength;
+    }
+
 }
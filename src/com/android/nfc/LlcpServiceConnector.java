@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Opens the LLCP client connections a send needs, all at once.
+ *
+ * The handover service is used whenever it connects. SNEP is preferred over
+ * NPP for the NDEF message, and either is only kept if there is a message or
+ * handover failed. Connections are started together on the executor and the
+ * result is returned as soon as the preferred ones are known; attempts that
+ * are no longer needed are closed, right away or when their connect returns.
+ *
+ * Attempts can also be made one after another, as DTA test cases expect;
+ * an attempt is then skipped when an earlier one made it unnecessary.
+ */
+class LlcpServiceConnector {
+    static final String TAG = "LlcpServiceConnector";
+    static final boolean DBG =
+            SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    static final int SERVICE_HANDOVER = 0;
+    static final int SERVICE_SNEP = 1;
+    static final int SERVICE_NPP = 2;
+    static final int NUM_SERVICES = 3;
+    static final String[] SERVICE_NAMES = {"handover", "snep", "npp"};
+
+    // Outcome of the connect to a service
+    static final int OUTCOME_NOT_ATTEMPTED = 0;
+    static final int OUTCOME_CONNECTED = 1;
+    static final int OUTCOME_FAILED = 2;
+    static final int OUTCOME_CANCELLED = 3;
+
+    /** A client that connects to one LLCP service of the peer. */
+    interface Connection {
+        void connect() throws IOException;
+        void close();
+    }
+
+    /** The connections kept by {@link #connect}, null when not connected. */
+    static final class Result {
+        final Connection[] mConnections = new Connection[NUM_SERVICES];
+        final long[] mLatencyNs = new long[NUM_SERVICES];
+        final int[] mOutcomes = new int[NUM_SERVICES];
+
+        Result() {
+            Arrays.fill(mLatencyNs, -1);
+        }
+
+        Connection get(int service) {
+            return mConnections[service];
+        }
+
+        /**
+         * Returns how the connect to the service ended; a service that
+         * connected but was not needed is closed, yet still OUTCOME_CONNECTED.
+         */
+        int getOutcome(int service) {
+            return mOutcomes[service];
+        }
+
+        /** Returns the connect latency of the service, or -1 if it was not attempted. */
+        long getLatencyNs(int service) {
+            return mLatencyNs[service];
+        }
+
+        boolean isConnected() {
+            for (Connection connection : mConnections) {
+                if (connection != null) return true;
+            }
+            return false;
+        }
+
+        void close() {
+            for (Connection connection : mConnections) {
+                if (connection != null) connection.close();
+            }
+        }
+    }
+
+    final Executor mExecutor;
+
+    // Locked on this
+    final int[] mAttempts = new int[NUM_SERVICES];
+    final int[] mSuccesses = new int[NUM_SERVICES];
+    final int[] mCancels = new int[NUM_SERVICES];
+    final long[] mTotalLatencyNs = new long[NUM_SERVICES];
+    final long[] mMaxLatencyNs = new long[NUM_SERVICES];
+    final long[] mLastLatencyNs = {-1, -1, -1};
+
+    LlcpServiceConnector(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Connects to the services of the peer.
+     *
+     * @param handover the handover client, or null if there are no URIs to send
+     * @param snep the SNEP client
+     * @param npp the NPP client
+     * @param needsNdef whether there is an NDEF message to send
+     * @param concurrent false to try the services one after another
+     * @return the connections kept, or null if the calling thread was
+     *     interrupted, in which case every connection is closed
+     */
+    Result connect(Connection handover, Connection snep, Connection npp, boolean needsNdef,
+            boolean concurrent) {
+        Session session = new Session(new Connection[] {handover, snep, npp}, needsNdef);
+        return session.run(concurrent ? mExecutor : Runnable::run);
+    }
+
+    final class Attempt implements Runnable {
+        final Session mSession;
+        final int mService;
+        final Connection mConnection;
+        // Locked on the session
+        boolean mStarted;
+        boolean mDone;
+        boolean mConnected;
+        boolean mCancelled;
+        long mLatencyNs = -1;
+
+        Attempt(Session session, int service, Connection connection) {
+            mSession = session;
+            mService = service;
+            mConnection = connection;
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtimeNanos();
+            boolean connected;
+            try {
+                mConnection.connect();
+                connected = true;
+            } catch (IOException e) {
+                connected = false;
+            }
+            long latencyNs = SystemClock.elapsedRealtimeNanos() - start;
+            if (DBG) {
+                Log.d(TAG, SERVICE_NAMES[mService] + (connected ? " connected" : " failed")
+                        + " in " + latencyNs / 1000000 + "ms");
+            }
+            boolean close;
+            synchronized (mSession) {
+                mDone = true;
+                mConnected = connected;
+                mLatencyNs = latencyNs;
+                // Nobody will use a connection cancelled while it was set up
+                close = connected && mCancelled;
+                mSession.notifyAll();
+            }
+            recordAttempt(mService, connected, latencyNs);
+            if (close) {
+                mConnection.close();
+            }
+        }
+    }
+
+    final class Session {
+        final Attempt[] mAttempts = new Attempt[NUM_SERVICES];
+        final boolean mNeedsNdef;
+
+        Session(Connection[] connections, boolean needsNdef) {
+            mNeedsNdef = needsNdef;
+            for (int i = 0; i < NUM_SERVICES; i++) {
+                if (connections[i] != null) {
+                    mAttempts[i] = new Attempt(this, i, connections[i]);
+                }
+            }
+        }
+
+        boolean succeeded(int service) {
+            Attempt attempt = mAttempts[service];
+            return attempt != null && attempt.mDone && attempt.mConnected;
+        }
+
+        /** Whether the service could still end up being used. */
+        boolean isWantedLocked(int service) {
+            if (mAttempts[service] == null) return false;
+            boolean ndefMaybeNeeded = mNeedsNdef || !succeeded(SERVICE_HANDOVER);
+            switch (service) {
+                case SERVICE_HANDOVER:
+                    return true;
+                case SERVICE_SNEP:
+                    return ndefMaybeNeeded;
+                case SERVICE_NPP:
+                    return ndefMaybeNeeded && !succeeded(SERVICE_SNEP);
+                default:
+                    return false;
+            }
+        }
+
+        boolean isCompleteLocked() {
+            for (int i = 0; i < NUM_SERVICES; i++) {
+                if (isWantedLocked(i) && !mAttempts[i].mDone) return false;
+            }
+            return true;
+        }
+
+        Result run(Executor executor) {
+            boolean interrupted = false;
+            synchronized (this) {
+                for (int i = 0; i < NUM_SERVICES; i++) {
+                    if (!isWantedLocked(i)) continue;
+                    mAttempts[i].mStarted = true;
+                    // Without concurrency the attempt runs right here, and the
+                    // session lock is reentrant for its completion
+                    executor.execute(mAttempts[i]);
+                }
+                try {
+                    while (!isCompleteLocked()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return finish(interrupted);
+        }
+
+        Result finish(boolean interrupted) {
+            Result result = interrupted ? null : new Result();
+            Connection[] toClose = new Connection[NUM_SERVICES];
+            synchronized (this) {
+                for (int i = 0; i < NUM_SERVICES; i++) {
+                    Attempt attempt = mAttempts[i];
+                    if (attempt == null || !attempt.mStarted) continue;
+                    boolean keep = !interrupted && isWantedLocked(i);
+                    if (result != null) {
+                        result.mLatencyNs[i] = attempt.mLatencyNs;
+                        result.mOutcomes[i] = !attempt.mDone ? OUTCOME_CANCELLED
+                                : attempt.mConnected ? OUTCOME_CONNECTED : OUTCOME_FAILED;
+                        if (keep && attempt.mConnected) {
+                            result.mConnections[i] = attempt.mConnection;
+                        }
+                    }
+                    if (keep || (attempt.mDone && !attempt.mConnected)) continue;
+                    if (attempt.mDone) {
+                        toClose[i] = attempt.mConnection;
+                    } else {
+                        attempt.mCancelled = true;
+                    }
+                    recordCancel(i);
+                }
+            }
+            for (Connection connection : toClose) {
+                if (connection != null) connection.close();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return result;
+        }
+    }
+
+    synchronized void recordAttempt(int service, boolean connected, long latencyNs) {
+        mAttempts[service]++;
+        if (connected) {
+            mSuccesses[service]++;
+            mTotalLatencyNs[service] += latencyNs;
+            mMaxLatencyNs[service] = Math.max(mMaxLatencyNs[service], latencyNs);
+        }
+        mLastLatencyNs[service] = latencyNs;
+    }
+
+    synchronized void recordCancel(int service) {
+        mCancels[service]++;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("LLCP service connect latency:");
+        for (int i = 0; i < NUM_SERVICES; i++) {
+            pw.println("  " + SERVICE_NAMES[i] + ": attempts=" + mAttempts[i]
+                    + " connected=" + mSuccesses[i]
+                    + " cancelled=" + mCancels[i]
+                    + " avgMs=" + (mSuccesses[i] > 0
+                            ? mTotalLatencyNs[i] / mSuccesses[i] / 1000000 : 0)
+                    + " maxMs=" + mMaxLatencyNs[i] / 1000000
+                    + " lastMs=" + (mLastLatencyNs[i] >= 0 ? mLastLatencyNs[i] / 1000000 : -1));
+        }
+    }
+}
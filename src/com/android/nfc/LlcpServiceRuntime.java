@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the accept loops and connection handlers of the LLCP servers on one
+ * bounded pool of threads.
+ *
+ * Each service may handle a limited number of connections at a time. Once a
+ * service is at its limit, its accept loop waits for a connection to finish
+ * before handing over the next one, so further peers wait in the LLCP
+ * connection backlog instead of each getting a thread. A server that stops
+ * while its accept loop waits so must call stopServer() to wake it up.
+ */
+public final class LlcpServiceRuntime {
+    static final String TAG = "LlcpServiceRuntime";
+    static final boolean DBG =
+            SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    static final int MAX_THREADS = 32;
+    static final int MAX_CONNECTIONS_PER_SERVICE = 4;
+    static final int KEEP_ALIVE_SECONDS = 10;
+
+    static LlcpServiceRuntime sInstance;
+
+    /** Per service bookkeeping, locked on the runtime */
+    static final class Service {
+        final String mName;
+        final HashSet<LlcpSocket> mConnections = new HashSet<>();
+        int mServers;
+        int mHandled;
+        int mWaits;
+        int mRejected;
+
+        Service(String name) {
+            mName = name;
+        }
+    }
+
+    final ThreadPoolExecutor mExecutor;
+    final int mMaxConnectionsPerService;
+
+    // Locked on this
+    final LinkedHashMap<String, Service> mServices = new LinkedHashMap<>();
+    final HashMap<Runnable, Thread> mAcceptThreads = new HashMap<>();
+    int mRejectedCalls;
+
+    public static synchronized LlcpServiceRuntime getInstance() {
+        if (sInstance == null) {
+            sInstance = new LlcpServiceRuntime(MAX_THREADS, MAX_CONNECTIONS_PER_SERVICE);
+        }
+        return sInstance;
+    }
+
+    LlcpServiceRuntime(int maxThreads, int maxConnectionsPerService) {
+        mMaxConnectionsPerService = maxConnectionsPerService;
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory =
+                r -> new Thread(r, "NfcLlcp-" + threadCount.incrementAndGet());
+        mExecutor = new ThreadPoolExecutor(0, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory);
+    }
+
+    Service getServiceLocked(String name) {
+        Service service = mServices.get(name);
+        if (service == null) {
+            service = new Service(name);
+            mServices.put(name, service);
+        }
+        return service;
+    }
+
+    /**
+     * Runs the accept loop of a server until it returns.
+     *
+     * @return false if no thread was available for it
+     */
+    public boolean startServer(String name, Runnable acceptLoop) {
+        synchronized (this) {
+            getServiceLocked(name).mServers++;
+        }
+        try {
+            mExecutor.execute(() -> {
+                synchronized (LlcpServiceRuntime.this) {
+                    mAcceptThreads.put(acceptLoop, Thread.currentThread());
+                }
+                try {
+                    runNamed(name, acceptLoop);
+                } finally {
+                    synchronized (LlcpServiceRuntime.this) {
+                        getServiceLocked(name).mServers--;
+                        mAcceptThreads.remove(acceptLoop);
+                        // Don't let a late stopServer() interrupt the next task
+                        Thread.interrupted();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "No thread to run the " + name + " server");
+            synchronized (this) {
+                getServiceLocked(name).mServers--;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Runs a blocking socket call of an LlcpEventLoop.
+     *
+     * @return false if no thread was available for it
+     */
+    public boolean executeCall(Runnable call) {
+        try {
+            mExecutor.execute(call);
+            return true;
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mRejectedCalls++;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Interrupts the accept loop of a server, so that it stops waiting for
+     * the service to get below its connection limit. Called once the server
+     * told its accept loop to return.
+     */
+    public synchronized void stopServer(Runnable acceptLoop) {
+        Thread thread = mAcceptThreads.get(acceptLoop);
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Runs the handler of a connection accepted by a server. Called from the
+     * accept loop, which blocks while the service is at its connection limit.
+     *
+     * @return false if the connection could not be handled, or the server was
+     *     stopped while waiting, in which case the caller still owns the
+     *     socket and must close it
+     */
+    public boolean runConnection(String name, LlcpSocket socket, Runnable handler) {
+        Service service;
+        synchronized (this) {
+            service = getServiceLocked(name);
+            if (service.mConnections.size() >= mMaxConnectionsPerService) {
+                if (DBG) Log.d(TAG, name + " is at its connection limit, waiting");
+                service.mWaits++;
+                try {
+                    while (service.mConnections.size() >= mMaxConnectionsPerService) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    service.mRejected++;
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            service.mConnections.add(socket);
+            service.mHandled++;
+        }
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    runNamed(name, handler);
+                } finally {
+                    releaseConnection(service, socket);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "No thread to handle a " + name + " connection");
+            synchronized (this) {
+                service.mRejected++;
+            }
+            releaseConnection(service, socket);
+            return false;
+        }
+    }
+
+    synchronized void releaseConnection(Service service, LlcpSocket socket) {
+        service.mConnections.remove(socket);
+        notifyAll();
+    }
+
+    static void runNamed(String name, Runnable runnable) {
+        Thread thread = Thread.currentThread();
+        String poolName = thread.getName();
+        thread.setName(name);
+        try {
+            runnable.run();
+        } finally {
+            thread.setName(poolName);
+        }
+    }
+
+    /**
+     * Closes the sockets of every connection being handled, which ends their
+     * handlers. Called once the LLCP link went down.
+     */
+    public void closeConnections() {
+        ArrayList<LlcpSocket> sockets = new ArrayList<>();
+        synchronized (this) {
+            for (Service service : mServices.values()) {
+                sockets.addAll(service.mConnections);
+            }
+        }
+        if (DBG && !sockets.isEmpty()) Log.d(TAG, "Closing " + sockets.size() + " connections");
+        for (LlcpSocket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /** Returns the number of connections the service is handling. */
+    synchronized int getActiveConnections(String name) {
+        Service service = mServices.get(name);
+        return service != null ? service.mConnections.size() : 0;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("LLCP service runtime: threads=" + mExecutor.getPoolSize()
+                + " active=" + mExecutor.getActiveCount()
+                + " largest=" + mExecutor.getLargestPoolSize()
+                + " max=" + mExecutor.getMaximumPoolSize()
+                + " completed=" + mExecutor.getCompletedTaskCount()
+                + " rejectedCalls=" + mRejectedCalls);
+        for (Service service : mServices.values()) {
+            pw.println("  " + service.mName + ": servers=" + service.mServers
+                    + " connections=" + service.mConnections.size()
+                    + "/" + mMaxConnectionsPerService
+                    + " handled=" + service.mHandled
+                    + " waits=" + service.mWaits
+                    + " rejected=" + service.mRejected);
+        }
+    }
+}
@@ -18,7 +18,6 @@ package com.android.nfc;
 
 import android.app.ActivityManager;
 import android.app.Application;
-import android.app.BroadcastOptions;
 import android.app.KeyguardManager;
 import android.app.PendingIntent;
 import android.app.admin.DevicePolicyManager;
@@ -38,7 +37,6 @@ import android.content.pm.UserInfo;
 import android.content.res.Resources.NotFoundException;
 import android.media.AudioAttributes;
 import android.media.SoundPool;
-import android.net.Uri;
 import android.nfc.BeamShareData;
 import android.nfc.ErrorCodes;
 import android.nfc.FormatException;
@@ -64,7 +62,9 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.Process;
@@ -84,6 +84,7 @@ import android.service.vr.IVrManager;
 import android.service.vr.IVrStateCallbacks;
 import android.text.TextUtils;
 import android.util.EventLog;
+import android.util.LongSparseArray;
 import android.util.Log;
 import android.util.proto.ProtoOutputStream;
 import android.widget.Toast;
@@ -91,6 +92,8 @@ import android.widget.Toast;
 import com.android.internal.logging.MetricsLogger;
 import com.android.internal.util.ArrayUtils;
 import com.android.nfc.DeviceHost.DeviceHostListener;
+import com.android.nfc.DeviceHost.LlcpAsyncServerSocket;
+import com.android.nfc.DeviceHost.LlcpAsyncSocket;
 import com.android.nfc.DeviceHost.LlcpConnectionlessSocket;
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
@@ -105,8 +108,8 @@ import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -132,6 +135,17 @@ public class NfcService implements DeviceHostListener {
 
     public static final String PREF = "NfcServicePrefs";
 
+    // Opt-in capture of the controller events of every RF session, see RfSessionRecorder
+    static final boolean RF_CAPTURE_ENABLED =
+            SystemProperties.getBoolean("persist.nfc.rf_capture_enabled", false);
+    // HCE commands and transaction data may hold payment data, they are only
+    // captured as is when this is set as well
+    static final boolean RF_CAPTURE_PAYLOADS =
+            SystemProperties.getBoolean("persist.nfc.rf_capture_payloads", false);
+    static final String RF_CAPTURE_FILE = "rf_session.cap";
+    static final String RF_CAPTURE_PREVIOUS_FILE = "rf_session.cap.prev";
+    static final long RF_CAPTURE_MAX_BYTES = 4 * 1024 * 1024;
+
     static final String PREF_NFC_ON = "nfc_on";
     static final boolean NFC_ON_DEFAULT = false;
     static final String PREF_NDEF_PUSH_ON = "ndef_push_on";
@@ -173,6 +187,8 @@ public class NfcService implements DeviceHostListener {
     static final int MSG_PREFERRED_PAYMENT_CHANGED = 18;
     static final int MSG_TOAST_DEBOUNCE_EVENT = 19;
     static final int MSG_DELAY_POLLING = 20;
+    static final int MSG_SHOW_TOAST = 21;
+    static final int MSG_MAX = MSG_SHOW_TOAST;
 
     static final String MSG_ROUTE_AID_PARAM_TAG = "power";
 
@@ -285,6 +301,18 @@ public class NfcService implements DeviceHostListener {
     NfcDiscoveryParameters mCurrentDiscoveryParameters =
             NfcDiscoveryParameters.getNfcOffParameters();
 
+    // Discovery parameters are immutable once built; cache them by the inputs of
+    // buildDiscoveryParameters() so screen state storms don't rebuild them.
+    static final int MAX_DISCOVERY_PARAMS_CACHE_SIZE = 32;
+    final LongSparseArray<NfcDiscoveryParameters> mDiscoveryParamsCache =
+            new LongSparseArray<NfcDiscoveryParameters>();
+
+    // applyRouting() statistics, protected by this
+    long mApplyRoutingCount;
+    long mApplyRoutingSkippedCount;
+    long mApplyRoutingTotalNs;
+    long mApplyRoutingMaxNs;
+
     ReaderModeParams mReaderModeParams;
 
     private int mUserId;
@@ -363,6 +391,8 @@ public class NfcService implements DeviceHostListener {
     private Vibrator mVibrator;
     private VibrationEffect mVibrationEffect;
     private ISecureElementService mSEService;
+    private final TransactionEventDispatcher mTransactionEventDispatcher;
+    private final RfSessionRecorder mRfSessionRecorder;
 
     private ScreenStateHelper mScreenStateHelper;
     private ForegroundUtils mForegroundUtils;
@@ -496,7 +526,9 @@ public class NfcService implements DeviceHostListener {
 
         mScreenStateHelper = new ScreenStateHelper(mContext);
         mContentResolver = mContext.getContentResolver();
-        mDeviceHost = new NativeNfcManager(mContext, this);
+        mRfSessionRecorder = RF_CAPTURE_ENABLED ? createRfSessionRecorder() : null;
+        mDeviceHost = new NativeNfcManager(mContext,
+                mRfSessionRecorder != null ? mRfSessionRecorder : this);
 
         mNfcUnlockManager = NfcUnlockManager.getInstance();
 
@@ -516,6 +548,7 @@ public class NfcService implements DeviceHostListener {
         }
 
         mNfcDispatcher = new NfcDispatcher(mContext, mHandoverDataParser, mInProvisionMode);
+        mTransactionEventDispatcher = new TransactionEventDispatcher(mContext);
 
         mPrefs = mContext.getSharedPreferences(PREF, Context.MODE_PRIVATE);
         mPrefsEditor = mPrefs.edit();
@@ -577,6 +610,7 @@ public class NfcService implements DeviceHostListener {
         mContext.registerReceiverAsUser(mOwnerReceiver, UserHandle.ALL, ownerFilter, null, null);
 
         IntentFilter policyFilter = new IntentFilter(DevicePolicyManager.ACTION_DEVICE_POLICY_MANAGER_STATE_CHANGED);
+        policyFilter.addAction(UserManager.ACTION_USER_RESTRICTIONS_CHANGED);
         mContext.registerReceiverAsUser(mPolicyReceiver, UserHandle.ALL, policyFilter, null, null);
 
         updatePackageCache();
@@ -649,7 +683,7 @@ public class NfcService implements DeviceHostListener {
 
         new EnableDisableTask().execute(TASK_BOOT);  // do blocking boot tasks
 
-        mHandler.sendEmptyMessageDelayed(MSG_UPDATE_STATS, STATS_UPDATE_INTERVAL_MS);
+        mBackgroundHandler.sendEmptyMessageDelayed(MSG_UPDATE_STATS, STATS_UPDATE_INTERVAL_MS);
 
         IVrManager mVrManager = IVrManager.Stub.asInterface(ServiceManager.getService(
                 mContext.VR_SERVICE));
@@ -741,6 +775,7 @@ public class NfcService implements DeviceHostListener {
                 mNfcPreferredPaymentChangedInstalledPackages.put(
                         uh.getIdentifier(), packageListNfcPreferredPaymentChanged);
             }
+            mTransactionEventDispatcher.onPackagesChanged(mNfcEventInstalledPackages);
         }
     }
 
@@ -2256,7 +2291,7 @@ public class NfcService implements DeviceHostListener {
             if (!isNfcEnabledOrShuttingDown()) {
                 return;
             }
-            WatchDogThread watchDog = new WatchDogThread("applyRouting", ROUTING_WATCHDOG_MS);
+            long startNs = SystemClock.elapsedRealtimeNanos();
             if (mInProvisionMode) {
                 mInProvisionMode = Settings.Global.getInt(mContentResolver,
                         Settings.Global.DEVICE_PROVISIONED, 0) == 0;
@@ -2275,11 +2310,15 @@ public class NfcService implements DeviceHostListener {
                 return;
             }
 
-            try {
-                watchDog.start();
-                // Compute new polling parameters
-                NfcDiscoveryParameters newParams = computeDiscoveryParameters(mScreenState);
-                if (force || !newParams.equals(mCurrentDiscoveryParameters)) {
+            // Compute new polling parameters
+            NfcDiscoveryParameters newParams = computeDiscoveryParameters(mScreenState);
+            if (force || (newParams != mCurrentDiscoveryParameters
+                    && !newParams.equals(mCurrentDiscoveryParameters))) {
+                // Only start the watchdog when we actually talk to the controller.
+                WatchDogThread watchDog =
+                        new WatchDogThread("applyRouting", ROUTING_WATCHDOG_MS);
+                try {
+                    watchDog.start();
                     if (newParams.shouldEnableDiscovery()) {
                         boolean shouldRestart = mCurrentDiscoveryParameters.shouldEnableDiscovery();
                         mDeviceHost.enableDiscovery(newParams, shouldRestart);
@@ -2287,16 +2326,50 @@ public class NfcService implements DeviceHostListener {
                         mDeviceHost.disableDiscovery();
                     }
                     mCurrentDiscoveryParameters = newParams;
-                } else {
-                    Log.d(TAG, "Discovery configuration equal, not updating.");
+                } finally {
+                    watchDog.cancel();
                 }
-            } finally {
-                watchDog.cancel();
+            } else {
+                Log.d(TAG, "Discovery configuration equal, not updating.");
+                mApplyRoutingSkippedCount++;
+            }
+            long elapsedNs = SystemClock.elapsedRealtimeNanos() - startNs;
+            mApplyRoutingCount++;
+            mApplyRoutingTotalNs += elapsedNs;
+            if (elapsedNs > mApplyRoutingMaxNs) {
+                mApplyRoutingMaxNs = elapsedNs;
             }
         }
     }
 
+    /**
+     * Returns the discovery parameters for the given screen state and the current
+     * reader mode, provisioning and lockscreen polling configuration. Parameters
+     * are looked up in a small cache keyed by those inputs and only built on a miss.
+     */
     private NfcDiscoveryParameters computeDiscoveryParameters(int screenState) {
+        ReaderModeParams readerModeParams = mReaderModeParams;
+        int lockscreenPollMask = mNfcUnlockManager.getLockscreenPollMask();
+        long key = (screenState & 0xFF)
+                | (mInProvisionMode ? 1L << 8 : 0)
+                | (readerModeParams != null ? 1L << 9 : 0)
+                | (readerModeParams != null && readerModeParams.flags != 0 ? 1L << 10 : 0)
+                | (readerModeParams != null ? (long) (readerModeParams.flags & 0xFF) << 11 : 0)
+                | ((long) lockscreenPollMask << 32);
+        synchronized (mDiscoveryParamsCache) {
+            NfcDiscoveryParameters params = mDiscoveryParamsCache.get(key);
+            if (params == null) {
+                params = buildDiscoveryParameters(screenState);
+                if (mDiscoveryParamsCache.size() >= MAX_DISCOVERY_PARAMS_CACHE_SIZE) {
+                    mDiscoveryParamsCache.clear();
+                }
+                mDiscoveryParamsCache.put(key, params);
+            }
+            return params;
+        }
+    }
+
+    private NfcDiscoveryParameters buildDiscoveryParameters(int screenState) {
         // Recompute discovery parameters based on screen state
         NfcDiscoveryParameters.Builder paramsBuilder = NfcDiscoveryParameters.newBuilder();
         // Polling
@@ -2338,7 +2411,7 @@ public class NfcService implements DeviceHostListener {
             paramsBuilder.setEnableP2p(false);
         }
 
-        if (mIsHceCapable && mScreenState >= ScreenStateHelper.SCREEN_STATE_ON_LOCKED && mReaderModeParams == null) {
+        if (mIsHceCapable && screenState >= ScreenStateHelper.SCREEN_STATE_ON_LOCKED && mReaderModeParams == null) {
             // Host routing is always enabled at lock screen or later, provided we aren't in reader mode
             paramsBuilder.setEnableHostRouting(true);
         }
@@ -2458,6 +2531,29 @@ public class NfcService implements DeviceHostListener {
         return mDeviceHost.createLlcpServerSocket(sap, sn, miu, rw, linearBufferLength);
     }
 
+    /**
+     * For use by code in this process
+     */
+    public LlcpAsyncSocket createLlcpAsyncSocket(int sap, int miu, int rw,
+            int linearBufferLength) throws LlcpException {
+        return mDeviceHost.createLlcpAsyncSocket(sap, miu, rw, linearBufferLength);
+    }
+
+    /**
+     * For use by code in this process
+     */
+    public LlcpAsyncServerSocket createLlcpAsyncServerSocket(int sap, String sn, int miu,
+            int rw, int linearBufferLength) throws LlcpException {
+        return mDeviceHost.createLlcpAsyncServerSocket(sap, sn, miu, rw, linearBufferLength);
+    }
+
+    /**
+     * Runs a task on the thread that completes asynchronous LLCP operations
+     */
+    public void postLlcpEvent(Runnable task) {
+        mDeviceHost.postLlcpEvent(task);
+    }
+
     public int getAidRoutingTableSize ()
     {
         int aidTableSize = 0x00;
@@ -2539,10 +2635,27 @@ public class NfcService implements DeviceHostListener {
     }
 
     void sendMessage(int what, Object obj) {
-        Message msg = mHandler.obtainMessage();
+        Handler handler = isBackgroundMessage(what) ? mBackgroundHandler : mHandler;
+        Message msg = handler.obtainMessage();
         msg.what = what;
         msg.obj = obj;
-        mHandler.sendMessage(msg);
+        handler.sendMessage(msg);
+    }
+
+    /**
+     * Messages that are not latency critical for RF handling (broadcasts, stats
+     * and UI) run on the background lane, so a burst of them cannot delay tag
+     * dispatch or routing updates. Ordering is preserved within each lane.
+     */
+    static boolean isBackgroundMessage(int what) {
+        switch (what) {
+            case MSG_UPDATE_STATS:
+            case MSG_PREFERRED_PAYMENT_CHANGED:
+            case MSG_SHOW_TOAST:
+                return true;
+            default:
+                return false;
+        }
     }
 
     /**
@@ -2562,6 +2675,35 @@ public class NfcService implements DeviceHostListener {
     }
 
     final class NfcServiceHandler extends Handler {
+        final HandlerStats mStats;
+
+        NfcServiceHandler(Looper looper, String name) {
+            super(looper);
+            mStats = new HandlerStats(name, MSG_MAX);
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            if (msg.getCallback() != null) {
+                mStats.onRunnableEnqueued();
+            } else {
+                mStats.onEnqueued(msg.what);
+            }
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            long waitMs = SystemClock.uptimeMillis() - msg.getWhen();
+            Runnable callback = msg.getCallback();
+            if (callback != null) {
+                mStats.onRunnableDispatched(waitMs, hasCallbacks(callback));
+            } else {
+                mStats.onDispatched(msg.what, waitMs, hasMessages(msg.what));
+            }
+            super.dispatchMessage(msg);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -2712,8 +2854,7 @@ public class NfcService implements DeviceHostListener {
                             tag.disconnect();
                             if (mScreenState == ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED) {
                                 if (!sToast_debounce && mNotifyReadFailed) {
-                                    Toast.makeText(mContext, R.string.tag_read_error,
-                                                   Toast.LENGTH_SHORT).show();
+                                    sendMessage(MSG_SHOW_TOAST, R.string.tag_read_error);
                                     sToast_debounce = true;
                                     mHandler.sendEmptyMessageDelayed(MSG_TOAST_DEBOUNCE_EVENT,
                                                                      sToast_debounce_time_ms);
@@ -2795,6 +2936,9 @@ public class NfcService implements DeviceHostListener {
                     mP2pLinkManager.onLlcpFirstPacketReceived();
                     break;
                 case MSG_RF_FIELD_ACTIVATED:
+                    if (mIsHceCapable) {
+                        mCardEmulationManager.onRfFieldActivated();
+                    }
                     Intent fieldOnIntent = new Intent(ACTION_RF_FIELD_ON_DETECTED);
                     sendNfcPermissionProtectedBroadcast(fieldOnIntent);
                     if (mIsSecureNfcEnabled) {
@@ -2873,7 +3017,8 @@ public class NfcService implements DeviceHostListener {
                         mCardEmulationManager.onOffHostAidSelected();
                     }
                     byte[][] data = (byte[][]) msg.obj;
-                    sendOffHostTransactionEvent(data[0], data[1], data[2]);
+                    mTransactionEventDispatcher.queueEvent(data[0], data[1],
+                            new String(data[2], StandardCharsets.UTF_8));
                     break;
 
                 case MSG_PREFERRED_PAYMENT_CHANGED:
@@ -2888,6 +3033,10 @@ public class NfcService implements DeviceHostListener {
                     sToast_debounce = false;
                     break;
 
+                case MSG_SHOW_TOAST:
+                    Toast.makeText(mContext, (int) msg.obj, Toast.LENGTH_SHORT).show();
+                    break;
+
                 case MSG_DELAY_POLLING:
                     synchronized (NfcService.this) {
                         if (!mPollDelayed) {
@@ -2904,52 +3053,6 @@ public class NfcService implements DeviceHostListener {
             }
         }
 
-        private void sendOffHostTransactionEvent(byte[] aid, byte[] data, byte[] readerByteArray) {
-            if (!isSEServiceAvailable() || mNfcEventInstalledPackages.isEmpty()) {
-                return;
-            }
-
-            try {
-                String reader = new String(readerByteArray, "UTF-8");
-                for (int userId : mNfcEventInstalledPackages.keySet()) {
-                    List<String> packagesOfUser = mNfcEventInstalledPackages.get(userId);
-                    String[] installedPackages = new String[packagesOfUser.size()];
-                    boolean[] nfcAccess = mSEService.isNfcEventAllowed(reader, aid,
-                            packagesOfUser.toArray(installedPackages), userId);
-                    if (nfcAccess == null) {
-                        continue;
-                    }
-                    Intent intent = new Intent(NfcAdapter.ACTION_TRANSACTION_DETECTED);
-                    intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
-                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                    intent.putExtra(NfcAdapter.EXTRA_AID, aid);
-                    intent.putExtra(NfcAdapter.EXTRA_DATA, data);
-                    intent.putExtra(NfcAdapter.EXTRA_SECURE_ELEMENT_NAME, reader);
-                    StringBuilder aidString = new StringBuilder(aid.length);
-                    for (byte b : aid) {
-                        aidString.append(String.format("%02X", b));
-                    }
-                    String url =
-                            new String("nfc://secure:0/" + reader + "/" + aidString.toString());
-                    intent.setData(Uri.parse(url));
-
-                    final BroadcastOptions options = BroadcastOptions.makeBasic();
-                    options.setBackgroundActivityStartsAllowed(true);
-                    for (int i = 0; i < nfcAccess.length; i++) {
-                        if (nfcAccess[i]) {
-                            intent.setPackage(packagesOfUser.get(i));
-                            mContext.sendBroadcastAsUser(intent, UserHandle.of(userId), null,
-                                    options.toBundle());
-                        }
-                    }
-                }
-            } catch (RemoteException e) {
-                Log.e(TAG, "Error in isNfcEventAllowed() " + e);
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "Incorrect format for Secure Element name" + e);
-            }
-        }
-
         private void sendNfcPermissionProtectedBroadcast(Intent intent) {
             if (mNfcEventInstalledPackages.isEmpty()) {
                 return;
@@ -2965,9 +3068,9 @@ public class NfcService implements DeviceHostListener {
 
         /* Returns the list of packages request for nfc preferred payment service changed and
          * have access to NFC Events on any SE */
-        private ArrayList<String> getNfcPreferredPaymentChangedSEAccessAllowedPackages(int userId) {
-            if (!isSEServiceAvailable()
-                    || mNfcPreferredPaymentChangedInstalledPackages.get(userId).isEmpty()) {
+        private ArrayList<String> getNfcPreferredPaymentChangedSEAccessAllowedPackages(int userId,
+                List<String> packagesOfUser) {
+            if (!isSEServiceAvailable() || packagesOfUser.isEmpty()) {
                 return null;
             }
             String[] readers = null;
@@ -2982,7 +3085,6 @@ public class NfcService implements DeviceHostListener {
                 return null;
             }
             boolean[] nfcAccessFinal = null;
-            List<String> packagesOfUser = mNfcPreferredPaymentChangedInstalledPackages.get(userId);
             String[] installedPackages = new String[packagesOfUser.size()];
 
             for (String reader : readers) {
@@ -3021,44 +3123,55 @@ public class NfcService implements DeviceHostListener {
             intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
             // Resume app switches so the receivers can start activities without delay
             mNfcDispatcher.resumeAppSwitches();
-            synchronized (this) {
-                for (int userId : mNfcPreferredPaymentChangedInstalledPackages.keySet()) {
-                    ArrayList<String> SEPackages =
-                            getNfcPreferredPaymentChangedSEAccessAllowedPackages(userId);
-                    UserHandle userHandle = UserHandle.of(userId);
-                    if (SEPackages != null && !SEPackages.isEmpty()) {
-                        for (String packageName : SEPackages) {
+            // This runs on the background lane while updatePackageCache() may
+            // refill the cache on the main thread, so work on a snapshot
+            HashMap<Integer, List<String>> installedPackages =
+                    new HashMap<Integer, List<String>>();
+            synchronized (NfcService.this) {
+                for (Map.Entry<Integer, List<String>> entry :
+                        mNfcPreferredPaymentChangedInstalledPackages.entrySet()) {
+                    installedPackages.put(entry.getKey(),
+                            new ArrayList<String>(entry.getValue()));
+                }
+            }
+            for (Map.Entry<Integer, List<String>> entry : installedPackages.entrySet()) {
+                int userId = entry.getKey();
+                List<String> packagesOfUser = entry.getValue();
+                ArrayList<String> SEPackages =
+                        getNfcPreferredPaymentChangedSEAccessAllowedPackages(userId,
+                                packagesOfUser);
+                UserHandle userHandle = UserHandle.of(userId);
+                if (SEPackages != null && !SEPackages.isEmpty()) {
+                    for (String packageName : SEPackages) {
+                        intent.setPackage(packageName);
+                        intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+                        mContext.sendBroadcastAsUser(intent, userHandle);
+                    }
+                }
+                PackageManager pm;
+                try {
+                    pm = mContext.createContextAsUser(userHandle, /*flags=*/0)
+                            .getPackageManager();
+                } catch (IllegalStateException e) {
+                    Log.d(TAG, "Fail to get PackageManager for user: " + userHandle);
+                    continue;
+                }
+                for (String packageName : packagesOfUser) {
+                    try {
+                        PackageInfo info = pm.getPackageInfo(packageName, 0);
+                        if (SEPackages != null && SEPackages.contains(packageName)) {
+                            continue;
+                        }
+                        if (info.applicationInfo != null && ((info.applicationInfo.flags
+                                & ApplicationInfo.FLAG_SYSTEM) != 0
+                                || (info.applicationInfo.privateFlags
+                                & ApplicationInfo.PRIVATE_FLAG_PRIVILEGED) != 0)) {
                             intent.setPackage(packageName);
                             intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
                             mContext.sendBroadcastAsUser(intent, userHandle);
                         }
-                    }
-                    PackageManager pm;
-                    try {
-                        pm = mContext.createContextAsUser(userHandle, /*flags=*/0)
-                                .getPackageManager();
-                    } catch (IllegalStateException e) {
-                        Log.d(TAG, "Fail to get PackageManager for user: " + userHandle);
-                        continue;
-                    }
-                    for (String packageName :
-                            mNfcPreferredPaymentChangedInstalledPackages.get(userId)) {
-                        try {
-                            PackageInfo info = pm.getPackageInfo(packageName, 0);
-                            if (SEPackages != null && SEPackages.contains(packageName)) {
-                                continue;
-                            }
-                            if (info.applicationInfo != null && ((info.applicationInfo.flags
-                                    & ApplicationInfo.FLAG_SYSTEM) != 0
-                                    || (info.applicationInfo.privateFlags
-                                    & ApplicationInfo.PRIVATE_FLAG_PRIVILEGED) != 0)) {
-                                intent.setPackage(packageName);
-                                intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
-                                mContext.sendBroadcastAsUser(intent, userHandle);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Exception in getPackageInfo " + e);
-                        }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Exception in getPackageInfo " + e);
                     }
                 }
             }
@@ -3079,7 +3192,8 @@ public class NfcService implements DeviceHostListener {
                                 // Register P2P device
                                 mObjectMap.put(device.getHandle(), device);
                             }
-                            mP2pLinkManager.onLlcpActivated(device.getLlcpVersion());
+                            mP2pLinkManager.onLlcpActivated(device.getLlcpVersion(),
+                                    device.getGeneralBytes());
                             return true;
                         } else {
                             /* should not happen */
@@ -3108,7 +3222,8 @@ public class NfcService implements DeviceHostListener {
                             // Register P2P device
                             mObjectMap.put(device.getHandle(), device);
                         }
-                        mP2pLinkManager.onLlcpActivated(device.getLlcpVersion());
+                        mP2pLinkManager.onLlcpActivated(device.getLlcpVersion(),
+                                device.getGeneralBytes());
                         return true;
                     }
                 } else {
@@ -3181,8 +3296,7 @@ public class NfcService implements DeviceHostListener {
                     }
                     if (mScreenState == ScreenStateHelper.SCREEN_STATE_ON_UNLOCKED && mNotifyDispatchFailed) {
                         if (!sToast_debounce) {
-                            Toast.makeText(mContext, R.string.tag_dispatch_failed,
-                                           Toast.LENGTH_SHORT).show();
+                            sendMessage(MSG_SHOW_TOAST, R.string.tag_dispatch_failed);
                             sToast_debounce = true;
                             mHandler.sendEmptyMessageDelayed(MSG_TOAST_DEBOUNCE_EVENT,
                                                              sToast_debounce_time_ms);
@@ -3217,7 +3331,18 @@ public class NfcService implements DeviceHostListener {
         }
     }
 
-    private NfcServiceHandler mHandler = new NfcServiceHandler();
+    // RF and control lane; runs on the main thread.
+    private final NfcServiceHandler mHandler =
+            new NfcServiceHandler(Looper.getMainLooper(), "rf");
+    // Background lane for broadcasts, stats and UI.
+    private final NfcServiceHandler mBackgroundHandler =
+            new NfcServiceHandler(createBackgroundLooper(), "background");
+
+    private static Looper createBackgroundLooper() {
+        HandlerThread thread = new HandlerThread("NfcServiceBackground");
+        thread.start();
+        return thread.getLooper();
+    }
 
     class ApplyRoutingTask extends AsyncTask<Integer, Void, Void> {
         @Override
@@ -3350,6 +3475,9 @@ public class NfcService implements DeviceHostListener {
                     action.equals(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE) ||
                     action.equals(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE)) {
                 updatePackageCache();
+                if (mIsBeamCapable) {
+                    mP2pLinkManager.onPackagesChanged();
+                }
             } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
                 if (DBG) Log.d(TAG, "Shutdown received with UserId: " + getSendingUserId());
                 if (getSendingUserId() != UserHandle.USER_ALL) {
@@ -3375,6 +3503,10 @@ public class NfcService implements DeviceHostListener {
                 enforceBeamShareActivityPolicy(
                     context, new UserHandle(getSendingUserId()));
             }
+            // Either may change DISALLOW_OUTGOING_BEAM
+            if (mIsBeamCapable) {
+                mP2pLinkManager.onUserRestrictionsChanged();
+            }
         }
     };
 
@@ -3481,6 +3613,24 @@ public class NfcService implements DeviceHostListener {
         }
     }
 
+    /**
+     * Starts a new RF session capture. The capture of the previous run is
+     * kept, since it usually holds the session that led to a restart.
+     */
+    private RfSessionRecorder createRfSessionRecorder() {
+        File capture = new File(mContext.getFilesDir(), RF_CAPTURE_FILE);
+        if (capture.exists()) {
+            capture.renameTo(new File(mContext.getFilesDir(), RF_CAPTURE_PREVIOUS_FILE));
+        }
+        try {
+            return new RfSessionRecorder(this, new FileOutputStream(capture),
+                    RF_CAPTURE_MAX_BYTES, RF_CAPTURE_PAYLOADS);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start RF session capture", e);
+            return null;
+        }
+    }
+
     void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (mContext.checkCallingOrSelfPermission(android.Manifest.permission.DUMP)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -3490,7 +3640,8 @@ public class NfcService implements DeviceHostListener {
             return;
         }
 
-        for (String arg : args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
             if ("--proto".equals(arg)) {
                 FileOutputStream fos = null;
                 try {
@@ -3512,6 +3663,12 @@ public class NfcService implements DeviceHostListener {
                     }
                 }
                 return;
+            } else if ("--reset-hce-stats".equals(arg)) {
+                if (mIsHceCapable) {
+                    mCardEmulationManager.resetHostEmulationStats();
+                }
+                pw.println("HCE transaction stats reset");
+                return;
             }
         }
 
@@ -3523,6 +3680,11 @@ public class NfcService implements DeviceHostListener {
             pw.println("mIsSecureNfcEnabled=" + mIsSecureNfcEnabled);
             pw.println("mIsAlwaysOnSupported=" + mIsAlwaysOnSupported);
             pw.println(mCurrentDiscoveryParameters);
+            pw.println("applyRouting: count=" + mApplyRoutingCount
+                    + " skipped=" + mApplyRoutingSkippedCount
+                    + " avgUs=" + (mApplyRoutingCount > 0
+                            ? mApplyRoutingTotalNs / mApplyRoutingCount / 1000 : 0)
+                    + " maxUs=" + mApplyRoutingMaxNs / 1000);
             if (mIsBeamCapable) {
                 mP2pLinkManager.dump(fd, pw, args);
             }
@@ -3530,6 +3692,12 @@ public class NfcService implements DeviceHostListener {
                 mCardEmulationManager.dump(fd, pw, args);
             }
             mNfcDispatcher.dump(fd, pw, args);
+            mTransactionEventDispatcher.dump(pw);
+            if (mRfSessionRecorder != null) {
+                mRfSessionRecorder.dump(pw);
+            }
+            mHandler.mStats.dump(pw);
+            mBackgroundHandler.mStats.dump(pw);
             if (mState == NfcAdapter.STATE_ON) {
                 mRoutingTableParser.dump(mDeviceHost, pw);
             }
@@ -55,7 +55,7 @@ import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Interface to listen for P2P events.
@@ -188,6 +188,9 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     static final int MSG_WAIT_FOR_LINK_TIMEOUT = 9;
     static final int MSG_HANDOVER_BUSY = 10;
 
+    // Bounds the default Beam payloads kept for foreground apps
+    static final int MAX_DEFAULT_PAYLOADS = 64;
+
     // values for mLinkState
     static final int LINK_STATE_DOWN = 1;
     static final int LINK_STATE_UP = 2;
@@ -220,6 +223,27 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     final Handler mHandler;
     final HandoverDataParser mHandoverDataParser;
     final ForegroundUtils mForegroundUtils;
+    final LlcpServiceConnector mLlcpServiceConnector;
+    final PeerCapabilityCache mPeerCapabilities;
+
+    /**
+     * What Beam sends by default for a foreground UID, so that link activation
+     * does not need the PackageManager and UserManager.
+     */
+    static final class DefaultPayload {
+        final boolean mBeamDisabled; // by the DISALLOW_OUTGOING_BEAM restriction
+        final String mPackageName; // null if the UID has no package
+        final NdefMessage mNdef; // null if the app disabled the default
+
+        DefaultPayload(boolean beamDisabled, String packageName, NdefMessage ndef) {
+            mBeamDisabled = beamDisabled;
+            mPackageName = packageName;
+            mNdef = ndef;
+        }
+    }
+
+    // UIDs carry the user
+    final PerUidCache<DefaultPayload> mDefaultPayloads;
 
     final int mDefaultMiu;
     final int mDefaultRwSize;
@@ -228,7 +252,8 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     PackageManager mPackageManager;
     int mLinkState;
     int mSendState;  // valid during LINK_STATE_UP or LINK_STATE_DEBOUNCE
-    boolean mIsSendEnabled;
+    // Written locked, volatile for the foreground listener
+    volatile boolean mIsSendEnabled;
     boolean mIsReceiveEnabled;
     NdefMessage mMessageToSend;  // not valid in SEND_STATE_NOTHING_TO_SEND
     Uri[] mUrisToSend;  // not valid in SEND_STATE_NOTHING_TO_SEND
@@ -245,6 +270,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     boolean mLlcpServicesConnected;
     long mLastLlcpActivationTime;
     byte mPeerLlcpVersion;
+    PeerCapabilityCache.Key mPeerKey; // null if the peer can't be told apart
     // for DTA Mode
     private int mDtaMiu;
     private int mDtaRwSize;
@@ -285,6 +311,15 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         mNdefCallbackUid = -1;
         mForegroundUtils = ForegroundUtils.getInstance(
                 context.getSystemService(ActivityManager.class));
+        mLlcpServiceConnector = new LlcpServiceConnector(AsyncTask.THREAD_POOL_EXECUTOR);
+        mPeerCapabilities = new PeerCapabilityCache();
+        mDefaultPayloads = new PerUidCache<>(MAX_DEFAULT_PAYLOADS, this::loadDefaultPayload);
+        mForegroundUtils.addForegroundListener(uid -> {
+            // Warm the default payload off the importance callback thread
+            if (mIsSendEnabled) {
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> getDefaultPayload(uid));
+            }
+        });
      }
 
     /**
@@ -405,7 +440,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             if (mLinkState != LINK_STATE_DOWN) {
                 return;
             }
-            if (mForegroundUtils.getForegroundUids().contains(mNdefCallbackUid)) {
+            if (mForegroundUtils.isUidInForegroundSet(mNdefCallbackUid)) {
                 // Try to get data from the registered NDEF callback
                 prepareMessageToSend(false);
             } else {
@@ -434,7 +469,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
     /**
      * Must be called on UI Thread.
      */
-    public void onLlcpActivated(byte peerLlcpVersion) {
+    public void onLlcpActivated(byte peerLlcpVersion, byte[] peerGeneralBytes) {
         Log.i(TAG, "LLCP activated");
         synchronized (P2pLinkManager.this) {
             if (mEchoServer != null) {
@@ -442,6 +477,9 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             }
             mLastLlcpActivationTime = SystemClock.elapsedRealtime();
             mPeerLlcpVersion = peerLlcpVersion;
+            // DTA test cases probe every service, whatever the peer answered before
+            mPeerKey = NfcService.sIsDtaMode
+                    ? null : PeerCapabilityCache.Key.create(peerLlcpVersion, peerGeneralBytes);
             switch (mLinkState) {
                 case LINK_STATE_DOWN:
                     if (!mEventListener.isP2pIdle() && mSendState != SEND_STATE_PENDING) {
@@ -511,6 +549,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                 Log.e(TAG, "Failed to retrieve PackageManager for user");
             }
         }
+        invalidateDefaultPayloads();
     }
 
     void prepareMessageToSend(boolean generatePlayLink) {
@@ -521,19 +560,20 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                 return;
             }
 
-            List<Integer> foregroundUids = mForegroundUtils.getForegroundUids();
-            if (foregroundUids.isEmpty()) {
+            int[] foregroundUids = mForegroundUtils.getForegroundUidsSnapshot();
+            if (foregroundUids.length == 0) {
                 Log.e(TAG, "Could not determine foreground UID.");
                 return;
             }
 
-            if (isBeamDisabled(foregroundUids.get(0))) {
+            DefaultPayload defaultPayload = getDefaultPayload(foregroundUids[0]);
+            if (defaultPayload.mBeamDisabled) {
                 if (DBG) Log.d(TAG, "Beam is disabled by policy.");
                 return;
             }
 
             if (mCallbackNdef != null) {
-                if (foregroundUids.contains(mNdefCallbackUid)) {
+                if (Arrays.binarySearch(foregroundUids, mNdefCallbackUid) >= 0) {
                     try {
                         BeamShareData shareData = mCallbackNdef.createBeamShareData(mPeerLlcpVersion);
                         mMessageToSend = shareData.ndefMessage;
@@ -554,14 +594,13 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
 
             // fall back to default NDEF for the foreground activity, unless the
             // application disabled this explicitly in their manifest.
-            String[] pkgs = mPackageManager.getPackagesForUid(foregroundUids.get(0));
-            if (pkgs != null && pkgs.length >= 1) {
-                if (!generatePlayLink || beamDefaultDisabled(pkgs[0])) {
+            if (defaultPayload.mPackageName != null) {
+                if (!generatePlayLink || defaultPayload.mNdef == null) {
                     if (DBG) Log.d(TAG, "Disabling default Beam behavior");
                     mMessageToSend = null;
                     mUrisToSend = null;
                 } else {
-                    mMessageToSend = createDefaultNdef(pkgs[0]);
+                    mMessageToSend = defaultPayload.mNdef;
                     mUrisToSend = null;
                     mSendFlags = 0;
                 }
@@ -572,6 +611,45 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         }
     }
 
+    /**
+     * Returns the default payload of the UID, loading it if it wasn't warmed
+     * when the UID came to the foreground.
+     */
+    DefaultPayload getDefaultPayload(int uid) {
+        return mDefaultPayloads.get(uid);
+    }
+
+    DefaultPayload loadDefaultPayload(int uid) {
+        PackageManager packageManager;
+        synchronized (P2pLinkManager.this) {
+            packageManager = mPackageManager;
+        }
+        boolean beamDisabled = isBeamDisabled(uid);
+        String[] pkgs = packageManager.getPackagesForUid(uid);
+        if (pkgs == null || pkgs.length < 1) {
+            return new DefaultPayload(beamDisabled, null, null);
+        }
+        NdefMessage ndef = beamDefaultDisabled(packageManager, pkgs[0])
+                ? null : createDefaultNdef(pkgs[0]);
+        return new DefaultPayload(beamDisabled, pkgs[0], ndef);
+    }
+
+    /**
+     * Drops the default payloads, after packages, user restrictions or the
+     * current user changed.
+     */
+    void invalidateDefaultPayloads() {
+        mDefaultPayloads.invalidate();
+    }
+
+    public void onPackagesChanged() {
+        invalidateDefaultPayloads();
+    }
+
+    public void onUserRestrictionsChanged() {
+        invalidateDefaultPayloads();
+    }
+
     private boolean isBeamDisabled(int uid) {
         UserManager userManager = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
         UserInfo userInfo = userManager.getUserInfo(UserHandle.getUserId(uid));
@@ -580,9 +658,9 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
 
     }
 
-    boolean beamDefaultDisabled(String pkgName) {
+    static boolean beamDefaultDisabled(PackageManager packageManager, String pkgName) {
         try {
-            ApplicationInfo ai = mPackageManager.getApplicationInfo(pkgName,
+            ApplicationInfo ai = packageManager.getApplicationInfo(pkgName,
                     PackageManager.GET_META_DATA);
             if (ai == null || ai.metaData == null) {
                 return false;
@@ -632,6 +710,8 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             if (mEchoServer != null) {
                 mEchoServer.onLlcpDeactivated();
             }
+            // Connections of the servers can't outlive the link
+            LlcpServiceRuntime.getInstance().closeConnections();
 
             switch (mLinkState) {
                 case LINK_STATE_DOWN:
@@ -729,6 +809,39 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         }
     }
 
+    /**
+     * Learns which services the peer has from the connects of a link. A failed
+     * connect only counts against a service when another one connected, as
+     * the link itself may have dropped; and a service the peer was known to
+     * have failing makes the whole entry stale.
+     */
+    void updatePeerCapabilities(PeerCapabilityCache.Key peerKey,
+            PeerCapabilityCache.Capabilities known, LlcpServiceConnector.Result result) {
+        if (peerKey == null) return;
+        boolean linkAlive = false;
+        for (int i = 0; i < LlcpServiceConnector.NUM_SERVICES; i++) {
+            if (result.getOutcome(i) == LlcpServiceConnector.OUTCOME_CONNECTED) {
+                linkAlive = true;
+            }
+        }
+        for (int i = 0; i < LlcpServiceConnector.NUM_SERVICES; i++) {
+            switch (result.getOutcome(i)) {
+                case LlcpServiceConnector.OUTCOME_CONNECTED:
+                    mPeerCapabilities.update(peerKey, i, true);
+                    break;
+                case LlcpServiceConnector.OUTCOME_FAILED:
+                    if (known != null && known.isSupported(i)) {
+                        mPeerCapabilities.invalidate(peerKey);
+                        return;
+                    }
+                    if (linkAlive) {
+                        mPeerCapabilities.update(peerKey, i, false);
+                    }
+                    break;
+            }
+        }
+    }
+
     final class ConnectTask extends AsyncTask<Void, Void, Boolean> {
         @Override
         protected void onPostExecute(Boolean result)  {
@@ -747,12 +860,10 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         protected Boolean doInBackground(Void... params) {
             boolean needsHandover = false;
             boolean needsNdef = false;
-            boolean success = false;
-            HandoverClient handoverClient = null;
-            SnepClient snepClient = null;
-            NdefPushClient nppClient = null;
+            PeerCapabilityCache.Key peerKey;
 
             synchronized(P2pLinkManager.this) {
+                peerKey = mPeerKey;
                 if (mUrisToSend != null) {
                     needsHandover = true;
                 }
@@ -763,73 +874,136 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             }
             // We know either is requested - otherwise this task
             // wouldn't have been started.
-            if (needsHandover) {
-                handoverClient = new HandoverClient();
-                try {
-                    handoverClient.connect();
-                    success = true; // Regardless of NDEF result
-                } catch (IOException e) {
-                    handoverClient = null;
-                }
+            final HandoverClient handoverClient = needsHandover ? new HandoverClient() : null;
+            final SnepClient snepClient = NfcService.sIsDtaMode ? null : new SnepClient();
+            final NdefPushClient nppClient = new NdefPushClient();
+            LlcpServiceConnector.Connection handover = null;
+            if (handoverClient != null) {
+                handover = new LlcpServiceConnector.Connection() {
+                    @Override
+                    public void connect() throws IOException {
+                        handoverClient.connect();
+                    }
+
+                    @Override
+                    public void close() {
+                        handoverClient.close();
+                    }
+                };
             }
-            if (needsNdef || (needsHandover && handoverClient == null)) {
-                if (NfcService.sIsDtaMode) {
-                    if (mClientEnabled) {
-                        if (mDtaSnepClient == null) {
-                            if (DBG) Log.d(TAG, "Creating DTA Snep Client");
-                            mDtaSnepClient = new DtaSnepClient(mServiceName, mDtaMiu, mDtaRwSize, mTestCaseID);
-                        }
+            LlcpServiceConnector.Connection snep;
+            if (NfcService.sIsDtaMode) {
+                if (mClientEnabled) {
+                    if (mDtaSnepClient == null) {
+                        if (DBG) Log.d(TAG, "Creating DTA Snep Client");
+                        mDtaSnepClient = new DtaSnepClient(mServiceName, mDtaMiu, mDtaRwSize, mTestCaseID);
                     }
-                } else
-                    snepClient = new SnepClient();
-                try {
-                    if (NfcService.sIsDtaMode) {
-                        if (mDtaSnepClient != null)
-                            mDtaSnepClient.DtaClientOperations(mContext);
+                }
+                // Bound now: mDtaSnepClient is cleared once the client connected
+                final DtaSnepClient dtaSnepClient = mDtaSnepClient;
+                snep = new LlcpServiceConnector.Connection() {
+                    @Override
+                    public void connect() throws IOException {
+                        if (dtaSnepClient != null)
+                            dtaSnepClient.DtaClientOperations(mContext);
                     }
-                    else
+
+                    @Override
+                    public void close() {
+                        if (dtaSnepClient != null)
+                            dtaSnepClient.close();
+                    }
+                };
+            } else {
+                snep = new LlcpServiceConnector.Connection() {
+                    @Override
+                    public void connect() throws IOException {
                         snepClient.connect();
-                    success = true;
-                    mDtaSnepClient = null;
-                } catch (IOException e) {
-                    snepClient = null;
+                    }
+
+                    @Override
+                    public void close() {
+                        snepClient.close();
+                    }
+                };
+            }
+            LlcpServiceConnector.Connection npp = new LlcpServiceConnector.Connection() {
+                @Override
+                public void connect() throws IOException {
+                    nppClient.connect();
                 }
 
-                if (!success) {
-                    nppClient = new NdefPushClient();
-                    try {
-                        nppClient.connect();
-                        success = true;
-                    } catch (IOException e) {
-                        nppClient = null;
+                @Override
+                public void close() {
+                    nppClient.close();
+                }
+            };
+
+            // Skip the services the peer is known not to have, unless that
+            // leaves nothing to try
+            PeerCapabilityCache.Capabilities capabilities = mPeerCapabilities.get(peerKey);
+            boolean skipped = false;
+            if (capabilities != null) {
+                boolean skipHandover = handover != null
+                        && capabilities.isUnsupported(PeerCapabilityCache.CAPABILITY_HANDOVER);
+                boolean skipSnep = capabilities.isUnsupported(PeerCapabilityCache.CAPABILITY_SNEP);
+                boolean skipNpp = capabilities.isUnsupported(PeerCapabilityCache.CAPABILITY_NPP);
+                if ((handover == null || skipHandover) && skipSnep && skipNpp) {
+                    mPeerCapabilities.invalidate(peerKey);
+                    capabilities = null;
+                } else {
+                    if (DBG && (skipHandover || skipSnep || skipNpp)) {
+                        Log.d(TAG, "Skipping known unsupported services: handover=" + skipHandover
+                                + " snep=" + skipSnep + " npp=" + skipNpp);
                     }
+                    skipped = skipHandover || skipSnep || skipNpp;
+                    if (skipHandover) handover = null;
+                    if (skipSnep) snep = null;
+                    if (skipNpp) npp = null;
                 }
             }
 
+            // DTA test cases expect the services to be tried one at a time
+            LlcpServiceConnector.Result result = mLlcpServiceConnector.connect(
+                    handover, snep, npp, needsNdef, !NfcService.sIsDtaMode);
+            // A DTA client that connected is now owned by the result, or was
+            // already closed by the connector if it was not needed
+            if (NfcService.sIsDtaMode && result != null
+                    && result.getOutcome(LlcpServiceConnector.SERVICE_SNEP)
+                            == LlcpServiceConnector.OUTCOME_CONNECTED) {
+                mDtaSnepClient = null;
+            }
+
             synchronized (P2pLinkManager.this) {
-                if (isCancelled()) {
+                if (result == null || isCancelled()) {
                     // Cancelled by onLlcpDeactivated on UI thread
-                    if (handoverClient != null) {
-                        handoverClient.close();
-                    }
-                    if (snepClient != null) {
-                        snepClient.close();
-                    }
-                    if (nppClient != null) {
-                        nppClient.close();
+                    if (result != null) {
+                        result.close();
                     }
+                    // Only a DTA client that did not connect is left to close
                     if (mDtaSnepClient != null) {
                         mDtaSnepClient.close();
+                        mDtaSnepClient = null;
                     }
                     return false;
                 } else {
+                    updatePeerCapabilities(peerKey, capabilities, result);
+                    if (skipped && (!result.isConnected() || (needsNdef
+                            && result.get(LlcpServiceConnector.SERVICE_SNEP) == null
+                            && result.get(LlcpServiceConnector.SERVICE_NPP) == null))) {
+                        // A skipped service might have done, probe them all next time
+                        mPeerCapabilities.invalidate(peerKey);
+                    }
                     // Once assigned, these are the responsibility of
                     // the code on the UI thread to release - typically
                     // through onLlcpDeactivated().
-                    mHandoverClient = handoverClient;
-                    mSnepClient = snepClient;
-                    mNdefPushClient = nppClient;
-                    return success;
+                    mHandoverClient = result.get(LlcpServiceConnector.SERVICE_HANDOVER) != null
+                            ? handoverClient : null;
+                    mSnepClient = result.get(LlcpServiceConnector.SERVICE_SNEP) != null
+                            ? snepClient : null;
+                    mNdefPushClient = result.get(LlcpServiceConnector.SERVICE_NPP) != null
+                            ? nppClient : null;
+                    return result.isConnected();
                 }
             }
         }
@@ -839,6 +1013,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
         NdefPushClient nppClient;
         SnepClient snepClient;
         HandoverClient handoverClient;
+        PeerCapabilityCache.Key peerKey;
 
         int doHandover(Uri[] uris, UserHandle userHandle) throws IOException {
             NdefMessage response = null;
@@ -852,13 +1027,21 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             if (request != null) {
                 if (handoverClient != null) {
                     response = handoverClient.sendHandoverRequest(request);
+                    if (response == null) {
+                        mPeerCapabilities.invalidate(peerKey);
+                    }
                 }
-                if (response == null && snepClient != null) {
+                PeerCapabilityCache.Capabilities capabilities = mPeerCapabilities.get(peerKey);
+                if (response == null && snepClient != null && (capabilities == null
+                        || !capabilities.isUnsupported(
+                                PeerCapabilityCache.CAPABILITY_SNEP_GET_HANDOVER))) {
                     // Remote device may not support handover service,
                     // try the (deprecated) SNEP GET implementation
                     // for devices running Android 4.1
                     SnepMessage snepResponse = snepClient.get(request);
                     response = snepResponse.getNdefMessage();
+                    mPeerCapabilities.update(peerKey,
+                            PeerCapabilityCache.CAPABILITY_SNEP_GET_HANDOVER, response != null);
                 }
                 if (response == null) {
                     if (snepClient != null)
@@ -904,6 +1087,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                 snepClient = mSnepClient;
                 handoverClient = mHandoverClient;
                 nppClient = mNdefPushClient;
+                peerKey = mPeerKey;
             }
 
             long time = SystemClock.elapsedRealtime();
@@ -929,6 +1113,7 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                             break;
                     }
                 } catch (IOException e) {
+                    mPeerCapabilities.invalidate(peerKey);
                     result = false;
                 }
             }
@@ -948,12 +1133,16 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
                             result = false;
                     }
                 } catch (IOException e) {
+                    mPeerCapabilities.invalidate(peerKey);
                     result = false;
                 }
             }
 
             if (!result && m != null && nppClient != null) {
                 result = nppClient.push(m);
+                if (!result) {
+                    mPeerCapabilities.invalidate(peerKey);
+                }
             }
 
             time = SystemClock.elapsedRealtime() - time;
@@ -1295,6 +1484,14 @@ class P2pLinkManager implements Handler.Callback, P2pEventListener.Callback {
             pw.println("mMessageToSend=" + mMessageToSend);
             pw.println("mUrisToSend=" + mUrisToSend);
         }
+        mDefaultPayloads.dump(pw, "Default payloads");
+        mLlcpServiceConnector.dump(pw);
+        mPeerCapabilities.dump(pw);
+        LlcpServiceRuntime.getInstance().dump(pw);
+        LlcpBufferPool.getInstance().dump(pw);
+        if (mEchoServer != null) {
+            mEchoServer.dump(pw);
+        }
     }
 
     /**
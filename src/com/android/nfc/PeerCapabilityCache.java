@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which LLCP services P2P peers answered, so that the next link
+ * with the same kind of peer does not probe services that are known to be
+ * missing.
+ *
+ * The key is the LLCP version and the general bytes of the link activation,
+ * which carry the LLCP parameters and well-known services of the peer. That
+ * identifies a build of a peer rather than a device: NFC-DEP peers use a
+ * random NFCID3, so two phones of the same build share an entry. Since one of
+ * them may have a service turned off, a service that did not answer is only
+ * skipped for UNSUPPORTED_EXPIRY_MS before it is probed again, while what is
+ * known to be supported lasts until the entry expires.
+ *
+ * Entries are dropped as soon as a send to the peer fails, or a link that
+ * skipped services ends up without what it needed.
+ */
+class PeerCapabilityCache {
+    static final String TAG = "PeerCapabilityCache";
+    static final boolean DBG =
+            SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    // The first three match the services of LlcpServiceConnector
+    static final int CAPABILITY_HANDOVER = LlcpServiceConnector.SERVICE_HANDOVER;
+    static final int CAPABILITY_SNEP = LlcpServiceConnector.SERVICE_SNEP;
+    static final int CAPABILITY_NPP = LlcpServiceConnector.SERVICE_NPP;
+    // The deprecated handover over SNEP GET of Android 4.1
+    static final int CAPABILITY_SNEP_GET_HANDOVER = 3;
+    static final int NUM_CAPABILITIES = 4;
+    static final String[] CAPABILITY_NAMES = {"handover", "snep", "npp", "snepGetHandover"};
+
+    static final int STATE_UNKNOWN = 0;
+    static final int STATE_SUPPORTED = 1;
+    static final int STATE_UNSUPPORTED = 2;
+
+    static final int DEFAULT_MAX_ENTRIES = 32;
+    static final long DEFAULT_EXPIRY_MS = 6 * 60 * 60 * 1000;
+    static final long DEFAULT_UNSUPPORTED_EXPIRY_MS = 5 * 60 * 1000;
+
+    /** Identifies a kind of peer. */
+    static final class Key {
+        final byte mLlcpVersion;
+        final byte[] mGeneralBytes;
+
+        private Key(byte llcpVersion, byte[] generalBytes) {
+            mLlcpVersion = llcpVersion;
+            mGeneralBytes = generalBytes;
+        }
+
+        /** Returns the key of a peer, or null if it activated without general bytes. */
+        static Key create(byte llcpVersion, byte[] generalBytes) {
+            if (generalBytes == null || generalBytes.length == 0) return null;
+            return new Key(llcpVersion, generalBytes.clone());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return mLlcpVersion == other.mLlcpVersion
+                    && Arrays.equals(mGeneralBytes, other.mGeneralBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mLlcpVersion + Arrays.hashCode(mGeneralBytes);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("v");
+            sb.append(Integer.toHexString(mLlcpVersion & 0xFF)).append('/');
+            for (byte b : mGeneralBytes) {
+                sb.append(String.format("%02X", b));
+            }
+            return sb.toString();
+        }
+    }
+
+    /** What is known about a kind of peer. */
+    static final class Capabilities {
+        final int[] mStates = new int[NUM_CAPABILITIES];
+        final long[] mUpdatedMs = new long[NUM_CAPABILITIES];
+        final long mCreatedMs;
+
+        Capabilities(long createdMs) {
+            mCreatedMs = createdMs;
+        }
+
+        Capabilities(Capabilities other) {
+            System.arraycopy(other.mStates, 0, mStates, 0, NUM_CAPABILITIES);
+            System.arraycopy(other.mUpdatedMs, 0, mUpdatedMs, 0, NUM_CAPABILITIES);
+            mCreatedMs = other.mCreatedMs;
+        }
+
+        int getState(int capability) {
+            return mStates[capability];
+        }
+
+        boolean isUnsupported(int capability) {
+            return mStates[capability] == STATE_UNSUPPORTED;
+        }
+
+        boolean isSupported(int capability) {
+            return mStates[capability] == STATE_SUPPORTED;
+        }
+    }
+
+    final int mMaxEntries;
+    final long mExpiryMs;
+    final long mUnsupportedExpiryMs;
+
+    // Locked on this
+    final LinkedHashMap<Key, Capabilities> mEntries;
+    int mHits;
+    int mMisses;
+    int mInvalidations;
+
+    PeerCapabilityCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_EXPIRY_MS, DEFAULT_UNSUPPORTED_EXPIRY_MS);
+    }
+
+    PeerCapabilityCache(int maxEntries, long expiryMs, long unsupportedExpiryMs) {
+        mMaxEntries = maxEntries;
+        mExpiryMs = expiryMs;
+        mUnsupportedExpiryMs = unsupportedExpiryMs;
+        mEntries = new LinkedHashMap<Key, Capabilities>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Capabilities> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /** Returns a copy of what is known about the peer, or null. */
+    synchronized Capabilities get(Key key) {
+        if (key == null) return null;
+        Capabilities capabilities = getLocked(key);
+        if (capabilities == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new Capabilities(capabilities);
+    }
+
+    Capabilities getLocked(Key key) {
+        Capabilities capabilities = mEntries.get(key);
+        if (capabilities == null) return null;
+        long now = SystemClock.elapsedRealtime();
+        if (now - capabilities.mCreatedMs >= mExpiryMs) {
+            mEntries.remove(key);
+            return null;
+        }
+        // Probe the missing services again once in a while
+        for (int i = 0; i < NUM_CAPABILITIES; i++) {
+            if (capabilities.mStates[i] == STATE_UNSUPPORTED
+                    && now - capabilities.mUpdatedMs[i] >= mUnsupportedExpiryMs) {
+                capabilities.mStates[i] = STATE_UNKNOWN;
+            }
+        }
+        return capabilities;
+    }
+
+    Capabilities getOrCreateLocked(Key key) {
+        Capabilities capabilities = getLocked(key);
+        if (capabilities == null) {
+            capabilities = new Capabilities(SystemClock.elapsedRealtime());
+            mEntries.put(key, capabilities);
+        }
+        return capabilities;
+    }
+
+    /** Records whether the peer answered on a service. */
+    synchronized void update(Key key, int capability, boolean supported) {
+        if (key == null) return;
+        Capabilities capabilities = getOrCreateLocked(key);
+        capabilities.mStates[capability] = supported ? STATE_SUPPORTED : STATE_UNSUPPORTED;
+        capabilities.mUpdatedMs[capability] = SystemClock.elapsedRealtime();
+    }
+
+    /** Forgets the peer, so that the next link probes every service again. */
+    synchronized void invalidate(Key key) {
+        if (key == null) return;
+        if (mEntries.remove(key) != null) {
+            if (DBG) Log.d(TAG, "Invalidated " + key);
+            mInvalidations++;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("Peer capabilities: entries=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses + " invalidations=" + mInvalidations);
+        long now = SystemClock.elapsedRealtime();
+        for (Map.Entry<Key, Capabilities> entry : mEntries.entrySet()) {
+            Capabilities capabilities = entry.getValue();
+            StringBuilder sb = new StringBuilder("  ").append(entry.getKey()).append(':');
+            for (int i = 0; i < NUM_CAPABILITIES; i++) {
+                if (capabilities.mStates[i] == STATE_UNKNOWN) continue;
+                sb.append(' ').append(CAPABILITY_NAMES[i]).append('=')
+                        .append(capabilities.mStates[i] == STATE_SUPPORTED ? "yes" : "no");
+            }
+            sb.append(" ageMs=").append(now - capabilities.mCreatedMs);
+            pw.println(sb);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps what was loaded for the most recently used UIDs.
+ *
+ * Values are loaded without the lock held, so a load may race with
+ * invalidate(). Such a value is still returned to its caller, but not kept.
+ */
+class PerUidCache<V> {
+    /** Loads the value of a UID, called without the lock of the cache held. */
+    interface Loader<V> {
+        V load(int uid);
+    }
+
+    final Loader<V> mLoader;
+    final int mMaxEntries;
+
+    // Locked on this
+    final LinkedHashMap<Integer, V> mEntries;
+    // Bumped on invalidation, so that a value loaded meanwhile is not kept
+    int mGeneration;
+    int mHits;
+    int mMisses;
+
+    PerUidCache(int maxEntries, Loader<V> loader) {
+        mMaxEntries = maxEntries;
+        mLoader = loader;
+        mEntries = new LinkedHashMap<Integer, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, V> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /** Returns the value of the UID, loading it on a miss. */
+    V get(int uid) {
+        int generation;
+        synchronized (this) {
+            V value = mEntries.get(uid);
+            if (value != null) {
+                mHits++;
+                return value;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+        V value = mLoader.load(uid);
+        synchronized (this) {
+            if (generation == mGeneration && value != null) {
+                mEntries.put(uid, value);
+            }
+        }
+        return value;
+    }
+
+    /** Drops every value, including those being loaded. */
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    synchronized void dump(PrintWriter pw, String name) {
+        pw.println(name + ": entries=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses);
+    }
+}
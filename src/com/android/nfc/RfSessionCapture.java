@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary format of an RF session capture: the DeviceHostListener events of
+ * a session with their payloads and timing.
+ *
+ * A capture starts with a header (magic, version, start time in ms since
+ * the epoch), followed by one record per event: the event type, the time
+ * since the previous event in microseconds, and the payload of the type.
+ * Integers are unsigned LEB128 varints; byte arrays are a varint of the
+ * length plus one (zero for null) followed by the bytes.
+ */
+public final class RfSessionCapture {
+    static final int MAGIC = 0x4E464352; // "NFCR"
+    static final int VERSION = 1;
+    // Larger than any extended length APDU, small enough to reject garbage
+    static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+    static final int MAX_TECHNOLOGIES = 32;
+
+    public static final int EVENT_TAG_DISCOVERED = 1;
+    public static final int EVENT_HCE_ACTIVATED = 2;
+    public static final int EVENT_HCE_DATA = 3;
+    public static final int EVENT_HCE_DEACTIVATED = 4;
+    public static final int EVENT_LLCP_LINK_ACTIVATED = 5;
+    public static final int EVENT_LLCP_LINK_DEACTIVATED = 6;
+    public static final int EVENT_LLCP_FIRST_PACKET = 7;
+    public static final int EVENT_FIELD_ACTIVATED = 8;
+    public static final int EVENT_FIELD_DEACTIVATED = 9;
+    public static final int EVENT_TRANSACTION = 10;
+    public static final int EVENT_EE_UPDATED = 11;
+    public static final int EVENT_HW_ERROR = 12;
+    static final int MAX_EVENT = EVENT_HW_ERROR;
+
+    /**
+     * One captured event. Which fields are set depends on the type:
+     * {@code value} is the technology of HCE events and the handle of tag and
+     * LLCP events, {@code mode} and {@code llcpVersion} describe LLCP links,
+     * {@code techList} and {@code data} (the UID) describe tags, {@code data}
+     * is the APDU of HCE data and the AID of transaction events, whose data
+     * and secure element name are {@code data2} and {@code name}.
+     */
+    public static final class Event {
+        public final int type;
+        public final long timeUs;
+        public int value;
+        public int mode;
+        public int llcpVersion;
+        public int[] techList;
+        public byte[] data;
+        public byte[] data2;
+        public String name;
+
+        public Event(int type, long timeUs) {
+            this.type = type;
+            this.timeUs = timeUs;
+        }
+    }
+
+    public static String eventToString(int type) {
+        switch (type) {
+            case EVENT_TAG_DISCOVERED: return "TAG_DISCOVERED";
+            case EVENT_HCE_ACTIVATED: return "HCE_ACTIVATED";
+            case EVENT_HCE_DATA: return "HCE_DATA";
+            case EVENT_HCE_DEACTIVATED: return "HCE_DEACTIVATED";
+            case EVENT_LLCP_LINK_ACTIVATED: return "LLCP_LINK_ACTIVATED";
+            case EVENT_LLCP_LINK_DEACTIVATED: return "LLCP_LINK_DEACTIVATED";
+            case EVENT_LLCP_FIRST_PACKET: return "LLCP_FIRST_PACKET";
+            case EVENT_FIELD_ACTIVATED: return "FIELD_ACTIVATED";
+            case EVENT_FIELD_DEACTIVATED: return "FIELD_DEACTIVATED";
+            case EVENT_TRANSACTION: return "TRANSACTION";
+            case EVENT_EE_UPDATED: return "EE_UPDATED";
+            case EVENT_HW_ERROR: return "HW_ERROR";
+            default: return "UNKNOWN(" + type + ")";
+        }
+    }
+
+    private RfSessionCapture() {}
+
+    static void writeHeader(OutputStream out, long startMs) throws IOException {
+        writeVarint(out, MAGIC);
+        writeVarint(out, VERSION);
+        writeVarint(out, startMs);
+    }
+
+    /** Writes {@code event}, {@code deltaUs} after the previous one. */
+    static void writeEvent(OutputStream out, Event event, long deltaUs) throws IOException {
+        out.write(event.type);
+        writeVarint(out, deltaUs);
+        switch (event.type) {
+            case EVENT_TAG_DISCOVERED:
+                writeVarint(out, event.value);
+                writeVarint(out, event.techList != null ? event.techList.length : 0);
+                if (event.techList != null) {
+                    for (int tech : event.techList) {
+                        writeVarint(out, tech);
+                    }
+                }
+                writeBytes(out, event.data);
+                break;
+            case EVENT_HCE_ACTIVATED:
+            case EVENT_HCE_DEACTIVATED:
+                writeVarint(out, event.value);
+                break;
+            case EVENT_HCE_DATA:
+                writeVarint(out, event.value);
+                writeBytes(out, event.data);
+                break;
+            case EVENT_LLCP_LINK_ACTIVATED:
+            case EVENT_LLCP_LINK_DEACTIVATED:
+            case EVENT_LLCP_FIRST_PACKET:
+                writeVarint(out, event.value);
+                writeVarint(out, event.mode);
+                writeVarint(out, event.llcpVersion);
+                writeBytes(out, event.data);
+                break;
+            case EVENT_TRANSACTION:
+                writeBytes(out, event.data);
+                writeBytes(out, event.data2);
+                writeBytes(out, event.name != null
+                        ? event.name.getBytes(StandardCharsets.UTF_8) : null);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Reads a whole capture; a truncated last record is dropped. */
+    public static List<Event> read(InputStream in) throws IOException {
+        if (readVarint(in) != MAGIC) {
+            throw new IOException("Not an RF session capture");
+        }
+        long version = readVarint(in);
+        if (version != VERSION) {
+            throw new IOException("Unsupported capture version " + version);
+        }
+        readVarint(in); // start time
+        ArrayList<Event> events = new ArrayList<Event>();
+        long timeUs = 0;
+        while (true) {
+            int type = in.read();
+            if (type < 0) break;
+            if (type == 0 || type > MAX_EVENT) {
+                throw new IOException("Unknown event type " + type);
+            }
+            try {
+                timeUs += readVarint(in);
+                events.add(readPayload(in, new Event(type, timeUs)));
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return events;
+    }
+
+    static Event readPayload(InputStream in, Event event) throws IOException {
+        switch (event.type) {
+            case EVENT_TAG_DISCOVERED:
+                event.value = (int) readVarint(in);
+                long numTechs = readVarint(in);
+                if (numTechs > MAX_TECHNOLOGIES) throw new IOException("Malformed tech list");
+                event.techList = new int[(int) numTechs];
+                for (int i = 0; i < event.techList.length; i++) {
+                    event.techList[i] = (int) readVarint(in);
+                }
+                event.data = readBytes(in);
+                break;
+            case EVENT_HCE_ACTIVATED:
+            case EVENT_HCE_DEACTIVATED:
+                event.value = (int) readVarint(in);
+                break;
+            case EVENT_HCE_DATA:
+                event.value = (int) readVarint(in);
+                event.data = readBytes(in);
+                break;
+            case EVENT_LLCP_LINK_ACTIVATED:
+            case EVENT_LLCP_LINK_DEACTIVATED:
+            case EVENT_LLCP_FIRST_PACKET:
+                event.value = (int) readVarint(in);
+                event.mode = (int) readVarint(in);
+                event.llcpVersion = (int) readVarint(in);
+                event.data = readBytes(in);
+                break;
+            case EVENT_TRANSACTION:
+                event.data = readBytes(in);
+                event.data2 = readBytes(in);
+                byte[] name = readBytes(in);
+                event.name = name != null ? new String(name, StandardCharsets.UTF_8) : null;
+                break;
+            default:
+                break;
+        }
+        return event;
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        // Values are written as unsigned; ints are widened without sign extension
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static void writeVarint(OutputStream out, int value) throws IOException {
+        writeVarint(out, value & 0xFFFFFFFFL);
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length == 0) return null;
+        if (length - 1 > MAX_PAYLOAD_LENGTH) throw new IOException("Malformed length");
+        byte[] bytes = new byte[(int) (length - 1)];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) throw new EOFException();
+            offset += read;
+        }
+        return bytes;
+    }
+}
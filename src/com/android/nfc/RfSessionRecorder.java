@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.nfc.DeviceHost.DeviceHostListener;
+import com.android.nfc.DeviceHost.NfcDepEndpoint;
+import com.android.nfc.DeviceHost.TagEndpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A DeviceHostListener that records every event into an RF session capture
+ * before forwarding it to the real listener.
+ *
+ * Sits between NativeNfcManager and NfcService when capturing is enabled.
+ * Events are encoded in memory on the calling thread and written by a
+ * writer thread, which flushes the stream at the end of each RF session
+ * (field off, HCE or LLCP link deactivation); the calling thread never
+ * waits for storage. Events are dropped when the writer falls behind by
+ * more than MAX_PENDING_WRITES, and recording stops once the capture
+ * reaches its size limit.
+ *
+ * Unless payloads are recorded, HCE commands and transaction event data
+ * only keep their length: see redactApdu().
+ */
+public class RfSessionRecorder implements DeviceHostListener {
+    static final String TAG = "RfSessionRecorder";
+
+    static final int MAX_PENDING_WRITES = 256;
+    static final long WRITER_KEEP_ALIVE_SECONDS = 10;
+    static final long FLUSH_TIMEOUT_MS = 1000;
+
+    final DeviceHostListener mListener;
+    final OutputStream mOut;
+    final long mMaxBytes;
+    final boolean mRecordPayloads;
+    final ThreadPoolExecutor mWriter;
+
+    // Fields below are protected by this
+    final ByteArrayOutputStream mEncoded = new ByteArrayOutputStream();
+    long mLastEventNs;
+    long mNumBytes;
+    long mNumRecorded;
+    long mNumDropped;
+    boolean mFailed;
+
+    /**
+     * @param recordPayloads whether HCE commands and transaction event data
+     *     are recorded as is; they may hold payment data
+     */
+    public RfSessionRecorder(DeviceHostListener listener, OutputStream out, long maxBytes,
+            boolean recordPayloads) {
+        mListener = listener;
+        mOut = out;
+        mMaxBytes = maxBytes;
+        mRecordPayloads = recordPayloads;
+        mWriter = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES),
+                r -> new Thread(r, TAG));
+        mWriter.allowCoreThreadTimeOut(true);
+        mLastEventNs = SystemClock.elapsedRealtimeNanos();
+        try {
+            RfSessionCapture.writeHeader(mEncoded, System.currentTimeMillis());
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+        }
+        writeEncodedLocked(false);
+    }
+
+    synchronized void record(RfSessionCapture.Event event, boolean flush) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        long deltaUs = (now - mLastEventNs) / 1000;
+        mLastEventNs = now;
+        if (mFailed || mNumBytes >= mMaxBytes) {
+            mNumDropped++;
+            return;
+        }
+        if (!mRecordPayloads) {
+            redact(event);
+        }
+        try {
+            RfSessionCapture.writeEvent(mEncoded, event, deltaUs);
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+        }
+        if (writeEncodedLocked(flush)) {
+            mNumRecorded++;
+        } else {
+            mNumDropped++;
+        }
+    }
+
+    /**
+     * Hands what was encoded to the writer thread.
+     *
+     * @return false if the writer is too far behind, the data is dropped
+     */
+    boolean writeEncodedLocked(boolean flush) {
+        byte[] data = mEncoded.toByteArray();
+        mEncoded.reset();
+        try {
+            mWriter.execute(() -> write(data, flush));
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        mNumBytes += data.length;
+        return true;
+    }
+
+    /** Runs on the writer thread. */
+    void write(byte[] data, boolean flush) {
+        synchronized (this) {
+            if (mFailed) return;
+        }
+        try {
+            mOut.write(data);
+            if (flush) {
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write capture, stopping", e);
+            synchronized (this) {
+                mFailed = true;
+            }
+        }
+    }
+
+    /** Keeps the length of HCE commands and transaction data, but not their content. */
+    static void redact(RfSessionCapture.Event event) {
+        switch (event.type) {
+            case RfSessionCapture.EVENT_HCE_DATA:
+                event.data = redactApdu(event.data);
+                break;
+            case RfSessionCapture.EVENT_TRANSACTION:
+                // The AID is kept, it is what the event is routed by
+                if (event.data2 != null) {
+                    event.data2 = new byte[event.data2.length];
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Keeps the header of a command APDU, and the AID of a SELECT by name,
+     * since they are what the command is routed by. The rest is zeroed.
+     */
+    static byte[] redactApdu(byte[] apdu) {
+        if (apdu == null) return null;
+        byte[] redacted = new byte[apdu.length];
+        boolean selectByName = apdu.length >= 4 && apdu[1] == (byte) 0xA4 && apdu[2] == 0x04;
+        int kept = selectByName ? apdu.length : Math.min(apdu.length, 4);
+        System.arraycopy(apdu, 0, redacted, 0, kept);
+        return redacted;
+    }
+
+    /** Writes out every event recorded so far. Waits for the writer thread. */
+    public void flush() {
+        Future<?> flushed;
+        try {
+            flushed = mWriter.submit(() -> {
+                try {
+                    mOut.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to flush capture", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Capture writer is behind or closed, not flushing");
+            return;
+        }
+        try {
+            flushed.get(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Log.e(TAG, "Failed to flush capture", e);
+        }
+    }
+
+    /** Writes out the events recorded so far and closes the capture. */
+    public void close() {
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            mFailed = true;
+        }
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close capture", e);
+        }
+    }
+
+    static RfSessionCapture.Event newEvent(int type) {
+        // The timestamp is taken when the event is written
+        return new RfSessionCapture.Event(type, 0);
+    }
+
+    static RfSessionCapture.Event newLlcpEvent(int type, NfcDepEndpoint device) {
+        RfSessionCapture.Event event = newEvent(type);
+        event.value = device.getHandle();
+        event.mode = device.getMode();
+        event.llcpVersion = device.getLlcpVersion() & 0xFF;
+        event.data = device.getGeneralBytes();
+        return event;
+    }
+
+    @Override
+    public void onRemoteEndpointDiscovered(TagEndpoint tag) {
+        RfSessionCapture.Event event = newEvent(RfSessionCapture.EVENT_TAG_DISCOVERED);
+        event.value = tag.getHandle();
+        event.techList = tag.getTechList();
+        event.data = tag.getUid();
+        record(event, false);
+        mListener.onRemoteEndpointDiscovered(tag);
+    }
+
+    @Override
+    public void onHostCardEmulationActivated(int technology) {
+        RfSessionCapture.Event event = newEvent(RfSessionCapture.EVENT_HCE_ACTIVATED);
+        event.value = technology;
+        record(event, false);
+        mListener.onHostCardEmulationActivated(technology);
+    }
+
+    @Override
+    public void onHostCardEmulationData(int technology, byte[] data) {
+        RfSessionCapture.Event event = newEvent(RfSessionCapture.EVENT_HCE_DATA);
+        event.value = technology;
+        event.data = data;
+        record(event, false);
+        mListener.onHostCardEmulationData(technology, data);
+    }
+
+    @Override
+    public void onHostCardEmulationDeactivated(int technology) {
+        RfSessionCapture.Event event = newEvent(RfSessionCapture.EVENT_HCE_DEACTIVATED);
+        event.value = technology;
+        record(event, true);
+        mListener.onHostCardEmulationDeactivated(technology);
+    }
+
+    @Override
+    public void onLlcpLinkActivated(NfcDepEndpoint device) {
+        record(newLlcpEvent(RfSessionCapture.EVENT_LLCP_LINK_ACTIVATED, device), false);
+        mListener.onLlcpLinkActivated(device);
+    }
+
+    @Override
+    public void onLlcpLinkDeactivated(NfcDepEndpoint device) {
+        record(newLlcpEvent(RfSessionCapture.EVENT_LLCP_LINK_DEACTIVATED, device), true);
+        mListener.onLlcpLinkDeactivated(device);
+    }
+
+    @Override
+    public void onLlcpFirstPacketReceived(NfcDepEndpoint device) {
+        record(newLlcpEvent(RfSessionCapture.EVENT_LLCP_FIRST_PACKET, device), false);
+        mListener.onLlcpFirstPacketReceived(device);
+    }
+
+    @Override
+    public void onRemoteFieldActivated() {
+        record(newEvent(RfSessionCapture.EVENT_FIELD_ACTIVATED), false);
+        mListener.onRemoteFieldActivated();
+    }
+
+    @Override
+    public void onRemoteFieldDeactivated() {
+        record(newEvent(RfSessionCapture.EVENT_FIELD_DEACTIVATED), true);
+        mListener.onRemoteFieldDeactivated();
+    }
+
+    @Override
+    public void onNfcTransactionEvent(byte[] aid, byte[] data, String seName) {
+        RfSessionCapture.Event event = newEvent(RfSessionCapture.EVENT_TRANSACTION);
+        event.data = aid;
+        event.data2 = data;
+        event.name = seName;
+        record(event, false);
+        mListener.onNfcTransactionEvent(aid, data, seName);
+    }
+
+    @Override
+    public void onEeUpdated() {
+        record(newEvent(RfSessionCapture.EVENT_EE_UPDATED), false);
+        mListener.onEeUpdated();
+    }
+
+    @Override
+    public void onHwErrorReported() {
+        record(newEvent(RfSessionCapture.EVENT_HW_ERROR), true);
+        mListener.onHwErrorReported();
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("RF session capture: recorded=" + mNumRecorded + " dropped=" + mNumDropped
+                + " bytes=" + mNumBytes + "/" + mMaxBytes
+                + (mRecordPayloads ? " with payloads" : " redacted")
+                + (mFailed ? " (stopped)" : ""));
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.app.BroadcastOptions;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.nfc.NfcAdapter;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.os.UserHandle;
+import android.se.omapi.ISecureElementService;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers off-host transaction events (ACTION_TRANSACTION_DETECTED) to the
+ * applications allowed to receive them.
+ *
+ * Events are queued from the NfcService handler and drained on a dedicated
+ * thread, so the secure element access checks and broadcasts never delay
+ * tag, routing or HCE handling. Duplicate pending events are coalesced, the
+ * queue is bounded, and access decisions are cached per (reader, AID, user).
+ */
+public class TransactionEventDispatcher {
+    static final String TAG = "TransactionEventDispatcher";
+    static final boolean DBG = SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    /** Maximum number of undelivered events; the oldest is dropped when exceeded. */
+    static final int MAX_PENDING_EVENTS = 32;
+    /** How long an access decision from the secure element service stays valid. */
+    static final long ACCESS_CACHE_TTL_MS = 30000;
+    /** Maximum number of cached access decisions. */
+    static final int MAX_ACCESS_CACHE_ENTRIES = 64;
+
+    static final char[] HEX_CHARS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    static final class Event {
+        final byte[] mAid;
+        final byte[] mData;
+        final String mReader;
+
+        Event(byte[] aid, byte[] data, String reader) {
+            mAid = aid;
+            mData = data;
+            mReader = reader;
+        }
+
+        boolean isSame(Event other) {
+            return mReader.equals(other.mReader) && Arrays.equals(mAid, other.mAid)
+                    && Arrays.equals(mData, other.mData);
+        }
+    }
+
+    static final class AccessDecision {
+        final boolean[] mAllowed;
+        final long mExpiryMs;
+
+        AccessDecision(boolean[] allowed, long expiryMs) {
+            mAllowed = allowed;
+            mExpiryMs = expiryMs;
+        }
+    }
+
+    final Context mContext;
+    final Handler mHandler;
+    final Object mLock = new Object();
+
+    // Fields below are protected by mLock
+    final ArrayDeque<Event> mPending = new ArrayDeque<Event>();
+    boolean mDrainScheduled;
+    Map<Integer, List<String>> mPackages = new HashMap<Integer, List<String>>();
+    long mNumQueued;
+    long mNumCoalesced;
+    long mNumDropped;
+
+    // Fields below are only accessed on the dispatcher thread
+    final HashMap<String, AccessDecision> mAccessCache = new HashMap<String, AccessDecision>();
+    Map<Integer, List<String>> mAccessCachePackages;
+    ISecureElementService mSEService;
+    long mNumDelivered;
+    long mNumAccessChecks;
+    long mNumAccessCacheHits;
+
+    final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public TransactionEventDispatcher(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Updates the packages holding NFC_TRANSACTION_EVENT, keyed by userId.
+     * Cached access decisions are dropped since they are indexed by package.
+     */
+    public void onPackagesChanged(Map<Integer, List<String>> packages) {
+        HashMap<Integer, List<String>> copy = new HashMap<Integer, List<String>>();
+        for (Map.Entry<Integer, List<String>> entry : packages.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+        }
+        synchronized (mLock) {
+            mPackages = copy;
+        }
+    }
+
+    /**
+     * Queues an off-host transaction event. Never blocks on the secure element
+     * service or on broadcast delivery.
+     */
+    public void queueEvent(byte[] aid, byte[] data, String reader) {
+        Event event = new Event(aid, data, reader);
+        synchronized (mLock) {
+            if (mPackages.isEmpty()) {
+                return;
+            }
+            for (Event pending : mPending) {
+                if (pending.isSame(event)) {
+                    mNumCoalesced++;
+                    return;
+                }
+            }
+            if (mPending.size() >= MAX_PENDING_EVENTS) {
+                mPending.pollFirst();
+                mNumDropped++;
+            }
+            mPending.addLast(event);
+            mNumQueued++;
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    }
+
+    void drain() {
+        ArrayList<Event> events;
+        Map<Integer, List<String>> packages;
+        synchronized (mLock) {
+            events = new ArrayList<Event>(mPending);
+            mPending.clear();
+            mDrainScheduled = false;
+            packages = mPackages;
+        }
+        if (events.isEmpty() || !isSEServiceAvailable()) {
+            return;
+        }
+        ISecureElementService seService = mSEService;
+        if (mAccessCachePackages != packages) {
+            mAccessCache.clear();
+            mAccessCachePackages = packages;
+        }
+        for (int i = 0; i < events.size(); i++) {
+            try {
+                deliver(seService, events.get(i), packages);
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error in isNfcEventAllowed() " + e);
+                // The service may have been restarted, look it up again next time.
+                mSEService = null;
+                int dropped = events.size() - i;
+                Log.e(TAG, "Secure element service died, dropping " + dropped + " events");
+                synchronized (mLock) {
+                    mNumDropped += dropped;
+                }
+                return;
+            }
+        }
+    }
+
+    /** @throws RemoteException if the secure element service died while checking access */
+    void deliver(ISecureElementService seService, Event event,
+            Map<Integer, List<String>> packages) throws RemoteException {
+        String aidString = toHexString(event.mAid);
+        Intent intent = new Intent(NfcAdapter.ACTION_TRANSACTION_DETECTED);
+        intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra(NfcAdapter.EXTRA_AID, event.mAid);
+        intent.putExtra(NfcAdapter.EXTRA_DATA, event.mData);
+        intent.putExtra(NfcAdapter.EXTRA_SECURE_ELEMENT_NAME, event.mReader);
+        intent.setData(Uri.parse("nfc://secure:0/" + event.mReader + "/" + aidString));
+
+        final BroadcastOptions options = BroadcastOptions.makeBasic();
+        options.setBackgroundActivityStartsAllowed(true);
+        Bundle optionsBundle = options.toBundle();
+        for (Map.Entry<Integer, List<String>> entry : packages.entrySet()) {
+            int userId = entry.getKey();
+            List<String> packagesOfUser = entry.getValue();
+            boolean[] nfcAccess = getAccess(seService, event.mReader, event.mAid, aidString,
+                    packagesOfUser, userId);
+            if (nfcAccess == null) {
+                continue;
+            }
+            for (int i = 0; i < nfcAccess.length && i < packagesOfUser.size(); i++) {
+                if (nfcAccess[i]) {
+                    intent.setPackage(packagesOfUser.get(i));
+                    mContext.sendBroadcastAsUser(intent, UserHandle.of(userId), null,
+                            optionsBundle);
+                    mNumDelivered++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return which of the packages may receive the event, or null if the
+     *     service has no decision for them; a null answer is not cached
+     * @throws RemoteException if the secure element service died
+     */
+    boolean[] getAccess(ISecureElementService seService, String reader, byte[] aid,
+            String aidString, List<String> packages, int userId) throws RemoteException {
+        String key = reader + "/" + aidString + "/" + userId;
+        long now = SystemClock.elapsedRealtime();
+        AccessDecision decision = mAccessCache.get(key);
+        if (decision != null && decision.mExpiryMs > now) {
+            mNumAccessCacheHits++;
+            return decision.mAllowed;
+        }
+        mNumAccessChecks++;
+        boolean[] allowed = seService.isNfcEventAllowed(reader, aid,
+                packages.toArray(new String[packages.size()]), userId);
+        if (allowed == null) {
+            return null;
+        }
+        if (mAccessCache.size() >= MAX_ACCESS_CACHE_ENTRIES) {
+            mAccessCache.clear();
+        }
+        mAccessCache.put(key, new AccessDecision(allowed, now + ACCESS_CACHE_TTL_MS));
+        return allowed;
+    }
+
+    boolean isSEServiceAvailable() {
+        if (mSEService == null) {
+            mSEService = ISecureElementService.Stub.asInterface(ServiceManager.getService(
+                    Context.SECURE_ELEMENT_SERVICE));
+        }
+        return (mSEService != null);
+    }
+
+    static String toHexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int j = 0; j < bytes.length; j++) {
+            int byteValue = bytes[j] & 0xFF;
+            chars[j * 2] = HEX_CHARS[byteValue >>> 4];
+            chars[j * 2 + 1] = HEX_CHARS[byteValue & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Transaction events: queued=" + mNumQueued + " coalesced=" + mNumCoalesced
+                    + " dropped=" + mNumDropped + " pending=" + mPending.size());
+        }
+        // Counters below are only written on the dispatcher thread; a racy read is fine here.
+        pw.println("    delivered=" + mNumDelivered + " accessChecks=" + mNumAccessChecks
+                + " accessCacheHits=" + mNumAccessCacheHits);
+    }
+}
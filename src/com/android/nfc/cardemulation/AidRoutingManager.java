@@ -27,8 +27,10 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -75,6 +77,16 @@ public class AidRoutingManager {
     // Easy look-up what the route is for a certain AID
     HashMap<String, Integer> mRouteForAid = new HashMap<String, Integer>();
 
+    // The last routing table plan, including the AIDs that did not fit
+    RoutingCapacityPlanner.Plan mLastPlan;
+
+    // The configured default route and the route of each secure element name,
+    // read once per NFC enable. Names that are not in mOffHostRouteUicc or
+    // mOffHostRouteEse are added as services use them. Guarded by the lock of
+    // the caller, like configureRouting().
+    int mConfiguredDefaultRoute;
+    final HashMap<String, Integer> mRouteForSecureElement = new HashMap<String, Integer>();
+
     private native int doGetDefaultRouteDestination();
     private native int doGetDefaultOffHostRouteDestination();
     private native byte[] doGetOffHostUiccDestination();
@@ -82,12 +94,24 @@ public class AidRoutingManager {
     private native int doGetAidMatchingMode();
     private native int doGetDefaultIsoDepRouteDestination();
 
-    final class AidEntry {
+    // Planned as is, route is filled in by resolveRoutes()
+    final class AidEntry extends RoutingCapacityPlanner.Entry {
         boolean isOnHost;
         String offHostSE;
-        int route;
-        int aidInfo;
-        int power;
+    }
+
+    // The routes of the AIDs passed to configureRouting()
+    final class ResolvedRoutes {
+        final SparseArray<Set<String>> aidRoutingTable;
+        final HashMap<String, Integer> routeForAid;
+        // Routes in use, the default route first
+        final ArrayList<Integer> routes;
+
+        ResolvedRoutes(int numAids) {
+            aidRoutingTable = new SparseArray<Set<String>>();
+            routeForAid = new HashMap<String, Integer>(numAids);
+            routes = new ArrayList<Integer>();
+        }
     }
 
     public AidRoutingManager() {
@@ -108,6 +132,41 @@ public class AidRoutingManager {
 
         mDefaultIsoDepRoute = doGetDefaultIsoDepRouteDestination();
         if (DBG) Log.d(TAG, "mDefaultIsoDepRoute=0x" + Integer.toHexString(mDefaultIsoDepRoute));
+
+        loadRoutes(doGetDefaultRouteDestination());
+    }
+
+    /** Uses the given controller configuration instead of reading it, for tests. */
+    AidRoutingManager(int defaultRoute, int defaultOffHostRoute, byte[] offHostRouteUicc,
+            byte[] offHostRouteEse, int aidMatchingSupport, int defaultIsoDepRoute) {
+        mDefaultRoute = defaultRoute;
+        mDefaultOffHostRoute = defaultOffHostRoute;
+        mOffHostRouteUicc = offHostRouteUicc;
+        mOffHostRouteEse = offHostRouteEse;
+        mAidMatchingSupport = aidMatchingSupport;
+        mDefaultIsoDepRoute = defaultIsoDepRoute;
+        loadRoutes(defaultRoute);
+    }
+
+    /**
+     * Reads the configured default route again and resolves the secure element
+     * names, so that configureRouting() does not need to for every AID.
+     */
+    public void onNfcEnabled() {
+        loadRoutes(doGetDefaultRouteDestination());
+    }
+
+    private void loadRoutes(int defaultRoute) {
+        mConfiguredDefaultRoute = defaultRoute;
+        mRouteForSecureElement.clear();
+        for (int i = 1; mOffHostRouteEse != null && i <= mOffHostRouteEse.length; i++) {
+            String se = "eSE" + i;
+            mRouteForSecureElement.put(se, getRouteForSecureElement(se));
+        }
+        for (int i = 1; mOffHostRouteUicc != null && i <= mOffHostRouteUicc.length; i++) {
+            String se = "SIM" + i;
+            mRouteForSecureElement.put(se, getRouteForSecureElement(se));
+        }
     }
 
     public boolean supportsAidPrefixRouting() {
@@ -120,23 +179,6 @@ public class AidRoutingManager {
         return mAidMatchingSupport == AID_MATCHING_EXACT_OR_SUBSET_OR_PREFIX;
     }
 
-    public int calculateAidRouteSize(HashMap<String, AidEntry> routeCache) {
-        // TAG + ROUTE + LENGTH_BYTE + POWER
-        int AID_HDR_LENGTH = 0x04;
-        int routeTableSize = 0x00;
-        for(Map.Entry<String, AidEntry> aidEntry : routeCache.entrySet()) {
-            String aid = aidEntry.getKey();
-            // removing prefix length
-            if(aid.endsWith("*")) {
-                routeTableSize += ((aid.length() - 0x01) / 0x02) + AID_HDR_LENGTH;
-            } else {
-                routeTableSize += (aid.length() / 0x02)+ AID_HDR_LENGTH;
-            }
-        }
-        if (DBG) Log.d(TAG, "calculateAidRouteSize: " + routeTableSize);
-        return routeTableSize;
-    }
-
     private void clearNfcRoutingTableLocked() {
         for (Map.Entry<String, Integer> aidEntry : mRouteForAid.entrySet())  {
             String aid = aidEntry.getKey();
@@ -199,46 +241,69 @@ public class AidRoutingManager {
         return 0;
     }
 
-    public boolean configureRouting(HashMap<String, AidEntry> aidMap, boolean force) {
-        boolean aidRouteResolved = false;
-        HashMap<String, AidEntry> aidRoutingTableCache = new HashMap<String, AidEntry>(aidMap.size());
-        ArrayList<Integer> seList = new ArrayList<Integer>();
-        mDefaultRoute = doGetDefaultRouteDestination();
-        seList.add(mDefaultRoute);
-        if (mDefaultRoute != ROUTE_HOST) {
-            seList.add(ROUTE_HOST);
+    // The boxed route values are shared by all AIDs on the route
+    private Integer getCachedRouteForSecureElement(String se) {
+        Integer route = mRouteForSecureElement.get(se);
+        if (route == null) {
+            route = getRouteForSecureElement(se);
+            mRouteForSecureElement.put(se, route);
         }
+        return route;
+    }
 
-        SparseArray<Set<String>> aidRoutingTable = new SparseArray<Set<String>>(aidMap.size());
-        HashMap<String, Integer> routeForAid = new HashMap<String, Integer>(aidMap.size());
-        HashMap<String, Integer> infoForAid = new HashMap<String, Integer>(aidMap.size());
-        // Then, populate internal data structures first
-        for (Map.Entry<String, AidEntry> aidEntry : aidMap.entrySet())  {
-            int route = ROUTE_HOST;
+    /**
+     * Resolves the route of every AID in {@code aidMap}, and removes those
+     * of an unknown secure element, so that the map can be planned as is.
+     */
+    ResolvedRoutes resolveRoutes(HashMap<String, AidEntry> aidMap, int defaultRoute) {
+        ResolvedRoutes resolved = new ResolvedRoutes(aidMap.size());
+        BitSet routes = new BitSet();
+        routes.set(defaultRoute);
+        routes.set(ROUTE_HOST);
+        Integer hostRoute = ROUTE_HOST;
+        Integer defaultOffHostRoute = mDefaultOffHostRoute;
+        Iterator<Map.Entry<String, AidEntry>> it = aidMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, AidEntry> aidEntry = it.next();
+            Integer route = hostRoute;
             if (!aidEntry.getValue().isOnHost) {
                 String offHostSE = aidEntry.getValue().offHostSE;
                 if (offHostSE == null) {
-                    route = mDefaultOffHostRoute;
+                    route = defaultOffHostRoute;
                 } else {
-                    route = getRouteForSecureElement(offHostSE);
+                    route = getCachedRouteForSecureElement(offHostSE);
                     if (route == 0) {
                         Log.e(TAG, "Invalid Off host Aid Entry " + offHostSE);
+                        it.remove();
                         continue;
                     }
                 }
             }
-            if (!seList.contains(route))
-                seList.add(route);
+            routes.set(route);
             aidEntry.getValue().route = route;
-            int aidType = aidEntry.getValue().aidInfo;
             String aid = aidEntry.getKey();
-            Set<String> entries =
-                    aidRoutingTable.get(route, new HashSet<String>());
+            Set<String> entries = resolved.aidRoutingTable.get(route);
+            if (entries == null) {
+                entries = new HashSet<String>();
+                resolved.aidRoutingTable.put(route, entries);
+            }
             entries.add(aid);
-            aidRoutingTable.put(route, entries);
-            routeForAid.put(aid, route);
-            infoForAid.put(aid, aidType);
+            resolved.routeForAid.put(aid, route);
+        }
+        resolved.routes.add(defaultRoute);
+        for (int route = routes.nextSetBit(0); route >= 0; route = routes.nextSetBit(route + 1)) {
+            if (route != defaultRoute) {
+                resolved.routes.add(route);
+            }
         }
+        return resolved;
+    }
+
+    public boolean configureRouting(HashMap<String, AidEntry> aidMap, boolean force) {
+        mDefaultRoute = mConfiguredDefaultRoute;
+        ResolvedRoutes resolved = resolveRoutes(aidMap, mDefaultRoute);
+        SparseArray<Set<String>> aidRoutingTable = resolved.aidRoutingTable;
+        HashMap<String, Integer> routeForAid = resolved.routeForAid;
 
         synchronized (mLock) {
             if (routeForAid.equals(mRouteForAid) && !force) {
@@ -254,165 +319,37 @@ public class AidRoutingManager {
             mMaxAidRoutingTableSize = NfcService.getInstance().getAidRoutingTableSize();
             if (DBG) Log.d(TAG, "mMaxAidRoutingTableSize: " + mMaxAidRoutingTableSize);
 
-            //calculate AidRoutingTableSize for existing route destination
-            for(int index = 0; index < seList.size(); index ++) {
-              mDefaultRoute = seList.get(index);
-              if(index != 0)
-                if (DBG) Log.d(TAG, "AidRoutingTable is full, try to switch mDefaultRoute to 0x" + Integer.toHexString(mDefaultRoute));
-
-              aidRoutingTableCache.clear();
-
-              if (mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY) {
-                  /* If a non-default route registers an exact AID which is shorter
-                   * than this exact AID, this will create a problem with controllers
-                   * that treat every AID in the routing table as a prefix.
-                   * For example, if App A registers F0000000041010 as an exact AID,
-                   * and App B registers F000000004 as an exact AID, and App B is not
-                   * the default route, the following would be added to the routing table:
-                   * F000000004 -> non-default destination
-                   * However, because in this mode, the controller treats every routing table
-                   * entry as a prefix, it means F0000000041010 would suddenly go to the non-default
-                   * destination too, whereas it should have gone to the default.
-                   *
-                   * The only way to prevent this is to add the longer AIDs of the
-                   * default route at the top of the table, so they will be matched first.
-                   */
-                  Set<String> defaultRouteAids = mAidRoutingTable.get(mDefaultRoute);
-                  if (defaultRouteAids != null) {
-                      for (String defaultRouteAid : defaultRouteAids) {
-                          // Check whether there are any shorted AIDs routed to non-default
-                          // TODO this is O(N^2) run-time complexity...
-                          for (Map.Entry<String, Integer> aidEntry : mRouteForAid.entrySet()) {
-                              String aid = aidEntry.getKey();
-                              int route = aidEntry.getValue();
-                              if (defaultRouteAid.startsWith(aid) && route != mDefaultRoute) {
-                                  if (DBG) Log.d(TAG, "Adding AID " + defaultRouteAid + " for default " +
-                                          "route, because a conflicting shorter AID will be " +
-                                          "added to the routing table");
-                                    aidRoutingTableCache.put(defaultRouteAid, aidMap.get(defaultRouteAid));
-                              }
-                          }
-                      }
-                  }
-              }
-
-              // Add AID entries for all non-default routes
-              for (int i = 0; i < mAidRoutingTable.size(); i++) {
-                  int route = mAidRoutingTable.keyAt(i);
-                  if (route != mDefaultRoute) {
-                      Set<String> aidsForRoute = mAidRoutingTable.get(route);
-                      for (String aid : aidsForRoute) {
-                          if (aid.endsWith("*")) {
-                              if (mAidMatchingSupport == AID_MATCHING_EXACT_ONLY) {
-                                  Log.e(TAG, "This device does not support prefix AIDs.");
-                              } else if (mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY) {
-                                  if (DBG) Log.d(TAG, "Routing prefix AID " + aid + " to route "
-                                          + Integer.toString(route));
-                                  // Cut off '*' since controller anyway treats all AIDs as a prefix
-                                    aidRoutingTableCache.put(aid.substring(0,aid.length() - 1), aidMap.get(aid));
-                              } else if (mAidMatchingSupport == AID_MATCHING_EXACT_OR_PREFIX ||
-                                mAidMatchingSupport == AID_MATCHING_EXACT_OR_SUBSET_OR_PREFIX) {
-                                  if (DBG) Log.d(TAG, "Routing prefix AID " + aid + " to route "
-                                          + Integer.toString(route));
-                                  aidRoutingTableCache.put(aid.substring(0,aid.length() - 1), aidMap.get(aid));
-                              }
-                          } else if (aid.endsWith("#")) {
-                              if (mAidMatchingSupport == AID_MATCHING_EXACT_ONLY) {
-                                  Log.e(TAG, "Device does not support subset AIDs but AID [" + aid
-                                          + "] is registered");
-                              } else if (mAidMatchingSupport == AID_MATCHING_PREFIX_ONLY ||
-                                  mAidMatchingSupport == AID_MATCHING_EXACT_OR_PREFIX) {
-                                  Log.e(TAG, "Device does not support subset AIDs but AID [" + aid
-                                          + "] is registered");
-                              } else if (mAidMatchingSupport == AID_MATCHING_EXACT_OR_SUBSET_OR_PREFIX) {
-                                  if (DBG) Log.d(TAG, "Routing subset AID " + aid + " to route "
-                                          + Integer.toString(route));
-                                  aidRoutingTableCache.put(aid.substring(0,aid.length() - 1), aidMap.get(aid));
-                              }
-                         } else {
-                              if (DBG) Log.d(TAG, "Routing exact AID " + aid + " to route "
-                                      + Integer.toString(route));
-                                aidRoutingTableCache.put(aid, aidMap.get(aid));
-                          }
-                        }
-                 }
-              }
-
-              // register default route in below cases:
-              // 1. mDefaultRoute is different with mDefaultIsoDepRoute
-              // 2. mDefaultRoute and mDefaultIsoDepRoute all equal to ROUTE_HOST
-              //    , which is used for screen off HCE scenarios
-              if (mDefaultRoute != mDefaultIsoDepRoute || mDefaultIsoDepRoute == ROUTE_HOST) {
-                  if (NfcService.getInstance().getNciVersion()
-                          >= NfcService.getInstance().NCI_VERSION_2_0) {
-                      String emptyAid = "";
-                      AidEntry entry = new AidEntry();
-                      int default_route_power_state;
-                      entry.route = mDefaultRoute;
-                      if (mDefaultRoute == ROUTE_HOST) {
-                          entry.isOnHost = true;
-                          default_route_power_state = RegisteredAidCache.POWER_STATE_SWITCH_ON
-                                  | RegisteredAidCache.POWER_STATE_SCREEN_ON_LOCKED;
-                          Set<String> aidsForDefaultRoute = mAidRoutingTable.get(mDefaultRoute);
-                          if (aidsForDefaultRoute != null) {
-                              for (String aid : aidsForDefaultRoute) {
-                                  default_route_power_state |= aidMap.get(aid).power;
-                              }
-                          }
-                      } else {
-                          entry.isOnHost = false;
-                          default_route_power_state = RegisteredAidCache.POWER_STATE_ALL;
-                      }
-                      entry.aidInfo = RegisteredAidCache.AID_ROUTE_QUAL_PREFIX;
-                      entry.power = default_route_power_state;
-
-                      aidRoutingTableCache.put(emptyAid, entry);
-                      if (DBG) Log.d(TAG, "Add emptyAid into AidRoutingTable");
-                  }
-              }
-
-              // Register additional offhost AIDs when their support power states are
-              // differernt from the default route entry
-              if (mDefaultRoute != ROUTE_HOST) {
-                  int default_route_power_state = RegisteredAidCache.POWER_STATE_ALL;
-                  if (NfcService.getInstance().getNciVersion()
-                          < NfcService.getInstance().NCI_VERSION_2_0) {
-                      default_route_power_state =
-                              RegisteredAidCache.POWER_STATE_ALL_NCI_VERSION_1_0;
-                  }
-
-                  Set<String> aidsForDefaultRoute = mAidRoutingTable.get(mDefaultRoute);
-                  if (aidsForDefaultRoute != null) {
-                      for (String aid : aidsForDefaultRoute) {
-                          if (aidMap.get(aid).power != default_route_power_state) {
-                              aidRoutingTableCache.put(aid, aidMap.get(aid));
-                          }
-                      }
-                  }
-              }
-
-              if (calculateAidRouteSize(aidRoutingTableCache) <= mMaxAidRoutingTableSize) {
-                  aidRouteResolved = true;
-                  break;
-              }
-          }
-
-          if(aidRouteResolved == true) {
-              commit(aidRoutingTableCache);
-          } else {
-              NfcStatsLog.write(NfcStatsLog.NFC_ERROR_OCCURRED,
-                      NfcStatsLog.NFC_ERROR_OCCURRED__TYPE__AID_OVERFLOW, 0, 0);
-              Log.e(TAG, "RoutingTable unchanged because it's full, not updating");
-          }
+            RoutingCapacityPlanner planner = new RoutingCapacityPlanner(mAidMatchingSupport,
+                    mDefaultIsoDepRoute, NfcService.getInstance().getNciVersion()
+                            >= NfcService.getInstance().NCI_VERSION_2_0);
+            RoutingCapacityPlanner.Plan plan = planner.plan(aidMap, resolved.routes,
+                    mMaxAidRoutingTableSize);
+            mLastPlan = plan;
+            if (plan.getDefaultRoute() != mDefaultRoute) {
+                if (DBG) Log.d(TAG, "AidRoutingTable is full, switching mDefaultRoute to 0x"
+                        + Integer.toHexString(plan.getDefaultRoute()));
+            }
+            mDefaultRoute = plan.getDefaultRoute();
+
+            if (plan.hasOverflow()) {
+                NfcStatsLog.write(NfcStatsLog.NFC_ERROR_OCCURRED,
+                        NfcStatsLog.NFC_ERROR_OCCURRED__TYPE__AID_OVERFLOW, 0, 0);
+            }
+            if (plan.fits()) {
+                commit(plan.getTable());
+            } else {
+                Log.e(TAG, "RoutingTable unchanged because it's full, not updating");
+            }
         }
         return true;
     }
 
-    private void commit(HashMap<String, AidEntry> routeCache ) {
+    private void commit(Map<String, RoutingCapacityPlanner.Entry> routeCache) {
 
         if(routeCache != null) {
 
-            for (Map.Entry<String, AidEntry> aidEntry : routeCache.entrySet())  {
+            for (Map.Entry<String, RoutingCapacityPlanner.Entry> aidEntry
+                    : routeCache.entrySet())  {
                 int route = aidEntry.getValue().route;
                 int aidType = aidEntry.getValue().aidInfo;
                 String aid = aidEntry.getKey();
@@ -454,6 +391,9 @@ public class AidRoutingManager {
                     pw.println("        \"" + aid + "\"");
                 }
             }
+            if (mLastPlan != null) {
+                mLastPlan.dump(pw);
+            }
         }
     }
 
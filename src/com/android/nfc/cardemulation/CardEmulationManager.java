@@ -25,6 +25,8 @@ import android.nfc.cardemulation.ApduServiceInfo;
 import android.nfc.cardemulation.CardEmulation;
 import android.nfc.cardemulation.NfcFServiceInfo;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -33,6 +35,8 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.nfc.NfcPermissions;
@@ -40,8 +44,15 @@ import com.android.nfc.NfcService;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * CardEmulationManager is the central entity
@@ -80,6 +91,13 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
             new byte[] {(byte) 0xd2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01};
     /** Select APDU header */
     static final byte[] SELECT_AID_HDR = new byte[] {0x00, (byte) 0xa4, 0x04, 0x00};
+    /**
+     * Dynamic AID group / off-host changes arriving within this window are applied
+     * as one AID cache rebuild, routing commit and preferred payment broadcast.
+     */
+    static final int DYNAMIC_SETTINGS_COALESCE_MS = 100;
+    /** Maximum number of threads scanning services of user profiles in parallel. */
+    static final int MAX_INIT_THREADS = 4;
 
     final RegisteredAidCache mAidCache;
     final RegisteredT3tIdentifiersCache mT3tIdentifiersCache;
@@ -95,6 +113,27 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     final PowerManager mPowerManager;
     boolean mNotSkipAid;
 
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+    final Object mPendingUpdatesLock = new Object();
+    // Users with dynamic settings changes not yet applied; protected by mPendingUpdatesLock
+    final SparseBooleanArray mPendingDynamicUpdates = new SparseBooleanArray();
+    // Statistics, protected by mPendingUpdatesLock
+    long mNumDynamicUpdates;
+    long mNumDynamicRebuilds;
+    long mNumRfFlushes;
+    long mNumServicesRebuilds;
+    long mNumServicesUpdatesSkipped;
+
+    final ThreadPoolExecutor mInitExecutor;
+    final InitTimeline mInitTimeline = new InitTimeline();
+
+    final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingDynamicUpdates();
+        }
+    };
+
     public CardEmulationManager(Context context) {
         mContext = context;
         mCardEmulationInterface = new CardEmulationInterface();
@@ -108,11 +147,157 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mPreferredServices = new PreferredServices(context, mServiceCache, mAidCache, this);
         mEnabledNfcFServices = new EnabledNfcFServices(
                 context, mNfcFServicesCache, mT3tIdentifiersCache, this);
+        int threads = Math.max(1,
+                Math.min(MAX_INIT_THREADS, Runtime.getRuntime().availableProcessors()));
+        mInitExecutor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mInitExecutor.allowCoreThreadTimeOut(true);
         mServiceCache.initialize();
         mNfcFServicesCache.initialize();
+        initializeCaches("boot", UserHandle.USER_NULL);
         mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
     }
 
+    /** Service scans of all enabled profiles, started by startScans() */
+    static final class Scans {
+        final SparseArray<Future<RegisteredServicesCache.ResolvedServices>> mApduScans =
+                new SparseArray<>();
+        final SparseArray<Future<ArrayList<NfcFServiceInfo>>> mNfcFScans = new SparseArray<>();
+
+        /** Waits for every scan, failed ones are reported by mergeScans(). */
+        void await() {
+            for (int i = 0; i < mApduScans.size(); i++) {
+                awaitQuietly(mApduScans.valueAt(i));
+            }
+            for (int i = 0; i < mNfcFScans.size(); i++) {
+                awaitQuietly(mNfcFScans.valueAt(i));
+            }
+        }
+
+        static void awaitQuietly(Future<?> scan) {
+            try {
+                scan.get();
+            } catch (InterruptedException | ExecutionException e) {
+                // Reported by mergeScans()
+            }
+        }
+    }
+
+    /**
+     * Scans the HCE and HCE-F services of all enabled profiles in parallel, then
+     * applies them to the AID and T3T identifier caches with a single AID cache
+     * rebuild and routing commit.
+     *
+     * @param reloadDefaultsUserId user whose payment defaults are reloaded from
+     *        settings before the scans are applied, or UserHandle.USER_NULL
+     */
+    void initializeCaches(String reason, int reloadDefaultsUserId) {
+        mergeScans(startScans(reason), reloadDefaultsUserId);
+    }
+
+    /**
+     * Like initializeCaches(), but returns once the scans are started: they are
+     * awaited on mInitExecutor, and merged on mHandler. Used from broadcast
+     * receivers, which run on the looper that also handles RF events.
+     */
+    void initializeCachesAsync(String reason, int reloadDefaultsUserId) {
+        Scans scans = startScans(reason);
+        // Queued behind the scans, so it never waits for one that has not started
+        mInitExecutor.execute(() -> {
+            scans.await();
+            mHandler.post(() -> mergeScans(scans, reloadDefaultsUserId));
+        });
+    }
+
+    Scans startScans(String reason) {
+        mInitTimeline.begin(reason);
+        List<UserHandle> apduUsers = mServiceCache.getUserHandles();
+        List<UserHandle> nfcFUsers = mNfcFServicesCache.getUserHandles();
+        mInitTimeline.mark("profiles: " + apduUsers.size());
+
+        Scans scans = new Scans();
+        SparseArray<Future<RegisteredServicesCache.ResolvedServices>> apduScans =
+                scans.mApduScans;
+        for (UserHandle uh : apduUsers) {
+            final int userId = uh.getIdentifier();
+            apduScans.put(userId, mInitExecutor.submit(() -> {
+                RegisteredServicesCache.ResolvedServices resolved =
+                        mServiceCache.scanServices(userId, null);
+                mInitTimeline.mark("HCE scan of user " + userId);
+                return resolved;
+            }));
+        }
+        SparseArray<Future<ArrayList<NfcFServiceInfo>>> nfcFScans = scans.mNfcFScans;
+        for (UserHandle uh : nfcFUsers) {
+            final int userId = uh.getIdentifier();
+            nfcFScans.put(userId, mInitExecutor.submit(() -> {
+                ArrayList<NfcFServiceInfo> services =
+                        mNfcFServicesCache.getInstalledServices(userId);
+                mInitTimeline.mark("HCE-F scan of user " + userId);
+                return services;
+            }));
+        }
+        return scans;
+    }
+
+    void mergeScans(Scans scans, int reloadDefaultsUserId) {
+        SparseArray<Future<RegisteredServicesCache.ResolvedServices>> apduScans =
+                scans.mApduScans;
+        SparseArray<Future<ArrayList<NfcFServiceInfo>>> nfcFScans = scans.mNfcFScans;
+        mAidCache.beginBatchUpdate();
+        try {
+            if (reloadDefaultsUserId != UserHandle.USER_NULL) {
+                mPreferredServices.onUserSwitched(reloadDefaultsUserId);
+                mInitTimeline.mark("payment defaults");
+            }
+            for (int i = 0; i < apduScans.size(); i++) {
+                int userId = apduScans.keyAt(i);
+                RegisteredServicesCache.ResolvedServices resolved =
+                        getScanResult(apduScans.valueAt(i), userId);
+                if (resolved == null) continue;
+                // A package broadcast may have been applied since the scan started
+                ServiceDiff delta = mServiceCache.applyLatestScan(userId, resolved);
+                if (delta == null) continue;
+                List<ApduServiceInfo> services =
+                        Collections.unmodifiableList(mServiceCache.getServices(userId));
+                verifyDefaults(userId, services, false);
+                mAidCache.onServicesUpdated(userId, services, delta);
+            }
+            mInitTimeline.mark("HCE merge");
+            for (int i = 0; i < nfcFScans.size(); i++) {
+                int userId = nfcFScans.keyAt(i);
+                ArrayList<NfcFServiceInfo> installed =
+                        getScanResult(nfcFScans.valueAt(i), userId);
+                if (installed == null) continue;
+                ArrayList<NfcFServiceInfo> services =
+                        mNfcFServicesCache.applyInstalledServices(userId, installed);
+                if (services != null) {
+                    onNfcFServicesUpdated(userId, Collections.unmodifiableList(services));
+                }
+            }
+            mInitTimeline.mark("HCE-F merge");
+        } finally {
+            mAidCache.endBatchUpdate();
+        }
+        mInitTimeline.mark("AID cache and routing");
+        synchronized (mPendingUpdatesLock) {
+            mNumServicesRebuilds++;
+        }
+        mPreferredServices.onServicesUpdated();
+        NfcService.getInstance().onPreferredPaymentChanged(NfcAdapter.PREFERRED_PAYMENT_UPDATED);
+        mInitTimeline.end();
+    }
+
+    static <T> T getScanResult(Future<T> scan, int userId) {
+        try {
+            return scan.get();
+        } catch (InterruptedException | ExecutionException e) {
+            // Picked up again by the next package broadcast for this user
+            Log.e(TAG, "Failed to scan services of user " + userId, e);
+            return null;
+        }
+    }
+
     public INfcCardEmulation getNfcCardEmulationInterface() {
         return mCardEmulationInterface;
     }
@@ -131,6 +316,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
                     PowerManager.USER_ACTIVITY_FLAG_INDIRECT);
         }
         if (technology == NFC_HCE_APDU) {
+            onRfFieldActivated();
             mHostEmulationManager.onHostEmulationActivated();
             mPreferredServices.onHostEmulationActivated();
             mNotSkipAid = false;
@@ -141,6 +327,18 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         }
     }
 
+    /**
+     * A reader is in the field: apply pending dynamic registrations right away
+     * instead of waiting for the coalescing window to expire.
+     */
+    public void onRfFieldActivated() {
+        if (flushPendingDynamicUpdates()) {
+            synchronized (mPendingUpdatesLock) {
+                mNumRfFlushes++;
+            }
+        }
+    }
+
     public void onHostCardEmulationData(int technology, byte[] data) {
         if (technology == NFC_HCE_APDU) {
             mHostEmulationManager.onHostEmulationData(data);
@@ -173,12 +371,13 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
     public void onUserSwitched(int userId) {
         // for HCE
         mServiceCache.onUserSwitched();
-        mPreferredServices.onUserSwitched(userId);
         // for HCE-F
         mHostNfcFEmulationManager.onUserSwitched();
         mT3tIdentifiersCache.onUserSwitched();
         mEnabledNfcFServices.onUserSwitched(userId);
         mNfcFServicesCache.onUserSwitched();
+        // Rescan both registries and reload the payment defaults of the new user
+        initializeCachesAsync("user switch", userId);
     }
 
     public void onManagedProfileChanged() {
@@ -186,6 +385,7 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mServiceCache.onManagedProfileChanged();
         // for HCE-F
         mNfcFServicesCache.onManagedProfileChanged();
+        initializeCachesAsync("profile change", UserHandle.USER_NULL);
     }
 
     public void onNfcEnabled() {
@@ -219,6 +419,26 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
         mT3tIdentifiersCache.dump(fd, pw, args);
         mHostEmulationManager.dump(fd, pw, args);
         mHostNfcFEmulationManager.dump(fd, pw, args);
+        mInitTimeline.dump(pw);
+        synchronized (mPendingUpdatesLock) {
+            pw.println("Service updates: rebuilds=" + mNumServicesRebuilds
+                    + " skipped=" + mNumServicesUpdatesSkipped
+                    + " dynamicUpdates=" + mNumDynamicUpdates
+                    + " dynamicRebuilds=" + mNumDynamicRebuilds
+                    + " rfFlushes=" + mNumRfFlushes
+                    + " coalescingRatio=" + (mNumDynamicRebuilds > 0
+                            ? String.format("%.2f",
+                                    (double) mNumDynamicUpdates / mNumDynamicRebuilds)
+                            : "n/a"));
+        }
+    }
+
+    /**
+     * Clears the HCE and HCE-F transaction counters and latency histograms.
+     */
+    public void resetHostEmulationStats() {
+        mHostEmulationManager.resetStats();
+        mHostNfcFEmulationManager.resetStats();
     }
 
     /**
@@ -266,17 +486,66 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
 
     @Override
     public void onServicesUpdated(int userId, List<ApduServiceInfo> services,
-            boolean validateInstalled) {
+            boolean validateInstalled, ServiceDiff delta) {
+        if (delta.isEmpty() && !validateInstalled) {
+            // Package event that did not touch any HCE service
+            if (DBG) Log.d(TAG, "Services unchanged for user " + userId);
+            synchronized (mPendingUpdatesLock) {
+                mNumServicesUpdatesSkipped++;
+            }
+            return;
+        }
+        synchronized (mPendingUpdatesLock) {
+            mNumServicesRebuilds++;
+        }
         // Verify defaults are still the same
         verifyDefaults(userId, services, validateInstalled);
         // Update the AID cache
-        mAidCache.onServicesUpdated(userId, services);
+        mAidCache.onServicesUpdated(userId, services, delta);
         // Update the preferred services list
         mPreferredServices.onServicesUpdated();
 
         NfcService.getInstance().onPreferredPaymentChanged(NfcAdapter.PREFERRED_PAYMENT_UPDATED);
     }
 
+    @Override
+    public void onDynamicSettingsUpdated(int userId) {
+        synchronized (mPendingUpdatesLock) {
+            mNumDynamicUpdates++;
+            mPendingDynamicUpdates.put(userId, true);
+            // Restart the window so a burst of registrations results in a single
+            // rebuild and a single PREFERRED_PAYMENT_UPDATED broadcast.
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.postDelayed(mFlushRunnable, DYNAMIC_SETTINGS_COALESCE_MS);
+        }
+    }
+
+    /**
+     * Applies pending dynamic settings changes, if any.
+     *
+     * @return true if any update was applied
+     */
+    boolean flushPendingDynamicUpdates() {
+        int[] userIds;
+        synchronized (mPendingUpdatesLock) {
+            if (mPendingDynamicUpdates.size() == 0) {
+                return false;
+            }
+            mHandler.removeCallbacks(mFlushRunnable);
+            userIds = new int[mPendingDynamicUpdates.size()];
+            for (int i = 0; i < userIds.length; i++) {
+                userIds[i] = mPendingDynamicUpdates.keyAt(i);
+            }
+            mPendingDynamicUpdates.clear();
+            mNumDynamicRebuilds++;
+        }
+        for (int userId : userIds) {
+            onServicesUpdated(userId, mServiceCache.getServices(userId), true,
+                    ServiceDiff.rebuild());
+        }
+        return true;
+    }
+
     @Override
     public void onNfcFServicesUpdated(int userId, List<NfcFServiceInfo> services) {
         // Update the T3T identifier cache
@@ -482,6 +751,8 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
             if (!isServiceRegistered(userId, service)) {
                 return false;
             }
+            // Callers may query right after registering an AID group.
+            flushPendingDynamicUpdates();
             return mAidCache.isDefaultServiceForAid(userId, service, aid);
         }
 
@@ -519,8 +790,6 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
                     aidGroup)) {
                 return false;
             }
-            NfcService.getInstance().onPreferredPaymentChanged(
-                    NfcAdapter.PREFERRED_PAYMENT_UPDATED);
             return true;
         }
 
@@ -535,8 +804,6 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
                     offHostSE)) {
                 return false;
             }
-            NfcService.getInstance().onPreferredPaymentChanged(
-                    NfcAdapter.PREFERRED_PAYMENT_UPDATED);
             return true;
         }
 
@@ -550,8 +817,6 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
             if (!mServiceCache.unsetOffHostSecureElement(userId, Binder.getCallingUid(), service)) {
                 return false;
             }
-            NfcService.getInstance().onPreferredPaymentChanged(
-                    NfcAdapter.PREFERRED_PAYMENT_UPDATED);
             return true;
         }
 
@@ -579,8 +844,6 @@ public class CardEmulationManager implements RegisteredServicesCache.Callback,
                     category)) {
                 return false;
             }
-            NfcService.getInstance().onPreferredPaymentChanged(
-                    NfcAdapter.PREFERRED_PAYMENT_UPDATED);
             return true;
         }
 
@@ -32,6 +32,7 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.PowerManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.Log;
@@ -75,6 +76,7 @@ public class HostEmulationManager {
     final KeyguardManager mKeyguard;
     final Object mLock;
     final PowerManager mPowerManager;
+    final HostEmulationStats mStats = new HostEmulationStats("HCE");
 
     // All variables below protected by mLock
 
@@ -103,9 +105,15 @@ public class HostEmulationManager {
     int mActiveServiceUserId; // The UserId of the current active one
 
     String mLastSelectedAid;
+    String mLastSelectedCategory;
     int mState;
     byte[] mSelectApdu;
 
+    // Timestamps (elapsedRealtimeNanos) of the current transaction, 0 when not set.
+    long mActivatedTimeNs;
+    long mSelectTimeNs;
+    long mCommandTimeNs;
+
     public HostEmulationManager(Context context, RegisteredAidCache aidCache) {
         mContext = context;
         mLock = new Object();
@@ -155,6 +163,9 @@ public class HostEmulationManager {
                 Log.e(TAG, "Got activation event in non-idle state");
             }
             mState = STATE_W4_SELECT;
+            mActivatedTimeNs = SystemClock.elapsedRealtimeNanos();
+            mSelectTimeNs = 0;
+            mCommandTimeNs = 0;
         }
     }
 
@@ -180,10 +191,12 @@ public class HostEmulationManager {
                 resolveInfo = mAidCache.resolveAid(selectAid);
                 if (resolveInfo == null || resolveInfo.services.size() == 0) {
                     // Tell the remote we don't handle this AID
+                    mStats.count(HostEmulationStats.EVENT_NOT_FOUND, selectAid, null, null);
                     NfcService.getInstance().sendData(AID_NOT_FOUND);
                     return;
                 }
                 mLastSelectedAid = selectAid;
+                mLastSelectedCategory = resolveInfo.category;
                 if (resolveInfo.defaultService != null) {
                     // Resolve to default
                     // Check if resolvedService requires unlock
@@ -232,6 +245,16 @@ public class HostEmulationManager {
                     return;
                 }
             }
+            if (selectAid != null && mState != STATE_W4_SERVICE) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                if (mState == STATE_W4_SELECT && mActivatedTimeNs != 0) {
+                    mStats.record(HostEmulationStats.STAGE_ACTIVATION_TO_SELECT,
+                            now - mActivatedTimeNs, resolveInfo.category, resolvedService);
+                }
+                mSelectTimeNs = now;
+                mStats.count(HostEmulationStats.EVENT_SELECT, selectAid, resolveInfo.category,
+                        resolvedService);
+            }
             switch (mState) {
                 case STATE_W4_SELECT:
                     if (selectAid != null) {
@@ -299,6 +322,16 @@ public class HostEmulationManager {
             if (mState == STATE_IDLE) {
                 Log.e(TAG, "Got deactivation event while in idle state");
             }
+            if (mActivatedTimeNs != 0) {
+                mStats.count(HostEmulationStats.EVENT_TRANSACTION, null, mLastSelectedCategory,
+                        mActiveServiceName);
+                mStats.record(HostEmulationStats.STAGE_TRANSACTION,
+                        SystemClock.elapsedRealtimeNanos() - mActivatedTimeNs,
+                        mLastSelectedCategory, mActiveServiceName);
+                mActivatedTimeNs = 0;
+            }
+            mSelectTimeNs = 0;
+            mCommandTimeNs = 0;
             sendDeactivateToActiveServiceLocked(HostApduService.DEACTIVATION_LINK_LOSS);
             mActiveService = null;
             mActiveServiceName = null;
@@ -376,6 +409,9 @@ public class HostEmulationManager {
         dataBundle.putByteArray("data", data);
         msg.setData(dataBundle);
         msg.replyTo = mMessenger;
+        mCommandTimeNs = SystemClock.elapsedRealtimeNanos();
+        mStats.count(HostEmulationStats.EVENT_COMMAND, null, mLastSelectedCategory,
+                mActiveServiceName);
         try {
             mActiveService.send(msg);
         } catch (RemoteException e) {
@@ -516,6 +552,11 @@ public class HostEmulationManager {
                 mState = STATE_XFER;
                 // Send pending select APDU
                 if (mSelectApdu != null) {
+                    if (mSelectTimeNs != 0) {
+                        mStats.record(HostEmulationStats.STAGE_SELECT_TO_SERVICE_BOUND,
+                                SystemClock.elapsedRealtimeNanos() - mSelectTimeNs,
+                                mLastSelectedCategory, name);
+                    }
                     sendDataToServiceLocked(mService, mSelectApdu);
                     mSelectApdu = null;
                 }
@@ -559,6 +600,14 @@ public class HostEmulationManager {
                 int state;
                 synchronized(mLock) {
                     state = mState;
+                    if (mCommandTimeNs != 0) {
+                        mStats.count(HostEmulationStats.EVENT_RESPONSE, null,
+                                mLastSelectedCategory, mActiveServiceName);
+                        mStats.record(HostEmulationStats.STAGE_APDU_RESPONSE,
+                                SystemClock.elapsedRealtimeNanos() - mCommandTimeNs,
+                                mLastSelectedCategory, mActiveServiceName);
+                        mCommandTimeNs = 0;
+                    }
                 }
                 if (state == STATE_XFER) {
                     Log.d(TAG, "Sending data");
@@ -599,6 +648,14 @@ public class HostEmulationManager {
         if (mServiceBound) {
             pw.println("    other: " + mServiceName);
         }
+        mStats.dump(pw);
+    }
+
+    /**
+     * Clears the transaction counters and latency histograms.
+     */
+    public void resetStats() {
+        mStats.reset();
     }
 
     /**
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Transaction counters and latency histograms for host card emulation.
+ *
+ * All recording paths are lock-free and, once a key has been seen, allocation-free,
+ * so they can be called from the APDU path while holding the emulation manager lock.
+ */
+public class HostEmulationStats {
+    static final int STAGE_ACTIVATION_TO_SELECT = 0;
+    static final int STAGE_SELECT_TO_SERVICE_BOUND = 1;
+    static final int STAGE_APDU_RESPONSE = 2;
+    static final int STAGE_TRANSACTION = 3;
+    static final int NUM_STAGES = 4;
+
+    static final String[] STAGE_NAMES = {
+        "activation->select", "select->bound", "apdu->response", "transaction"
+    };
+
+    static final int EVENT_SELECT = 0;
+    static final int EVENT_NOT_FOUND = 1;
+    static final int EVENT_COMMAND = 2;
+    static final int EVENT_RESPONSE = 3;
+    static final int EVENT_TRANSACTION = 4;
+    static final int NUM_EVENTS = 5;
+
+    static final String[] EVENT_NAMES = {
+        "selects", "notFound", "commands", "responses", "transactions"
+    };
+
+    /** Upper bounds of the histogram buckets in microseconds; the last bucket is open. */
+    static final long[] BUCKET_BOUNDS_US = {
+        500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000, 1000000
+    };
+
+    /** Maximum number of distinct keys tracked per map before folding into OVERFLOW_KEY. */
+    static final int MAX_KEYS = 64;
+    static final String OVERFLOW_KEY = "<other>";
+
+    static final class Histogram {
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_BOUNDS_US.length + 1);
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalUs = new AtomicLong();
+        final AtomicLong mMaxUs = new AtomicLong();
+
+        void record(long us) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_US.length && us > BUCKET_BOUNDS_US[bucket]) {
+                bucket++;
+            }
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotalUs.addAndGet(us);
+            long max = mMaxUs.get();
+            while (us > max && !mMaxUs.compareAndSet(max, us)) {
+                max = mMaxUs.get();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < mBuckets.length(); i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mTotalUs.set(0);
+            mMaxUs.set(0);
+        }
+
+        void dump(PrintWriter pw, String prefix, String name) {
+            long count = mCount.get();
+            if (count == 0) return;
+            StringBuilder sb = new StringBuilder(prefix);
+            sb.append(name).append(": n=").append(count)
+                    .append(" avg=").append(mTotalUs.get() / count).append("us")
+                    .append(" max=").append(mMaxUs.get()).append("us [");
+            for (int i = 0; i < mBuckets.length(); i++) {
+                if (i > 0) sb.append(' ');
+                sb.append(i < BUCKET_BOUNDS_US.length ? "<=" + BUCKET_BOUNDS_US[i] : ">")
+                        .append(':').append(mBuckets.get(i));
+            }
+            sb.append(']');
+            pw.println(sb.toString());
+        }
+    }
+
+    static final class Entry {
+        final AtomicLongArray mEvents = new AtomicLongArray(NUM_EVENTS);
+        final Histogram[] mStages = new Histogram[NUM_STAGES];
+
+        Entry() {
+            for (int i = 0; i < NUM_STAGES; i++) {
+                mStages[i] = new Histogram();
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < NUM_EVENTS; i++) {
+                mEvents.set(i, 0);
+            }
+            for (Histogram histogram : mStages) {
+                histogram.reset();
+            }
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            StringBuilder sb = new StringBuilder(prefix);
+            for (int i = 0; i < NUM_EVENTS; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append(EVENT_NAMES[i]).append('=').append(mEvents.get(i));
+            }
+            pw.println(sb.toString());
+            for (int i = 0; i < NUM_STAGES; i++) {
+                mStages[i].dump(pw, prefix, STAGE_NAMES[i]);
+            }
+        }
+    }
+
+    final String mName;
+    final Entry mTotal = new Entry();
+    final ConcurrentHashMap<Object, Entry> mCategories = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Object, Entry> mServices = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Object, Entry> mIdentifiers = new ConcurrentHashMap<>();
+
+    public HostEmulationStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Counts an event against the given identifier (AID or NFCID2), category and
+     * service. Any of the keys may be null.
+     */
+    public void count(int event, String identifier, String category, Object service) {
+        mTotal.mEvents.incrementAndGet(event);
+        if (identifier != null) getEntry(mIdentifiers, identifier).mEvents.incrementAndGet(event);
+        if (category != null) getEntry(mCategories, category).mEvents.incrementAndGet(event);
+        if (service != null) getEntry(mServices, service).mEvents.incrementAndGet(event);
+    }
+
+    /**
+     * Records a latency sample for the given stage. Negative samples, which
+     * happen when the start timestamp was never taken, are ignored.
+     */
+    public void record(int stage, long latencyNs, String category, Object service) {
+        if (latencyNs < 0) return;
+        long us = latencyNs / 1000;
+        mTotal.mStages[stage].record(us);
+        if (category != null) getEntry(mCategories, category).mStages[stage].record(us);
+        if (service != null) getEntry(mServices, service).mStages[stage].record(us);
+    }
+
+    public void reset() {
+        mTotal.reset();
+        // Keep the entries so that recording stays allocation-free after a reset.
+        for (Entry entry : mCategories.values()) entry.reset();
+        for (Entry entry : mServices.values()) entry.reset();
+        for (Entry entry : mIdentifiers.values()) entry.reset();
+    }
+
+    static Entry getEntry(ConcurrentHashMap<Object, Entry> map, Object key) {
+        Entry entry = map.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        if (map.size() >= MAX_KEYS) {
+            key = OVERFLOW_KEY;
+        }
+        return map.computeIfAbsent(key, k -> new Entry());
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(mName + " transaction stats:");
+        mTotal.dump(pw, "    ");
+        dumpMap(pw, "category", mCategories);
+        dumpMap(pw, "service", mServices);
+        dumpMap(pw, "id", mIdentifiers);
+    }
+
+    static void dumpMap(PrintWriter pw, String label, Map<Object, Entry> map) {
+        for (Map.Entry<Object, Entry> entry : map.entrySet()) {
+            pw.println("    " + label + " " + entry.getKey() + ":");
+            entry.getValue().dump(pw, "        ");
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.Log;
@@ -57,6 +58,7 @@ public class HostNfcFEmulationManager {
     final RegisteredT3tIdentifiersCache mT3tIdentifiersCache;
     final Messenger mMessenger = new Messenger (new MessageHandler());
     final Object mLock;
+    final HostEmulationStats mStats = new HostEmulationStats("HCE-F");
 
     // All variables below protected by mLock
     ComponentName mEnabledFgServiceName;
@@ -77,6 +79,11 @@ public class HostNfcFEmulationManager {
     int mState;
     byte[] mPendingPacket;
 
+    // Timestamps (elapsedRealtimeNanos) of the current transaction, 0 when not set.
+    long mActivatedTimeNs;
+    long mFirstPacketTimeNs;
+    long mCommandTimeNs;
+
     public HostNfcFEmulationManager(Context context,
             RegisteredT3tIdentifiersCache t3tIdentifiersCache) {
         mContext = context;
@@ -102,6 +109,11 @@ public class HostNfcFEmulationManager {
 
     public void onHostEmulationActivated() {
         if (DBG) Log.d(TAG, "notifyHostEmulationActivated");
+        synchronized (mLock) {
+            mActivatedTimeNs = SystemClock.elapsedRealtimeNanos();
+            mFirstPacketTimeNs = 0;
+            mCommandTimeNs = 0;
+        }
     }
 
     public void onHostEmulationData(byte[] data) {
@@ -131,6 +143,14 @@ public class HostNfcFEmulationManager {
                     "mState: " + String.valueOf(mState));
             switch (mState) {
                 case STATE_IDLE:
+                    mFirstPacketTimeNs = SystemClock.elapsedRealtimeNanos();
+                    if (mActivatedTimeNs != 0) {
+                        mStats.record(HostEmulationStats.STAGE_ACTIVATION_TO_SELECT,
+                                mFirstPacketTimeNs - mActivatedTimeNs, null,
+                                resolvedServiceName);
+                    }
+                    mStats.count(HostEmulationStats.EVENT_SELECT, nfcid2, null,
+                            resolvedServiceName);
                     int userId;
                     if (resolvedService == null) {
                         userId = mEnabledFgServiceUserId;
@@ -169,6 +189,16 @@ public class HostNfcFEmulationManager {
     public void onHostEmulationDeactivated() {
         if (DBG) Log.d(TAG, "notifyHostEmulationDeactivated");
         synchronized (mLock) {
+            if (mActivatedTimeNs != 0) {
+                mStats.count(HostEmulationStats.EVENT_TRANSACTION, null, null,
+                        mActiveServiceName);
+                mStats.record(HostEmulationStats.STAGE_TRANSACTION,
+                        SystemClock.elapsedRealtimeNanos() - mActivatedTimeNs, null,
+                        mActiveServiceName);
+                mActivatedTimeNs = 0;
+            }
+            mFirstPacketTimeNs = 0;
+            mCommandTimeNs = 0;
             sendDeactivateToActiveServiceLocked(HostNfcFService.DEACTIVATION_LINK_LOSS);
             mActiveService = null;
             mActiveServiceName = null;
@@ -217,6 +247,8 @@ public class HostNfcFEmulationManager {
         dataBundle.putByteArray("data", data);
         msg.setData(dataBundle);
         msg.replyTo = mMessenger;
+        mCommandTimeNs = SystemClock.elapsedRealtimeNanos();
+        mStats.count(HostEmulationStats.EVENT_COMMAND, null, null, mActiveServiceName);
         try {
             Log.d(TAG, "Sending data to service");
             if (DBG) Log.d(TAG, "data: " + getByteDump(data));
@@ -296,6 +328,11 @@ public class HostNfcFEmulationManager {
                 mState = STATE_XFER;
                 // Send pending packet
                 if (mPendingPacket != null) {
+                    if (mFirstPacketTimeNs != 0) {
+                        mStats.record(HostEmulationStats.STAGE_SELECT_TO_SERVICE_BOUND,
+                                SystemClock.elapsedRealtimeNanos() - mFirstPacketTimeNs, null,
+                                name);
+                    }
                     sendDataToServiceLocked(mService, mPendingPacket);
                     mPendingPacket = null;
                 }
@@ -345,6 +382,14 @@ public class HostNfcFEmulationManager {
                 int state;
                 synchronized(mLock) {
                     state = mState;
+                    if (mCommandTimeNs != 0) {
+                        mStats.count(HostEmulationStats.EVENT_RESPONSE, null, null,
+                                mActiveServiceName);
+                        mStats.record(HostEmulationStats.STAGE_APDU_RESPONSE,
+                                SystemClock.elapsedRealtimeNanos() - mCommandTimeNs, null,
+                                mActiveServiceName);
+                        mCommandTimeNs = 0;
+                    }
                 }
                 if (state == STATE_XFER) {
                     Log.d(TAG, "Sending data");
@@ -394,6 +439,14 @@ public class HostNfcFEmulationManager {
         if (mServiceBound) {
             pw.println("    service: " + mServiceName);
         }
+        mStats.dump(pw);
+    }
+
+    /**
+     * Clears the transaction counters and latency histograms.
+     */
+    public void resetStats() {
+        mStats.reset();
     }
 
     /**
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Records when each stage of a card emulation cache initialization finished,
+ * for the last few initializations. Stages may be marked from any thread.
+ */
+public class InitTimeline {
+    static final int MAX_RUNS = 4;
+
+    static final class Run {
+        final String mReason;
+        final long mStartMs;
+        final ArrayList<String> mStages = new ArrayList<String>();
+        final ArrayList<Long> mOffsetsMs = new ArrayList<Long>();
+        long mDurationMs = -1;
+
+        Run(String reason, long startMs) {
+            mReason = reason;
+            mStartMs = startMs;
+        }
+    }
+
+    final ArrayDeque<Run> mRuns = new ArrayDeque<Run>();
+    Run mCurrent;
+
+    public synchronized void begin(String reason) {
+        mCurrent = new Run(reason, SystemClock.elapsedRealtime());
+        if (mRuns.size() >= MAX_RUNS) {
+            mRuns.pollFirst();
+        }
+        mRuns.addLast(mCurrent);
+    }
+
+    public synchronized void mark(String stage) {
+        if (mCurrent == null) return;
+        mCurrent.mStages.add(stage);
+        mCurrent.mOffsetsMs.add(SystemClock.elapsedRealtime() - mCurrent.mStartMs);
+    }
+
+    public synchronized void end() {
+        if (mCurrent == null) return;
+        mCurrent.mDurationMs = SystemClock.elapsedRealtime() - mCurrent.mStartMs;
+        mCurrent = null;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Card emulation init timeline:");
+        for (Run run : mRuns) {
+            pw.println("    " + run.mReason + " at " + run.mStartMs + "ms, took "
+                    + (run.mDurationMs >= 0 ? run.mDurationMs + "ms" : "(running)"));
+            for (int i = 0; i < run.mStages.size(); i++) {
+                pw.println("        +" + run.mOffsetsMs.get(i) + "ms " + run.mStages.get(i));
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.Log;
+import android.util.Pair;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.nfc.NfcService;
@@ -38,9 +39,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.PriorityQueue;
 import java.util.TreeMap;
 
@@ -119,7 +122,8 @@ public class RegisteredAidCache {
     }
 
     // Represents a list of services, an optional default and a category that
-    // an AID was resolved to.
+    // an AID was resolved to. Once in mAidCache, an AidResolveInfo is shared by
+    // every AID that resolved to the same result and must not be modified.
     final class AidResolveInfo {
         List<ApduServiceInfo> services = new ArrayList<ApduServiceInfo>();
         ApduServiceInfo defaultService = null;
@@ -139,6 +143,65 @@ public class RegisteredAidCache {
 
     final AidResolveInfo EMPTY_RESOLVE_INFO = new AidResolveInfo();
 
+    // Identifies a resolve result by content, so that AIDs resolving to the same
+    // result can share one AidResolveInfo. Services are compared by identity, as
+    // ApduServiceInfo.equals() does not tell apart a service of two profiles.
+    static final class ResolveKey {
+        final AidResolveInfo info;
+        final int hash;
+
+        ResolveKey(AidResolveInfo info) {
+            this.info = info;
+            int h = Objects.hash(info.category, info.mustRoute,
+                    System.identityHashCode(info.defaultService));
+            for (ApduServiceInfo service : info.services) {
+                h = 31 * h + System.identityHashCode(service);
+            }
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ResolveKey)) return false;
+            AidResolveInfo other = ((ResolveKey) o).info;
+            if (info.mustRoute != other.mustRoute
+                    || info.defaultService != other.defaultService
+                    || !Objects.equals(info.category, other.category)
+                    || info.services.size() != other.services.size()) {
+                return false;
+            }
+            for (int i = 0; i < info.services.size(); i++) {
+                if (info.services.get(i) != other.services.get(i)) return false;
+            }
+            return true;
+        }
+    }
+
+    // A set of AIDs that conflict with each other, with their last resolution.
+    // The resolution only depends on the preferred foreground and payment
+    // services if they are among the services of the unit.
+    final class ConflictUnit {
+        final TreeMap<String, ArrayList<ServiceAidInfo>> aidServices =
+                new TreeMap<String, ArrayList<ServiceAidInfo>>();
+        // Few services take part in a unit, a list is smaller than a set
+        final ArrayList<Pair<ComponentName, Integer>> services =
+                new ArrayList<Pair<ComponentName, Integer>>(1);
+        final TreeMap<String, AidResolveInfo> result = new TreeMap<String, AidResolveInfo>();
+        boolean resolved = false;
+        Pair<ComponentName, Integer> foregroundDep;
+        Pair<ComponentName, Integer> paymentDep;
+    }
+
+    // Conflict units of mAidServices, rebuilt after the service map changed
+    ArrayList<ConflictUnit> mConflictUnits = null;
+    long mNumUnitsResolved = 0;
+    long mNumUnitsReused = 0;
+
     final Context mContext;
     final AidRoutingManager mRoutingManager;
 
@@ -153,6 +216,11 @@ public class RegisteredAidCache {
     boolean mSupportsPrefixes = false;
     boolean mSupportsSubset = false;
 
+    // Set between beginBatchUpdate() and endBatchUpdate(); the rebuilds are deferred
+    boolean mBatchUpdate = false;
+    boolean mBatchServiceMapDirty = false;
+    boolean mBatchAidCacheDirty = false;
+
     public RegisteredAidCache(Context context) {
         mContext = context;
         mRoutingManager = new AidRoutingManager();
@@ -451,6 +519,7 @@ public class RegisteredAidCache {
     void generateServiceMapLocked(List<ApduServiceInfo> services) {
         // Easiest is to just build the entire tree again
         mAidServices.clear();
+        mConflictUnits = null;
         int currentUser = ActivityManager.getCurrentUser();
         UserManager um = mContext.createContextAsUser(
                 UserHandle.of(currentUser), /*flags=*/0)
@@ -518,13 +587,15 @@ public class RegisteredAidCache {
                     serviceAidInfo.service = service;
                     serviceAidInfo.category = service.getCategoryForAid(aid);
 
-                    if (mAidServices.containsKey(serviceAidInfo.aid)) {
-                        final ArrayList<ServiceAidInfo> serviceAidInfos =
-                                mAidServices.get(serviceAidInfo.aid);
+                    ArrayList<ServiceAidInfo> serviceAidInfos =
+                            mAidServices.get(serviceAidInfo.aid);
+                    if (serviceAidInfos != null) {
+                        // Share one string between all registrations of the AID
+                        serviceAidInfo.aid = serviceAidInfos.get(0).aid;
                         serviceAidInfos.add(serviceAidInfo);
                     } else {
-                        final ArrayList<ServiceAidInfo> serviceAidInfos =
-                                new ArrayList<ServiceAidInfo>();
+                        // Most AIDs are registered by a single service
+                        serviceAidInfos = new ArrayList<ServiceAidInfo>(1);
                         serviceAidInfos.add(serviceAidInfo);
                         mAidServices.put(serviceAidInfo.aid, serviceAidInfos);
                     }
@@ -596,14 +667,15 @@ public class RegisteredAidCache {
         return resolvedPrefix;
     }
 
-    AidConflicts findConflictsForPrefixLocked(String prefixAid) {
+    AidConflicts findConflictsForPrefixLocked(
+            TreeMap<String, ArrayList<ServiceAidInfo>> aidServices, String prefixAid) {
         AidConflicts prefixConflicts = new AidConflicts();
         String plainAid = prefixAid.substring(0, prefixAid.length() - 1); // Cut off "*"
         String lastAidWithPrefix = String.format("%-32s", plainAid).replace(' ', 'F');
         if (DBG) Log.d(TAG, "Finding AIDs in range [" + plainAid + " - " +
                 lastAidWithPrefix + "]");
         prefixConflicts.conflictMap =
-                mAidServices.subMap(plainAid, true, lastAidWithPrefix, true);
+                aidServices.subMap(plainAid, true, lastAidWithPrefix, true);
         for (Map.Entry<String, ArrayList<ServiceAidInfo>> entry :
                 prefixConflicts.conflictMap.entrySet()) {
             if (!entry.getKey().equalsIgnoreCase(prefixAid)) {
@@ -617,7 +689,8 @@ public class RegisteredAidCache {
         return prefixConflicts;
     }
 
-    AidConflicts findConflictsForSubsetAidLocked(String subsetAid) {
+    AidConflicts findConflictsForSubsetAidLocked(
+            TreeMap<String, ArrayList<ServiceAidInfo>> aidServices, String subsetAid) {
         AidConflicts subsetConflicts = new AidConflicts();
         // Cut off "@"
         String lastPlainAid = subsetAid.substring(0, subsetAid.length() - 1);
@@ -628,7 +701,7 @@ public class RegisteredAidCache {
             lastPlainAid + "]");
         subsetConflicts.conflictMap = new TreeMap();
         for (Map.Entry<String, ArrayList<ServiceAidInfo>> entry :
-            mAidServices.entrySet()) {
+            aidServices.entrySet()) {
             String aid = entry.getKey();
             String plainAid = aid;
             if (isSubset(aid) || isPrefix(aid))
@@ -651,11 +724,146 @@ public class RegisteredAidCache {
 
     void generateAidCacheLocked() {
         mAidCache.clear();
+        if (mConflictUnits == null) {
+            mConflictUnits = buildConflictUnitsLocked();
+        }
+        Pair<ComponentName, Integer> foreground =
+                new Pair<>(mPreferredForegroundService, mUserIdPreferredForegroundService);
+        Pair<ComponentName, Integer> payment =
+                new Pair<>(mPreferredPaymentService, mUserIdPreferredPaymentService);
+        HashMap<ResolveKey, AidResolveInfo> shared = new HashMap<ResolveKey, AidResolveInfo>();
+        for (ConflictUnit unit : mConflictUnits) {
+            Pair<ComponentName, Integer> foregroundDep =
+                    unit.services.contains(foreground) ? foreground : null;
+            Pair<ComponentName, Integer> paymentDep =
+                    unit.services.contains(payment) ? payment : null;
+            if (unit.resolved && Objects.equals(unit.foregroundDep, foregroundDep)
+                    && Objects.equals(unit.paymentDep, paymentDep)) {
+                mNumUnitsReused++;
+            } else {
+                unit.result.clear();
+                resolveAidsLocked(unit.aidServices, unit.result);
+                unit.foregroundDep = foregroundDep;
+                unit.paymentDep = paymentDep;
+                unit.resolved = true;
+                mNumUnitsResolved++;
+            }
+            for (Map.Entry<String, AidResolveInfo> entry : unit.result.entrySet()) {
+                entry.setValue(shareResolveInfo(shared, entry.getValue()));
+            }
+            mAidCache.putAll(unit.result);
+        }
+        updateRoutingLocked(false);
+    }
+
+    /**
+     * Returns the AidResolveInfo of {@code shared} with the same result as
+     * {@code resolveInfo}, adding it if there is none. With many services most
+     * AIDs resolve to one of a few results, such as a single default service.
+     */
+    static AidResolveInfo shareResolveInfo(HashMap<ResolveKey, AidResolveInfo> shared,
+            AidResolveInfo resolveInfo) {
+        if (resolveInfo == null || resolveInfo.prefixInfo != null) {
+            return resolveInfo;
+        }
+        ResolveKey key = new ResolveKey(resolveInfo);
+        AidResolveInfo existing = shared.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (resolveInfo.services instanceof ArrayList) {
+            ((ArrayList<ApduServiceInfo>) resolveInfo.services).trimToSize();
+        }
+        shared.put(key, resolveInfo);
+        return resolveInfo;
+    }
+
+    /**
+     * Splits mAidServices into units of AIDs that can conflict with each other:
+     * a prefix AID with every AID it is a prefix of, and a subset AID with every
+     * AID that is a prefix of it. Units are resolved independently, so a change
+     * of preferred service only needs to re-resolve the units it takes part in.
+     */
+    ArrayList<ConflictUnit> buildConflictUnitsLocked() {
+        ArrayList<String> aids = new ArrayList<String>(mAidServices.keySet());
+        HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+        int[] parents = new int[aids.size()];
+        for (int i = 0; i < aids.size(); i++) {
+            indexes.put(aids.get(i), i);
+            parents[i] = i;
+        }
+        for (int i = 0; i < aids.size(); i++) {
+            String aid = aids.get(i);
+            if (isExact(aid)) continue;
+            String plainAid = aid.substring(0, aid.length() - 1);
+            if (isPrefix(aid)) {
+                String lastAidWithPrefix = String.format("%-32s", plainAid).replace(' ', 'F');
+                for (String conflict :
+                        mAidServices.subMap(plainAid, true, lastAidWithPrefix, true).keySet()) {
+                    union(parents, i, indexes.get(conflict));
+                }
+            } else {
+                for (int length = 1; length <= plainAid.length(); length++) {
+                    String root = plainAid.substring(0, length);
+                    for (String conflict : new String[] {root, root + "*", root + "#"}) {
+                        Integer index = indexes.get(conflict);
+                        if (index != null) union(parents, i, index);
+                    }
+                }
+            }
+        }
+        HashMap<Integer, ConflictUnit> units = new HashMap<Integer, ConflictUnit>();
+        // One pair per service, shared by the units it takes part in
+        IdentityHashMap<ApduServiceInfo, Pair<ComponentName, Integer>> pairs =
+                new IdentityHashMap<ApduServiceInfo, Pair<ComponentName, Integer>>();
+        for (int i = 0; i < aids.size(); i++) {
+            int root = find(parents, i);
+            ConflictUnit unit = units.get(root);
+            if (unit == null) {
+                unit = new ConflictUnit();
+                units.put(root, unit);
+            }
+            ArrayList<ServiceAidInfo> serviceAidInfos = mAidServices.get(aids.get(i));
+            unit.aidServices.put(aids.get(i), serviceAidInfos);
+            for (ServiceAidInfo serviceAidInfo : serviceAidInfos) {
+                Pair<ComponentName, Integer> pair = pairs.get(serviceAidInfo.service);
+                if (pair == null) {
+                    pair = new Pair<>(serviceAidInfo.service.getComponent(),
+                            UserHandle.getUserHandleForUid(serviceAidInfo.service.getUid())
+                                    .getIdentifier());
+                    pairs.put(serviceAidInfo.service, pair);
+                }
+                if (!unit.services.contains(pair)) {
+                    unit.services.add(pair);
+                }
+            }
+        }
+        return new ArrayList<ConflictUnit>(units.values());
+    }
+
+    static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    static void union(int[] parents, int a, int b) {
+        parents[find(parents, a)] = find(parents, b);
+    }
+
+    /**
+     * Resolves the AIDs of {@code aidServices} against the current preferred
+     * services and puts the results in {@code result}.
+     */
+    void resolveAidsLocked(TreeMap<String, ArrayList<ServiceAidInfo>> aidServices,
+            TreeMap<String, AidResolveInfo> result) {
         // Get all exact and prefix AIDs in an ordered list
         final TreeMap<String, AidResolveInfo> aidCache = new TreeMap<String, AidResolveInfo>();
 
         //aidCache is temproary cache for geenrating the first prefix based lookup table.
-        PriorityQueue<String> aidsToResolve = new PriorityQueue<String>(mAidServices.keySet());
+        PriorityQueue<String> aidsToResolve = new PriorityQueue<String>(aidServices.keySet());
         aidCache.clear();
         while (!aidsToResolve.isEmpty()) {
             final ArrayList<String> resolvedAids = new ArrayList<String>();
@@ -678,10 +886,11 @@ public class RegisteredAidCache {
                 // For example, if "A000000003*" is the prefix root,
                 // "A000000003", "A00000000301*", "A0000000030102" are all conflicting children AIDs
                 final ArrayList<ServiceAidInfo> prefixServices = new ArrayList<ServiceAidInfo>(
-                        mAidServices.get(aidToResolve));
+                        aidServices.get(aidToResolve));
 
                 // Find all conflicting children services
-                AidConflicts prefixConflicts = findConflictsForPrefixLocked(aidToResolve);
+                AidConflicts prefixConflicts =
+                        findConflictsForPrefixLocked(aidServices, aidToResolve);
 
                 // Resolve conflicts
                 AidResolveInfo resolveInfo = resolveAidConflictLocked(prefixServices,
@@ -702,7 +911,7 @@ public class RegisteredAidCache {
                                     (resolveInfo.defaultService.getComponent().
                                      equals(mPreferredForegroundService) &&
                                      userId == mUserIdPreferredForegroundService)) {
-                                AidResolveInfo childResolveInfo = resolveAidConflictLocked(mAidServices.get(aid), false);
+                                AidResolveInfo childResolveInfo = resolveAidConflictLocked(aidServices.get(aid), false);
                                 aidCache.put(aid,childResolveInfo);
                                 Log.d(TAG, "AID " + aid+ " shared with prefix; " +
                                                 "adding subset .");
@@ -747,7 +956,7 @@ public class RegisteredAidCache {
                 // so by necessity all other AIDs are different than this AID or longer.
                 if (DBG) Log.d(TAG, "Exact AID, resolving.");
                 final ArrayList<ServiceAidInfo> conflictingServiceInfos =
-                        new ArrayList<ServiceAidInfo>(mAidServices.get(aidToResolve));
+                        new ArrayList<ServiceAidInfo>(aidServices.get(aidToResolve));
                 aidCache.put(aidToResolve, resolveAidConflictLocked(conflictingServiceInfos, true));
                 resolvedAids.add(aidToResolve);
             }
@@ -772,15 +981,16 @@ public class RegisteredAidCache {
             if (isSubset(aidToResolve)) {
                 if (DBG) Log.d(TAG, "subset resolving aidToResolve  "+aidToResolve);
                 final ArrayList<ServiceAidInfo> subsetServices = new ArrayList<ServiceAidInfo>(
-                        mAidServices.get(aidToResolve));
+                        aidServices.get(aidToResolve));
 
                 // Find all conflicting children services
-                AidConflicts aidConflicts = findConflictsForSubsetAidLocked(aidToResolve);
+                AidConflicts aidConflicts =
+                        findConflictsForSubsetAidLocked(aidServices, aidToResolve);
 
                 // Resolve conflicts
                 AidResolveInfo resolveInfo = resolveAidConflictLocked(subsetServices,
                         aidConflicts.services);
-                mAidCache.put(aidToResolve, resolveInfo);
+                result.put(aidToResolve, resolveInfo);
                 resolvedAids.add(aidToResolve);
                 if (resolveInfo.defaultService != null) {
                     // This subset is the default; therefore, AIDs of all conflicting children
@@ -792,8 +1002,8 @@ public class RegisteredAidCache {
                                     " prefix AID shared with dsubset root; " +
                                     " adding prefix aid");
                         AidResolveInfo childResolveInfo = resolveAidConflictLocked(
-                        mAidServices.get(resolveInfo.prefixInfo.prefixAid), false);
-                        mAidCache.put(resolveInfo.prefixInfo.prefixAid, childResolveInfo);
+                        aidServices.get(resolveInfo.prefixInfo.prefixAid), false);
+                        result.put(resolveInfo.prefixInfo.prefixAid, childResolveInfo);
                     }
                     resolvedAids.addAll(aidConflicts.aids);
                 } else if (resolveInfo.services.size() > 0) {
@@ -815,7 +1025,7 @@ public class RegisteredAidCache {
                             // Since these are all "children" of the subset, they don't need
                             // to be routed, since the subset will already get routed to the host
                             childResolveInfo.mustRoute = false;
-                            mAidCache.put(entry.getKey(),childResolveInfo);
+                            result.put(entry.getKey(),childResolveInfo);
                             resolvedAids.add(entry.getKey());
                             foundChildService |= !childResolveInfo.services.isEmpty();
                         }
@@ -824,8 +1034,8 @@ public class RegisteredAidCache {
                             resolveInfo.prefixInfo.prefixAid != null &&
                             !resolveInfo.prefixInfo.matchingSubset) {
                         AidResolveInfo childResolveInfo = resolveAidConflictLocked(
-                        mAidServices.get(resolveInfo.prefixInfo.prefixAid), false);
-                        mAidCache.put(resolveInfo.prefixInfo.prefixAid, childResolveInfo);
+                        aidServices.get(resolveInfo.prefixInfo.prefixAid), false);
+                        result.put(resolveInfo.prefixInfo.prefixAid, childResolveInfo);
                         if (DBG)
                             Log.d(TAG, "AID " + resolveInfo.prefixInfo.prefixAid +
                                     " prefix AID shared with subset root; " +
@@ -845,7 +1055,7 @@ public class RegisteredAidCache {
                 // true because reversedQueue is lexicographically ordered in revrese, and
                 // so by necessity all other AIDs are different than this AID or shorter.
                 if (DBG) Log.d(TAG, "Exact or Prefix AID."+aidToResolve);
-                mAidCache.put(aidToResolve, aidCache.get(aidToResolve));
+                result.put(aidToResolve, aidCache.get(aidToResolve));
                 resolvedAids.add(aidToResolve);
             }
 
@@ -854,8 +1064,6 @@ public class RegisteredAidCache {
             reversedQueue.removeAll(resolvedAids);
             resolvedAids.clear();
         }
-
-        updateRoutingLocked(false);
     }
 
     private int computeAidPowerState(boolean isOnHost, boolean requiresScreenOn,
@@ -996,21 +1204,60 @@ public class RegisteredAidCache {
         mRoutingManager.configureRouting(routingEntries, force);
     }
 
-    public void onServicesUpdated(int userId, List<ApduServiceInfo> services) {
-        if (DBG) Log.d(TAG, "onServicesUpdated");
+    public void onServicesUpdated(int userId, List<ApduServiceInfo> services,
+            ServiceDiff delta) {
+        if (DBG) Log.d(TAG, "onServicesUpdated: " + delta);
         synchronized (mLock) {
+            boolean known = mUserApduServiceInfo.containsKey(userId);
             generateUserApduServiceInfoLocked(userId, services);
+            if (known && delta.isEmpty()) {
+                // The AIDs of this user did not change, the service map and
+                // routing derived from them are still valid.
+                return;
+            }
+            if (mBatchUpdate) {
+                mBatchServiceMapDirty = true;
+                return;
+            }
             // Rebuild our internal data-structures
             generateServiceMapLocked(services);
             generateAidCacheLocked();
         }
     }
 
+    /**
+     * Defers service map and AID cache rebuilds until endBatchUpdate(), so that
+     * updates of several users and preferred services result in one routing commit.
+     */
+    public void beginBatchUpdate() {
+        synchronized (mLock) {
+            mBatchUpdate = true;
+        }
+    }
+
+    public void endBatchUpdate() {
+        synchronized (mLock) {
+            mBatchUpdate = false;
+            if (mBatchServiceMapDirty) {
+                generateServiceMapLocked(null);
+            }
+            if (mBatchServiceMapDirty || mBatchAidCacheDirty) {
+                generateAidCacheLocked();
+            }
+            mBatchServiceMapDirty = false;
+            mBatchAidCacheDirty = false;
+        }
+    }
+
     public void onPreferredPaymentServiceChanged(int userId, ComponentName service) {
         if (DBG) Log.d(TAG, "Preferred payment service changed for user:" + userId);
         synchronized (mLock) {
             mPreferredPaymentService = service;
             mUserIdPreferredPaymentService = userId;
+            if (mBatchUpdate) {
+                mBatchAidCacheDirty = true;
+                return;
+            }
             generateAidCacheLocked();
         }
     }
@@ -1020,6 +1267,10 @@ public class RegisteredAidCache {
         synchronized (mLock) {
             mPreferredForegroundService = service;
             mUserIdPreferredForegroundService = userId;
+            if (mBatchUpdate) {
+                mBatchAidCacheDirty = true;
+                return;
+            }
             generateAidCacheLocked();
         }
     }
@@ -1044,6 +1295,7 @@ public class RegisteredAidCache {
     public void onNfcEnabled() {
         synchronized (mLock) {
             mNfcEnabled = true;
+            mRoutingManager.onNfcEnabled();
             updateRoutingLocked(false);
         }
     }
@@ -1082,6 +1334,8 @@ public class RegisteredAidCache {
         pw.println("    UserId: " + mUserIdPreferredForegroundService);
         pw.println("    Preferred payment service: " + mPreferredPaymentService);
         pw.println("    UserId: " + mUserIdPreferredPaymentService);
+        pw.println("    Conflict units: " + (mConflictUnits != null ? mConflictUnits.size() : 0)
+                + " resolved=" + mNumUnitsResolved + " reused=" + mNumUnitsReused);
         pw.println("");
         mRoutingManager.dump(fd, pw, args);
         pw.println("");
@@ -116,6 +116,8 @@ public class RegisteredNfcFServicesCache {
                 Maps.newHashMap(); // In memory cache of dynamic System Code store
         final HashMap<ComponentName, DynamicNfcid2> dynamicNfcid2 =
                 Maps.newHashMap(); // In memory cache of dynamic NFCID2 store
+        final HashMap<ComponentName, Long> fingerprints =
+                Maps.newHashMap(); // Content fingerprints of the parsed services
     };
 
     private UserServices findOrCreateUserLocked(int userId) {
@@ -188,27 +190,26 @@ public class RegisteredNfcFServicesCache {
                 new AtomicFile(new File(dataDir, "dynamic_systemcode_nfcid2.xml"));
     }
 
+    /**
+     * Loads the persisted dynamic System Codes and NFCID2s. The services themselves
+     * are scanned by CardEmulationManager, see applyInstalledServices().
+     */
     void initialize() {
         synchronized (mLock) {
             readDynamicSystemCodeNfcid2Locked();
-            for (UserHandle uh : mUserHandles) {
-                invalidateCache(uh.getIdentifier());
-            }
         }
     }
 
-    void dump(ArrayList<NfcFServiceInfo> services) {
-        for (NfcFServiceInfo service : services) {
-            Log.d(TAG, service.toString());
+    List<UserHandle> getUserHandles() {
+        synchronized (mLock) {
+            return new ArrayList<UserHandle>(mUserHandles);
         }
     }
 
-    boolean containsServiceLocked(ArrayList<NfcFServiceInfo> services,
-            ComponentName componentName) {
+    void dump(ArrayList<NfcFServiceInfo> services) {
         for (NfcFServiceInfo service : services) {
-            if (service.getComponent().equals(componentName)) return true;
+            Log.d(TAG, service.toString());
         }
-        return false;
     }
 
     public boolean hasService(int userId, ComponentName componentName) {
@@ -287,56 +288,45 @@ public class RegisteredNfcFServicesCache {
         if (validServices == null) {
             return;
         }
-        ArrayList<NfcFServiceInfo> newServices = null;
+        ArrayList<NfcFServiceInfo> newServices = applyInstalledServices(userId, validServices);
+        if (newServices == null) {
+            return;
+        }
+        mCallback.onNfcFServicesUpdated(userId, Collections.unmodifiableList(newServices));
+        if (DBG) dump(newServices);
+    }
+
+    /**
+     * Applies the services returned by getInstalledServices() to the cache
+     * without notifying the callback.
+     *
+     * @return the services of the user, or null if nothing changed
+     */
+    ArrayList<NfcFServiceInfo> applyInstalledServices(int userId,
+            ArrayList<NfcFServiceInfo> validServices) {
         synchronized (mLock) {
             UserServices userServices = findOrCreateUserLocked(userId);
 
-            // Check update
-            ArrayList<NfcFServiceInfo> cachedServices =
-                    new ArrayList<NfcFServiceInfo>(userServices.services.values());
-            ArrayList<NfcFServiceInfo> toBeAdded = new ArrayList<NfcFServiceInfo>();
-            ArrayList<NfcFServiceInfo> toBeRemoved = new ArrayList<NfcFServiceInfo>();
-            boolean matched = false;
-            for (NfcFServiceInfo validService : validServices) {
-                for (NfcFServiceInfo cachedService : cachedServices) {
-                    if (validService.equals(cachedService)) {
-                        matched = true;
-                        break;
-                    }
-                }
-                if (!matched) {
-                    toBeAdded.add(validService);
-                }
-                matched = false;
-            }
-            for (NfcFServiceInfo cachedService : cachedServices) {
-                for (NfcFServiceInfo validService : validServices) {
-                    if (cachedService.equals(validService)) {
-                        matched = true;
-                        break;
-                    }
-                }
-                if (!matched) {
-                    toBeRemoved.add(cachedService);
-                }
-                matched = false;
-            }
+            ServiceDiff diff = ServiceDiff.compute(userServices.fingerprints, validServices,
+                    NfcFServiceInfo::getComponent);
             if (mUserSwitched) {
                 Log.d(TAG, "User switched, rebuild internal cache");
                 mUserSwitched = false;
-            } else if (toBeAdded.size() == 0 && toBeRemoved.size() == 0) {
+            } else if (diff.isEmpty()) {
                 Log.d(TAG, "Service unchanged, not updating");
-                return;
+                return null;
             }
 
             // Update cache
-            for (NfcFServiceInfo service : toBeAdded) {
-                userServices.services.put(service.getComponent(), service);
-                if (DBG) Log.d(TAG, "Added service: " + service.getComponent());
+            for (NfcFServiceInfo service : validServices) {
+                if (diff.isAddedOrChanged(service.getComponent())) {
+                    userServices.services.put(service.getComponent(), service);
+                    if (DBG) Log.d(TAG, "Added service: " + service.getComponent());
+                }
             }
-            for (NfcFServiceInfo service : toBeRemoved) {
-                userServices.services.remove(service.getComponent());
-                if (DBG) Log.d(TAG, "Removed service: " + service.getComponent());
+            for (ComponentName component : diff.getRemoved()) {
+                userServices.services.remove(component);
+                if (DBG) Log.d(TAG, "Removed service: " + component);
             }
             // Apply dynamic System Code mappings
             ArrayList<ComponentName> toBeRemovedDynamicSystemCode =
@@ -402,10 +392,8 @@ public class RegisteredNfcFServicesCache {
                 writeDynamicSystemCodeNfcid2Locked();
             }
 
-            newServices = new ArrayList<NfcFServiceInfo>(userServices.services.values());
+            return new ArrayList<NfcFServiceInfo>(userServices.services.values());
         }
-        mCallback.onNfcFServicesUpdated(userId, Collections.unmodifiableList(newServices));
-        if (DBG) dump(newServices);
     }
 
     private void readDynamicSystemCodeNfcid2Locked() {
@@ -22,15 +22,18 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.net.Uri;
 import android.nfc.cardemulation.AidGroup;
 import android.nfc.cardemulation.ApduServiceInfo;
 import android.nfc.cardemulation.CardEmulation;
 import android.nfc.cardemulation.HostApduService;
 import android.nfc.cardemulation.OffHostApduService;
+import android.os.Parcel;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -58,7 +61,6 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
@@ -84,6 +86,18 @@ public class RegisteredServicesCache {
     // mUserHandles holds the UserHandles of all the profiles that belong to current user
     @GuardedBy("mLock")
     List<UserHandle> mUserHandles;
+    @GuardedBy("mLock")
+    boolean mUserSwitched;
+    @GuardedBy("mLock")
+    long mNumFullScans;
+    @GuardedBy("mLock")
+    long mNumPackageScans;
+    @GuardedBy("mLock")
+    long mNumStaleScans;
+    @GuardedBy("mLock")
+    long mNumServicesParsed;
+    @GuardedBy("mLock")
+    long mNumServicesReused;
 
     // mUserServices holds the card emulation services that are running for each user
     final SparseArray<UserServices> mUserServices = new SparseArray<UserServices>();
@@ -92,10 +106,18 @@ public class RegisteredServicesCache {
 
     public interface Callback {
         /**
-         * ServicesUpdated for specific userId.
+         * ServicesUpdated for specific userId. {@code delta} tells which services
+         * were added, removed or changed since the previous update.
          */
         void onServicesUpdated(int userId, List<ApduServiceInfo> services,
-                boolean validateInstalled);
+                boolean validateInstalled, ServiceDiff delta);
+
+        /**
+         * Dynamic settings (AID groups, off-host SE) of a service changed for
+         * specific userId. The new settings are already persisted and applied
+         * to the ApduServiceInfo returned by getServices().
+         */
+        void onDynamicSettingsUpdated(int userId);
     };
 
     static class DynamicSettings {
@@ -116,8 +138,69 @@ public class RegisteredServicesCache {
                 Maps.newHashMap(); // Re-built at run-time
         final HashMap<ComponentName, DynamicSettings> dynamicSettings =
                 Maps.newHashMap(); // In memory cache of dynamic settings
+        final HashMap<ComponentName, Long> fingerprints =
+                Maps.newHashMap(); // Content fingerprints of the parsed services
+        boolean scanned; // Whether the services were ever reported to the callback
+        final HashMap<ComponentName, ParsedService> parsed =
+                Maps.newHashMap(); // Parsed services, reused while their package is unchanged
+        int scanGeneration; // Bumped by every applied scan
     };
 
+    /**
+     * A service parsed from its metadata, along with the version of the package
+     * it was parsed from. The service info is never mutated; the services map holds copies.
+     */
+    static final class ParsedService {
+        final ApduServiceInfo service;
+        final long fingerprint;
+        final int uid;
+        final long versionCode;
+        final long lastUpdateTime;
+
+        ParsedService(ApduServiceInfo service, int uid, PackageInfo packageInfo) {
+            this.service = service;
+            this.fingerprint = ServiceDiff.fingerprint(service);
+            this.uid = uid;
+            this.versionCode = packageInfo != null ? packageInfo.getLongVersionCode() : -1;
+            this.lastUpdateTime = packageInfo != null ? packageInfo.lastUpdateTime : -1;
+        }
+
+        boolean isUpToDate(PackageInfo packageInfo, int uid, boolean onHost) {
+            return packageInfo != null && versionCode == packageInfo.getLongVersionCode()
+                    && lastUpdateTime == packageInfo.lastUpdateTime && this.uid == uid
+                    && service.isOnHost() == onHost;
+        }
+
+        /**
+         * Whether the installed package contradicts the cached one: same version
+         * installed under another uid, or an update older than the one we parsed.
+         */
+        boolean isInconsistentWith(PackageInfo packageInfo, int uid) {
+            if (packageInfo == null || versionCode == -1) {
+                return false;
+            }
+            if (versionCode == packageInfo.getLongVersionCode()
+                    && lastUpdateTime == packageInfo.lastUpdateTime) {
+                return this.uid != uid;
+            }
+            return packageInfo.lastUpdateTime < lastUpdateTime;
+        }
+    }
+
+    /** Services found by a scan, see resolveServices(). */
+    static final class ResolvedServices {
+        final HashMap<ComponentName, ParsedService> services = Maps.newHashMap();
+        // Package the scan was limited to, or null if all packages were scanned
+        final String packageName;
+        int numParsed;
+        // Scan generation of the user when the scan started
+        int generation;
+
+        ResolvedServices(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
     private UserServices findOrCreateUserLocked(int userId) {
         UserServices services = mUserServices.get(userId);
         if (services == null) {
@@ -154,10 +237,12 @@ public class RegisteredServicesCache {
                     if (!replaced) {
                         int currentUser = ActivityManager.getCurrentUser();
                         if (currentUser == getProfileParentId(UserHandle.getUserId(uid))) {
+                            Uri data = intent.getData();
+                            String packageName = data != null ? data.getSchemeSpecificPart() : null;
                             if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
-                                invalidateCache(UserHandle.getUserId(uid), true);
+                                invalidateCache(UserHandle.getUserId(uid), true, packageName);
                             } else {
-                                invalidateCache(UserHandle.getUserId(uid), false);
+                                invalidateCache(UserHandle.getUserId(uid), false, packageName);
                             }
                         } else {
                             // Cache will automatically be updated on user switch
@@ -190,23 +275,32 @@ public class RegisteredServicesCache {
         mDynamicSettingsFile = new AtomicFile(new File(dataDir, "dynamic_aids.xml"));
     }
 
+    /**
+     * Loads the persisted dynamic settings. The services themselves are scanned
+     * by CardEmulationManager, see scanServices() and applyScan().
+     */
     void initialize() {
         synchronized (mLock) {
             readDynamicSettingsLocked();
-            for (UserHandle uh : mUserHandles) {
-                invalidateCache(uh.getIdentifier(), false);
-            }
+        }
+    }
+
+    List<UserHandle> getUserHandles() {
+        synchronized (mLock) {
+            return new ArrayList<UserHandle>(mUserHandles);
         }
     }
 
     public void onUserSwitched() {
         synchronized (mLock) {
+            mUserSwitched = true;
             refreshUserProfilesLocked();
         }
     }
 
     public void onManagedProfileChanged() {
         synchronized (mLock) {
+            mUserSwitched = true;
             refreshUserProfilesLocked();
         }
     }
@@ -226,19 +320,12 @@ public class RegisteredServicesCache {
         mUserHandles.removeAll(removeUserHandles);
     }
 
-    void dump(ArrayList<ApduServiceInfo> services) {
+    void dump(List<ApduServiceInfo> services) {
         for (ApduServiceInfo service : services) {
             if (DEBUG) Log.d(TAG, service.toString());
         }
     }
 
-    boolean containsServiceLocked(ArrayList<ApduServiceInfo> services, ComponentName serviceName) {
-        for (ApduServiceInfo service : services) {
-            if (service.getComponent().equals(serviceName)) return true;
-        }
-        return false;
-    }
-
     public boolean hasService(int userId, ComponentName service) {
         return getService(userId, service) != null;
     }
@@ -270,7 +357,14 @@ public class RegisteredServicesCache {
         return services;
     }
 
-    ArrayList<ApduServiceInfo> getInstalledServices(int userId) {
+    /**
+     * Resolves the APDU services of {@code packageName}, or of all packages if it
+     * is null. Services are only parsed again if their package changed since
+     * they were put in {@code cache}. Falls back to scanning all packages if the
+     * installed version of {@code packageName} is inconsistent with the cache.
+     */
+    ResolvedServices resolveServices(int userId, String packageName,
+            Map<ComponentName, ParsedService> cache) {
         PackageManager pm;
         try {
             pm = mContext.createPackageContextAsUser("android", 0,
@@ -280,17 +374,21 @@ public class RegisteredServicesCache {
             return null;
         }
 
-        ArrayList<ApduServiceInfo> validServices = new ArrayList<ApduServiceInfo>();
-
+        Intent hostIntent = new Intent(HostApduService.SERVICE_INTERFACE);
+        Intent offHostIntent = new Intent(OffHostApduService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            hostIntent.setPackage(packageName);
+            offHostIntent.setPackage(packageName);
+        }
         List<ResolveInfo> resolvedServices = new ArrayList<>(pm.queryIntentServicesAsUser(
-                new Intent(HostApduService.SERVICE_INTERFACE),
-                PackageManager.GET_META_DATA, userId));
+                hostIntent, PackageManager.GET_META_DATA, userId));
 
         List<ResolveInfo> resolvedOffHostServices = pm.queryIntentServicesAsUser(
-                new Intent(OffHostApduService.SERVICE_INTERFACE),
-                PackageManager.GET_META_DATA, userId);
+                offHostIntent, PackageManager.GET_META_DATA, userId);
         resolvedServices.addAll(resolvedOffHostServices);
 
+        ResolvedServices result = new ResolvedServices(packageName);
+        HashMap<String, PackageInfo> packageInfos = new HashMap<String, PackageInfo>();
         for (ResolveInfo resolvedService : resolvedServices) {
             try {
                 boolean onHost = !resolvedOffHostServices.contains(resolvedService);
@@ -311,10 +409,23 @@ public class RegisteredServicesCache {
                             android.Manifest.permission.BIND_NFC_SERVICE);
                     continue;
                 }
-                ApduServiceInfo service = new ApduServiceInfo(pm, resolvedService, onHost);
-                if (service != null) {
-                    validServices.add(service);
+                PackageInfo packageInfo = getPackageInfo(pm, packageInfos, si.packageName);
+                int uid = si.applicationInfo.uid;
+                ParsedService cached = cache.get(componentName);
+                if (cached != null) {
+                    if (cached.isUpToDate(packageInfo, uid, onHost)) {
+                        result.services.put(componentName, cached);
+                        continue;
+                    }
+                    if (packageName != null && cached.isInconsistentWith(packageInfo, uid)) {
+                        Log.w(TAG, "Inconsistent version of " + packageName
+                                + ", rescanning all packages");
+                        return resolveServices(userId, null, Collections.emptyMap());
+                    }
                 }
+                ApduServiceInfo service = new ApduServiceInfo(pm, resolvedService, onHost);
+                result.services.put(componentName, new ParsedService(service, uid, packageInfo));
+                result.numParsed++;
             } catch (XmlPullParserException e) {
                 Log.w(TAG, "Unable to load component info " + resolvedService.toString(), e);
             } catch (IOException e) {
@@ -322,35 +433,154 @@ public class RegisteredServicesCache {
             }
         }
 
-        return validServices;
+        return result;
+    }
+
+    private static PackageInfo getPackageInfo(PackageManager pm,
+            HashMap<String, PackageInfo> packageInfos, String packageName) {
+        if (packageInfos.containsKey(packageName)) {
+            return packageInfos.get(packageName);
+        }
+        PackageInfo packageInfo = null;
+        try {
+            packageInfo = pm.getPackageInfo(packageName, 0);
+        } catch (NameNotFoundException e) {
+            // Removed while scanning; parse it without caching
+        }
+        packageInfos.put(packageName, packageInfo);
+        return packageInfo;
+    }
+
+    static ApduServiceInfo copyOf(ApduServiceInfo service) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            service.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return ApduServiceInfo.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
     }
 
     /**
      * invalidateCache for specific userId.
      */
     public void invalidateCache(int userId, boolean validateInstalled) {
-        final ArrayList<ApduServiceInfo> validServices = getInstalledServices(userId);
-        if (validServices == null) {
+        invalidateCache(userId, validateInstalled, null);
+    }
+
+    /**
+     * invalidateCache for specific userId, limited to the services of
+     * {@code packageName} unless it is null.
+     */
+    public void invalidateCache(int userId, boolean validateInstalled, String packageName) {
+        final ResolvedServices resolved = scanServices(userId, packageName);
+        if (resolved == null) {
             return;
         }
+        final ServiceDiff delta = applyLatestScan(userId, resolved);
+        if (delta == null) {
+            return;
+        }
+        final List<ApduServiceInfo> services = getServices(userId);
+        if (DEBUG) Log.d(TAG, "Services updated for user " + userId + ": " + delta);
+        mCallback.onServicesUpdated(userId, Collections.unmodifiableList(services),
+                validateInstalled, delta);
+        dump(services);
+    }
+
+    /**
+     * Resolves the services of {@code packageName}, or of all packages if it is
+     * null, without modifying the cache. Does not hold the lock while parsing,
+     * so scans of different users can run concurrently.
+     */
+    ResolvedServices scanServices(int userId, String packageName) {
+        final HashMap<ComponentName, ParsedService> cache;
+        final int generation;
         synchronized (mLock) {
             UserServices userServices = findOrCreateUserLocked(userId);
+            if (mUserSwitched || !userServices.scanned) {
+                packageName = null;
+            }
+            cache = new HashMap<ComponentName, ParsedService>(userServices.parsed);
+            generation = userServices.scanGeneration;
+        }
+        ResolvedServices resolved = resolveServices(userId, packageName, cache);
+        if (resolved != null) {
+            resolved.generation = generation;
+        }
+        return resolved;
+    }
 
-            // Find removed services
-            Iterator<Map.Entry<ComponentName, ApduServiceInfo>> it =
-                    userServices.services.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<ComponentName, ApduServiceInfo> entry =
-                        (Map.Entry<ComponentName, ApduServiceInfo>) it.next();
-                if (!containsServiceLocked(validServices, entry.getKey())) {
-                    Log.d(TAG, "Service removed: " + entry.getKey());
-                    it.remove();
-                }
+    /**
+     * Applies the result of scanServices() to the cache without notifying the
+     * callback. A full scan that another scan was applied after is out of date,
+     * it is run again until it is current.
+     *
+     * @return the services added, removed or changed by the scan, or null if
+     *     the scan had to be run again and failed
+     */
+    ServiceDiff applyLatestScan(int userId, ResolvedServices resolved) {
+        ServiceDiff delta;
+        while ((delta = applyScan(userId, resolved)) == null) {
+            Log.d(TAG, "Scan of user " + userId + " is out of date, scanning again");
+            // Parsed services are reused, so only the changed packages are parsed again
+            resolved = scanServices(userId, null);
+            if (resolved == null) {
+                return null;
             }
-            for (ApduServiceInfo service : validServices) {
-                if (DEBUG) Log.d(TAG, "Adding service: " + service.getComponent() +
-                        " AIDs: " + service.getAids());
-                userServices.services.put(service.getComponent(), service);
+        }
+        return delta;
+    }
+
+    /**
+     * Applies the result of scanServices() to the cache without notifying the
+     * callback.
+     *
+     * @return the services added, removed or changed by the scan, or null if
+     *     it is a full scan that another scan was applied after, such a scan
+     *     would bring back what that scan removed
+     */
+    ServiceDiff applyScan(int userId, ResolvedServices resolved) {
+        synchronized (mLock) {
+            UserServices userServices = findOrCreateUserLocked(userId);
+            if (resolved.packageName == null
+                    && resolved.generation != userServices.scanGeneration) {
+                mNumStaleScans++;
+                return null;
+            }
+            userServices.scanGeneration++;
+            if (resolved.packageName == null) {
+                mNumFullScans++;
+                userServices.parsed.clear();
+            } else {
+                mNumPackageScans++;
+                userServices.parsed.keySet().removeIf(
+                        c -> resolved.packageName.equals(c.getPackageName()));
+            }
+            userServices.parsed.putAll(resolved.services);
+            mNumServicesParsed += resolved.numParsed;
+            mNumServicesReused += resolved.services.size() - resolved.numParsed;
+
+            HashMap<ComponentName, Long> fingerprints = new HashMap<ComponentName, Long>();
+            for (Map.Entry<ComponentName, ParsedService> entry : resolved.services.entrySet()) {
+                fingerprints.put(entry.getKey(), entry.getValue().fingerprint);
+            }
+            ServiceDiff diff = ServiceDiff.compute(userServices.fingerprints, fingerprints,
+                    resolved.packageName);
+            for (ComponentName component : diff.getRemoved()) {
+                Log.d(TAG, "Service removed: " + component);
+                userServices.services.remove(component);
+            }
+            // Unchanged services keep their current instance, which already has
+            // the dynamic settings applied.
+            for (ParsedService parsed : resolved.services.values()) {
+                ApduServiceInfo service = parsed.service;
+                if (diff.isAddedOrChanged(service.getComponent())) {
+                    if (DEBUG) Log.d(TAG, "Adding service: " + service.getComponent() +
+                            " AIDs: " + service.getAids());
+                    userServices.services.put(service.getComponent(), copyOf(service));
+                }
             }
 
             // Apply dynamic settings mappings
@@ -364,7 +594,7 @@ public class RegisteredServicesCache {
                 if (serviceInfo == null || (serviceInfo.getUid() != dynamicSettings.uid)) {
                     toBeRemoved.add(component);
                     continue;
-                } else {
+                } else if (diff.isAddedOrChanged(component)) {
                     for (AidGroup group : dynamicSettings.aidGroups.values()) {
                         serviceInfo.setOrReplaceDynamicAidGroup(group);
                     }
@@ -381,10 +611,14 @@ public class RegisteredServicesCache {
                 // Persist to filesystem
                 writeDynamicSettingsLocked();
             }
+            if (mUserSwitched || !userServices.scanned) {
+                Log.d(TAG, "First scan or user switched, rebuild internal cache");
+                mUserSwitched = false;
+                userServices.scanned = true;
+                return ServiceDiff.rebuild();
+            }
+            return diff;
         }
-        mCallback.onServicesUpdated(userId, Collections.unmodifiableList(validServices),
-                validateInstalled);
-        dump(validServices);
     }
 
     private void readDynamicSettingsLocked() {
@@ -513,7 +747,6 @@ public class RegisteredServicesCache {
 
     public boolean setOffHostSecureElement(int userId, int uid, ComponentName componentName,
             String offHostSE) {
-        ArrayList<ApduServiceInfo> newServices = null;
         synchronized (mLock) {
             UserServices services = findOrCreateUserLocked(userId);
             // Check if we can find this service
@@ -548,15 +781,13 @@ public class RegisteredServicesCache {
             }
 
             serviceInfo.setOffHostSecureElement(offHostSE);
-            newServices = new ArrayList<ApduServiceInfo>(services.services.values());
         }
         // Make callback without the lock held
-        mCallback.onServicesUpdated(userId, newServices, true);
+        mCallback.onDynamicSettingsUpdated(userId);
         return true;
     }
 
     public boolean unsetOffHostSecureElement(int userId, int uid, ComponentName componentName) {
-        ArrayList<ApduServiceInfo> newServices = null;
         synchronized (mLock) {
             UserServices services = findOrCreateUserLocked(userId);
             // Check if we can find this service
@@ -589,16 +820,14 @@ public class RegisteredServicesCache {
             }
 
             serviceInfo.unsetOffHostSecureElement();
-            newServices = new ArrayList<ApduServiceInfo>(services.services.values());
         }
         // Make callback without the lock held
-        mCallback.onServicesUpdated(userId, newServices, true);
+        mCallback.onDynamicSettingsUpdated(userId);
         return true;
     }
 
     public boolean registerAidGroupForService(int userId, int uid,
             ComponentName componentName, AidGroup aidGroup) {
-        ArrayList<ApduServiceInfo> newServices = null;
         boolean success;
         synchronized (mLock) {
             UserServices services = findOrCreateUserLocked(userId);
@@ -634,10 +863,7 @@ public class RegisteredServicesCache {
             }
             dynSettings.aidGroups.put(aidGroup.getCategory(), aidGroup);
             success = writeDynamicSettingsLocked();
-            if (success) {
-                newServices =
-                    new ArrayList<ApduServiceInfo>(services.services.values());
-            } else {
+            if (!success) {
                 Log.e(TAG, "Failed to persist AID group.");
                 // Undo registration
                 dynSettings.aidGroups.remove(aidGroup.getCategory());
@@ -645,7 +871,7 @@ public class RegisteredServicesCache {
         }
         if (success) {
             // Make callback without the lock held
-            mCallback.onServicesUpdated(userId, newServices, true);
+            mCallback.onDynamicSettingsUpdated(userId);
         }
         return success;
     }
@@ -668,7 +894,6 @@ public class RegisteredServicesCache {
     public boolean removeAidGroupForService(int userId, int uid, ComponentName componentName,
             String category) {
         boolean success = false;
-        ArrayList<ApduServiceInfo> newServices = null;
         synchronized (mLock) {
             UserServices services = findOrCreateUserLocked(userId);
             ApduServiceInfo serviceInfo = getService(userId, componentName);
@@ -687,9 +912,7 @@ public class RegisteredServicesCache {
                 if (dynSettings != null) {
                     AidGroup deletedGroup = dynSettings.aidGroups.remove(category);
                     success = writeDynamicSettingsLocked();
-                    if (success) {
-                        newServices = new ArrayList<ApduServiceInfo>(services.services.values());
-                    } else {
+                    if (!success) {
                         Log.e(TAG, "Could not persist deleted AID group.");
                         dynSettings.aidGroups.put(category, deletedGroup);
                         return false;
@@ -702,7 +925,7 @@ public class RegisteredServicesCache {
             }
         }
         if (success) {
-            mCallback.onServicesUpdated(userId, newServices, true);
+            mCallback.onDynamicSettingsUpdated(userId);
         }
         return success;
     }
@@ -722,6 +945,9 @@ public class RegisteredServicesCache {
                 }
                 pw.println("");
             }
+            pw.println("Service scans: full=" + mNumFullScans + " package=" + mNumPackageScans
+                    + " stale=" + mNumStaleScans + " parsed=" + mNumServicesParsed
+                    + " reused=" + mNumServicesReused);
         }
     }
 
@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Plans the AID routing table for a given NFC controller capacity.
+ *
+ * The size of the table for every candidate default route is computed in a
+ * single pass over the registered AIDs. If no candidate fits and the
+ * controller supports prefix matching, exact AIDs are folded into prefix
+ * entries of the same route. AIDs that still do not fit fall back to the
+ * default route, and the plan records which ones and why.
+ */
+public class RoutingCapacityPlanner {
+    static final String TAG = "RoutingCapacityPlanner";
+    static final boolean DBG = SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    // TAG + ROUTE + LENGTH_BYTE + POWER
+    static final int AID_HDR_LENGTH = 0x04;
+
+    // Synthesized prefixes always cover at least a full RID (5 bytes), so they
+    // cannot capture AIDs of unrelated applications.
+    static final int MIN_FOLD_PREFIX_LENGTH = 10;
+
+    static final String REASON_PREFIX_UNSUPPORTED = "prefix AIDs not supported";
+    static final String REASON_SUBSET_UNSUPPORTED = "subset AIDs not supported";
+    static final String REASON_POWER_STATE = "table full, using default route power state";
+    static final String REASON_TABLE_FULL = "table full";
+    static final String REASON_SHADOWED = "table full, shadowed by a shorter AID";
+
+    /**
+     * How an AID is routed. AidRoutingManager.AidEntry extends it, so that
+     * the registered AIDs are planned without a copy of each.
+     */
+    public static class Entry {
+        public int route;
+        public int aidInfo;
+        public int power;
+
+        Entry() {}
+
+        public Entry(int route, int aidInfo, int power) {
+            this.route = route;
+            this.aidInfo = aidInfo;
+            this.power = power;
+        }
+    }
+
+    public static final class Fallback {
+        public final String aid;
+        public final int route;
+        public final String reason;
+
+        Fallback(String aid, int route, String reason) {
+            this.aid = aid;
+            this.route = route;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return aid + " (route 0x" + Integer.toHexString(route) + "): " + reason;
+        }
+    }
+
+    public static final class Plan {
+        final int mDefaultRoute;
+        final LinkedHashMap<String, Entry> mTable;
+        final int mSize;
+        final int mMaxSize;
+        final ArrayList<String> mFoldedAids;
+        final ArrayList<String> mSynthesizedPrefixes;
+        final ArrayList<Fallback> mFallbacks;
+
+        Plan(int defaultRoute, LinkedHashMap<String, Entry> table, int maxSize,
+                ArrayList<String> foldedAids, ArrayList<String> synthesizedPrefixes,
+                ArrayList<Fallback> fallbacks) {
+            mDefaultRoute = defaultRoute;
+            mTable = table;
+            mSize = calculateSize(table.keySet());
+            mMaxSize = maxSize;
+            mFoldedAids = foldedAids;
+            mSynthesizedPrefixes = synthesizedPrefixes;
+            mFallbacks = fallbacks;
+        }
+
+        public int getDefaultRoute() {
+            return mDefaultRoute;
+        }
+
+        /** Routing table entries, keyed by the AID as it is sent to the controller. */
+        public Map<String, Entry> getTable() {
+            return Collections.unmodifiableMap(mTable);
+        }
+
+        public int getSize() {
+            return mSize;
+        }
+
+        public boolean fits() {
+            return mSize <= mMaxSize;
+        }
+
+        /** Registered AIDs that are routed by a prefix entry instead of their own entry. */
+        public List<String> getFoldedAids() {
+            return Collections.unmodifiableList(mFoldedAids);
+        }
+
+        /** Prefix entries that were not registered by any service. */
+        public List<String> getSynthesizedPrefixes() {
+            return Collections.unmodifiableList(mSynthesizedPrefixes);
+        }
+
+        /** Registered AIDs that are not routed to their own route. */
+        public List<Fallback> getFallbacks() {
+            return Collections.unmodifiableList(mFallbacks);
+        }
+
+        /** Whether AIDs had to fall back because the table was full. */
+        public boolean hasOverflow() {
+            for (Fallback fallback : mFallbacks) {
+                if (fallback.reason.startsWith(REASON_TABLE_FULL)) return true;
+            }
+            return !fits();
+        }
+
+        public void dump(PrintWriter pw) {
+            pw.println("    Last plan: default route 0x" + Integer.toHexString(mDefaultRoute)
+                    + ", " + mTable.size() + " entries, " + mSize + "/" + mMaxSize + " bytes, "
+                    + mFoldedAids.size() + " AIDs folded into prefixes ("
+                    + mSynthesizedPrefixes.size() + " synthesized)");
+            for (String prefix : mSynthesizedPrefixes) {
+                pw.println("        synthesized prefix " + prefix + "*");
+            }
+            for (Fallback fallback : mFallbacks) {
+                pw.println("        fallback " + fallback);
+            }
+        }
+    }
+
+    // A group of exact AIDs of one route that could share a synthesized prefix.
+    static final class FoldGroup {
+        final ArrayList<String> mKeys = new ArrayList<String>();
+        String mPrefix;
+        int mSaving;
+    }
+
+    final int mAidMatchingSupport;
+    final int mDefaultIsoDepRoute;
+    final boolean mNci2;
+
+    public RoutingCapacityPlanner(int aidMatchingSupport, int defaultIsoDepRoute,
+            boolean nci2) {
+        mAidMatchingSupport = aidMatchingSupport;
+        mDefaultIsoDepRoute = defaultIsoDepRoute;
+        mNci2 = nci2;
+    }
+
+    boolean supportsPrefix() {
+        return mAidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX
+                || mAidMatchingSupport == AidRoutingManager.AID_MATCHING_PREFIX_ONLY
+                || mAidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_OR_SUBSET_OR_PREFIX;
+    }
+
+    static int entrySize(String key) {
+        // removing prefix length
+        if (key.endsWith("*")) {
+            return ((key.length() - 0x01) / 0x02) + AID_HDR_LENGTH;
+        }
+        return (key.length() / 0x02) + AID_HDR_LENGTH;
+    }
+
+    static int calculateSize(Iterable<String> keys) {
+        int size = 0;
+        for (String key : keys) {
+            size += entrySize(key);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the key under which a non-default route AID is added to the
+     * routing table, or null if the controller cannot match it.
+     */
+    String tableKey(String aid) {
+        if (aid.endsWith("*")) {
+            if (mAidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_ONLY) return null;
+            // Cut off '*' since controller anyway treats all AIDs as a prefix
+            return aid.substring(0, aid.length() - 1);
+        } else if (aid.endsWith("#")) {
+            if (mAidMatchingSupport
+                    != AidRoutingManager.AID_MATCHING_EXACT_OR_SUBSET_OR_PREFIX) return null;
+            return aid.substring(0, aid.length() - 1);
+        }
+        return aid;
+    }
+
+    int defaultPowerState() {
+        return mNci2 ? RegisteredAidCache.POWER_STATE_ALL
+                : RegisteredAidCache.POWER_STATE_ALL_NCI_VERSION_1_0;
+    }
+
+    boolean needsEmptyAid(int defaultRoute) {
+        // register default route in below cases:
+        // 1. defaultRoute is different with mDefaultIsoDepRoute
+        // 2. defaultRoute and mDefaultIsoDepRoute all equal to ROUTE_HOST
+        //    , which is used for screen off HCE scenarios
+        return mNci2 && (defaultRoute != mDefaultIsoDepRoute
+                || mDefaultIsoDepRoute == AidRoutingManager.ROUTE_HOST);
+    }
+
+    /**
+     * With a controller that treats every entry as a prefix, an AID of the
+     * default route must be added to the table if a shorter AID of another
+     * route would otherwise capture it.
+     */
+    boolean isShadowed(String aid, int route, Map<String, ? extends Entry> aids) {
+        if (mAidMatchingSupport != AidRoutingManager.AID_MATCHING_PREFIX_ONLY) return false;
+        for (int length = 1; length < aid.length(); length++) {
+            Entry shorter = aids.get(aid.substring(0, length));
+            if (shorter != null && shorter.route != route) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Plans the routing table for {@code aids}, the registered AIDs with their
+     * resolved routes. {@code routes} lists the candidate default routes, the
+     * configured default route first.
+     */
+    public Plan plan(Map<String, ? extends Entry> aids, List<Integer> routes, int maxSize) {
+        // One pass computes, per route, what its AIDs cost when the route is not
+        // the default, and what they cost when it is.
+        SparseIntArray routedCost = new SparseIntArray();
+        SparseIntArray defaultCost = new SparseIntArray();
+        int totalRoutedCost = 0;
+        for (Map.Entry<String, ? extends Entry> aidEntry : aids.entrySet()) {
+            String aid = aidEntry.getKey();
+            int route = aidEntry.getValue().route;
+            String key = tableKey(aid);
+            if (key != null) {
+                int cost = entrySize(key);
+                routedCost.put(route, routedCost.get(route) + cost);
+                totalRoutedCost += cost;
+            }
+            int cost = 0;
+            if (isShadowed(aid, route, aids)) {
+                cost += entrySize(aid);
+            }
+            if (route != AidRoutingManager.ROUTE_HOST
+                    && aidEntry.getValue().power != defaultPowerState()) {
+                cost += entrySize(aid);
+            }
+            defaultCost.put(route, defaultCost.get(route) + cost);
+        }
+
+        // Keep the configured default route if it fits, otherwise take the
+        // smallest table.
+        int defaultRoute = routes.get(0);
+        int bestSize = Integer.MAX_VALUE;
+        for (int route : routes) {
+            int size = totalRoutedCost - routedCost.get(route)
+                    + defaultCost.get(route)
+                    + (needsEmptyAid(route) ? AID_HDR_LENGTH : 0);
+            if (DBG) {
+                Log.d(TAG, "Table size with default route 0x" + Integer.toHexString(route)
+                        + ": " + size);
+            }
+            if (route == routes.get(0) && size <= maxSize) {
+                defaultRoute = route;
+                break;
+            }
+            if (size < bestSize) {
+                defaultRoute = route;
+                bestSize = size;
+            }
+        }
+        return buildPlan(aids, defaultRoute, maxSize);
+    }
+
+    Plan buildPlan(Map<String, ? extends Entry> aids, int defaultRoute, int maxSize) {
+        LinkedHashMap<String, Entry> shadowEntries = new LinkedHashMap<String, Entry>();
+        LinkedHashMap<String, Entry> routedEntries = new LinkedHashMap<String, Entry>();
+        LinkedHashMap<String, Entry> powerEntries = new LinkedHashMap<String, Entry>();
+        // The registered AIDs that each routed entry carries
+        HashMap<String, ArrayList<String>> carried = new HashMap<String, ArrayList<String>>();
+        ArrayList<Fallback> fallbacks = new ArrayList<Fallback>();
+        int defaultRoutePower = RegisteredAidCache.POWER_STATE_SWITCH_ON
+                | RegisteredAidCache.POWER_STATE_SCREEN_ON_LOCKED;
+
+        for (Map.Entry<String, ? extends Entry> aidEntry : aids.entrySet()) {
+            String aid = aidEntry.getKey();
+            Entry entry = aidEntry.getValue();
+            if (entry.route == defaultRoute) {
+                defaultRoutePower |= entry.power;
+                if (isShadowed(aid, entry.route, aids)) {
+                    if (DBG) {
+                        Log.d(TAG, "Adding AID " + aid + " for default route, because a "
+                                + "conflicting shorter AID will be added to the routing table");
+                    }
+                    shadowEntries.put(aid, entry);
+                }
+                if (defaultRoute != AidRoutingManager.ROUTE_HOST
+                        && entry.power != defaultPowerState()) {
+                    powerEntries.put(aid, entry);
+                }
+                continue;
+            }
+            String key = tableKey(aid);
+            if (key == null) {
+                String reason = aid.endsWith("*") ? REASON_PREFIX_UNSUPPORTED
+                        : REASON_SUBSET_UNSUPPORTED;
+                Log.e(TAG, "Device does not support AID [" + aid + "]: " + reason);
+                fallbacks.add(new Fallback(aid, entry.route, reason));
+                continue;
+            }
+            routedEntries.put(key, entry);
+            ArrayList<String> carriedAids = carried.get(key);
+            if (carriedAids == null) {
+                carriedAids = new ArrayList<String>(1);
+                carried.put(key, carriedAids);
+            }
+            carriedAids.add(aid);
+        }
+
+        Entry emptyEntry = null;
+        if (needsEmptyAid(defaultRoute)) {
+            int power = defaultRoute == AidRoutingManager.ROUTE_HOST ? defaultRoutePower
+                    : RegisteredAidCache.POWER_STATE_ALL;
+            emptyEntry = new Entry(defaultRoute, RegisteredAidCache.AID_ROUTE_QUAL_PREFIX, power);
+        }
+
+        int size = calculateSize(shadowEntries.keySet()) + calculateSize(routedEntries.keySet())
+                + calculateSize(powerEntries.keySet()) + (emptyEntry != null ? AID_HDR_LENGTH : 0);
+        ArrayList<String> foldedAids = new ArrayList<String>();
+        ArrayList<String> synthesized = new ArrayList<String>();
+        if (size > maxSize && supportsPrefix()) {
+            size -= foldIntoRegisteredPrefixes(aids, shadowEntries, routedEntries, powerEntries,
+                    carried, foldedAids);
+        }
+        if (size > maxSize && supportsPrefix()) {
+            size -= foldIntoSynthesizedPrefixes(aids, shadowEntries, routedEntries, powerEntries,
+                    carried, foldedAids, synthesized, size - maxSize);
+        }
+        if (size > maxSize) {
+            size -= dropEntries(powerEntries, null, size - maxSize, REASON_POWER_STATE,
+                    fallbacks);
+        }
+        if (size > maxSize) {
+            size -= dropEntries(routedEntries, carried, size - maxSize, REASON_TABLE_FULL,
+                    fallbacks);
+        }
+        if (size > maxSize) {
+            dropEntries(shadowEntries, null, size - maxSize, REASON_SHADOWED, fallbacks);
+        }
+
+        LinkedHashMap<String, Entry> table = new LinkedHashMap<String, Entry>();
+        table.putAll(shadowEntries);
+        table.putAll(routedEntries);
+        if (emptyEntry != null) {
+            table.put("", emptyEntry);
+        }
+        table.putAll(powerEntries);
+        return new Plan(defaultRoute, table, maxSize, foldedAids, synthesized, fallbacks);
+    }
+
+    // Table keys of all entries, except the empty AID, mapped to their route.
+    static HashMap<String, Integer> keyRoutes(Map<String, Entry> shadowEntries,
+            Map<String, Entry> routedEntries, Map<String, Entry> powerEntries) {
+        HashMap<String, Integer> keyRoutes = new HashMap<String, Integer>();
+        for (Map<String, Entry> entries : List.of(shadowEntries, routedEntries, powerEntries)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                keyRoutes.put(entry.getKey(), entry.getValue().route);
+            }
+        }
+        return keyRoutes;
+    }
+
+    boolean isPrefixEntry(String key, Map<String, ? extends Entry> aids) {
+        return mAidMatchingSupport == AidRoutingManager.AID_MATCHING_PREFIX_ONLY
+                || aids.containsKey(key + "*");
+    }
+
+    /**
+     * Removes the entries of exact AIDs that are already matched by a
+     * registered prefix of the same route and power state, provided no entry
+     * of another route could match them instead. Returns the bytes saved.
+     */
+    int foldIntoRegisteredPrefixes(Map<String, ? extends Entry> aids,
+            Map<String, Entry> shadowEntries, Map<String, Entry> routedEntries,
+            Map<String, Entry> powerEntries,
+            HashMap<String, ArrayList<String>> carried, ArrayList<String> foldedAids) {
+        HashMap<String, Integer> keyRoutes = keyRoutes(shadowEntries, routedEntries,
+                powerEntries);
+        int saved = 0;
+        Iterator<Map.Entry<String, Entry>> it = routedEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> routedEntry = it.next();
+            String key = routedEntry.getKey();
+            Entry entry = routedEntry.getValue();
+            if (!aids.containsKey(key)) continue;
+            String coveringKey = null;
+            boolean conflict = false;
+            for (int length = 1; length < key.length() && !conflict; length++) {
+                String shorter = key.substring(0, length);
+                Integer route = keyRoutes.get(shorter);
+                if (route == null) continue;
+                if (route != entry.route) {
+                    conflict = true;
+                } else if (coveringKey == null && isPrefixEntry(shorter, aids)
+                        && routedEntries.get(shorter).power == entry.power) {
+                    coveringKey = shorter;
+                }
+            }
+            if (conflict || coveringKey == null) continue;
+            if (DBG) Log.d(TAG, "Folding AID " + key + " into prefix " + coveringKey);
+            it.remove();
+            keyRoutes.remove(key);
+            ArrayList<String> carriedAids = carried.remove(key);
+            foldedAids.addAll(carriedAids);
+            carried.get(coveringKey).addAll(carriedAids);
+            saved += entrySize(key);
+        }
+        return saved;
+    }
+
+    /**
+     * Replaces groups of exact AIDs of the same route and power state that
+     * share a RID with a prefix entry, largest saving first, until
+     * {@code needed} bytes are saved. A group is only folded if the prefix
+     * matches no registered AID of another route and no entry of another
+     * route is a prefix of it. Returns the bytes saved.
+     */
+    int foldIntoSynthesizedPrefixes(Map<String, ? extends Entry> aids,
+            Map<String, Entry> shadowEntries, LinkedHashMap<String, Entry> routedEntries,
+            Map<String, Entry> powerEntries,
+            HashMap<String, ArrayList<String>> carried, ArrayList<String> foldedAids,
+            ArrayList<String> synthesized, int needed) {
+        // Registered AIDs in table form, sorted so that all AIDs starting with
+        // a prefix are found with a range query.
+        TreeMap<String, Integer> sortedRoutes = new TreeMap<String, Integer>();
+        for (Map.Entry<String, ? extends Entry> aidEntry : aids.entrySet()) {
+            String key = tableKey(aidEntry.getKey());
+            if (key == null) continue;
+            Integer previous = sortedRoutes.put(key, aidEntry.getValue().route);
+            if (previous != null && previous != aidEntry.getValue().route) {
+                // Registered for two routes in different forms; never fold it.
+                sortedRoutes.put(key, -1);
+            }
+        }
+
+        HashMap<String, FoldGroup> groups = new HashMap<String, FoldGroup>();
+        for (Map.Entry<String, Entry> routedEntry : routedEntries.entrySet()) {
+            String key = routedEntry.getKey();
+            Entry entry = routedEntry.getValue();
+            if (!aids.containsKey(key) || key.length() < MIN_FOLD_PREFIX_LENGTH) continue;
+            String groupKey = entry.route + "/" + entry.power + "/"
+                    + key.substring(0, MIN_FOLD_PREFIX_LENGTH);
+            FoldGroup group = groups.get(groupKey);
+            if (group == null) {
+                group = new FoldGroup();
+                groups.put(groupKey, group);
+            }
+            group.mKeys.add(key);
+        }
+
+        HashMap<String, Integer> keyRoutes = keyRoutes(shadowEntries, routedEntries,
+                powerEntries);
+        ArrayList<FoldGroup> candidates = new ArrayList<FoldGroup>();
+        for (FoldGroup group : groups.values()) {
+            if (group.mKeys.size() < 2) continue;
+            String prefix = group.mKeys.get(0);
+            int saving = 0;
+            for (String key : group.mKeys) {
+                int length = 0;
+                while (length < prefix.length() && length < key.length()
+                        && prefix.charAt(length) == key.charAt(length)) {
+                    length++;
+                }
+                prefix = prefix.substring(0, length);
+                saving += entrySize(key);
+            }
+            prefix = prefix.substring(0, prefix.length() & ~1);
+            int route = routedEntries.get(group.mKeys.get(0)).route;
+            if (routedEntries.containsKey(prefix)) continue;
+            boolean conflict = false;
+            for (int routeOfAid : sortedRoutes.subMap(prefix, prefix + '\uffff').values()) {
+                if (routeOfAid != route) {
+                    conflict = true;
+                    break;
+                }
+            }
+            for (int length = 1; length <= prefix.length() && !conflict; length++) {
+                Integer routeOfKey = keyRoutes.get(prefix.substring(0, length));
+                conflict = routeOfKey != null && routeOfKey != route;
+            }
+            if (conflict) continue;
+            group.mPrefix = prefix;
+            group.mSaving = saving - entrySize(prefix);
+            if (group.mSaving > 0) {
+                candidates.add(group);
+            }
+        }
+        candidates.sort((a, b) -> Integer.compare(b.mSaving, a.mSaving));
+
+        int saved = 0;
+        for (FoldGroup group : candidates) {
+            if (saved >= needed) break;
+            if (overlapsAny(group.mPrefix, synthesized)) continue;
+            Entry first = routedEntries.get(group.mKeys.get(0));
+            ArrayList<String> carriedAids = new ArrayList<String>();
+            for (String key : group.mKeys) {
+                routedEntries.remove(key);
+                carriedAids.addAll(carried.remove(key));
+            }
+            if (DBG) Log.d(TAG, "Folding " + carriedAids + " into prefix " + group.mPrefix);
+            routedEntries.put(group.mPrefix, new Entry(first.route,
+                    RegisteredAidCache.AID_ROUTE_QUAL_PREFIX, first.power));
+            carried.put(group.mPrefix, carriedAids);
+            foldedAids.addAll(carriedAids);
+            synthesized.add(group.mPrefix);
+            saved += group.mSaving;
+        }
+        return saved;
+    }
+
+    static boolean overlapsAny(String prefix, List<String> prefixes) {
+        for (String other : prefixes) {
+            if (other.startsWith(prefix) || prefix.startsWith(other)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops the largest entries until {@code needed} bytes are saved and
+     * records a fallback for the AIDs they carried. Returns the bytes saved.
+     */
+    static int dropEntries(LinkedHashMap<String, Entry> entries,
+            HashMap<String, ArrayList<String>> carried, int needed, String reason,
+            ArrayList<Fallback> fallbacks) {
+        ArrayList<String> keys = new ArrayList<String>(entries.keySet());
+        keys.sort((a, b) -> Integer.compare(entrySize(b), entrySize(a)));
+        int saved = 0;
+        for (String key : keys) {
+            if (saved >= needed) break;
+            Entry entry = entries.remove(key);
+            List<String> aids = carried != null ? carried.remove(key) : List.of(key);
+            for (String aid : aids) {
+                Log.w(TAG, "AID " + aid + " falls back to the default route: " + reason);
+                fallbacks.add(new Fallback(aid, entry.route, reason));
+            }
+            saved += entrySize(key);
+        }
+        return saved;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.cardemulation;
+
+import android.content.ComponentName;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The set of services added, removed and changed by a service cache update.
+ *
+ * Services are keyed by component and compared by a fingerprint of their
+ * parceled content, so computing a diff is linear in the number of services.
+ * Fingerprints must be taken from freshly parsed service infos, before any
+ * dynamic registration has been applied to them.
+ */
+public final class ServiceDiff {
+    final Set<ComponentName> mAdded;
+    final Set<ComponentName> mRemoved;
+    final Set<ComponentName> mChanged;
+    final boolean mRebuild;
+
+    private ServiceDiff(Set<ComponentName> added, Set<ComponentName> removed,
+            Set<ComponentName> changed, boolean rebuild) {
+        mAdded = added;
+        mRemoved = removed;
+        mChanged = changed;
+        mRebuild = rebuild;
+    }
+
+    /**
+     * Returns a diff that does not describe which services changed, forcing
+     * consumers to rebuild their state from the full service list.
+     */
+    public static ServiceDiff rebuild() {
+        return new ServiceDiff(Collections.emptySet(), Collections.emptySet(),
+                Collections.emptySet(), true);
+    }
+
+    /**
+     * Diffs {@code services} against {@code fingerprints}, the component to
+     * fingerprint map of the previous update, and updates the map in place.
+     */
+    public static <T extends Parcelable> ServiceDiff compute(
+            Map<ComponentName, Long> fingerprints, List<T> services,
+            Function<T, ComponentName> componentOf) {
+        HashMap<ComponentName, Long> current =
+                new HashMap<ComponentName, Long>(services.size() * 2);
+        for (T service : services) {
+            current.put(componentOf.apply(service), fingerprint(service));
+        }
+        return compute(fingerprints, current, null);
+    }
+
+    /**
+     * Diffs the {@code current} component to fingerprint map against
+     * {@code fingerprints} and updates the latter in place. If {@code packageName}
+     * is not null, {@code current} only holds the services of that package and
+     * the services of other packages are left untouched.
+     */
+    public static ServiceDiff compute(Map<ComponentName, Long> fingerprints,
+            Map<ComponentName, Long> current, String packageName) {
+        HashSet<ComponentName> added = new HashSet<ComponentName>();
+        HashSet<ComponentName> changed = new HashSet<ComponentName>();
+        for (Map.Entry<ComponentName, Long> entry : current.entrySet()) {
+            Long previous = fingerprints.get(entry.getKey());
+            if (previous == null) {
+                added.add(entry.getKey());
+            } else if (!previous.equals(entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+        HashSet<ComponentName> removed = new HashSet<ComponentName>();
+        Iterator<ComponentName> it = fingerprints.keySet().iterator();
+        while (it.hasNext()) {
+            ComponentName component = it.next();
+            if (packageName != null && !packageName.equals(component.getPackageName())) {
+                continue;
+            }
+            if (!current.containsKey(component)) {
+                removed.add(component);
+                it.remove();
+            }
+        }
+        fingerprints.putAll(current);
+        return new ServiceDiff(added, removed, changed, false);
+    }
+
+    /** 64-bit FNV-1a hash of the parceled service. */
+    static long fingerprint(Parcelable service) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            service.writeToParcel(parcel, 0);
+            byte[] bytes = parcel.marshall();
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                hash ^= (b & 0xff);
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public Set<ComponentName> getAdded() {
+        return Collections.unmodifiableSet(mAdded);
+    }
+
+    public Set<ComponentName> getRemoved() {
+        return Collections.unmodifiableSet(mRemoved);
+    }
+
+    public Set<ComponentName> getChanged() {
+        return Collections.unmodifiableSet(mChanged);
+    }
+
+    /** Whether consumers must rebuild their state regardless of the sets above. */
+    public boolean isRebuild() {
+        return mRebuild;
+    }
+
+    /** Whether the service was added or its content changed. */
+    public boolean isAddedOrChanged(ComponentName component) {
+        return mRebuild || mAdded.contains(component) || mChanged.contains(component);
+    }
+
+    public boolean isEmpty() {
+        return !mRebuild && mAdded.isEmpty() && mRemoved.isEmpty() && mChanged.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (mRebuild) {
+            return "rebuild";
+        }
+        return "added=" + mAdded.size() + " removed=" + mRemoved.size()
+                + " changed=" + mChanged.size();
+    }
+}
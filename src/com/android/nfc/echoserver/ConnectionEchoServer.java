@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.echoserver;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.nfc.DeviceHost.LlcpAsyncServerSocket;
+import com.android.nfc.DeviceHost.LlcpAsyncSocket;
+import com.android.nfc.DeviceHost.LlcpCompletion;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves the connection-oriented echo service on the LLCP event thread.
+ *
+ * Received units are queued, and echoed back on their connection once
+ * echoDelayMs passed since the first of them arrived. While queueSize units
+ * are queued or being sent, the connection is not read from, so the peer is
+ * held back by its LLCP receive window rather than by a blocked thread.
+ *
+ * Apart from start() and stop(), everything runs on the event thread, so
+ * the state below needs no lock.
+ */
+class ConnectionEchoServer {
+    static final String TAG = "ConnectionEchoServer";
+    static final boolean DBG =
+            SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
+
+    /** Runs tasks on the LLCP event thread */
+    interface EventScheduler {
+        void post(Runnable task);
+
+        void postDelayed(Runnable task, long delayMs);
+    }
+
+    final class Connection {
+        final LlcpAsyncSocket mSocket;
+        final byte[] mBuffer;
+        final ArrayDeque<byte[]> mQueued = new ArrayDeque<>();
+        final long mStartTime = SystemClock.elapsedRealtime();
+        int mSending;
+        boolean mReceiving;
+        boolean mFlushScheduled;
+        boolean mClosed;
+        long mReceivedUnits;
+        long mReceivedBytes;
+        long mEchoedUnits;
+        long mEchoedBytes;
+
+        Connection(LlcpAsyncSocket socket) {
+            mSocket = socket;
+            mBuffer = new byte[socket.getLocalMiu()];
+        }
+
+        void receiveNext() {
+            if (mClosed || mReceiving || mQueued.size() + mSending >= mQueueSize) {
+                return;
+            }
+            mReceiving = true;
+            mSocket.receive(mBuffer, new LlcpCompletion<Integer>() {
+                @Override
+                public void onComplete(Integer size) {
+                    mReceiving = false;
+                    if (size < 0) {
+                        close();
+                    } else {
+                        onReceived(size);
+                    }
+                }
+
+                @Override
+                public void onError(IOException e) {
+                    mReceiving = false;
+                    if (DBG) Log.d(TAG, "connection broken by IOException", e);
+                    close();
+                }
+            });
+        }
+
+        void onReceived(int size) {
+            if (DBG) Log.d(TAG, "read " + size + " bytes");
+            mReceivedUnits++;
+            mReceivedBytes += size;
+            // Split in units of at most mEchoMiu, an empty one is echoed too
+            int offset = 0;
+            do {
+                int length = Math.min(size - offset, mEchoMiu);
+                mQueued.add(Arrays.copyOfRange(mBuffer, offset, offset + length));
+                offset += length;
+            } while (offset < size);
+
+            if (mEchoDelayMs == 0) {
+                flush();
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mScheduler.postDelayed(this::flush, mEchoDelayMs);
+            }
+            receiveNext();
+        }
+
+        void flush() {
+            mFlushScheduled = false;
+            while (!mClosed && !mQueued.isEmpty()) {
+                byte[] data = mQueued.poll();
+                mSending++;
+                mSocket.send(data, new LlcpCompletion<Void>() {
+                    @Override
+                    public void onComplete(Void result) {
+                        mSending--;
+                        mEchoedUnits++;
+                        mEchoedBytes += data.length;
+                        receiveNext();
+                    }
+
+                    @Override
+                    public void onError(IOException e) {
+                        mSending--;
+                        if (DBG) Log.d(TAG, "Send failed.");
+                        close();
+                    }
+                });
+            }
+        }
+
+        void close() {
+            if (mClosed) return;
+            mClosed = true;
+            mQueued.clear();
+            mSocket.close();
+            mConnections.remove(this);
+            mLastReport = getReport();
+            if (DBG) Log.d(TAG, mLastReport);
+        }
+
+        String getReport() {
+            long elapsed = Math.max(SystemClock.elapsedRealtime() - mStartTime, 1);
+            return "co-echo: received " + mReceivedUnits + " PDUs (" + mReceivedBytes
+                    + " bytes), echoed " + mEchoedUnits + " PDUs (" + mEchoedBytes
+                    + " bytes) over " + elapsed + "ms, " + mEchoedUnits * 1000 / elapsed
+                    + " PDUs/s, " + mEchoedBytes * 1000 / elapsed + " bytes/s";
+        }
+    }
+
+    final LlcpAsyncServerSocket mServerSocket;
+    final EventScheduler mScheduler;
+    final int mQueueSize;
+    final long mEchoDelayMs;
+    final int mEchoMiu;
+    final AtomicBoolean mServerSocketClosed = new AtomicBoolean();
+
+    // Only used on the event thread
+    final ArrayList<Connection> mConnections = new ArrayList<>();
+    boolean mStopped;
+
+    // Rates of the last connection
+    volatile String mLastReport;
+
+    /**
+     * @param queueSize how many units may be queued or sent at a time
+     * @param echoDelayMs how long units wait before they are echoed, 0 to
+     *     echo them right away
+     * @param echoMiu the largest unit echoed, received units are split
+     */
+    ConnectionEchoServer(LlcpAsyncServerSocket serverSocket, EventScheduler scheduler,
+            int queueSize, long echoDelayMs, int echoMiu) {
+        mServerSocket = serverSocket;
+        mScheduler = scheduler;
+        mQueueSize = queueSize;
+        mEchoDelayMs = echoDelayMs;
+        mEchoMiu = echoMiu;
+    }
+
+    /** May be called from any thread. */
+    void start() {
+        mScheduler.post(this::acceptNext);
+    }
+
+    /** Stops accepting and closes the connections. May be called from any thread. */
+    void stop() {
+        closeServerSocket();
+        mScheduler.post(this::closeAll);
+    }
+
+    void closeServerSocket() {
+        if (mServerSocketClosed.compareAndSet(false, true)) {
+            mServerSocket.close();
+        }
+    }
+
+    void acceptNext() {
+        if (mStopped) return;
+        if (DBG) Log.d(TAG, "about to accept");
+        mServerSocket.accept(new LlcpCompletion<LlcpAsyncSocket>() {
+            @Override
+            public void onComplete(LlcpAsyncSocket socket) {
+                if (DBG) Log.d(TAG, "accept returned " + socket);
+                if (mStopped) {
+                    socket.close();
+                    return;
+                }
+                Connection connection = new Connection(socket);
+                mConnections.add(connection);
+                connection.receiveNext();
+                acceptNext();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                if (!mServerSocketClosed.get()) Log.e(TAG, "IO error", e);
+                closeServerSocket();
+                closeAll();
+            }
+        });
+    }
+
+    void closeAll() {
+        mStopped = true;
+        for (Connection connection : new ArrayList<>(mConnections)) {
+            connection.close();
+        }
+    }
+}
@@ -17,17 +17,20 @@
 package com.android.nfc.echoserver;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemProperties;
 import android.util.Log;
 
+import com.android.nfc.DeviceHost.LlcpAsyncServerSocket;
 import com.android.nfc.DeviceHost.LlcpConnectionlessSocket;
-import com.android.nfc.DeviceHost.LlcpServerSocket;
-import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.LlcpException;
 import com.android.nfc.LlcpPacket;
+import com.android.nfc.LlcpServiceRuntime;
 import com.android.nfc.NfcService;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -40,7 +43,8 @@ import java.util.concurrent.LinkedBlockingQueue;
  *    packets. Once a packet is received, a 2-second sleep is initiated.
  *    After these 2 seconds, all packets that are in the receive buffer
  *    are echoed back on the same connection. The connection-based server
- *    does not drop packets, but simply blocks if the queue is full.
+ *    does not drop packets, but stops reading while the queue is full.
+ *    It runs on the LLCP event thread, see ConnectionEchoServer.
  * 2) A connection-less mode, which has a receive buffer of two packets.
  *    On LLCP link activation, we try to receive data on a pre-determined
  *    connection-less SAP. Like the connection-based server, all data in
@@ -49,6 +53,13 @@ import java.util.concurrent.LinkedBlockingQueue;
  *    The main difference is that the connection-less SAP is supposed
  *    to drop packets when the buffer is full.
  *
+ * Both servers can instead run in a throughput mode, selected with the
+ * persist.nfc.echo_throughput_mode property, to measure how fast a link can go.
+ * Received packets are echoed back immediately, in batches on the
+ * connection-less SAP (see ThroughputEchoMachine), and the PDUs/s and
+ * bytes/s sustained over each connection and link are logged and dumped.
+ * This mode does not pass the nfcpy timing tests.
+ *
  *    To use with nfcpy:
  *    - Adapt default_miu (see ECHO_MIU below)
  *    - llcp-test-client.py --mode=target --co-echo=17 --cl-echo=18 -t 1
@@ -68,17 +79,42 @@ public class EchoServer {
     static final String TAG = "EchoServer";
     static final String CONNECTION_SERVICE_NAME = "urn:nfc:sn:co-echo";
     static final String CONNECTIONLESS_SERVICE_NAME = "urn:nfc:sn:cl-echo";
+    static final String THROUGHPUT_MODE_PROPERTY = "persist.nfc.echo_throughput_mode";
 
-    ServerThread mServerThread;
-    ConnectionlessServerThread mConnectionlessServerThread;
+    ConnectionEchoServer mConnectionServer;
+    ConnectionEchoServer mLastConnectionServer; // kept for its report
+    ConnectionlessServerTask mConnectionlessServerTask;
     NfcService mService;
+    final boolean mThroughputMode;
+    final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    final ConnectionEchoServer.EventScheduler mEventScheduler =
+            new ConnectionEchoServer.EventScheduler() {
+                @Override
+                public void post(Runnable task) {
+                    mService.postLlcpEvent(task);
+                }
+
+                @Override
+                public void postDelayed(Runnable task, long delayMs) {
+                    mHandler.postDelayed(() -> mService.postLlcpEvent(task), delayMs);
+                }
+            };
+
+    // Rates of the last link in throughput mode, locked on this
+    String mConnectionlessReport;
 
     public interface WriteCallback {
         public void write(byte[] data);
     }
 
     public EchoServer() {
+        this(SystemProperties.getBoolean(THROUGHPUT_MODE_PROPERTY, false));
+    }
+
+    public EchoServer(boolean throughputMode) {
         mService = NfcService.getInstance();
+        mThroughputMode = throughputMode;
     }
 
     static class EchoMachine implements Handler.Callback {
@@ -134,7 +170,7 @@ public class EchoServer {
                         dataQueue.put(new byte[] {});
                     }
                     while (sizeLeft > 0) {
-                        int minSize = Math.min(size, ECHO_MIU);
+                        int minSize = Math.min(sizeLeft, ECHO_MIU);
                         byte[] data = new byte[minSize];
                         System.arraycopy(unit, offset, data, 0, minSize);
                         dataQueue.put(data);
@@ -165,130 +201,22 @@ public class EchoServer {
         }
     }
 
-    public class ServerThread extends Thread implements WriteCallback {
-        final EchoMachine echoMachine;
-
-        boolean running = true;
-        LlcpServerSocket serverSocket;
-        LlcpSocket clientSocket;
-
-        public ServerThread() {
-            super();
-            echoMachine = new EchoMachine(this, false);
-        }
-
-        private void handleClient(LlcpSocket socket) {
-            boolean connectionBroken = false;
-            byte[] dataUnit = new byte[1024];
-
-            // Get raw data from remote server
-            while (!connectionBroken) {
-                try {
-                    int size = socket.receive(dataUnit);
-                    if (DBG) Log.d(TAG, "read " + size + " bytes");
-                    if (size < 0) {
-                        connectionBroken = true;
-                        break;
-                    } else {
-                        echoMachine.pushUnit(dataUnit, size);
-                    }
-                } catch (IOException e) {
-                    // Connection broken
-                    connectionBroken = true;
-                    if (DBG) Log.d(TAG, "connection broken by IOException", e);
-                }
-            }
-        }
-
-        @Override
-        public void run() {
-            if (DBG) Log.d(TAG, "about create LLCP service socket");
-            try {
-                serverSocket = mService.createLlcpServerSocket(DEFAULT_CO_SAP,
-                        CONNECTION_SERVICE_NAME, MIU, 1, 1024);
-            } catch (LlcpException e) {
-                return;
-            }
-            if (serverSocket == null) {
-                if (DBG) Log.d(TAG, "failed to create LLCP service socket");
-                return;
-            }
-            if (DBG) Log.d(TAG, "created LLCP service socket");
-
-            while (running) {
-
-                try {
-                    if (DBG) Log.d(TAG, "about to accept");
-                    clientSocket = serverSocket.accept();
-                    if (DBG) Log.d(TAG, "accept returned " + clientSocket);
-                    handleClient(clientSocket);
-                } catch (LlcpException e) {
-                    Log.e(TAG, "llcp error", e);
-                    running = false;
-                } catch (IOException e) {
-                    Log.e(TAG, "IO error", e);
-                    running = false;
-                }
-            }
-
-            echoMachine.shutdown();
-
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                // Ignore
-            }
-            clientSocket = null;
-
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                // Ignore
-            }
-            serverSocket = null;
-        }
-
-        @Override
-        public void write(byte[] data) {
-            if (clientSocket != null) {
-                try {
-                    clientSocket.send(data);
-                    Log.e(TAG, "Send success!");
-                } catch (IOException e) {
-                    Log.e(TAG, "Send failed.");
-                }
-            }
-        }
-
-        public void shutdown() {
-            running = false;
-            if (serverSocket != null) {
-                try {
-                    serverSocket.close();
-                } catch (IOException e) {
-                    // ignore
-                }
-                serverSocket = null;
-            }
-        }
-    }
-
-    public class ConnectionlessServerThread extends Thread implements WriteCallback {
+    public class ConnectionlessServerTask implements Runnable, WriteCallback {
         final EchoMachine echoMachine;
 
         LlcpConnectionlessSocket socket;
         int mRemoteSap;
         boolean mRunning = true;
 
-        public ConnectionlessServerThread() {
-            super();
+        public ConnectionlessServerTask() {
             echoMachine = new EchoMachine(this, true);
         }
 
         @Override
         public void run() {
             boolean connectionBroken = false;
-            LlcpPacket packet;
+            // Filled by every receive, pushUnit() copies the data out
+            LlcpPacket packet = new LlcpPacket();
             if (DBG) Log.d(TAG, "about create LLCP connectionless socket");
             try {
                 socket = mService.createLlcpConnectionLessSocket(
@@ -297,17 +225,21 @@ public class EchoServer {
                     if (DBG) Log.d(TAG, "failed to create LLCP connectionless socket");
                     return;
                 }
+                if (mThroughputMode) {
+                    // Leaves closing the socket to the finally block
+                    receiveThroughput();
+                    return;
+                }
 
                 while (mRunning && !connectionBroken) {
                     try {
-                        packet = socket.receive();
-                        if (packet == null || packet.getDataBuffer() == null) {
+                        int size = socket.receive(packet);
+                        byte[] dataUnit = packet.getDataBuffer();
+                        if (dataUnit == null) {
                             break;
                         }
-                        byte[] dataUnit = packet.getDataBuffer();
-                        int size = dataUnit.length;
 
-                        if (DBG) Log.d(TAG, "read " + packet.getDataBuffer().length + " bytes");
+                        if (DBG) Log.d(TAG, "read " + size + " bytes");
                         if (size < 0) {
                             connectionBroken = true;
                             break;
@@ -336,6 +268,40 @@ public class EchoServer {
 
         }
 
+        private void receiveThroughput() {
+            ThroughputEchoMachine machine = new ThroughputEchoMachine(
+                    CONNECTIONLESS_SERVICE_NAME, (remoteSap, data) -> socket.send(remoteSap, data),
+                    socket.getLinkMiu(), true);
+            // Receives what arrives while every unit is queued, to be dropped
+            LlcpPacket dropped = new LlcpPacket();
+            try {
+                if (!machine.start()) {
+                    return;
+                }
+                while (mRunning) {
+                    ThroughputEchoMachine.Unit unit = machine.obtainUnit();
+                    if (unit == null) {
+                        machine.dropUnit(socket.receive(dropped));
+                        continue;
+                    }
+                    try {
+                        socket.receive(unit.getPacket());
+                    } catch (IOException e) {
+                        machine.returnUnit(unit);
+                        throw e;
+                    }
+                    machine.pushUnit(unit);
+                }
+            } catch (IOException e) {
+                if (DBG) Log.d(TAG, "connection broken by IOException", e);
+            } finally {
+                String report = machine.stop();
+                synchronized (EchoServer.this) {
+                    mConnectionlessReport = report;
+                }
+            }
+        }
+
         public void shutdown() {
             mRunning = false;
         }
@@ -355,18 +321,21 @@ public class EchoServer {
             // Connectionless server can only be started once the link is up
             // - otherwise, all calls to receive() on the connectionless socket
             // will fail immediately.
-            if (mConnectionlessServerThread == null) {
-                mConnectionlessServerThread = new ConnectionlessServerThread();
-                mConnectionlessServerThread.start();
+            if (mConnectionlessServerTask == null) {
+                mConnectionlessServerTask = new ConnectionlessServerTask();
+                if (!LlcpServiceRuntime.getInstance().startServer(CONNECTIONLESS_SERVICE_NAME,
+                        mConnectionlessServerTask)) {
+                    mConnectionlessServerTask = null;
+                }
             }
         }
     }
 
     public void onLlcpDeactivated() {
         synchronized (this) {
-            if (mConnectionlessServerThread != null) {
-                mConnectionlessServerThread.shutdown();
-                mConnectionlessServerThread = null;
+            if (mConnectionlessServerTask != null) {
+                mConnectionlessServerTask.shutdown();
+                mConnectionlessServerTask = null;
             }
         }
     }
@@ -376,20 +345,50 @@ public class EchoServer {
      */
     public void start() {
         synchronized (this) {
-            if (mServerThread == null) {
-                mServerThread = new ServerThread();
-                mServerThread.start();
+            if (mConnectionServer == null) {
+                if (DBG) Log.d(TAG, "about create LLCP service socket");
+                LlcpAsyncServerSocket serverSocket;
+                try {
+                    serverSocket = mService.createLlcpAsyncServerSocket(DEFAULT_CO_SAP,
+                            CONNECTION_SERVICE_NAME, MIU, 1, 1024);
+                } catch (LlcpException e) {
+                    Log.e(TAG, "llcp error", e);
+                    return;
+                }
+                if (serverSocket == null) {
+                    if (DBG) Log.d(TAG, "failed to create LLCP service socket");
+                    return;
+                }
+                if (mThroughputMode) {
+                    mConnectionServer = new ConnectionEchoServer(serverSocket, mEventScheduler,
+                            ThroughputEchoMachine.QUEUE_SIZE, 0, Integer.MAX_VALUE);
+                } else {
+                    mConnectionServer = new ConnectionEchoServer(serverSocket, mEventScheduler,
+                            EchoMachine.QUEUE_SIZE, EchoMachine.ECHO_DELAY_IN_MS,
+                            EchoMachine.ECHO_MIU);
+                }
+                mLastConnectionServer = mConnectionServer;
+                mConnectionServer.start();
             }
         }
-
     }
 
     public void stop() {
         synchronized (this) {
-            if (mServerThread != null) {
-                mServerThread.shutdown();
-                mServerThread = null;
+            if (mConnectionServer != null) {
+                mConnectionServer.stop();
+                mConnectionServer = null;
             }
         }
     }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("Echo server: throughput mode=" + mThroughputMode);
+        if (mLastConnectionServer != null && mLastConnectionServer.mLastReport != null) {
+            pw.println("  " + mLastConnectionServer.mLastReport);
+        }
+        if (mConnectionlessReport != null) {
+            pw.println("  " + mConnectionlessReport);
+        }
+    }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.echoserver;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.nfc.LlcpBufferPool;
+import com.android.nfc.LlcpPacket;
+import com.android.nfc.LlcpServiceRuntime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echoes units back as fast as the link allows, to measure its throughput.
+ *
+ * Unlike EchoMachine, units are not delayed or split, and are not copied on
+ * the way in: the receiver fills a unit obtained from the machine, and a
+ * sender echoes every unit queued so far in one batch before handing them
+ * back. The sender runs on the LlcpServiceRuntime, like the servers. A unit
+ * only gets copied when it does not fill its buffer, since the sockets send
+ * whole arrays.
+ *
+ * The machine counts what it receives and echoes for as long as it runs,
+ * and logs the sustained rates every REPORT_INTERVAL_MS and when stopped.
+ */
+class ThroughputEchoMachine implements Runnable {
+    static final String TAG = "ThroughputEchoMachine";
+
+    static final int QUEUE_SIZE = 8;
+    static final int MAX_BATCH_SIZE = QUEUE_SIZE;
+    static final long REPORT_INTERVAL_MS = 1000;
+    static final long STOP_TIMEOUT_MS = 1000;
+
+    /** Where units are echoed to */
+    interface EchoSink {
+        void echo(int remoteSap, byte[] data) throws IOException;
+    }
+
+    // Queued by stop() to wake the sender up
+    static final Unit STOP = new Unit(new byte[0]);
+
+    /** A received unit, and the SAP it came from for connectionless links */
+    static final class Unit {
+        final LlcpPacket mPacket = new LlcpPacket();
+        final byte[] mBuffer;
+
+        Unit(byte[] buffer) {
+            mBuffer = buffer;
+            mPacket.set(0, buffer, 0);
+        }
+
+        /** Returns the buffer connection-oriented sockets receive into. */
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        /** Records the length received into getBuffer(). */
+        void setLength(int length) {
+            mPacket.set(0, mBuffer, length);
+        }
+
+        /** Returns the packet connectionless sockets receive into. */
+        LlcpPacket getPacket() {
+            return mPacket;
+        }
+    }
+
+    final String mName;
+    final EchoSink mSink;
+    final boolean mDropWhenFull;
+    final ArrayBlockingQueue<Unit> mFree = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    // One more than the units, so that STOP always fits
+    final ArrayBlockingQueue<Unit> mQueued = new ArrayBlockingQueue<>(QUEUE_SIZE + 1);
+    // Counted down once the sender returned, or if it never ran
+    final CountDownLatch mSenderDone = new CountDownLatch(1);
+
+    // Locked on this
+    long mStartTime = -1;
+    long mLastTime;
+    long mReceivedUnits;
+    long mReceivedBytes;
+    long mEchoedUnits;
+    long mEchoedBytes;
+    long mDroppedUnits;
+    long mFailedUnits;
+    long mBatches;
+    long mReportTime;
+    long mReportUnits;
+    long mReportBytes;
+    boolean mStopped;
+
+    /**
+     * @param bufferLength the MIU of the connection, or the link MIU for
+     *     connectionless links
+     * @param dropWhenFull whether obtainUnit() returns null rather than wait
+     *     while every unit is queued
+     */
+    ThroughputEchoMachine(String name, EchoSink sink, int bufferLength, boolean dropWhenFull) {
+        mName = name;
+        mSink = sink;
+        mDropWhenFull = dropWhenFull;
+        LlcpBufferPool pool = LlcpBufferPool.getInstance();
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            mFree.add(new Unit(pool.acquire(bufferLength)));
+        }
+    }
+
+    /**
+     * Starts the sender.
+     *
+     * @return false if there was no thread to run it, in which case the
+     *     caller should stop() the machine without receiving anything
+     */
+    boolean start() {
+        if (!LlcpServiceRuntime.getInstance().startServer("EchoSender " + mName, this)) {
+            mSenderDone.countDown();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns a unit to receive into, waiting for one to be echoed if all
+     * of them are queued.
+     *
+     * @return null if the machine stopped, or it drops units and all of them
+     *     are queued. The caller should receive and count the unit as dropped.
+     */
+    Unit obtainUnit() {
+        if (mDropWhenFull) {
+            return mFree.poll();
+        }
+        try {
+            Unit unit = null;
+            while (unit == null && !isStopped()) {
+                unit = mFree.poll(REPORT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            }
+            return unit;
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    /** Queues a unit obtained from obtainUnit(), once it was received. */
+    void pushUnit(Unit unit) {
+        synchronized (this) {
+            countReceivedLocked(unit.getPacket().getDataLength());
+            if (mStopped) {
+                mFree.add(unit);
+                return;
+            }
+        }
+        // Never blocks, there are only as many units as the queue holds
+        mQueued.add(unit);
+    }
+
+    /** Hands back a unit obtained from obtainUnit() that nothing was received into. */
+    void returnUnit(Unit unit) {
+        mFree.add(unit);
+    }
+
+    /** Counts a unit that was received while every unit was queued. */
+    synchronized void dropUnit(int length) {
+        countReceivedLocked(Math.max(length, 0));
+        mDroppedUnits++;
+    }
+
+    void countReceivedLocked(int length) {
+        long now = SystemClock.elapsedRealtime();
+        if (mStartTime < 0) {
+            mStartTime = now;
+            mReportTime = now;
+        }
+        mLastTime = now;
+        mReceivedUnits++;
+        mReceivedBytes += length;
+    }
+
+    synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Unit> batch = new ArrayList<>(MAX_BATCH_SIZE + 1);
+        try {
+            while (!isStopped()) {
+                batch.add(mQueued.take());
+                mQueued.drainTo(batch, MAX_BATCH_SIZE - 1);
+                if (batch.remove(STOP)) {
+                    break;
+                }
+                echoBatch(batch);
+                batch.clear();
+                reportIfDue();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            mFree.addAll(batch);
+            mSenderDone.countDown();
+        }
+    }
+
+    void echoBatch(ArrayList<Unit> batch) {
+        long units = 0;
+        long bytes = 0;
+        long failed = 0;
+        for (Unit unit : batch) {
+            LlcpPacket packet = unit.getPacket();
+            int length = packet.getDataLength();
+            byte[] data = packet.getDataBuffer();
+            if (length != data.length) {
+                data = Arrays.copyOf(data, length);
+            }
+            try {
+                mSink.echo(packet.getRemoteSap(), data);
+                units++;
+                bytes += length;
+            } catch (IOException e) {
+                failed++;
+            }
+            mFree.add(unit);
+        }
+        synchronized (this) {
+            mBatches++;
+            mEchoedUnits += units;
+            mEchoedBytes += bytes;
+            mFailedUnits += failed;
+        }
+    }
+
+    void reportIfDue() {
+        String report;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - mReportTime;
+            if (elapsed < REPORT_INTERVAL_MS) {
+                return;
+            }
+            long units = mEchoedUnits - mReportUnits;
+            long bytes = mEchoedBytes - mReportBytes;
+            report = mName + ": " + units * 1000 / elapsed + " PDUs/s, "
+                    + bytes * 1000 / elapsed + " bytes/s over the last " + elapsed + "ms";
+            mReportTime = now;
+            mReportUnits = mEchoedUnits;
+            mReportBytes = mEchoedBytes;
+        }
+        Log.i(TAG, report);
+    }
+
+    /**
+     * Stops the sender and returns the buffers to the pool.
+     *
+     * @return a summary of the rates sustained while the link was in use
+     */
+    String stop() {
+        synchronized (this) {
+            if (mStopped) {
+                return getReport();
+            }
+            mStopped = true;
+        }
+        mQueued.add(STOP);
+        boolean senderDone = false;
+        try {
+            senderDone = mSenderDone.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // A sender stuck in a send may still use its batch, so the buffers
+        // are only reused once it is gone
+        if (senderDone) {
+            mQueued.remove(STOP);
+            mQueued.drainTo(mFree);
+            LlcpBufferPool pool = LlcpBufferPool.getInstance();
+            for (Unit unit : mFree) {
+                pool.release(unit.getBuffer());
+            }
+            mFree.clear();
+        }
+        String report = getReport();
+        Log.i(TAG, report);
+        return report;
+    }
+
+    synchronized String getReport() {
+        if (mStartTime < 0) {
+            return mName + ": nothing received";
+        }
+        long elapsed = Math.max(mLastTime - mStartTime, 1);
+        return mName + ": received " + mReceivedUnits + " PDUs (" + mReceivedBytes
+                + " bytes), echoed " + mEchoedUnits + " PDUs (" + mEchoedBytes + " bytes) in "
+                + mBatches + " batches over " + elapsed + "ms, "
+                + mEchoedUnits * 1000 / elapsed + " PDUs/s, "
+                + mEchoedBytes * 1000 / elapsed + " bytes/s, dropped=" + mDroppedUnits
+                + " failed=" + mFailedUnits;
+    }
+}
@@ -21,6 +21,7 @@ import android.os.SystemProperties;
 import android.util.Log;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpBufferPool;
 import com.android.nfc.LlcpException;
 import com.android.nfc.NfcService;
 
@@ -34,9 +35,9 @@ public final class HandoverClient {
     private static final boolean DBG =
             SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
 
-    private static final int DISCONNECTED = 0;
-    private static final int CONNECTING = 1;
-    private static final int CONNECTED = 2;
+    static final int DISCONNECTED = 0;
+    static final int CONNECTING = 1;
+    static final int CONNECTED = 2;
 
     private static final Object mLock = new Object();
 
@@ -110,6 +111,7 @@ public final class HandoverClient {
         int offset = 0;
         byte[] buffer = msg.toByteArray();
         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        byte[] partial = null;
 
         try {
             int remoteMiu = sock.getRemoteMiu();
@@ -123,7 +125,7 @@ public final class HandoverClient {
             }
 
             // Now, try to read back the handover response
-            byte[] partial = new byte[sock.getLocalMiu()];
+            partial = LlcpBufferPool.getInstance().acquire(sock.getLocalMiu());
             NdefMessage handoverSelectMsg = null;
             while (true) {
                 int size = sock.receive(partial);
@@ -156,6 +158,7 @@ public final class HandoverClient {
             } catch (IOException e) {
                 // Ignore
             }
+            LlcpBufferPool.getInstance().release(partial);
         }
         return null;
     }
@@ -23,7 +23,9 @@ import android.util.Log;
 
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpBufferPool;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpServiceRuntime;
 import com.android.nfc.NfcService;
 import com.android.nfc.beam.BeamManager;
 
@@ -43,7 +45,7 @@ public final class HandoverServer {
     final Callback mCallback;
     private final Context mContext;
 
-    ServerThread mServerThread = null;
+    ServerTask mServerTask = null;
     boolean mServerRunning = false;
 
     public interface Callback {
@@ -59,22 +61,27 @@ public final class HandoverServer {
     }
 
     public synchronized void start() {
-        if (mServerThread == null) {
-            mServerThread = new ServerThread();
-            mServerThread.start();
+        if (mServerTask == null) {
+            mServerTask = new ServerTask();
+            if (!LlcpServiceRuntime.getInstance().startServer(HANDOVER_SERVICE_NAME,
+                    mServerTask)) {
+                mServerTask = null;
+                return;
+            }
             mServerRunning = true;
         }
     }
 
     public synchronized void stop() {
-        if (mServerThread != null) {
-            mServerThread.shutdown();
-            mServerThread = null;
+        if (mServerTask != null) {
+            mServerTask.shutdown();
+            LlcpServiceRuntime.getInstance().stopServer(mServerTask);
+            mServerTask = null;
             mServerRunning = false;
         }
     }
 
-    private class ServerThread extends Thread {
+    private class ServerTask implements Runnable {
         private boolean mThreadRunning = true;
         LlcpServerSocket mServerSocket;
 
@@ -114,7 +121,15 @@ public final class HandoverServer {
                         LlcpSocket communicationSocket = serverSocket.accept();
                         if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
                         if (communicationSocket != null) {
-                            new ConnectionThread(communicationSocket).start();
+                            ConnectionTask task = new ConnectionTask(communicationSocket);
+                            if (!LlcpServiceRuntime.getInstance().runConnection(
+                                    HANDOVER_SERVICE_NAME, communicationSocket, task)) {
+                                try {
+                                    communicationSocket.close();
+                                } catch (IOException e) {
+                                    // ignore
+                                }
+                            }
                         }
 
                         synchronized (HandoverServer.this) {
@@ -161,11 +176,10 @@ public final class HandoverServer {
         }
     }
 
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         private final LlcpSocket mSock;
 
-        ConnectionThread(LlcpSocket socket) {
-            super(TAG);
+        ConnectionTask(LlcpSocket socket) {
             mSock = socket;
         }
 
@@ -173,6 +187,7 @@ public final class HandoverServer {
         public void run() {
             if (DBG) Log.d(TAG, "starting connection thread");
             ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            byte[] partial = LlcpBufferPool.getInstance().acquire(mSock.getLocalMiu());
 
             try {
                 boolean running;
@@ -180,8 +195,6 @@ public final class HandoverServer {
                     running = mServerRunning;
                 }
 
-                byte[] partial = new byte[mSock.getLocalMiu()];
-
                 NdefMessage handoverRequestMsg = null;
                 while (running) {
                     int size = mSock.receive(partial);
@@ -251,6 +264,7 @@ public final class HandoverServer {
                 } catch (IOException e) {
                     // ignore
                 }
+                LlcpBufferPool.getInstance().release(partial);
             }
             if (DBG) Log.d(TAG, "finished connection thread");
         }
@@ -24,7 +24,6 @@ import com.android.nfc.LlcpException;
 import com.android.nfc.NfcService;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 /**
  * Simple client to push the local NDEF message to a server on the remote side of an
@@ -96,19 +95,16 @@ public class NdefPushClient {
         }
         // We only handle a single immediate action for now
         NdefPushProtocol proto = new NdefPushProtocol(msg, NdefPushProtocol.ACTION_IMMEDIATE);
-        byte[] buffer = proto.toByteArray();
-        int offset = 0;
+        NdefPushCodec.Encoder encoder = new NdefPushCodec.Encoder(proto);
         int remoteMiu;
 
         try {
             remoteMiu = sock.getRemoteMiu();
-            if (DBG) Log.d(TAG, "about to send a " + buffer.length + " byte message");
-            while (offset < buffer.length) {
-                int length = Math.min(buffer.length - offset, remoteMiu);
-                byte[] tmpBuffer = Arrays.copyOfRange(buffer, offset, offset+length);
-                if (DBG) Log.d(TAG, "about to send a " + length + " byte packet");
-                sock.send(tmpBuffer);
-                offset += length;
+            if (DBG) Log.d(TAG, "about to send a " + encoder.getLength() + " byte message");
+            while (encoder.hasNext()) {
+                byte[] fragment = encoder.next(remoteMiu);
+                if (DBG) Log.d(TAG, "about to send a " + fragment.length + " byte packet");
+                sock.send(fragment);
             }
             return true;
         } catch (IOException e) {
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.ndefpush;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Streaming codec of the NDEF Push Protocol.
+ *
+ * A message set is a version byte and a message count, followed by an action
+ * byte, a length and the NDEF bytes of every message; integers are 32 bit big
+ * endian. The encoder writes the set straight into fragments of the remote
+ * MIU, and the decoder parses fragments as they arrive, checking every count
+ * and length against its limits before buffering what follows it.
+ */
+public final class NdefPushCodec {
+    private static final String TAG = "NdefPushCodec";
+
+    static final byte VERSION = 1;
+    static final int SET_HEADER_LENGTH = 5;
+    static final int MESSAGE_HEADER_LENGTH = 5;
+    // The shortest NDEF message is a single empty record
+    static final int MIN_NDEF_LENGTH = 3;
+
+    /** Pushes carry a single message; leave room for peers sending a few */
+    public static final int DEFAULT_MAX_MESSAGES = 16;
+    /** Same bound as the SNEP server puts on a message */
+    public static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+    private NdefPushCodec() {}
+
+    /** Splits a message set into fragments, without building it in one piece first. */
+    public static final class Encoder {
+        final byte[] mActions;
+        final byte[][] mNdefs;
+        final int mLength;
+        // Position in the set: a message, and an offset in its header or bytes
+        int mMessage = -1;
+        int mOffset;
+        int mEncoded;
+
+        public Encoder(NdefPushProtocol set) {
+            mActions = set.getActions();
+            NdefMessage[] messages = set.getMessages();
+            mNdefs = new byte[messages.length][];
+            int length = SET_HEADER_LENGTH;
+            for (int i = 0; i < messages.length; i++) {
+                mNdefs[i] = messages[i].toByteArray();
+                length += MESSAGE_HEADER_LENGTH + mNdefs[i].length;
+            }
+            mLength = length;
+        }
+
+        /** Returns the length of the whole set. */
+        public int getLength() {
+            return mLength;
+        }
+
+        public boolean hasNext() {
+            return mEncoded < mLength;
+        }
+
+        /** Returns the next fragment, at most maxLength bytes long. */
+        public byte[] next(int maxLength) {
+            if (maxLength <= 0) {
+                throw new IllegalArgumentException("maxLength must be positive");
+            }
+            byte[] fragment = new byte[Math.min(maxLength, mLength - mEncoded)];
+            int pos = 0;
+            while (pos < fragment.length) {
+                if (mMessage < 0) {
+                    pos += copyHeader(fragment, pos, VERSION, mActions.length, SET_HEADER_LENGTH);
+                    if (mOffset == SET_HEADER_LENGTH) nextMessage();
+                } else if (mOffset < MESSAGE_HEADER_LENGTH) {
+                    pos += copyHeader(fragment, pos, mActions[mMessage], mNdefs[mMessage].length,
+                            MESSAGE_HEADER_LENGTH);
+                    if (mOffset == MESSAGE_HEADER_LENGTH && mNdefs[mMessage].length == 0) {
+                        nextMessage();
+                    }
+                } else {
+                    byte[] ndef = mNdefs[mMessage];
+                    int start = mOffset - MESSAGE_HEADER_LENGTH;
+                    int length = Math.min(fragment.length - pos, ndef.length - start);
+                    System.arraycopy(ndef, start, fragment, pos, length);
+                    pos += length;
+                    mOffset += length;
+                    if (mOffset == MESSAGE_HEADER_LENGTH + ndef.length) nextMessage();
+                }
+            }
+            mEncoded += fragment.length;
+            return fragment;
+        }
+
+        void nextMessage() {
+            mMessage++;
+            mOffset = 0;
+        }
+
+        /** Copies what fits of a type byte and an int header, from mOffset on. */
+        int copyHeader(byte[] fragment, int pos, byte type, int value, int headerLength) {
+            int copied = 0;
+            while (mOffset < headerLength && pos + copied < fragment.length) {
+                fragment[pos + copied] = mOffset == 0 ? type
+                        : (byte) (value >>> (8 * (headerLength - 1 - mOffset)));
+                mOffset++;
+                copied++;
+            }
+            return copied;
+        }
+    }
+
+    /** Parses a message set from fragments, as they are received. */
+    public static final class Decoder {
+        static final int STATE_SET_HEADER = 0;
+        static final int STATE_MESSAGE_HEADER = 1;
+        static final int STATE_MESSAGE = 2;
+        static final int STATE_DONE = 3;
+
+        final int mMaxMessages;
+        final int mMaxLength;
+
+        int mState = STATE_SET_HEADER;
+        // The header being read, and how many of its bytes arrived
+        final byte[] mHeader = new byte[SET_HEADER_LENGTH];
+        int mHeaderRead;
+        int mNumMessages;
+        // Bytes the declared counts and lengths add up to so far
+        long mDeclaredLength = SET_HEADER_LENGTH;
+        int mDecoded;
+
+        byte mAction;
+        byte[] mNdef;
+        int mNdefRead;
+        final ArrayList<Byte> mActions = new ArrayList<Byte>();
+        final ArrayList<NdefMessage> mMessages = new ArrayList<NdefMessage>();
+
+        public Decoder() {
+            this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_LENGTH);
+        }
+
+        /**
+         * @param maxMessages the most messages a set may declare
+         * @param maxLength the most bytes a set may take
+         */
+        public Decoder(int maxMessages, int maxLength) {
+            mMaxMessages = maxMessages;
+            mMaxLength = maxLength;
+        }
+
+        public boolean isComplete() {
+            return mState == STATE_DONE;
+        }
+
+        /** Returns the number of bytes parsed so far. */
+        public int getDecodedLength() {
+            return mDecoded;
+        }
+
+        /**
+         * Parses a fragment.
+         *
+         * @return the number of bytes used, less than length once the set is
+         *     complete and the fragment goes beyond it
+         * @throws FormatException as soon as the set is known to be malformed
+         *     or over the limits
+         */
+        public int decode(byte[] data, int offset, int length) throws FormatException {
+            int pos = offset;
+            int end = offset + length;
+            while (pos < end && mState != STATE_DONE) {
+                switch (mState) {
+                    case STATE_SET_HEADER:
+                        pos += readHeader(data, pos, end, SET_HEADER_LENGTH);
+                        if (mHeaderRead == SET_HEADER_LENGTH) onSetHeader();
+                        break;
+                    case STATE_MESSAGE_HEADER:
+                        pos += readHeader(data, pos, end, MESSAGE_HEADER_LENGTH);
+                        if (mHeaderRead == MESSAGE_HEADER_LENGTH) onMessageHeader();
+                        break;
+                    case STATE_MESSAGE:
+                        int read = Math.min(end - pos, mNdef.length - mNdefRead);
+                        System.arraycopy(data, pos, mNdef, mNdefRead, read);
+                        pos += read;
+                        mNdefRead += read;
+                        if (mNdefRead == mNdef.length) onMessage();
+                        break;
+                }
+            }
+            mDecoded += pos - offset;
+            return pos - offset;
+        }
+
+        int readHeader(byte[] data, int pos, int end, int headerLength) {
+            int read = Math.min(end - pos, headerLength - mHeaderRead);
+            System.arraycopy(data, pos, mHeader, mHeaderRead, read);
+            mHeaderRead += read;
+            return read;
+        }
+
+        int headerInt() {
+            return ((mHeader[1] & 0xFF) << 24) | ((mHeader[2] & 0xFF) << 16)
+                    | ((mHeader[3] & 0xFF) << 8) | (mHeader[4] & 0xFF);
+        }
+
+        void onSetHeader() throws FormatException {
+            if (mHeader[0] != VERSION) {
+                Log.w(TAG, "Got version " + mHeader[0] + ",  expected " + VERSION);
+                throw new FormatException("Got version " + mHeader[0] + ",  expected " + VERSION);
+            }
+            mNumMessages = headerInt();
+            if (mNumMessages <= 0 || mNumMessages > mMaxMessages) {
+                Log.w(TAG, "Bad number of messages " + mNumMessages);
+                throw new FormatException("Error while parsing NdefMessageSet");
+            }
+            // Every message takes at least its header and an empty record
+            declare((long) mNumMessages * (MESSAGE_HEADER_LENGTH + MIN_NDEF_LENGTH));
+            mHeaderRead = 0;
+            mState = STATE_MESSAGE_HEADER;
+        }
+
+        void onMessageHeader() throws FormatException {
+            mAction = mHeader[0];
+            int length = headerInt();
+            if (length < MIN_NDEF_LENGTH) {
+                Log.w(TAG, "Bad length " + length + " for message " + mMessages.size());
+                throw new FormatException("Error while parsing NdefMessageSet");
+            }
+            // The minimum was declared with the count already
+            declare(length - MIN_NDEF_LENGTH);
+            mNdef = new byte[length];
+            mNdefRead = 0;
+            mHeaderRead = 0;
+            mState = STATE_MESSAGE;
+        }
+
+        void onMessage() throws FormatException {
+            mActions.add(mAction);
+            mMessages.add(new NdefMessage(mNdef));
+            mNdef = null;
+            mState = mMessages.size() == mNumMessages ? STATE_DONE : STATE_MESSAGE_HEADER;
+        }
+
+        void declare(long length) throws FormatException {
+            mDeclaredLength += length;
+            if (mDeclaredLength > mMaxLength) {
+                Log.w(TAG, "Message set of at least " + mDeclaredLength
+                        + " bytes exceeds " + mMaxLength);
+                throw new FormatException("NdefMessageSet too long");
+            }
+        }
+
+        /** Returns the decoded set, or null if it is not complete. */
+        public NdefPushProtocol getMessageSet() {
+            if (mState != STATE_DONE) return null;
+            byte[] actions = new byte[mActions.size()];
+            for (int i = 0; i < actions.length; i++) {
+                actions[i] = mActions.get(i);
+            }
+            return new NdefPushProtocol(actions, mMessages.toArray(new NdefMessage[0]));
+        }
+    }
+}
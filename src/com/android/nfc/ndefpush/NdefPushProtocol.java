@@ -20,11 +20,6 @@ import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-
 /**
  * Implementation of the NDEF Push Protocol.
  */
@@ -33,7 +28,6 @@ public class NdefPushProtocol {
     public static final byte ACTION_BACKGROUND = (byte) 0x02;
 
     private static final String TAG = "NdefMessageSet";
-    private static final byte VERSION = 1;
 
     private int mNumMessages;
     private byte[] mActions;
@@ -63,75 +57,25 @@ public class NdefPushProtocol {
     }
 
     public NdefPushProtocol(byte[] data) throws FormatException {
-        ByteArrayInputStream buffer = new ByteArrayInputStream(data);
-        DataInputStream input = new DataInputStream(buffer);
-
-        // Check version of protocol
-        byte version;
-        try {
-            version = input.readByte();
-        } catch (java.io.IOException e) {
-            Log.w(TAG, "Unable to read version");
-            throw new FormatException("Unable to read version");
-        }
-
-        if(version != VERSION) {
-            Log.w(TAG, "Got version " + version + ",  expected " + VERSION);
-            throw new FormatException("Got version " + version + ",  expected " + VERSION);
-        }
-
-        // Read numMessages
-        try {
-            mNumMessages = input.readInt();
-        } catch(java.io.IOException e) {
-            Log.w(TAG, "Unable to read numMessages");
-            throw new FormatException("Error while parsing NdefMessageSet");
-        }
-        if(mNumMessages == 0) {
-            Log.w(TAG, "No NdefMessage inside NdefMessageSet packet");
+        // The set can't declare more than the data holds
+        NdefPushCodec.Decoder decoder = new NdefPushCodec.Decoder(Integer.MAX_VALUE, data.length);
+        decoder.decode(data, 0, data.length);
+        if (!decoder.isComplete()) {
+            Log.w(TAG, "Truncated NdefMessageSet of " + data.length + " bytes");
             throw new FormatException("Error while parsing NdefMessageSet");
         }
+        NdefPushProtocol set = decoder.getMessageSet();
+        mNumMessages = set.mNumMessages;
+        mActions = set.mActions;
+        mMessages = set.mMessages;
+    }
 
-        // Read actions and messages
-        mActions = new byte[mNumMessages];
-        mMessages = new NdefMessage[mNumMessages];
-        for(int i = 0; i < mNumMessages; i++) {
-            // Read action
-            try {
-                mActions[i] = input.readByte();
-            } catch(java.io.IOException e) {
-                Log.w(TAG, "Unable to read action for message " + i);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            // Read message length
-            int length;
-            try {
-                length = input.readInt();
-            } catch(java.io.IOException e) {
-                Log.w(TAG, "Unable to read length for message " + i);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            byte[] bytes = new byte[length];
-            // Read message
-            int lengthRead;
-            try {
-                lengthRead = input.read(bytes);
-            } catch(java.io.IOException e) {
-                Log.w(TAG, "Unable to read bytes for message " + i);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            if(length != lengthRead) {
-                Log.w(TAG, "Read " + lengthRead + " bytes but expected " +
-                    length);
-                throw new FormatException("Error while parsing NdefMessageSet");
-            }
-            // Create and store NdefMessage
-            try {
-                mMessages[i] = new NdefMessage(bytes);
-            } catch(FormatException e) {
-                throw e;
-            }
-        }
+    byte[] getActions() {
+        return mActions;
+    }
+
+    NdefMessage[] getMessages() {
+        return mMessages;
     }
 
     public NdefMessage getImmediate() {
@@ -145,22 +89,7 @@ public class NdefPushProtocol {
     }
 
     public byte[] toByteArray() {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
-        DataOutputStream output = new DataOutputStream(buffer);
-
-        try {
-            output.writeByte(VERSION);
-            output.writeInt(mNumMessages);
-            for(int i = 0; i < mNumMessages; i++) {
-                output.writeByte(mActions[i]);
-                byte[] bytes = mMessages[i].toByteArray();
-                output.writeInt(bytes.length);
-                output.write(bytes);
-            }
-        } catch(java.io.IOException e) {
-            return null;
-        }
-
-        return buffer.toByteArray();
+        NdefPushCodec.Encoder encoder = new NdefPushCodec.Encoder(this);
+        return encoder.next(encoder.getLength());
     }
 }
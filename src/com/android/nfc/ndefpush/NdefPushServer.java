@@ -23,10 +23,11 @@ import android.util.Log;
 
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpBufferPool;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpServiceRuntime;
 import com.android.nfc.NfcService;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
@@ -48,7 +49,7 @@ public class NdefPushServer {
     final Callback mCallback;
 
     /** Protected by 'this', null when stopped, non-null when running */
-    ServerThread mServerThread = null;
+    ServerTask mServerTask = null;
 
     public interface Callback {
         void onMessageReceived(NdefMessage msg);
@@ -60,43 +61,44 @@ public class NdefPushServer {
     }
 
     /** Connection class, used to handle incoming connections */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         private LlcpSocket mSock;
 
-        ConnectionThread(LlcpSocket sock) {
-            super(TAG);
+        ConnectionTask(LlcpSocket sock) {
             mSock = sock;
         }
 
         @Override
         public void run() {
             if (DBG) Log.d(TAG, "starting connection thread");
+            byte[] partial = LlcpBufferPool.getInstance().acquire(mSock.getLocalMiu());
             try {
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
-                byte[] partial = new byte[1024];
+                // Decode the fragments as they arrive, so that a set that is
+                // malformed or over the limits is dropped before it's buffered
+                NdefPushCodec.Decoder decoder = new NdefPushCodec.Decoder();
                 int size;
-                boolean connectionBroken = false;
 
                 // Get raw data from remote server
-                while(!connectionBroken) {
+                while (!decoder.isComplete()) {
                     try {
                         size = mSock.receive(partial);
                         if (DBG) Log.d(TAG, "read " + size + " bytes");
                         if (size < 0) {
-                            connectionBroken = true;
                             break;
-                        } else {
-                            buffer.write(partial, 0, size);
                         }
+                        decoder.decode(partial, 0, size);
                     } catch (IOException e) {
                         // Connection broken
-                        connectionBroken = true;
                         if (DBG) Log.d(TAG, "connection broken by IOException", e);
+                        break;
                     }
                 }
 
-                // Build NDEF message set from the stream
-                NdefPushProtocol msg = new NdefPushProtocol(buffer.toByteArray());
+                NdefPushProtocol msg = decoder.getMessageSet();
+                if (msg == null) {
+                    throw new FormatException("Truncated NdefMessageSet of "
+                            + decoder.getDecodedLength() + " bytes");
+                }
                 if (DBG) Log.d(TAG, "got message " + msg.toString());
 
                 // Send the intent for the fake tag
@@ -110,13 +112,14 @@ public class NdefPushServer {
                 } catch (IOException e) {
                     // ignore
                 }
+                LlcpBufferPool.getInstance().release(partial);
             }
             if (DBG) Log.d(TAG, "finished connection thread");
         }
     }
 
     /** Server class, used to listen for incoming connection request */
-    class ServerThread extends Thread {
+    class ServerTask implements Runnable {
         // Variables below synchronized on NdefPushServer.this
         boolean mRunning = true;
         LlcpServerSocket mServerSocket;
@@ -154,7 +157,15 @@ public class NdefPushServer {
                         LlcpSocket communicationSocket = serverSocket.accept();
                         if (DBG) Log.d(TAG, "accept returned " + communicationSocket);
                         if (communicationSocket != null) {
-                            new ConnectionThread(communicationSocket).start();
+                            ConnectionTask task = new ConnectionTask(communicationSocket);
+                            if (!LlcpServiceRuntime.getInstance().runConnection(
+                                    SERVICE_NAME, communicationSocket, task)) {
+                                try {
+                                    communicationSocket.close();
+                                } catch (IOException e) {
+                                    // ignore
+                                }
+                            }
                         }
 
                         synchronized (NdefPushServer.this) {
@@ -203,22 +214,25 @@ public class NdefPushServer {
 
     public void start() {
         synchronized (this) {
-            if (DBG) Log.d(TAG, "start, thread = " + mServerThread);
-            if (mServerThread == null) {
-                if (DBG) Log.d(TAG, "starting new server thread");
-                mServerThread = new ServerThread();
-                mServerThread.start();
+            if (DBG) Log.d(TAG, "start, task = " + mServerTask);
+            if (mServerTask == null) {
+                if (DBG) Log.d(TAG, "starting new server task");
+                mServerTask = new ServerTask();
+                if (!LlcpServiceRuntime.getInstance().startServer(SERVICE_NAME, mServerTask)) {
+                    mServerTask = null;
+                }
             }
         }
     }
 
     public void stop() {
         synchronized (this) {
-            if (DBG) Log.d(TAG, "stop, thread = " + mServerThread);
-            if (mServerThread != null) {
-                if (DBG) Log.d(TAG, "shuting down server thread");
-                mServerThread.shutdown();
-                mServerThread = null;
+            if (DBG) Log.d(TAG, "stop, task = " + mServerTask);
+            if (mServerTask != null) {
+                if (DBG) Log.d(TAG, "shuting down server task");
+                mServerTask.shutdown();
+                LlcpServiceRuntime.getInstance().stopServer(mServerTask);
+                mServerTask = null;
             }
         }
     }
@@ -157,7 +157,7 @@ public final class SnepClient {
             }
             int miu = socket.getRemoteMiu();
             int fragmentLength = (mFragmentLength == -1) ?  miu : Math.min(miu, mFragmentLength);
-            messenger = new SnepMessenger(true, socket, fragmentLength);
+            messenger = new SnepMessenger(true, socket, fragmentLength, mAcceptableLength);
         } catch (LlcpException e) {
             synchronized (this) {
                 mState = DISCONNECTED;
@@ -17,17 +17,16 @@
 package com.android.nfc.snep;
 
 import android.nfc.FormatException;
+import android.nfc.NdefMessage;
 import android.os.SystemProperties;
 import android.util.Log;
 
 import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpBufferPool;
 import com.android.nfc.NfcService;
 import com.android.nfc.sneptest.DtaSnepClient;
 import com.android.nfc.sneptest.ExtDtaSnepServer;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -36,14 +35,27 @@ public class SnepMessenger {
     private static final boolean DBG =
             SystemProperties.getBoolean("persist.nfc.debug_enabled", false);
     private static final int HEADER_LENGTH = 6;
+    // Largest information field accepted from the peer, unless configured otherwise
+    static final int DEFAULT_MAX_MESSAGE_LENGTH = 1024 * 1024;
     final LlcpSocket mSocket;
     final int mFragmentLength;
     final boolean mIsClient;
+    final int mMaxMessageLength;
 
     public SnepMessenger(boolean isClient, LlcpSocket socket, int fragmentLength) {
+        this(isClient, socket, fragmentLength, DEFAULT_MAX_MESSAGE_LENGTH);
+    }
+
+    /**
+     * @param maxMessageLength the largest message accepted from the peer;
+     *     longer messages are rejected before they are received
+     */
+    public SnepMessenger(boolean isClient, LlcpSocket socket, int fragmentLength,
+            int maxMessageLength) {
         mSocket = socket;
         mFragmentLength = fragmentLength;
         mIsClient = isClient;
+        mMaxMessageLength = maxMessageLength;
     }
 
     public void sendMessage(SnepMessage msg) throws IOException {
@@ -134,14 +146,22 @@ public class SnepMessenger {
     }
 
     public SnepMessage getMessage() throws IOException, SnepException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(mFragmentLength);
-        byte[] partial = new byte[mFragmentLength];
+        // Fragments are copied out as they arrive, so the buffer is only
+        // needed while this message is received
+        byte[] partial = LlcpBufferPool.getInstance().acquire(mFragmentLength);
+        try {
+            return getMessage(partial);
+        } finally {
+            LlcpBufferPool.getInstance().release(partial);
+        }
+    }
+
+    private SnepMessage getMessage(byte[] partial) throws IOException, SnepException {
         int size;
         int requestSize = 0;
         int readSize = 0;
         byte requestVersion = 0;
         byte requestField = 0; // for DTA Mode
-        boolean doneReading = false;
         byte fieldContinue;
         byte fieldReject;
         if (mIsClient) {
@@ -177,13 +197,13 @@ public class SnepMessenger {
             throw new IOException("Invalid fragment from sender.");
         } else {
             readSize = size - HEADER_LENGTH;
-            buffer.write(partial, 0, size);
         }
 
-        DataInputStream dataIn = new DataInputStream(new ByteArrayInputStream(partial));
-        requestVersion = dataIn.readByte();
-        requestField = dataIn.readByte();
-        requestSize = dataIn.readInt();
+        // Header: version, field and the big endian length of the information field
+        requestVersion = partial[0];
+        requestField = partial[1];
+        requestSize = ((partial[2] & 0xFF) << 24) | ((partial[3] & 0xFF) << 16)
+                | ((partial[4] & 0xFF) << 8) | (partial[5] & 0xFF);
 
         if (DBG) Log.d(TAG, "read " + readSize + " of " + requestSize);
 
@@ -234,19 +254,40 @@ public class SnepMessenger {
             }
         }
 
+        // The message is reassembled in one buffer sized from the header, so
+        // the declared length must be checked before anything is allocated.
+        // A negative length is one above 2GB.
+        if (requestSize < 0 || requestSize > mMaxMessageLength) {
+            Log.e(TAG, "Rejecting message of " + (requestSize & 0xFFFFFFFFL) + " bytes");
+            try {
+                mSocket.send(SnepMessage.getMessage(fieldReject).toByteArray());
+            } catch (IOException e) {
+                // Ignore
+            }
+            throw new IOException("Unacceptable SNEP message length.");
+        }
+        // A GET request starts with the acceptable length, the rest is NDEF
+        int prefixLength = (requestField == SnepMessage.REQUEST_GET) ? 4 : 0;
+        if (requestSize < prefixLength) {
+            throw new SnepException("GET request without acceptable length");
+        }
+        byte[] prefix = new byte[prefixLength];
+        byte[] ndef = new byte[requestSize - prefixLength];
+        // Bytes after the information field of a single fragment are ignored
+        readSize = Math.min(readSize, requestSize);
+        copyInformation(partial, HEADER_LENGTH, readSize, 0, prefix, ndef);
+
         if (requestSize > readSize) {
             if (DBG) Log.d(TAG, "requesting continuation");
             mSocket.send(SnepMessage.getMessage(fieldContinue).toByteArray());
-        } else {
-            doneReading = true;
         }
 
         // Remaining fragments
-        while (!doneReading) {
+        while (readSize < requestSize) {
             try {
                 size = mSocket.receive(partial);
                 if (DBG) Log.d(TAG, "read " + size + " bytes");
-                if (size < 0) {
+                if (size < 0 || size > requestSize - readSize) {
                     try {
                         mSocket.send(SnepMessage.getMessage(fieldReject).toByteArray());
                     } catch (IOException e) {
@@ -254,11 +295,8 @@ public class SnepMessenger {
                     }
                     throw new IOException();
                 } else {
+                    copyInformation(partial, 0, size, readSize, prefix, ndef);
                     readSize += size;
-                    buffer.write(partial, 0, size);
-                    if (readSize == requestSize) {
-                        doneReading = true;
-                    }
                 }
             } catch (IOException e) {
                 try {
@@ -270,15 +308,41 @@ public class SnepMessenger {
             }
         }
 
-        // Build NDEF message set from the stream
+        // Build NDEF message set straight from the reassembled bytes
         try {
-            return SnepMessage.fromByteArray(buffer.toByteArray());
+            int acceptableLength = -1;
+            if (prefixLength > 0) {
+                acceptableLength = ((prefix[0] & 0xFF) << 24) | ((prefix[1] & 0xFF) << 16)
+                        | ((prefix[2] & 0xFF) << 8) | (prefix[3] & 0xFF);
+            }
+            return new SnepMessage(requestVersion, requestField, requestSize, acceptableLength,
+                    ndef.length > 0 ? new NdefMessage(ndef) : null);
         } catch (FormatException e) {
             Log.e(TAG, "Badly formatted NDEF message, ignoring", e);
             throw new SnepException(e);
         }
     }
 
+    /**
+     * Copies {@code length} bytes of the information field, found at
+     * {@code offset} of {@code fragment}, to position {@code position} of the
+     * message: the bytes of {@code prefix} first, then those of {@code ndef}.
+     */
+    static void copyInformation(byte[] fragment, int offset, int length, int position,
+            byte[] prefix, byte[] ndef) {
+        if (position < prefix.length) {
+            int count = Math.min(length, prefix.length - position);
+            System.arraycopy(fragment, offset, prefix, position, count);
+            offset += count;
+            length -= count;
+            position += count;
+        }
+        if (length == 0) {
+            return;
+        }
+        System.arraycopy(fragment, offset, ndef, position - prefix.length, length);
+    }
+
     public void close() throws IOException {
         mSocket.close();
     }
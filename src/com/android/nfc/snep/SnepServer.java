@@ -24,6 +24,7 @@ import android.util.Log;
 import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpServiceRuntime;
 import com.android.nfc.NfcService;
 
 import java.io.IOException;
@@ -51,7 +52,7 @@ public final class SnepServer {
     final int mRwSize;
 
     /** Protected by 'this', null when stopped, non-null when running */
-    ServerThread mServerThread = null;
+    ServerTask mServerTask = null;
     boolean mServerRunning = false;
 
     public interface Callback {
@@ -96,12 +97,11 @@ public final class SnepServer {
     }
 
     /** Connection class, used to handle incoming connections */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         private final LlcpSocket mSock;
         private final SnepMessenger mMessager;
 
-        ConnectionThread(LlcpSocket socket, int fragmentLength) {
-            super(TAG);
+        ConnectionTask(LlcpSocket socket, int fragmentLength) {
             mSock = socket;
             mMessager = new SnepMessenger(false, socket, fragmentLength);
         }
@@ -176,7 +176,7 @@ public final class SnepServer {
     }
 
     /** Server class, used to listen for incoming connection request */
-    class ServerThread extends Thread {
+    class ServerTask implements Runnable {
         private boolean mThreadRunning = true;
         LlcpServerSocket mServerSocket;
 
@@ -219,7 +219,16 @@ public final class SnepServer {
                         if (communicationSocket != null) {
                             int fragmentLength = (mFragmentLength == -1) ?
                                     mMiu : Math.min(mMiu, mFragmentLength);
-                            new ConnectionThread(communicationSocket, fragmentLength).start();
+                            ConnectionTask task =
+                                    new ConnectionTask(communicationSocket, fragmentLength);
+                            if (!LlcpServiceRuntime.getInstance().runConnection(
+                                    mServiceName, communicationSocket, task)) {
+                                try {
+                                    communicationSocket.close();
+                                } catch (IOException e) {
+                                    // ignore
+                                }
+                            }
                         }
 
                         synchronized (SnepServer.this) {
@@ -268,11 +277,14 @@ public final class SnepServer {
 
     public void start() {
         synchronized (SnepServer.this) {
-            if (DBG) Log.d(TAG, "start, thread = " + mServerThread);
-            if (mServerThread == null) {
-                if (DBG) Log.d(TAG, "starting new server thread");
-                mServerThread = new ServerThread();
-                mServerThread.start();
+            if (DBG) Log.d(TAG, "start, task = " + mServerTask);
+            if (mServerTask == null) {
+                if (DBG) Log.d(TAG, "starting new server task");
+                mServerTask = new ServerTask();
+                if (!LlcpServiceRuntime.getInstance().startServer(mServiceName, mServerTask)) {
+                    mServerTask = null;
+                    return;
+                }
                 mServerRunning = true;
             }
         }
@@ -280,11 +292,12 @@ public final class SnepServer {
 
     public void stop() {
         synchronized (SnepServer.this) {
-            if (DBG) Log.d(TAG, "stop, thread = " + mServerThread);
-            if (mServerThread != null) {
-                if (DBG) Log.d(TAG, "shuting down server thread");
-                mServerThread.shutdown();
-                mServerThread = null;
+            if (DBG) Log.d(TAG, "stop, task = " + mServerTask);
+            if (mServerTask != null) {
+                if (DBG) Log.d(TAG, "shuting down server task");
+                mServerTask.shutdown();
+                LlcpServiceRuntime.getInstance().stopServer(mServerTask);
+                mServerTask = null;
                 mServerRunning = false;
             }
         }
@@ -23,6 +23,7 @@ import com.android.nfc.DeviceHost.LlcpServerSocket;
 import com.android.nfc.DeviceHost.LlcpSocket;
 import com.android.nfc.DtaServiceConnector;
 import com.android.nfc.LlcpException;
+import com.android.nfc.LlcpServiceRuntime;
 import com.android.nfc.NfcService;
 import com.android.nfc.snep.SnepException;
 import com.android.nfc.snep.SnepMessage;
@@ -47,7 +48,7 @@ public final class ExtDtaSnepServer {
     public static int mTestCaseId;
 
     /** Protected by 'this', null when stopped, non-null when running */
-    ServerThread mServerThread = null;
+    ServerTask mServerTask = null;
     boolean mServerRunning = false;
     static DtaServiceConnector dtaServiceConnector;
 
@@ -71,12 +72,11 @@ public final class ExtDtaSnepServer {
     }
 
     /** Connection class, used to handle incoming connections */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
         private final LlcpSocket mSock;
         private final SnepMessenger mMessager;
 
-        ConnectionThread(LlcpSocket socket, int fragmentLength) {
-            super(TAG);
+        ConnectionTask(LlcpSocket socket, int fragmentLength) {
             mSock = socket;
             mMessager = new SnepMessenger(false, socket, fragmentLength);
         }
@@ -147,7 +147,7 @@ public final class ExtDtaSnepServer {
     }
 
     /** Server class, used to listen for incoming connection request */
-    class ServerThread extends Thread {
+    class ServerTask implements Runnable {
         private boolean mThreadRunning = true;
         LlcpServerSocket mServerSocket;
 
@@ -190,7 +190,15 @@ public final class ExtDtaSnepServer {
                         if (communicationSocket != null) {
                             int miu = communicationSocket.getRemoteMiu();
                             int fragmentLength = (mDtaFragmentLength == -1) ? miu : Math.min(miu, mDtaFragmentLength);
-                            new ConnectionThread(communicationSocket, fragmentLength).start();
+                            ConnectionTask task = new ConnectionTask(communicationSocket, fragmentLength);
+                            if (!LlcpServiceRuntime.getInstance().runConnection(
+                                    mServiceName, communicationSocket, task)) {
+                                try {
+                                    communicationSocket.close();
+                                } catch (IOException e) {
+                                    // ignore
+                                }
+                            }
                         }
 
                         synchronized (ExtDtaSnepServer.this) {
@@ -235,11 +243,14 @@ public final class ExtDtaSnepServer {
 
     public void start() {
         synchronized (ExtDtaSnepServer.this) {
-            if (DBG) Log.d(TAG, "start, thread = " + mServerThread);
-            if (mServerThread == null) {
-                if (DBG) Log.d(TAG, "starting new server thread");
-                mServerThread = new ServerThread();
-                mServerThread.start();
+            if (DBG) Log.d(TAG, "start, task = " + mServerTask);
+            if (mServerTask == null) {
+                if (DBG) Log.d(TAG, "starting new server task");
+                mServerTask = new ServerTask();
+                if (!LlcpServiceRuntime.getInstance().startServer(mServiceName, mServerTask)) {
+                    mServerTask = null;
+                    return;
+                }
                 mServerRunning = true;
             }
         }
@@ -247,11 +258,12 @@ public final class ExtDtaSnepServer {
 
     public void stop() {
         synchronized (ExtDtaSnepServer.this) {
-            if (DBG) Log.d(TAG, "stop, thread = " + mServerThread);
-            if (mServerThread != null) {
-                if (DBG) Log.d(TAG, "shuting down server thread");
-                mServerThread.shutdown();
-                mServerThread = null;
+            if (DBG) Log.d(TAG, "stop, task = " + mServerTask);
+            if (mServerTask != null) {
+                if (DBG) Log.d(TAG, "shuting down server task");
+                mServerTask.shutdown();
+                LlcpServiceRuntime.getInstance().stopServer(mServerTask);
+                mServerTask = null;
                 mServerRunning = false;
             }
         }
@@ -0,0 +1,546 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import java.io.FileDescriptor;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simulated NFC controller behind the DeviceHost interface, for tests and
+ * benchmarks that must run without NFC hardware.
+ *
+ * Every command can be given a latency, which is spent in the calling thread
+ * like a synchronous NCI command would. Listener events are delivered on a
+ * single "controller" thread, like the JNI callbacks of NativeNfcManager.
+ *
+ * The AID routing table is modelled with a configurable capacity: entries
+ * are staged by routeAid() and unrouteAid(), and commitRouting() only
+ * accepts them if they fit. Remote devices are modelled by FakeTagEndpoint,
+ * a tag with scripted responses, and FakeHceReader, a reader that replays
+ * an APDU script against host card emulation. LLCP sockets are created on
+ * an endpoint of a LoopbackLlcpLink, once one is set.
+ */
+public class FakeDeviceHost implements DeviceHost {
+    // TAG + ROUTE + LENGTH_BYTE + POWER
+    static final int AID_HDR_LENGTH = 4;
+
+    public static final String CMD_INITIALIZE = "initialize";
+    public static final String CMD_DEINITIALIZE = "deinitialize";
+    public static final String CMD_ENABLE_DISCOVERY = "enableDiscovery";
+    public static final String CMD_DISABLE_DISCOVERY = "disableDiscovery";
+    public static final String CMD_SEND_RAW_FRAME = "sendRawFrame";
+    public static final String CMD_ROUTE_AID = "routeAid";
+    public static final String CMD_UNROUTE_AID = "unrouteAid";
+    public static final String CMD_COMMIT_ROUTING = "commitRouting";
+    public static final String CMD_REGISTER_T3T = "registerT3tIdentifier";
+    public static final String CMD_DEREGISTER_T3T = "deregisterT3tIdentifier";
+    public static final String CMD_SET_SCREEN_STATE = "doSetScreenState";
+
+    public static final class RouteEntry {
+        public final int route;
+        public final int aidInfo;
+        public final int power;
+
+        RouteEntry(int route, int aidInfo, int power) {
+            this.route = route;
+            this.aidInfo = aidInfo;
+            this.power = power;
+        }
+    }
+
+    final int mAidTableSize;
+    final int mNciVersion;
+    final ConcurrentHashMap<String, Long> mLatenciesMs = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<String, AtomicInteger> mCommandCounts = new ConcurrentHashMap<>();
+    final ExecutorService mControllerThread = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "FakeNfcc"));
+    volatile DeviceHostListener mListener;
+    volatile FakeHceReader mActiveReader;
+    volatile LoopbackLlcpLink.Endpoint mLlcpEndpoint;
+    final LlcpEventLoop mLlcpEventLoop = new LlcpEventLoop("FakeLlcpLoop");
+
+    // Fields below are protected by this
+    final LinkedHashMap<String, RouteEntry> mStagedRoutes = new LinkedHashMap<>();
+    LinkedHashMap<String, RouteEntry> mCommittedRoutes = new LinkedHashMap<>();
+    final HashSet<String> mT3tIdentifiers = new HashSet<>();
+    int mLfT3tMax = 16;
+    int mNumRejectedCommits;
+    NfcDiscoveryParameters mDiscoveryParameters;
+    boolean mDiscoveryEnabled;
+    int mScreenState;
+
+    public FakeDeviceHost(int aidTableSize, int nciVersion) {
+        this(null, aidTableSize, nciVersion);
+    }
+
+    public FakeDeviceHost(DeviceHostListener listener, int aidTableSize, int nciVersion) {
+        mListener = listener;
+        mAidTableSize = aidTableSize;
+        mNciVersion = nciVersion;
+    }
+
+    public void setListener(DeviceHostListener listener) {
+        mListener = listener;
+    }
+
+    /** Makes every call of {@code command}, one of the CMD_ constants, take {@code ms}. */
+    public void setLatencyMs(String command, long ms) {
+        mLatenciesMs.put(command, ms);
+    }
+
+    /** Creates LLCP sockets on {@code endpoint}, or fails them again with null. */
+    public void setLlcpEndpoint(LoopbackLlcpLink.Endpoint endpoint) {
+        mLlcpEndpoint = endpoint;
+    }
+
+    public int getCommandCount(String command) {
+        AtomicInteger count = mCommandCounts.get(command);
+        return count != null ? count.get() : 0;
+    }
+
+    void simulate(String command) {
+        mCommandCounts.computeIfAbsent(command, c -> new AtomicInteger()).incrementAndGet();
+        Long latencyMs = mLatenciesMs.get(command);
+        if (latencyMs != null && latencyMs > 0) {
+            sleep(latencyMs);
+        }
+    }
+
+    static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02X", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /** Runs {@code event} on the controller thread, like a JNI callback. */
+    public Future<?> post(Runnable event) {
+        return mControllerThread.submit(event);
+    }
+
+    /** Waits until all events posted so far were delivered. */
+    public void drain() throws Exception {
+        post(() -> {}).get(10, TimeUnit.SECONDS);
+    }
+
+    public void shutdownController() {
+        mControllerThread.shutdownNow();
+    }
+
+    /** Brings a tag into the field. */
+    public Future<?> discoverTag(FakeTagEndpoint tag) {
+        return post(() -> mListener.onRemoteEndpointDiscovered(tag));
+    }
+
+    public Future<?> activateField() {
+        return post(() -> mListener.onRemoteFieldActivated());
+    }
+
+    public Future<?> deactivateField() {
+        return post(() -> mListener.onRemoteFieldDeactivated());
+    }
+
+    public Future<?> sendTransactionEvent(byte[] aid, byte[] data, String seName) {
+        return post(() -> mListener.onNfcTransactionEvent(aid, data, seName));
+    }
+
+    /**
+     * Replays the script of {@code reader} against host card emulation and
+     * waits for it to finish. Only one reader can be in the field at a time.
+     */
+    public FakeHceReader.Result runHceReader(FakeHceReader reader) throws Exception {
+        mActiveReader = reader;
+        try {
+            return reader.run(this);
+        } finally {
+            mActiveReader = null;
+        }
+    }
+
+    /** Routing table entries accepted by the last successful commit, keyed by hex AID. */
+    public synchronized Map<String, RouteEntry> getCommittedRoutes() {
+        return new LinkedHashMap<>(mCommittedRoutes);
+    }
+
+    public synchronized int getCommittedSize() {
+        int size = 0;
+        for (String aid : mCommittedRoutes.keySet()) {
+            size += AID_HDR_LENGTH + aid.length() / 2;
+        }
+        return size;
+    }
+
+    public int getNumRouteAid() {
+        return getCommandCount(CMD_ROUTE_AID);
+    }
+
+    public synchronized int getNumRejectedCommits() {
+        return mNumRejectedCommits;
+    }
+
+    /**
+     * Returns the route a reader selecting {@code aid} reaches: the longest
+     * committed entry that matches it exactly, or as a prefix if the entry
+     * is a prefix entry, falling back to the empty AID entry.
+     */
+    public synchronized int resolveRoute(String aid, int prefixQualifier) {
+        for (int length = aid.length(); length >= 0; length--) {
+            RouteEntry entry = mCommittedRoutes.get(aid.substring(0, length));
+            if (entry == null) continue;
+            if (length == aid.length() || (entry.aidInfo & prefixQualifier) != 0) {
+                return entry.route;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized Set<String> getT3tIdentifiers() {
+        return Collections.unmodifiableSet(new HashSet<>(mT3tIdentifiers));
+    }
+
+    public synchronized boolean isDiscoveryEnabled() {
+        return mDiscoveryEnabled;
+    }
+
+    public synchronized NfcDiscoveryParameters getDiscoveryParameters() {
+        return mDiscoveryParameters;
+    }
+
+    public synchronized int getScreenState() {
+        return mScreenState;
+    }
+
+    public synchronized void setLfT3tMax(int max) {
+        mLfT3tMax = max;
+    }
+
+    @Override
+    public boolean routeAid(byte[] aid, int route, int aidInfo, int power) {
+        simulate(CMD_ROUTE_AID);
+        synchronized (this) {
+            mStagedRoutes.put(toHex(aid), new RouteEntry(route, aidInfo, power));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean unrouteAid(byte[] aid) {
+        simulate(CMD_UNROUTE_AID);
+        synchronized (this) {
+            mStagedRoutes.remove(toHex(aid));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean commitRouting() {
+        simulate(CMD_COMMIT_ROUTING);
+        synchronized (this) {
+            int size = 0;
+            for (String aid : mStagedRoutes.keySet()) {
+                size += AID_HDR_LENGTH + aid.length() / 2;
+            }
+            if (size > mAidTableSize) {
+                mNumRejectedCommits++;
+                return false;
+            }
+            mCommittedRoutes = new LinkedHashMap<>(mStagedRoutes);
+        }
+        return true;
+    }
+
+    @Override
+    public int getAidTableSize() {
+        return mAidTableSize;
+    }
+
+    @Override
+    public int getNciVersion() {
+        return mNciVersion;
+    }
+
+    @Override
+    public boolean checkFirmware() {
+        return true;
+    }
+
+    @Override
+    public boolean initialize() {
+        simulate(CMD_INITIALIZE);
+        return true;
+    }
+
+    @Override
+    public boolean deinitialize() {
+        simulate(CMD_DEINITIALIZE);
+        synchronized (this) {
+            mStagedRoutes.clear();
+            mCommittedRoutes.clear();
+            mT3tIdentifiers.clear();
+            mDiscoveryEnabled = false;
+        }
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "FakeDeviceHost";
+    }
+
+    @Override
+    public void enableDiscovery(NfcDiscoveryParameters params, boolean restart) {
+        simulate(CMD_ENABLE_DISCOVERY);
+        synchronized (this) {
+            mDiscoveryParameters = params;
+            mDiscoveryEnabled = true;
+        }
+    }
+
+    @Override
+    public void disableDiscovery() {
+        simulate(CMD_DISABLE_DISCOVERY);
+        synchronized (this) {
+            mDiscoveryEnabled = false;
+        }
+    }
+
+    @Override
+    public boolean sendRawFrame(byte[] data) {
+        simulate(CMD_SEND_RAW_FRAME);
+        FakeHceReader reader = mActiveReader;
+        if (reader == null) {
+            return false;
+        }
+        reader.onResponse(data);
+        return true;
+    }
+
+    @Override
+    public void registerT3tIdentifier(byte[] t3tIdentifier) {
+        simulate(CMD_REGISTER_T3T);
+        synchronized (this) {
+            if (mT3tIdentifiers.size() < mLfT3tMax) {
+                mT3tIdentifiers.add(toHex(t3tIdentifier));
+            }
+        }
+    }
+
+    @Override
+    public void deregisterT3tIdentifier(byte[] t3tIdentifier) {
+        simulate(CMD_DEREGISTER_T3T);
+        synchronized (this) {
+            mT3tIdentifiers.remove(toHex(t3tIdentifier));
+        }
+    }
+
+    @Override
+    public synchronized void clearT3tIdentifiersCache() {
+        mT3tIdentifiers.clear();
+    }
+
+    @Override
+    public synchronized int getLfT3tMax() {
+        return mLfT3tMax;
+    }
+
+    @Override
+    public LlcpConnectionlessSocket createLlcpConnectionlessSocket(int nSap, String sn)
+            throws LlcpException {
+        LoopbackLlcpLink.Endpoint endpoint = mLlcpEndpoint;
+        if (endpoint == null) throw new LlcpException("LLCP is not supported");
+        return endpoint.createLlcpConnectionlessSocket(nSap, sn);
+    }
+
+    @Override
+    public LlcpServerSocket createLlcpServerSocket(int nSap, String sn, int miu, int rw,
+            int linearBufferLength) throws LlcpException {
+        LoopbackLlcpLink.Endpoint endpoint = mLlcpEndpoint;
+        if (endpoint == null) throw new LlcpException("LLCP is not supported");
+        return endpoint.createLlcpServerSocket(nSap, sn, miu, rw, linearBufferLength);
+    }
+
+    @Override
+    public LlcpSocket createLlcpSocket(int sap, int miu, int rw, int linearBufferLength)
+            throws LlcpException {
+        LoopbackLlcpLink.Endpoint endpoint = mLlcpEndpoint;
+        if (endpoint == null) throw new LlcpException("LLCP is not supported");
+        return endpoint.createLlcpSocket(sap, miu, rw, linearBufferLength);
+    }
+
+    @Override
+    public LlcpAsyncServerSocket createLlcpAsyncServerSocket(int nSap, String sn, int miu,
+            int rw, int linearBufferLength) throws LlcpException {
+        return mLlcpEventLoop.wrap(createLlcpServerSocket(nSap, sn, miu, rw, linearBufferLength));
+    }
+
+    @Override
+    public LlcpAsyncSocket createLlcpAsyncSocket(int sap, int miu, int rw,
+            int linearBufferLength) throws LlcpException {
+        return mLlcpEventLoop.wrap(createLlcpSocket(sap, miu, rw, linearBufferLength));
+    }
+
+    @Override
+    public void postLlcpEvent(Runnable task) {
+        mLlcpEventLoop.post(task);
+    }
+
+    @Override
+    public boolean doCheckLlcp() {
+        return mLlcpEndpoint != null;
+    }
+
+    @Override
+    public boolean doActivateLlcp() {
+        return false;
+    }
+
+    @Override
+    public void resetTimeouts() {}
+
+    @Override
+    public boolean setTimeout(int technology, int timeout) {
+        return true;
+    }
+
+    @Override
+    public int getTimeout(int technology) {
+        return 0;
+    }
+
+    @Override
+    public void doAbort(String msg) {
+        throw new IllegalStateException(msg);
+    }
+
+    @Override
+    public boolean canMakeReadOnly(int technology) {
+        return false;
+    }
+
+    @Override
+    public int getMaxTransceiveLength(int technology) {
+        return 261;
+    }
+
+    @Override
+    public void setP2pInitiatorModes(int modes) {}
+
+    @Override
+    public void setP2pTargetModes(int modes) {}
+
+    @Override
+    public boolean getExtendedLengthApdusSupported() {
+        return false;
+    }
+
+    @Override
+    public int getDefaultLlcpMiu() {
+        return 128;
+    }
+
+    @Override
+    public int getDefaultLlcpRwSize() {
+        return 1;
+    }
+
+    @Override
+    public void dump(FileDescriptor fd) {}
+
+    @Override
+    public boolean enableScreenOffSuspend() {
+        return true;
+    }
+
+    @Override
+    public boolean disableScreenOffSuspend() {
+        return true;
+    }
+
+    @Override
+    public void doSetScreenState(int screen_state_mask) {
+        simulate(CMD_SET_SCREEN_STATE);
+        synchronized (this) {
+            mScreenState = screen_state_mask;
+        }
+    }
+
+    @Override
+    public void enableDtaMode() {}
+
+    @Override
+    public void disableDtaMode() {}
+
+    @Override
+    public void factoryReset() {}
+
+    @Override
+    public void shutdown() {
+        shutdownController();
+    }
+
+    @Override
+    public boolean setNfcSecure(boolean enable) {
+        return true;
+    }
+
+    @Override
+    public String getNfaStorageDir() {
+        return null;
+    }
+
+    @Override
+    public byte[] getRoutingTable() {
+        return new byte[0];
+    }
+
+    @Override
+    public int getMaxRoutingTableSize() {
+        return mAidTableSize;
+    }
+
+    @Override
+    public void startStopPolling(boolean enable) {}
+
+    @Override
+    public void setNfceePowerAndLinkCtrl(boolean enable) {}
+}
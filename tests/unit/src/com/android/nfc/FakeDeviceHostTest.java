@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.tech.TagTechnology;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public final class FakeDeviceHostTest {
+    private static final String TAG = FakeDeviceHostTest.class.getSimpleName();
+
+    private static final int NUM_APDUS = 500;
+    private static final byte[] SW_OK = {(byte) 0x90, 0x00};
+
+    private FakeDeviceHost mHost;
+    private ExecutorService mHostExecutor;
+
+    /**
+     * Stands in for NfcService: HCE data is answered asynchronously from
+     * another thread, the way HostEmulationManager answers through its
+     * service connection.
+     */
+    private class EchoListener implements DeviceHost.DeviceHostListener {
+        final AtomicReference<DeviceHost.TagEndpoint> mTag = new AtomicReference<>();
+        final CountDownLatch mTagDiscovered = new CountDownLatch(1);
+        final CountDownLatch mHceDeactivated = new CountDownLatch(1);
+
+        @Override
+        public void onRemoteEndpointDiscovered(DeviceHost.TagEndpoint tag) {
+            mTag.set(tag);
+            mTagDiscovered.countDown();
+        }
+
+        @Override
+        public void onHostCardEmulationActivated(int technology) {}
+
+        @Override
+        public void onHostCardEmulationData(int technology, byte[] data) {
+            mHostExecutor.execute(() -> {
+                byte[] response = new byte[data.length + SW_OK.length];
+                System.arraycopy(data, 0, response, 0, data.length);
+                System.arraycopy(SW_OK, 0, response, data.length, SW_OK.length);
+                mHost.sendRawFrame(response);
+            });
+        }
+
+        @Override
+        public void onHostCardEmulationDeactivated(int technology) {
+            mHceDeactivated.countDown();
+        }
+
+        @Override
+        public void onLlcpLinkActivated(DeviceHost.NfcDepEndpoint device) {}
+
+        @Override
+        public void onLlcpLinkDeactivated(DeviceHost.NfcDepEndpoint device) {}
+
+        @Override
+        public void onLlcpFirstPacketReceived(DeviceHost.NfcDepEndpoint device) {}
+
+        @Override
+        public void onRemoteFieldActivated() {}
+
+        @Override
+        public void onRemoteFieldDeactivated() {}
+
+        @Override
+        public void onNfcTransactionEvent(byte[] aid, byte[] data, String seName) {}
+
+        @Override
+        public void onEeUpdated() {}
+
+        @Override
+        public void onHwErrorReported() {}
+    }
+
+    private EchoListener mListener;
+
+    @Before
+    public void setUp() {
+        mHostExecutor = Executors.newSingleThreadExecutor();
+        mListener = new EchoListener();
+        mHost = new FakeDeviceHost(mListener, 512, NfcService.NCI_VERSION_2_0);
+    }
+
+    @After
+    public void tearDown() {
+        mHost.shutdown();
+        mHostExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testHceReaderReplaysScript() throws Exception {
+        FakeHceReader reader = new FakeHceReader(TagTechnology.ISO_DEP);
+        for (int i = 0; i < NUM_APDUS; i++) {
+            byte[] command = {0x00, (byte) 0xB0, (byte) (i >> 8), (byte) i, 0x00};
+            byte[] expected = new byte[command.length + SW_OK.length];
+            System.arraycopy(command, 0, expected, 0, command.length);
+            System.arraycopy(SW_OK, 0, expected, command.length, SW_OK.length);
+            reader.addCommand(command, expected);
+        }
+
+        FakeHceReader.Result result = mHost.runHceReader(reader);
+
+        Log.i(TAG, NUM_APDUS + " APDUs: p50=" + result.getPercentileNs(50) / 1000
+                + "us p99=" + result.getPercentileNs(99) / 1000 + "us");
+        assertThat(result.getNumResponses()).isEqualTo(NUM_APDUS);
+        assertThat(result.getNumMismatches()).isEqualTo(0);
+        assertThat(result.getNumTimeouts()).isEqualTo(0);
+        assertThat(mListener.mHceDeactivated.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(mHost.getCommandCount(FakeDeviceHost.CMD_SEND_RAW_FRAME))
+                .isEqualTo(NUM_APDUS);
+    }
+
+    @Test
+    public void testHceReaderTimesOutWithoutResponse() throws Exception {
+        mHost.setListener(new EchoListener() {
+            @Override
+            public void onHostCardEmulationData(int technology, byte[] data) {}
+        });
+        FakeHceReader reader = new FakeHceReader(TagTechnology.ISO_DEP)
+                .setResponseTimeoutMs(20)
+                .addCommand(new byte[] {0x00, (byte) 0xA4, 0x04, 0x00}, null);
+
+        FakeHceReader.Result result = mHost.runHceReader(reader);
+
+        assertThat(result.getNumTimeouts()).isEqualTo(1);
+        assertThat(result.getLatenciesNs()[0]).isEqualTo(-1L);
+    }
+
+    @Test
+    public void testTagScriptedTransceiveAndRemoval() throws Exception {
+        byte[] select = {0x00, (byte) 0xA4, 0x04, 0x00, 0x02, 0x3F, 0x00};
+        FakeTagEndpoint tag = new FakeTagEndpoint(new int[] {TagTechnology.ISO_DEP},
+                new byte[] {0x04, 0x11, 0x22, 0x33})
+                .addResponse(select, SW_OK)
+                .setDefaultResponse(new byte[] {0x6A, (byte) 0x82})
+                .setTransceiveLatencyMs(2);
+
+        mHost.discoverTag(tag);
+        assertThat(mListener.mTagDiscovered.await(1, TimeUnit.SECONDS)).isTrue();
+        DeviceHost.TagEndpoint discovered = mListener.mTag.get();
+        assertThat(discovered.connect(TagTechnology.ISO_DEP)).isTrue();
+
+        int[] returnCode = new int[1];
+        assertThat(discovered.transceive(select, false, returnCode)).isEqualTo(SW_OK);
+        assertThat(returnCode[0]).isEqualTo(0);
+        assertThat(discovered.transceive(new byte[] {0x00}, false, returnCode))
+                .isEqualTo(new byte[] {0x6A, (byte) 0x82});
+
+        CountDownLatch disconnected = new CountDownLatch(1);
+        discovered.startPresenceChecking(5, handle -> disconnected.countDown());
+        tag.remove();
+        assertThat(disconnected.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(discovered.transceive(select, false, returnCode)).isNull();
+        assertThat(returnCode[0]).isEqualTo(1);
+    }
+
+    @Test
+    public void testCommandLatencyAndRoutingCapacity() {
+        mHost.setLatencyMs(FakeDeviceHost.CMD_COMMIT_ROUTING, 20);
+        // 42 entries of 12 bytes take 504 of the 512 bytes
+        for (int i = 0; i < 42; i++) {
+            mHost.routeAid(FakeDeviceHost.fromHex(String.format("A000000004%06X", i)), 0x86,
+                    0, 0x3B);
+        }
+        long start = System.nanoTime();
+        assertThat(mHost.commitRouting()).isTrue();
+        assertThat((System.nanoTime() - start) / 1000000).isAtLeast(20L);
+
+        mHost.routeAid(FakeDeviceHost.fromHex("A0000000050000"), 0x81, 0, 0x3B);
+        assertThat(mHost.commitRouting()).isFalse();
+        assertThat(mHost.getNumRejectedCommits()).isEqualTo(1);
+        assertThat(mHost.getCommittedRoutes()).hasSize(42);
+    }
+}
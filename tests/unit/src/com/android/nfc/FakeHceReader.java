@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reader that replays an APDU script against host card emulation through
+ * a FakeDeviceHost.
+ *
+ * Each command is delivered with onHostCardEmulationData() and the reader
+ * waits for the response the host sends back with sendRawFrame(), measuring
+ * the round trip like a reader would.
+ */
+public class FakeHceReader {
+    static final long DEFAULT_RESPONSE_TIMEOUT_MS = 1000;
+
+    static final class Step {
+        final byte[] mCommand;
+        final byte[] mExpectedResponse;
+
+        Step(byte[] command, byte[] expectedResponse) {
+            mCommand = command;
+            mExpectedResponse = expectedResponse;
+        }
+    }
+
+    public static final class Result {
+        final long[] mLatenciesNs;
+        final int mNumResponses;
+        final int mNumMismatches;
+        final int mNumTimeouts;
+
+        Result(long[] latenciesNs, int numResponses, int numMismatches, int numTimeouts) {
+            mLatenciesNs = latenciesNs;
+            mNumResponses = numResponses;
+            mNumMismatches = numMismatches;
+            mNumTimeouts = numTimeouts;
+        }
+
+        /** Round trip of each command, or -1 if it timed out. */
+        public long[] getLatenciesNs() {
+            return mLatenciesNs;
+        }
+
+        public int getNumResponses() {
+            return mNumResponses;
+        }
+
+        public int getNumMismatches() {
+            return mNumMismatches;
+        }
+
+        public int getNumTimeouts() {
+            return mNumTimeouts;
+        }
+
+        /** Latency at {@code percentile} (0-100) over the answered commands. */
+        public long getPercentileNs(int percentile) {
+            long[] answered = Arrays.stream(mLatenciesNs).filter(l -> l >= 0).sorted().toArray();
+            if (answered.length == 0) return -1;
+            int index = (int) Math.ceil(percentile / 100.0 * answered.length) - 1;
+            return answered[Math.max(0, Math.min(index, answered.length - 1))];
+        }
+    }
+
+    final int mTechnology;
+    final ArrayList<Step> mSteps = new ArrayList<>();
+    final LinkedBlockingQueue<byte[]> mResponses = new LinkedBlockingQueue<>();
+    long mResponseTimeoutMs = DEFAULT_RESPONSE_TIMEOUT_MS;
+    long mFrameDelayMs;
+
+    public FakeHceReader(int technology) {
+        mTechnology = technology;
+    }
+
+    /** Adds a command; a null {@code expectedResponse} accepts any response. */
+    public FakeHceReader addCommand(byte[] command, byte[] expectedResponse) {
+        mSteps.add(new Step(command, expectedResponse));
+        return this;
+    }
+
+    public FakeHceReader addCommands(List<byte[]> commands) {
+        for (byte[] command : commands) {
+            addCommand(command, null);
+        }
+        return this;
+    }
+
+    public FakeHceReader setResponseTimeoutMs(long ms) {
+        mResponseTimeoutMs = ms;
+        return this;
+    }
+
+    /** Delay between a response and the next command, like the reader's frame guard time. */
+    public FakeHceReader setFrameDelayMs(long ms) {
+        mFrameDelayMs = ms;
+        return this;
+    }
+
+    void onResponse(byte[] response) {
+        mResponses.offer(response);
+    }
+
+    Result run(FakeDeviceHost host) throws Exception {
+        DeviceHost.DeviceHostListener listener = host.mListener;
+        mResponses.clear();
+        host.post(() -> listener.onHostCardEmulationActivated(mTechnology));
+        long[] latenciesNs = new long[mSteps.size()];
+        int numResponses = 0;
+        int numMismatches = 0;
+        int numTimeouts = 0;
+        for (int i = 0; i < mSteps.size(); i++) {
+            Step step = mSteps.get(i);
+            long start = System.nanoTime();
+            host.post(() -> listener.onHostCardEmulationData(mTechnology, step.mCommand));
+            byte[] response = mResponses.poll(mResponseTimeoutMs, TimeUnit.MILLISECONDS);
+            if (response == null) {
+                latenciesNs[i] = -1;
+                numTimeouts++;
+                continue;
+            }
+            latenciesNs[i] = System.nanoTime() - start;
+            numResponses++;
+            if (step.mExpectedResponse != null
+                    && !Arrays.equals(step.mExpectedResponse, response)) {
+                numMismatches++;
+            }
+            if (mFrameDelayMs > 0) {
+                FakeDeviceHost.sleep(mFrameDelayMs);
+            }
+        }
+        host.post(() -> listener.onHostCardEmulationDeactivated(mTechnology));
+        host.drain();
+        return new Result(latenciesNs, numResponses, numMismatches, numTimeouts);
+    }
+}
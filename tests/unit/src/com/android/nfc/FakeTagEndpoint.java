@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import android.nfc.NdefMessage;
+import android.os.Bundle;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tag with scripted transceive responses, to be brought into the field of
+ * a FakeDeviceHost.
+ *
+ * Commands are looked up by their hex encoding; unscripted commands get the
+ * default response, or a transceive failure if there is none.
+ */
+public class FakeTagEndpoint implements DeviceHost.TagEndpoint {
+    static final AtomicInteger sNextHandle = new AtomicInteger(1);
+
+    final int mHandle = sNextHandle.getAndIncrement();
+    final int[] mTechList;
+    final byte[] mUid;
+    final ConcurrentHashMap<String, byte[]> mResponses = new ConcurrentHashMap<>();
+    volatile byte[] mDefaultResponse;
+    volatile long mTransceiveLatencyMs;
+    volatile NdefMessage mNdefMessage;
+    volatile boolean mPresent = true;
+    volatile int mConnectedTechnology = -1;
+    final AtomicInteger mNumTransceives = new AtomicInteger();
+    Thread mPresenceThread;
+
+    public FakeTagEndpoint(int[] techList, byte[] uid) {
+        mTechList = techList;
+        mUid = uid;
+    }
+
+    public FakeTagEndpoint addResponse(byte[] command, byte[] response) {
+        mResponses.put(FakeDeviceHost.toHex(command), response);
+        return this;
+    }
+
+    public FakeTagEndpoint setDefaultResponse(byte[] response) {
+        mDefaultResponse = response;
+        return this;
+    }
+
+    public FakeTagEndpoint setTransceiveLatencyMs(long ms) {
+        mTransceiveLatencyMs = ms;
+        return this;
+    }
+
+    public FakeTagEndpoint setNdefMessage(NdefMessage message) {
+        mNdefMessage = message;
+        return this;
+    }
+
+    /** Takes the tag out of the field; presence checks fail from now on. */
+    public void remove() {
+        mPresent = false;
+    }
+
+    public int getNumTransceives() {
+        return mNumTransceives.get();
+    }
+
+    @Override
+    public boolean connect(int technology) {
+        if (!mPresent) return false;
+        for (int tech : mTechList) {
+            if (tech == technology) {
+                mConnectedTechnology = technology;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean reconnect() {
+        return mPresent;
+    }
+
+    @Override
+    public boolean disconnect() {
+        stopPresenceChecking();
+        mConnectedTechnology = -1;
+        return true;
+    }
+
+    @Override
+    public boolean presenceCheck() {
+        return mPresent;
+    }
+
+    @Override
+    public boolean isPresent() {
+        return mPresent;
+    }
+
+    @Override
+    public synchronized void startPresenceChecking(int presenceCheckDelay,
+            DeviceHost.TagDisconnectedCallback callback) {
+        if (mPresenceThread != null) return;
+        mPresenceThread = new Thread(() -> {
+            while (mPresent) {
+                FakeDeviceHost.sleep(presenceCheckDelay);
+                if (Thread.currentThread().isInterrupted()) return;
+            }
+            if (callback != null) {
+                callback.onTagDisconnected(mHandle);
+            }
+        }, "FakeTagPresence");
+        mPresenceThread.start();
+    }
+
+    @Override
+    public synchronized void stopPresenceChecking() {
+        if (mPresenceThread != null) {
+            mPresenceThread.interrupt();
+            mPresenceThread = null;
+        }
+    }
+
+    @Override
+    public int[] getTechList() {
+        return mTechList;
+    }
+
+    @Override
+    public void removeTechnology(int tech) {}
+
+    @Override
+    public Bundle[] getTechExtras() {
+        Bundle[] extras = new Bundle[mTechList.length];
+        for (int i = 0; i < extras.length; i++) {
+            extras[i] = new Bundle();
+        }
+        return extras;
+    }
+
+    @Override
+    public byte[] getUid() {
+        return mUid;
+    }
+
+    @Override
+    public int getHandle() {
+        return mHandle;
+    }
+
+    @Override
+    public byte[] transceive(byte[] data, boolean raw, int[] returnCode) {
+        mNumTransceives.incrementAndGet();
+        if (mTransceiveLatencyMs > 0) {
+            FakeDeviceHost.sleep(mTransceiveLatencyMs);
+        }
+        byte[] response = mPresent ? mResponses.get(FakeDeviceHost.toHex(data)) : null;
+        if (response == null && mPresent) {
+            response = mDefaultResponse;
+        }
+        if (returnCode != null && returnCode.length > 0) {
+            returnCode[0] = response != null ? 0 : 1;
+        }
+        return response;
+    }
+
+    @Override
+    public boolean checkNdef(int[] out) {
+        if (mNdefMessage == null) return false;
+        if (out != null && out.length >= 2) {
+            // Max size and card state (read/write)
+            out[0] = mNdefMessage.getByteArrayLength();
+            out[1] = 2;
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] readNdef() {
+        NdefMessage message = mNdefMessage;
+        return message != null ? message.toByteArray() : null;
+    }
+
+    @Override
+    public boolean writeNdef(byte[] data) {
+        try {
+            mNdefMessage = new NdefMessage(data);
+            return true;
+        } catch (android.nfc.FormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public NdefMessage findAndReadNdef() {
+        return mNdefMessage;
+    }
+
+    @Override
+    public boolean formatNdef(byte[] key) {
+        return false;
+    }
+
+    @Override
+    public boolean isNdefFormatable() {
+        return false;
+    }
+
+    @Override
+    public boolean makeReadOnly() {
+        return false;
+    }
+
+    @Override
+    public int getConnectedTechnology() {
+        return mConnectedTechnology;
+    }
+
+    @Override
+    public void findNdef() {}
+}
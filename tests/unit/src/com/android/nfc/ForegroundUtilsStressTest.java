@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(AndroidJUnit4.class)
+public final class ForegroundUtilsStressTest {
+    private static final String TAG = ForegroundUtilsStressTest.class.getSimpleName();
+
+    // Synthetic UIDs that do not belong to any installed package, so real
+    // importance callbacks cannot interfere with the replayed stream.
+    private static final int BASE_UID = 1990000;
+    private static final int NUM_UIDS = 256;
+    private static final int NUM_EVENTS = 200000;
+    private static final int NUM_READERS = 4;
+
+    private static final int[] IMPORTANCES = {
+        RunningAppProcessInfo.IMPORTANCE_FOREGROUND,
+        RunningAppProcessInfo.IMPORTANCE_FOREGROUND_SERVICE,
+        RunningAppProcessInfo.IMPORTANCE_VISIBLE,
+        RunningAppProcessInfo.IMPORTANCE_SERVICE,
+        RunningAppProcessInfo.IMPORTANCE_CACHED,
+        RunningAppProcessInfo.IMPORTANCE_GONE,
+    };
+
+    private ForegroundUtils mForegroundUtils;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        // Not registered with ActivityManager, so that instances of earlier
+        // tests are not kept alive and fed real importance changes
+        mForegroundUtils = new ForegroundUtils(
+                context.getSystemService(ActivityManager.class), false);
+    }
+
+    @Test
+    public void testReplayImportanceStreamMatchesModel() throws Exception {
+        boolean[] model = new boolean[NUM_UIDS];
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong queries = new AtomicLong();
+        Thread[] readers = new Thread[NUM_READERS];
+        for (int i = 0; i < NUM_READERS; i++) {
+            final int seed = i;
+            readers[i] = new Thread(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                while (!done.get()) {
+                    mForegroundUtils.isUidInForegroundSet(BASE_UID + random.nextInt(NUM_UIDS));
+                    mForegroundUtils.getForegroundUidsSnapshot();
+                    count++;
+                }
+                queries.addAndGet(count);
+            });
+            readers[i].start();
+        }
+
+        // Most transitions in a real stream are between the top app and
+        // visible/service states, with an occasional process death.
+        Random random = new Random(42);
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < NUM_EVENTS; i++) {
+            int index = random.nextInt(NUM_UIDS);
+            int importance = IMPORTANCES[random.nextInt(10) < 4 ? 0
+                    : 1 + random.nextInt(IMPORTANCES.length - 1)];
+            mForegroundUtils.onUidImportance(BASE_UID + index, importance);
+            model[index] = importance == RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - start;
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        Log.i(TAG, NUM_EVENTS + " importance changes in " + elapsedNs / 1000000 + "ms ("
+                + elapsedNs / NUM_EVENTS + "ns/event), " + queries.get()
+                + " concurrent queries");
+
+        for (int i = 0; i < NUM_UIDS; i++) {
+            assertThat(mForegroundUtils.isUidInForegroundSet(BASE_UID + i)).isEqualTo(model[i]);
+        }
+        int[] snapshot = mForegroundUtils.getForegroundUidsSnapshot();
+        for (int i = 1; i < snapshot.length; i++) {
+            assertThat(snapshot[i]).isGreaterThan(snapshot[i - 1]);
+        }
+    }
+
+    @Test
+    public void testBackgroundCallbackFiresOnce() {
+        int uid = BASE_UID;
+        AtomicInteger calls = new AtomicInteger();
+        mForegroundUtils.onUidImportance(uid, RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
+        assertThat(mForegroundUtils.registerUidToBackgroundCallback(
+                u -> calls.incrementAndGet(), uid)).isTrue();
+
+        mForegroundUtils.onUidImportance(uid, RunningAppProcessInfo.IMPORTANCE_VISIBLE);
+        mForegroundUtils.onUidImportance(uid, RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
+        mForegroundUtils.onUidImportance(uid, RunningAppProcessInfo.IMPORTANCE_VISIBLE);
+
+        assertThat(calls.get()).isEqualTo(1);
+    }
+}
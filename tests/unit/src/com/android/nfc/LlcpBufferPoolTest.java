@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public final class LlcpBufferPoolTest {
+    private static final String TAG = LlcpBufferPoolTest.class.getSimpleName();
+
+    @Test
+    public void testReusesReleasedBuffersOfTheSameLength() {
+        LlcpBufferPool pool = new LlcpBufferPool(2);
+
+        byte[] first = pool.acquire(128);
+        pool.release(first);
+        byte[] second = pool.acquire(128);
+        byte[] other = pool.acquire(248);
+
+        assertThat(second).isSameInstanceAs(first);
+        assertThat(other).hasLength(248);
+        assertThat(pool.mReused).isEqualTo(1);
+        assertThat(pool.mAllocated).isEqualTo(2);
+    }
+
+    @Test
+    public void testKeepsALimitedNumberOfBuffers() {
+        LlcpBufferPool pool = new LlcpBufferPool(2);
+
+        pool.release(new byte[128]);
+        pool.release(new byte[128]);
+        pool.release(new byte[128]);
+        pool.release(new byte[LlcpBufferPool.MAX_POOLED_LENGTH + 1]);
+
+        assertThat(pool.getPooledCount()).isEqualTo(2);
+        assertThat(pool.mDropped).isEqualTo(2);
+
+        pool.clear();
+
+        assertThat(pool.getPooledCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testConnectionlessReceiveReusesThePacketBuffer() throws Exception {
+        LoopbackLlcpLink link = new LoopbackLlcpLink();
+        DeviceHost.LlcpConnectionlessSocket sender =
+                link.getLocal().createLlcpConnectionlessSocket(0x12, null);
+        DeviceHost.LlcpConnectionlessSocket receiver =
+                link.getRemote().createLlcpConnectionlessSocket(0x13, null);
+        LlcpPacket packet = new LlcpPacket();
+
+        sender.send(0x13, new byte[] {1, 2, 3});
+        sender.send(0x13, new byte[] {4});
+        assertThat(receiver.receive(packet)).isEqualTo(3);
+        byte[] buffer = packet.getDataBuffer();
+        assertThat(receiver.receive(packet)).isEqualTo(1);
+
+        assertThat(packet.getDataBuffer()).isSameInstanceAs(buffer);
+        assertThat(buffer.length).isAtLeast(receiver.getLinkMiu());
+        assertThat(packet.getDataLength()).isEqualTo(1);
+        assertThat(buffer[0]).isEqualTo((byte) 4);
+        assertThat(packet.getRemoteSap()).isEqualTo(0x12);
+        sender.close();
+        receiver.close();
+    }
+}
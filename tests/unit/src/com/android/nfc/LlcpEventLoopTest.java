@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.LlcpAsyncServerSocket;
+import com.android.nfc.DeviceHost.LlcpAsyncSocket;
+import com.android.nfc.DeviceHost.LlcpCompletion;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+@RunWith(AndroidJUnit4.class)
+public final class LlcpEventLoopTest {
+    private static final String TAG = LlcpEventLoopTest.class.getSimpleName();
+
+    private static final String SERVICE_NAME = "urn:nfc:sn:async-echo";
+    private static final int SERVICE_SAP = 0x11;
+    private static final int MIU = 128;
+    private static final int CLIENTS = 8;
+    private static final int MESSAGES = 50;
+    // Enough for the receive, send and accept of every server side socket
+    private static final int SERVER_THREADS = 2 * CLIENTS + 1;
+
+    private LoopbackLlcpLink mLink;
+    private FakeDeviceHost mHost;
+    private LlcpEventLoop mServerLoop;
+    private final AtomicInteger mOffThreadCompletions = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        mLink = new LoopbackLlcpLink();
+        mHost = new FakeDeviceHost(0, NfcService.NCI_VERSION_2_0);
+        mHost.setLlcpEndpoint(mLink.getLocal());
+        mServerLoop = new LlcpEventLoop("TestLlcpLoop",
+                new LlcpServiceRuntime(SERVER_THREADS, CLIENTS));
+    }
+
+    @After
+    public void tearDown() {
+        mHost.shutdownController();
+    }
+
+    /** Returns a completion that runs {@code onComplete} and ignores errors. */
+    private <T> LlcpCompletion<T> on(Consumer<T> onComplete) {
+        return new LlcpCompletion<T>() {
+            @Override
+            public void onComplete(T result) {
+                if (!mServerLoop.isEventThread()) mOffThreadCompletions.incrementAndGet();
+                onComplete.accept(result);
+            }
+
+            @Override
+            public void onError(IOException e) {
+                if (!mServerLoop.isEventThread()) mOffThreadCompletions.incrementAndGet();
+            }
+        };
+    }
+
+    private static <T> LlcpCompletion<T> into(CompletableFuture<T> future) {
+        return new LlcpCompletion<T>() {
+            @Override
+            public void onComplete(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onError(IOException e) {
+                future.completeExceptionally(e);
+            }
+        };
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        return future.get(5, TimeUnit.SECONDS);
+    }
+
+    /** Starts an echo server whose every step runs on the event thread. */
+    private LlcpAsyncServerSocket startEchoServer() throws Exception {
+        LlcpAsyncServerSocket server = mServerLoop.wrap(mLink.getRemote().createLlcpServerSocket(
+                SERVICE_SAP, SERVICE_NAME, MIU, 2, 1024));
+        acceptNext(server);
+        return server;
+    }
+
+    private void acceptNext(LlcpAsyncServerSocket server) {
+        server.accept(on(socket -> {
+            echoNext(socket, new byte[socket.getLocalMiu()]);
+            acceptNext(server);
+        }));
+    }
+
+    private void echoNext(LlcpAsyncSocket socket, byte[] buffer) {
+        socket.receive(buffer, on(size -> {
+            if (size < 0) {
+                socket.close();
+                return;
+            }
+            socket.send(Arrays.copyOf(buffer, size), on(result -> {}));
+            echoNext(socket, buffer);
+        }));
+    }
+
+    private LlcpAsyncSocket connect() throws Exception {
+        LlcpAsyncSocket socket = mHost.createLlcpAsyncSocket(0, MIU, 2, 1024);
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        socket.connectToService(SERVICE_NAME, into(connected));
+        await(connected);
+        return socket;
+    }
+
+    @Test
+    public void testServesConnectionsFromTheEventThread() throws Exception {
+        LlcpAsyncServerSocket server = startEchoServer();
+        ArrayList<LlcpAsyncSocket> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            clients.add(connect());
+        }
+
+        // Every send and receive is issued up front, they complete in order
+        ArrayList<CompletableFuture<Integer>> received = new ArrayList<>();
+        byte[][] buffers = new byte[CLIENTS * MESSAGES][];
+        for (int m = 0; m < MESSAGES; m++) {
+            for (int c = 0; c < CLIENTS; c++) {
+                LlcpAsyncSocket client = clients.get(c);
+                client.send(new byte[] {(byte) c, (byte) m}, into(new CompletableFuture<>()));
+                byte[] buffer = new byte[MIU];
+                buffers[received.size()] = buffer;
+                CompletableFuture<Integer> future = new CompletableFuture<>();
+                client.receive(buffer, into(future));
+                received.add(future);
+            }
+        }
+        for (int i = 0; i < received.size(); i++) {
+            assertThat(await(received.get(i))).isEqualTo(2);
+            assertThat(buffers[i][0]).isEqualTo((byte) (i % CLIENTS));
+            assertThat(buffers[i][1]).isEqualTo((byte) (i / CLIENTS));
+        }
+
+        for (LlcpAsyncSocket client : clients) {
+            client.close();
+        }
+        server.close();
+        assertThat(mOffThreadCompletions.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCloseFailsWaitingOperations() throws Exception {
+        LlcpAsyncServerSocket server = startEchoServer();
+        LlcpAsyncSocket client = connect();
+        CompletableFuture<Integer> inProgress = new CompletableFuture<>();
+        CompletableFuture<Integer> waiting = new CompletableFuture<>();
+        client.receive(new byte[MIU], into(inProgress));
+        client.receive(new byte[MIU], into(waiting));
+
+        client.close();
+
+        ExecutionException failed = null;
+        try {
+            await(waiting);
+        } catch (ExecutionException e) {
+            failed = e;
+        }
+        assertThat(failed).isNotNull();
+        // Whether or not it had started, the first receive is over too
+        int size;
+        try {
+            size = await(inProgress);
+        } catch (ExecutionException e) {
+            size = -1;
+        }
+        assertThat(size).isEqualTo(-1);
+
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        client.send(new byte[1], into(sent));
+        failed = null;
+        try {
+            await(sent);
+        } catch (ExecutionException e) {
+            failed = e;
+        }
+        assertThat(failed).isNotNull();
+        server.close();
+    }
+
+    @Test
+    public void testFailsCallsWithoutAThread() throws Exception {
+        LlcpEventLoop loop = new LlcpEventLoop("BoundedLlcpLoop", new LlcpServiceRuntime(1, 1));
+        LlcpAsyncServerSocket server = loop.wrap(mLink.getRemote().createLlcpServerSocket(
+                SERVICE_SAP, SERVICE_NAME, MIU, 2, 1024));
+        CompletableFuture<LlcpAsyncSocket> accepted = new CompletableFuture<>();
+        // Holds the only thread until a client connects
+        server.accept(into(accepted));
+        LlcpAsyncSocket socket = loop.wrap(mLink.getLocal().createLlcpSocket(0, MIU, 2, 1024));
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+
+        socket.connectToService(SERVICE_NAME, into(connected));
+
+        ExecutionException failed = null;
+        try {
+            await(connected);
+        } catch (ExecutionException e) {
+            failed = e;
+        }
+        assertThat(failed).isNotNull();
+        assertThat(accepted.isDone()).isFalse();
+        server.close();
+    }
+
+    @Test
+    public void testPostRunsOnTheEventThread() throws Exception {
+        CompletableFuture<Boolean> onEventThread = new CompletableFuture<>();
+
+        mHost.postLlcpEvent(() -> onEventThread.complete(mHost.mLlcpEventLoop.isEventThread()));
+
+        assertThat(await(onEventThread)).isTrue();
+    }
+}
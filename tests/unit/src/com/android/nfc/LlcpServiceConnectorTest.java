@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public final class LlcpServiceConnectorTest {
+    private static final String TAG = LlcpServiceConnectorTest.class.getSimpleName();
+
+    private static final int CONNECT_MS = 100;
+
+    private ExecutorService mExecutor;
+    private LlcpServiceConnector mConnector;
+
+    /** A service of the simulated peer, answering connects after a delay. */
+    private static final class PeerService implements LlcpServiceConnector.Connection {
+        final long mDelayMs;
+        final boolean mAvailable;
+        final CountDownLatch mClosed = new CountDownLatch(1);
+        volatile boolean mConnected;
+
+        PeerService(long delayMs, boolean available) {
+            mDelayMs = delayMs;
+            mAvailable = available;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            SystemClock.sleep(mDelayMs);
+            if (!mAvailable) {
+                throw new IOException("Service not available");
+            }
+            mConnected = true;
+        }
+
+        @Override
+        public void close() {
+            mConnected = false;
+            mClosed.countDown();
+        }
+
+        boolean awaitClosed() throws InterruptedException {
+            return mClosed.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newCachedThreadPool();
+        mConnector = new LlcpServiceConnector(mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testConnectsServicesConcurrently() {
+        long serialMs = 0;
+        long concurrentMs = 0;
+        for (boolean concurrent : new boolean[] {false, true}) {
+            // The handover service is missing, so both NDEF transports may be needed
+            PeerService handover = new PeerService(CONNECT_MS, false);
+            PeerService snep = new PeerService(CONNECT_MS, false);
+            PeerService npp = new PeerService(CONNECT_MS, true);
+            long start = SystemClock.elapsedRealtime();
+            LlcpServiceConnector.Result result =
+                    mConnector.connect(handover, snep, npp, true, concurrent);
+            long elapsedMs = SystemClock.elapsedRealtime() - start;
+            if (concurrent) {
+                concurrentMs = elapsedMs;
+            } else {
+                serialMs = elapsedMs;
+            }
+
+            assertThat(result.get(LlcpServiceConnector.SERVICE_NPP)).isSameInstanceAs(npp);
+            assertThat(result.getLatencyNs(LlcpServiceConnector.SERVICE_SNEP))
+                    .isAtLeast(TimeUnit.MILLISECONDS.toNanos(CONNECT_MS));
+        }
+        Log.i(TAG, "serial=" + serialMs + "ms concurrent=" + concurrentMs + "ms");
+        assertThat(serialMs).isAtLeast(3L * CONNECT_MS);
+        assertThat(concurrentMs).isLessThan(2L * CONNECT_MS);
+
+        StringWriter out = new StringWriter();
+        mConnector.dump(new PrintWriter(out, true));
+        assertThat(out.toString()).contains("npp: attempts=2 connected=2");
+    }
+
+    @Test
+    public void testPrefersSnepOverFasterNpp() throws Exception {
+        PeerService snep = new PeerService(CONNECT_MS, true);
+        PeerService npp = new PeerService(0, true);
+
+        LlcpServiceConnector.Result result = mConnector.connect(null, snep, npp, true, true);
+
+        assertThat(result.get(LlcpServiceConnector.SERVICE_SNEP)).isSameInstanceAs(snep);
+        assertThat(result.get(LlcpServiceConnector.SERVICE_NPP)).isNull();
+        assertThat(result.getLatencyNs(LlcpServiceConnector.SERVICE_HANDOVER)).isEqualTo(-1L);
+        assertThat(npp.awaitClosed()).isTrue();
+    }
+
+    @Test
+    public void testFallsBackToNppWhenSnepFails() {
+        PeerService snep = new PeerService(0, false);
+        PeerService npp = new PeerService(CONNECT_MS, true);
+
+        LlcpServiceConnector.Result result = mConnector.connect(null, snep, npp, true, true);
+
+        assertThat(result.get(LlcpServiceConnector.SERVICE_SNEP)).isNull();
+        assertThat(result.get(LlcpServiceConnector.SERVICE_NPP)).isSameInstanceAs(npp);
+        assertThat(npp.mConnected).isTrue();
+    }
+
+    @Test
+    public void testHandoverOnlyCancelsSlowerNdefTransports() throws Exception {
+        PeerService handover = new PeerService(0, true);
+        PeerService snep = new PeerService(5 * CONNECT_MS, true);
+        PeerService npp = new PeerService(5 * CONNECT_MS, true);
+
+        long start = SystemClock.elapsedRealtime();
+        LlcpServiceConnector.Result result =
+                mConnector.connect(handover, snep, npp, false, true);
+        long elapsedMs = SystemClock.elapsedRealtime() - start;
+
+        assertThat(elapsedMs).isLessThan(5L * CONNECT_MS);
+        assertThat(result.get(LlcpServiceConnector.SERVICE_HANDOVER)).isSameInstanceAs(handover);
+        assertThat(result.get(LlcpServiceConnector.SERVICE_SNEP)).isNull();
+        assertThat(result.get(LlcpServiceConnector.SERVICE_NPP)).isNull();
+        // The cancelled connections are closed once they come up
+        assertThat(snep.awaitClosed()).isTrue();
+        assertThat(npp.awaitClosed()).isTrue();
+        assertThat(snep.mConnected).isFalse();
+    }
+
+    @Test
+    public void testKeepsSnepNextToHandoverForNdef() {
+        PeerService handover = new PeerService(0, true);
+        PeerService snep = new PeerService(CONNECT_MS, true);
+        PeerService npp = new PeerService(0, true);
+
+        LlcpServiceConnector.Result result = mConnector.connect(handover, snep, npp, true, true);
+
+        assertThat(result.get(LlcpServiceConnector.SERVICE_HANDOVER)).isSameInstanceAs(handover);
+        assertThat(result.get(LlcpServiceConnector.SERVICE_SNEP)).isSameInstanceAs(snep);
+        assertThat(result.get(LlcpServiceConnector.SERVICE_NPP)).isNull();
+    }
+
+    @Test
+    public void testSerialConnectSkipsUnneededServices() {
+        PeerService handover = new PeerService(0, true);
+        PeerService snep = new PeerService(0, true);
+        PeerService npp = new PeerService(0, true);
+
+        LlcpServiceConnector.Result result = mConnector.connect(handover, snep, npp, true, false);
+
+        assertThat(result.get(LlcpServiceConnector.SERVICE_SNEP)).isSameInstanceAs(snep);
+        assertThat(result.getLatencyNs(LlcpServiceConnector.SERVICE_NPP)).isEqualTo(-1L);
+        assertThat(npp.mConnected).isFalse();
+    }
+
+    @Test
+    public void testInterruptClosesEverything() throws Exception {
+        PeerService handover = new PeerService(0, true);
+        PeerService snep = new PeerService(5 * CONNECT_MS, true);
+        PeerService npp = new PeerService(5 * CONNECT_MS, true);
+        Thread caller = Thread.currentThread();
+        mExecutor.execute(() -> {
+            SystemClock.sleep(CONNECT_MS);
+            caller.interrupt();
+        });
+
+        LlcpServiceConnector.Result result = mConnector.connect(handover, snep, npp, true, true);
+
+        assertThat(Thread.interrupted()).isTrue();
+        assertThat(result).isNull();
+        assertThat(handover.awaitClosed()).isTrue();
+        assertThat(snep.awaitClosed()).isTrue();
+        assertThat(npp.awaitClosed()).isTrue();
+    }
+}
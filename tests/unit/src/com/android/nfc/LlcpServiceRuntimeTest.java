@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.LlcpSocket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+@RunWith(AndroidJUnit4.class)
+public final class LlcpServiceRuntimeTest {
+    private static final String TAG = LlcpServiceRuntimeTest.class.getSimpleName();
+
+    private static final String SERVICE_NAME = "urn:nfc:sn:runtime-test";
+    private static final int MAX_CONNECTIONS = 2;
+    private static final long TIMEOUT_MS = 5000;
+
+    private LoopbackLlcpLink mLink;
+
+    @Before
+    public void setUp() {
+        mLink = new LoopbackLlcpLink();
+    }
+
+    private LlcpSocket newSocket() throws Exception {
+        return mLink.getLocal().createLlcpSocket(0, 128, 1, 1024);
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) {
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertThat(SystemClock.elapsedRealtime()).isLessThan(deadline);
+            SystemClock.sleep(1);
+        }
+    }
+
+    /** Hands over connections whose handlers wait for {@code release}. */
+    private static Runnable acceptLoop(LlcpServiceRuntime runtime, ArrayList<LlcpSocket> sockets,
+            CountDownLatch release, CompletableFuture<Integer> handedOver) {
+        return () -> {
+            int count = 0;
+            for (LlcpSocket socket : sockets) {
+                boolean handled = runtime.runConnection(SERVICE_NAME, socket, () -> {
+                    try {
+                        release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // Done
+                    }
+                });
+                if (!handled) break;
+                count++;
+            }
+            handedOver.complete(count);
+        };
+    }
+
+    @Test
+    public void testAcceptLoopWaitsAtTheConnectionLimit() throws Exception {
+        LlcpServiceRuntime runtime = new LlcpServiceRuntime(8, MAX_CONNECTIONS);
+        ArrayList<LlcpSocket> sockets = new ArrayList<>();
+        for (int i = 0; i < MAX_CONNECTIONS + 1; i++) {
+            sockets.add(newSocket());
+        }
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> handedOver = new CompletableFuture<>();
+
+        assertThat(runtime.startServer(SERVICE_NAME,
+                acceptLoop(runtime, sockets, release, handedOver))).isTrue();
+
+        awaitCondition(() -> runtime.getActiveConnections(SERVICE_NAME) == MAX_CONNECTIONS);
+        // The last connection stays in the backlog of the accept loop
+        SystemClock.sleep(50);
+        assertThat(handedOver.isDone()).isFalse();
+        assertThat(runtime.getActiveConnections(SERVICE_NAME)).isEqualTo(MAX_CONNECTIONS);
+
+        release.countDown();
+
+        assertThat(handedOver.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                .isEqualTo(MAX_CONNECTIONS + 1);
+        awaitCondition(() -> runtime.getActiveConnections(SERVICE_NAME) == 0);
+        synchronized (runtime) {
+            LlcpServiceRuntime.Service service = runtime.mServices.get(SERVICE_NAME);
+            assertThat(service.mHandled).isEqualTo(MAX_CONNECTIONS + 1);
+            assertThat(service.mWaits).isEqualTo(1);
+            assertThat(service.mRejected).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testStartServerFailsWithoutAThread() throws Exception {
+        LlcpServiceRuntime runtime = new LlcpServiceRuntime(1, MAX_CONNECTIONS);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Done
+            }
+        };
+
+        assertThat(runtime.startServer(SERVICE_NAME, blocked)).isTrue();
+        assertThat(runtime.startServer(SERVICE_NAME, () -> {})).isFalse();
+
+        synchronized (runtime) {
+            assertThat(runtime.mServices.get(SERVICE_NAME).mServers).isEqualTo(1);
+        }
+        release.countDown();
+        awaitCondition(() -> {
+            synchronized (runtime) {
+                return runtime.mServices.get(SERVICE_NAME).mServers == 0;
+            }
+        });
+    }
+
+    @Test
+    public void testStopServerWakesAWaitingAcceptLoop() throws Exception {
+        LlcpServiceRuntime runtime = new LlcpServiceRuntime(8, MAX_CONNECTIONS);
+        ArrayList<LlcpSocket> sockets = new ArrayList<>();
+        for (int i = 0; i < MAX_CONNECTIONS + 1; i++) {
+            sockets.add(newSocket());
+        }
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> handedOver = new CompletableFuture<>();
+        Runnable loop = acceptLoop(runtime, sockets, release, handedOver);
+        assertThat(runtime.startServer(SERVICE_NAME, loop)).isTrue();
+        awaitCondition(() -> runtime.getActiveConnections(SERVICE_NAME) == MAX_CONNECTIONS);
+        awaitCondition(() -> {
+            synchronized (runtime) {
+                return runtime.mServices.get(SERVICE_NAME).mWaits == 1;
+            }
+        });
+
+        runtime.stopServer(loop);
+
+        // The loop returns while the handlers still run
+        assertThat(handedOver.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isEqualTo(MAX_CONNECTIONS);
+        assertThat(runtime.getActiveConnections(SERVICE_NAME)).isEqualTo(MAX_CONNECTIONS);
+        awaitCondition(() -> {
+            synchronized (runtime) {
+                return runtime.mAcceptThreads.isEmpty();
+            }
+        });
+        release.countDown();
+        awaitCondition(() -> runtime.getActiveConnections(SERVICE_NAME) == 0);
+        // Stopping a server that already returned does nothing
+        runtime.stopServer(loop);
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory LLCP link between two devices, for tests and benchmarks of the
+ * P2P services without NFC hardware.
+ *
+ * Each end of the link is an {@link Endpoint}, which creates sockets like the
+ * LLCP methods of DeviceHost; {@link FakeDeviceHost#setLlcpEndpoint} plugs one
+ * into a fake controller. Servers bind a SAP and optionally a service name,
+ * client sockets connect to either on the other end, and connections honour
+ * the MIU and receive window of each side.
+ *
+ * The link can be slowed down. Every PDU occupies the half-duplex medium for
+ * its length at the configured bandwidth, then arrives after the configured
+ * latency. A lost I PDU costs a retransmission, a lost UI PDU is gone.
+ */
+public class LoopbackLlcpLink {
+    /** The MIU every LLCP link supports without negotiation */
+    public static final int DEFAULT_MIU = 128;
+    // Header of an I PDU: DSAP, PTYPE, SSAP and sequence
+    static final int PDU_HEADER_LENGTH = 3;
+    // Payload of the CONNECT and CC PDUs, with the MIUX, RW and SN parameters
+    static final int CONNECT_PDU_LENGTH = 32;
+
+    static final int FIRST_SDP_SAP = 0x10;
+    static final int FIRST_CLIENT_SAP = 0x20;
+    static final int LAST_SAP = 0x3F;
+
+    final Endpoint mLocal;
+    final Endpoint mRemote;
+    final int mLinkMiu;
+
+    volatile long mPduLatencyNs;
+    volatile long mBytesPerSecond;
+    volatile double mLossRate;
+
+    // Locked on mMedium
+    final Object mMedium = new Object();
+    final Random mRandom;
+
+    final AtomicLong mPdus = new AtomicLong();
+    final AtomicLong mBytes = new AtomicLong();
+    final AtomicLong mLostPdus = new AtomicLong();
+
+    public LoopbackLlcpLink() {
+        this(DEFAULT_MIU, 0);
+    }
+
+    /**
+     * @param linkMiu the MIU of the link, which bounds connectionless PDUs
+     * @param seed the seed of the simulated losses
+     */
+    public LoopbackLlcpLink(int linkMiu, long seed) {
+        mLinkMiu = linkMiu;
+        mRandom = new Random(seed);
+        mLocal = new Endpoint();
+        mRemote = new Endpoint();
+        mLocal.mPeer = mRemote;
+        mRemote.mPeer = mLocal;
+    }
+
+    /** The end of the device under test. */
+    public Endpoint getLocal() {
+        return mLocal;
+    }
+
+    /** The end of the simulated peer. */
+    public Endpoint getRemote() {
+        return mRemote;
+    }
+
+    /** Makes every PDU arrive {@code us} after it was sent. */
+    public void setPduLatencyUs(long us) {
+        mPduLatencyNs = TimeUnit.MICROSECONDS.toNanos(us);
+    }
+
+    /** Limits the link to {@code bytesPerSecond}, or lifts the limit with 0. */
+    public void setBandwidth(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Loses each PDU with the given probability, below 1. */
+    public void setLossRate(double lossRate) {
+        if (lossRate < 0 || lossRate >= 1) {
+            throw new IllegalArgumentException("Loss rate must be in [0, 1)");
+        }
+        mLossRate = lossRate;
+    }
+
+    public long getPduCount() {
+        return mPdus.get();
+    }
+
+    public long getByteCount() {
+        return mBytes.get();
+    }
+
+    public long getLostPduCount() {
+        return mLostPdus.get();
+    }
+
+    /**
+     * Sends a PDU with {@code length} bytes of information over the medium,
+     * in the calling thread.
+     *
+     * @param reliable whether a lost PDU is retransmitted, as I PDUs are
+     * @return when the PDU reaches the other end, in elapsedRealtimeNanos,
+     *     or -1 if it was lost
+     */
+    long transmit(int length, boolean reliable) {
+        long transmitNs = mBytesPerSecond > 0
+                ? (length + PDU_HEADER_LENGTH) * 1000000000L / mBytesPerSecond : 0;
+        long latencyNs = mPduLatencyNs;
+        long busyNs = 0;
+        boolean lost;
+        synchronized (mMedium) {
+            while (true) {
+                busyNs += transmitNs;
+                mPdus.incrementAndGet();
+                mBytes.addAndGet(length);
+                lost = mLossRate > 0 && mRandom.nextDouble() < mLossRate;
+                if (!lost || !reliable) break;
+                // The sender times out waiting for the acknowledgement
+                mLostPdus.incrementAndGet();
+                busyNs += 2 * latencyNs;
+            }
+            if (lost) mLostPdus.incrementAndGet();
+            sleepNs(busyNs);
+        }
+        return lost ? -1 : SystemClock.elapsedRealtimeNanos() + latencyNs;
+    }
+
+    static void sleepNs(long ns) {
+        if (ns <= 0) return;
+        try {
+            Thread.sleep(ns / 1000000, (int) (ns % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** One end of the link, with its own SAPs and service names. */
+    public final class Endpoint {
+        Endpoint mPeer;
+
+        // Locked on this
+        final HashMap<Integer, Object> mSaps = new HashMap<>();
+        final HashMap<String, ServerSocket> mServices = new HashMap<>();
+
+        public LoopbackLlcpLink getLink() {
+            return LoopbackLlcpLink.this;
+        }
+
+        /** Binds {@code sap}, or the first free SAP of [first, LAST_SAP] when it is 0. */
+        synchronized int bind(int sap, int first, Object socket) throws LlcpException {
+            if (sap <= 0) {
+                for (sap = first; sap <= LAST_SAP && mSaps.containsKey(sap); sap++) {}
+                if (sap > LAST_SAP) throw new LlcpException("No free SAP");
+            } else if (sap > LAST_SAP || mSaps.containsKey(sap)) {
+                throw new LlcpException("SAP " + sap + " is not available");
+            }
+            mSaps.put(sap, socket);
+            return sap;
+        }
+
+        synchronized void unbind(int sap, Object socket) {
+            if (mSaps.get(sap) == socket) {
+                mSaps.remove(sap);
+            }
+        }
+
+        public LoopbackLlcpSocket createLlcpSocket(int sap, int miu, int rw,
+                int linearBufferLength) throws LlcpException {
+            LoopbackLlcpSocket socket = new LoopbackLlcpSocket(this, miu, rw);
+            socket.mLocalSap = bind(sap, FIRST_CLIENT_SAP, socket);
+            return socket;
+        }
+
+        public ServerSocket createLlcpServerSocket(int sap, String sn, int miu, int rw,
+                int linearBufferLength) throws LlcpException {
+            ServerSocket server = new ServerSocket(this, sn, miu, rw);
+            synchronized (this) {
+                if (sn != null && mServices.containsKey(sn)) {
+                    throw new LlcpException("Service " + sn + " is already registered");
+                }
+                server.mSap = bind(sap, FIRST_SDP_SAP, server);
+                if (sn != null) mServices.put(sn, server);
+            }
+            return server;
+        }
+
+        public ConnectionlessSocket createLlcpConnectionlessSocket(int sap, String sn)
+                throws LlcpException {
+            ConnectionlessSocket socket = new ConnectionlessSocket(this);
+            socket.mSap = bind(sap, FIRST_SDP_SAP, socket);
+            return socket;
+        }
+
+        synchronized ServerSocket findServer(String serviceName, int sap) {
+            if (serviceName != null) return mServices.get(serviceName);
+            Object socket = mSaps.get(sap);
+            return socket instanceof ServerSocket ? (ServerSocket) socket : null;
+        }
+
+        synchronized ConnectionlessSocket findConnectionless(int sap) {
+            Object socket = mSaps.get(sap);
+            return socket instanceof ConnectionlessSocket ? (ConnectionlessSocket) socket : null;
+        }
+
+        /** Connects a client socket of this end to a server of the other end. */
+        void connect(LoopbackLlcpSocket client, String serviceName, int sap)
+                throws IOException {
+            // CONNECT, answered by CC or DM
+            sleepUntil(transmit(CONNECT_PDU_LENGTH, true));
+            ServerSocket server = mPeer.findServer(serviceName, sap);
+            if (server == null) {
+                sleepUntil(transmit(PDU_HEADER_LENGTH, true));
+                throw new IOException("No service " + (serviceName != null ? serviceName : sap));
+            }
+            LoopbackLlcpSocket accepted = new LoopbackLlcpSocket(mPeer, server.mMiu, server.mRw);
+            accepted.mLocalSap = server.mSap;
+            client.mPeer = accepted;
+            accepted.mPeer = client;
+            if (!server.offer(accepted)) {
+                client.mPeer = null;
+                sleepUntil(transmit(PDU_HEADER_LENGTH, true));
+                throw new IOException("Service " + server.mServiceName + " is closed");
+            }
+            sleepUntil(transmit(CONNECT_PDU_LENGTH, true));
+        }
+
+        void sleepUntil(long elapsedRealtimeNs) {
+            sleepNs(elapsedRealtimeNs - SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /** A server bound on an endpoint, handing out accepted connections. */
+    public static final class ServerSocket implements DeviceHost.LlcpServerSocket {
+        final Endpoint mEndpoint;
+        final String mServiceName;
+        final int mMiu;
+        final int mRw;
+        int mSap;
+
+        // Locked on this
+        final ArrayDeque<LoopbackLlcpSocket> mPending = new ArrayDeque<>();
+        boolean mClosed;
+
+        ServerSocket(Endpoint endpoint, String serviceName, int miu, int rw) {
+            mEndpoint = endpoint;
+            mServiceName = serviceName;
+            mMiu = miu;
+            mRw = rw;
+        }
+
+        public int getSap() {
+            return mSap;
+        }
+
+        synchronized boolean offer(LoopbackLlcpSocket socket) {
+            if (mClosed) return false;
+            mPending.add(socket);
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public synchronized DeviceHost.LlcpSocket accept() throws IOException {
+            try {
+                while (mPending.isEmpty() && !mClosed) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted", e);
+            }
+            if (mClosed) throw new IOException("Server socket closed");
+            return mPending.poll();
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                notifyAll();
+            }
+            synchronized (mEndpoint) {
+                mEndpoint.unbind(mSap, this);
+                if (mServiceName != null && mEndpoint.mServices.get(mServiceName) == this) {
+                    mEndpoint.mServices.remove(mServiceName);
+                }
+            }
+            // Connections that were never accepted are disconnected
+            LoopbackLlcpSocket socket;
+            while ((socket = pollPending()) != null) {
+                socket.close();
+            }
+        }
+
+        synchronized LoopbackLlcpSocket pollPending() {
+            return mPending.poll();
+        }
+    }
+
+    /** Sends and receives UI PDUs, which may be lost. */
+    public static final class ConnectionlessSocket implements DeviceHost.LlcpConnectionlessSocket {
+        final Endpoint mEndpoint;
+        int mSap;
+
+        // Locked on this, with the arrival time of each packet
+        final ArrayDeque<LlcpPacket> mReceived = new ArrayDeque<>();
+        final ArrayDeque<Long> mArrivals = new ArrayDeque<>();
+        boolean mClosed;
+
+        ConnectionlessSocket(Endpoint endpoint) {
+            mEndpoint = endpoint;
+        }
+
+        @Override
+        public int getLinkMiu() {
+            return mEndpoint.getLink().mLinkMiu;
+        }
+
+        @Override
+        public int getSap() {
+            return mSap;
+        }
+
+        @Override
+        public void send(int sap, byte[] data) throws IOException {
+            synchronized (this) {
+                if (mClosed) throw new IOException("Socket closed");
+            }
+            if (data.length > getLinkMiu()) {
+                throw new IOException("Send of " + data.length + " bytes exceeds link MIU "
+                        + getLinkMiu());
+            }
+            long arrival = mEndpoint.getLink().transmit(data.length, false);
+            ConnectionlessSocket peer = mEndpoint.mPeer.findConnectionless(sap);
+            if (arrival < 0 || peer == null) return;
+            peer.deliver(new LlcpPacket(mSap, data.clone()), arrival);
+        }
+
+        synchronized void deliver(LlcpPacket packet, long arrival) {
+            if (mClosed) return;
+            mReceived.add(packet);
+            mArrivals.add(arrival);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized LlcpPacket receive() throws IOException {
+            try {
+                while (true) {
+                    if (mClosed) throw new IOException("Socket closed");
+                    if (mReceived.isEmpty()) {
+                        wait();
+                        continue;
+                    }
+                    long waitNs = mArrivals.peek() - SystemClock.elapsedRealtimeNanos();
+                    if (waitNs > 0) {
+                        wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                        continue;
+                    }
+                    mArrivals.poll();
+                    return mReceived.poll();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted", e);
+            }
+        }
+
+        @Override
+        public int receive(LlcpPacket packet) throws IOException {
+            LlcpPacket received = receive();
+            byte[] buffer = packet.getDataBuffer();
+            if (buffer == null || buffer.length < getLinkMiu()) {
+                buffer = new byte[getLinkMiu()];
+            }
+            int length = received.getDataLength();
+            System.arraycopy(received.getDataBuffer(), 0, buffer, 0, length);
+            packet.set(received.getRemoteSap(), buffer, length);
+            return length;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                notifyAll();
+            }
+            mEndpoint.unbind(mSap, this);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public final class LoopbackLlcpLinkTest {
+    private static final String TAG = LoopbackLlcpLinkTest.class.getSimpleName();
+
+    private static final String SERVICE_NAME = "urn:nfc:sn:test";
+    private static final int SERVICE_SAP = 0x11;
+
+    private LoopbackLlcpLink mLink;
+    private FakeDeviceHost mHost;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mLink = new LoopbackLlcpLink(LoopbackLlcpLink.DEFAULT_MIU, 42);
+        mHost = new FakeDeviceHost(0, NfcService.NCI_VERSION_2_0);
+        mHost.setLlcpEndpoint(mLink.getLocal());
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        mHost.shutdownController();
+    }
+
+    /** Accepts one connection on the remote end, in the background. */
+    private Future<DeviceHost.LlcpSocket> acceptRemote(int miu, int rw) throws Exception {
+        DeviceHost.LlcpServerSocket server = mLink.getRemote().createLlcpServerSocket(
+                SERVICE_SAP, SERVICE_NAME, miu, rw, 1024);
+        return mExecutor.submit(() -> {
+            try {
+                return server.accept();
+            } finally {
+                server.close();
+            }
+        });
+    }
+
+    @Test
+    public void testConnectsByServiceNameAndSap() throws Exception {
+        DeviceHost.LlcpServerSocket server = mLink.getRemote().createLlcpServerSocket(
+                SERVICE_SAP, SERVICE_NAME, 248, 1, 1024);
+
+        DeviceHost.LlcpSocket byName = mHost.createLlcpSocket(0, 128, 1, 1024);
+        byName.connectToService(SERVICE_NAME);
+        DeviceHost.LlcpSocket bySap = mHost.createLlcpSocket(0, 128, 1, 1024);
+        bySap.connectToSap(SERVICE_SAP);
+
+        assertThat(byName.getLocalSap()).isAtLeast(0x20);
+        assertThat(bySap.getLocalSap()).isNotEqualTo(byName.getLocalSap());
+        assertThat(byName.getRemoteMiu()).isEqualTo(248);
+        assertThat(server.accept().getLocalSap()).isEqualTo(SERVICE_SAP);
+        assertThat(server.accept().getRemoteMiu()).isEqualTo(128);
+        server.close();
+    }
+
+    @Test
+    public void testRejectsUnknownServicesAndDuplicateBindings() throws Exception {
+        mLink.getRemote().createLlcpServerSocket(SERVICE_SAP, SERVICE_NAME, 248, 1, 1024);
+
+        IOException refused = null;
+        try {
+            mHost.createLlcpSocket(0, 128, 1, 1024).connectToService("urn:nfc:sn:missing");
+        } catch (IOException e) {
+            refused = e;
+        }
+        LlcpException duplicate = null;
+        try {
+            mLink.getRemote().createLlcpServerSocket(0, SERVICE_NAME, 248, 1, 1024);
+        } catch (LlcpException e) {
+            duplicate = e;
+        }
+
+        assertThat(refused).isNotNull();
+        assertThat(duplicate).isNotNull();
+    }
+
+    @Test
+    public void testSendHonoursRemoteMiu() throws Exception {
+        Future<DeviceHost.LlcpSocket> accepted = acceptRemote(64, 1);
+        DeviceHost.LlcpSocket socket = mHost.createLlcpSocket(0, 128, 1, 1024);
+        socket.connectToService(SERVICE_NAME);
+
+        socket.send(new byte[64]);
+        IOException tooLong = null;
+        try {
+            socket.send(new byte[65]);
+        } catch (IOException e) {
+            tooLong = e;
+        }
+
+        assertThat(tooLong).isNotNull();
+        assertThat(accepted.get(5, TimeUnit.SECONDS).receive(new byte[128])).isEqualTo(64);
+    }
+
+    @Test
+    public void testReceiveWindowBlocksSender() throws Exception {
+        Future<DeviceHost.LlcpSocket> accepted = acceptRemote(128, 2);
+        DeviceHost.LlcpSocket socket = mHost.createLlcpSocket(0, 128, 1, 1024);
+        socket.connectToService(SERVICE_NAME);
+        DeviceHost.LlcpSocket peer = accepted.get(5, TimeUnit.SECONDS);
+        AtomicInteger sent = new AtomicInteger();
+
+        Future<?> sender = mExecutor.submit(() -> {
+            for (int i = 0; i < 3; i++) {
+                socket.send(new byte[] {(byte) i});
+                sent.incrementAndGet();
+            }
+            return null;
+        });
+        SystemClock.sleep(100);
+        assertThat(sent.get()).isEqualTo(2);
+
+        byte[] buffer = new byte[128];
+        for (int i = 0; i < 3; i++) {
+            assertThat(peer.receive(buffer)).isEqualTo(1);
+            assertThat(buffer[0]).isEqualTo((byte) i);
+        }
+        sender.get(5, TimeUnit.SECONDS);
+        assertThat(sent.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void testLatencyAndBandwidth() throws Exception {
+        Future<DeviceHost.LlcpSocket> accepted = acceptRemote(1024, 1);
+        DeviceHost.LlcpSocket socket = mHost.createLlcpSocket(0, 128, 1, 1024);
+        socket.connectToService(SERVICE_NAME);
+        DeviceHost.LlcpSocket peer = accepted.get(5, TimeUnit.SECONDS);
+        mLink.setPduLatencyUs(20000);
+        mLink.setBandwidth(10 * 1024);
+
+        long start = SystemClock.elapsedRealtime();
+        socket.send(new byte[1021]);
+        assertThat(peer.receive(new byte[1024])).isEqualTo(1021);
+        long elapsedMs = SystemClock.elapsedRealtime() - start;
+
+        // 1024 bytes on the air at 10KB/s, then the latency
+        assertThat(elapsedMs).isAtLeast(100L + 20L);
+        assertThat(elapsedMs).isLessThan(1000L);
+    }
+
+    @Test
+    public void testLossRetransmitsIPdusAndDropsUiPdus() throws Exception {
+        Future<DeviceHost.LlcpSocket> accepted = acceptRemote(128, 4);
+        DeviceHost.LlcpSocket socket = mHost.createLlcpSocket(0, 128, 1, 1024);
+        socket.connectToService(SERVICE_NAME);
+        DeviceHost.LlcpSocket peer = accepted.get(5, TimeUnit.SECONDS);
+        DeviceHost.LlcpConnectionlessSocket uiSender =
+                mHost.createLlcpConnectionlessSocket(0x12, null);
+        DeviceHost.LlcpConnectionlessSocket uiReceiver =
+                mLink.getRemote().createLlcpConnectionlessSocket(0x13, null);
+        mLink.setLossRate(0.3);
+
+        Future<?> sender = mExecutor.submit(() -> {
+            for (int i = 0; i < 100; i++) {
+                socket.send(new byte[] {(byte) i});
+            }
+            return null;
+        });
+        byte[] buffer = new byte[128];
+        for (int i = 0; i < 100; i++) {
+            assertThat(peer.receive(buffer)).isEqualTo(1);
+            assertThat(buffer[0]).isEqualTo((byte) i);
+        }
+        sender.get(5, TimeUnit.SECONDS);
+        long lostIPdus = mLink.getLostPduCount();
+
+        for (int i = 0; i < 100; i++) {
+            uiSender.send(0x13, new byte[] {(byte) i});
+        }
+        mLink.setLossRate(0);
+        uiSender.send(0x13, new byte[] {-1});
+        int received = 0;
+        LlcpPacket packet;
+        while ((packet = uiReceiver.receive()).getDataBuffer().length != 1
+                || packet.getDataBuffer()[0] != -1) {
+            assertThat(packet.getRemoteSap()).isEqualTo(0x12);
+            received++;
+        }
+
+        assertThat(lostIPdus).isGreaterThan(0L);
+        assertThat(received).isLessThan(100);
+        assertThat(mLink.getLostPduCount() - lostIPdus).isEqualTo(100L - received);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * One end of an in-memory LLCP data link connection.
+ *
+ * Sockets are either created connected, in pairs, or by an endpoint of a
+ * {@link LoopbackLlcpLink}, and then connected to a server on its other end.
+ * Like the native socket, send() refuses more than the remote MIU and blocks
+ * while the receive window of the peer is full, and receive() returns one
+ * I PDU at a time, truncated to the receive buffer, or -1 once the connection
+ * is closed.
+ */
+public class LoopbackLlcpSocket implements DeviceHost.LlcpSocket {
+    /** An I PDU, and when it reaches the receiver in elapsedRealtimeNanos */
+    static final class Pdu {
+        final byte[] mData;
+        final long mArrival;
+
+        Pdu(byte[] data, long arrival) {
+            mData = data;
+            mArrival = arrival;
+        }
+    }
+
+    private static final Pdu CLOSED = new Pdu(null, 0);
+
+    // Null for sockets created in pairs, which are not slowed down
+    final LoopbackLlcpLink.Endpoint mEndpoint;
+    final int mMiu;
+    final int mRw;
+    final Object mSendLock = new Object();
+    int mLocalSap;
+    volatile LoopbackLlcpSocket mPeer;
+
+    // Locked on this
+    final ArrayDeque<Pdu> mReceived = new ArrayDeque<>();
+    volatile boolean mClosed;
+
+    LoopbackLlcpSocket(int localSap, int miu, int rw) {
+        this(null, miu, rw);
+        mLocalSap = localSap;
+    }
+
+    LoopbackLlcpSocket(LoopbackLlcpLink.Endpoint endpoint, int miu, int rw) {
+        mEndpoint = endpoint;
+        mMiu = miu;
+        mRw = rw;
+    }
+
+    /** Returns two connected sockets with the given MIU and receive window. */
+    public static LoopbackLlcpSocket[] createPair(int miu, int rw) {
+        LoopbackLlcpSocket a = new LoopbackLlcpSocket(0x20, miu, rw);
+        LoopbackLlcpSocket b = new LoopbackLlcpSocket(0x21, miu, rw);
+        a.mPeer = b;
+        b.mPeer = a;
+        return new LoopbackLlcpSocket[] {a, b};
+    }
+
+    void checkConnectable() throws IOException {
+        if (mEndpoint == null) {
+            throw new IOException("Loopback sockets are created connected");
+        }
+        if (mPeer != null || mClosed) {
+            throw new IOException("Socket already connected or closed");
+        }
+    }
+
+    @Override
+    public void connectToSap(int sap) throws IOException {
+        checkConnectable();
+        mEndpoint.connect(this, null, sap);
+    }
+
+    @Override
+    public void connectToService(String serviceName) throws IOException {
+        checkConnectable();
+        mEndpoint.connect(this, serviceName, 0);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) return;
+            mClosed = true;
+            mReceived.add(CLOSED);
+            notifyAll();
+        }
+        LoopbackLlcpSocket peer = mPeer;
+        if (peer != null) {
+            peer.deliver(CLOSED);
+        }
+        if (mEndpoint != null) {
+            mEndpoint.unbind(mLocalSap, this);
+        }
+    }
+
+    synchronized void deliver(Pdu pdu) {
+        if (mReceived.peekLast() == CLOSED) return;
+        mReceived.add(pdu);
+        notifyAll();
+    }
+
+    /** Waits until the receive window has room for another PDU. */
+    synchronized void awaitWindow(LoopbackLlcpSocket sender) throws IOException {
+        try {
+            while (mReceived.size() >= mRw && !mClosed && !sender.mClosed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    @Override
+    public void send(byte[] data) throws IOException {
+        LoopbackLlcpSocket peer = mPeer;
+        if (peer == null) {
+            throw new IOException("Socket not connected");
+        }
+        if (data.length > peer.mMiu) {
+            throw new IOException("Send of " + data.length + " bytes exceeds MIU " + peer.mMiu);
+        }
+        synchronized (mSendLock) {
+            peer.awaitWindow(this);
+            if (mClosed || peer.mClosed) {
+                throw new IOException("Socket closed");
+            }
+            long arrival = mEndpoint != null
+                    ? mEndpoint.getLink().transmit(data.length, true) : 0;
+            // The native socket copies the data out of the caller's array too
+            peer.deliver(new Pdu(data.clone(), arrival));
+        }
+    }
+
+    @Override
+    public synchronized int receive(byte[] recvBuff) throws IOException {
+        Pdu pdu;
+        try {
+            while (true) {
+                pdu = mReceived.peek();
+                if (pdu == null) {
+                    wait();
+                    continue;
+                }
+                long waitNs = pdu.mArrival - SystemClock.elapsedRealtimeNanos();
+                if (pdu != CLOSED && waitNs > 0) {
+                    wait(waitNs / 1000000, (int) (waitNs % 1000000));
+                    continue;
+                }
+                break;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        }
+        if (pdu == CLOSED) {
+            return -1;
+        }
+        mReceived.poll();
+        // Opens the receive window for the sender
+        notifyAll();
+        int length = Math.min(pdu.mData.length, recvBuff.length);
+        System.arraycopy(pdu.mData, 0, recvBuff, 0, length);
+        return length;
+    }
+
+    @Override
+    public int getRemoteMiu() {
+        LoopbackLlcpSocket peer = mPeer;
+        return peer != null ? peer.mMiu : LoopbackLlcpLink.DEFAULT_MIU;
+    }
+
+    @Override
+    public int getRemoteRw() {
+        LoopbackLlcpSocket peer = mPeer;
+        return peer != null ? peer.mRw : 1;
+    }
+
+    @Override
+    public int getLocalSap() {
+        return mLocalSap;
+    }
+
+    @Override
+    public int getLocalMiu() {
+        return mMiu;
+    }
+
+    @Override
+    public int getLocalRw() {
+        return mRw;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public final class PeerCapabilityCacheTest {
+    private static final String TAG = PeerCapabilityCacheTest.class.getSimpleName();
+
+    private static final long LONG_EXPIRY_MS = 60 * 1000;
+    private static final long SHORT_EXPIRY_MS = 50;
+
+    private static PeerCapabilityCache.Key key(int i) {
+        return PeerCapabilityCache.Key.create((byte) 0x11, new byte[] {0x46, 0x66, 0x6D, (byte) i});
+    }
+
+    @Test
+    public void testKeyNeedsGeneralBytes() {
+        assertThat(PeerCapabilityCache.Key.create((byte) 0x11, null)).isNull();
+        assertThat(PeerCapabilityCache.Key.create((byte) 0x11, new byte[0])).isNull();
+        assertThat(key(1)).isEqualTo(key(1));
+        assertThat(key(1)).isNotEqualTo(key(2));
+    }
+
+    @Test
+    public void testEvictsTheLeastRecentlyUsedPeer() {
+        PeerCapabilityCache cache = new PeerCapabilityCache(2, LONG_EXPIRY_MS, LONG_EXPIRY_MS);
+        cache.update(key(1), PeerCapabilityCache.CAPABILITY_SNEP, true);
+        cache.update(key(2), PeerCapabilityCache.CAPABILITY_SNEP, true);
+        // Using the first peer makes the second one the eldest
+        assertThat(cache.get(key(1))).isNotNull();
+
+        cache.update(key(3), PeerCapabilityCache.CAPABILITY_SNEP, true);
+
+        assertThat(cache.get(key(1))).isNotNull();
+        assertThat(cache.get(key(2))).isNull();
+        assertThat(cache.get(key(3))).isNotNull();
+        assertThat(cache.mEntries.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        PeerCapabilityCache cache =
+                new PeerCapabilityCache(2, SHORT_EXPIRY_MS, SHORT_EXPIRY_MS);
+        cache.update(key(1), PeerCapabilityCache.CAPABILITY_HANDOVER, true);
+        assertThat(cache.get(key(1)).isSupported(PeerCapabilityCache.CAPABILITY_HANDOVER))
+                .isTrue();
+
+        SystemClock.sleep(SHORT_EXPIRY_MS + 10);
+
+        assertThat(cache.get(key(1))).isNull();
+        assertThat(cache.mEntries).isEmpty();
+    }
+
+    @Test
+    public void testProbesUnsupportedServicesAgainSooner() {
+        PeerCapabilityCache cache =
+                new PeerCapabilityCache(2, LONG_EXPIRY_MS, SHORT_EXPIRY_MS);
+        cache.update(key(1), PeerCapabilityCache.CAPABILITY_SNEP, true);
+        cache.update(key(1), PeerCapabilityCache.CAPABILITY_HANDOVER, false);
+        assertThat(cache.get(key(1)).isUnsupported(PeerCapabilityCache.CAPABILITY_HANDOVER))
+                .isTrue();
+
+        SystemClock.sleep(SHORT_EXPIRY_MS + 10);
+
+        PeerCapabilityCache.Capabilities capabilities = cache.get(key(1));
+        assertThat(capabilities.getState(PeerCapabilityCache.CAPABILITY_HANDOVER))
+                .isEqualTo(PeerCapabilityCache.STATE_UNKNOWN);
+        assertThat(capabilities.isSupported(PeerCapabilityCache.CAPABILITY_SNEP)).isTrue();
+    }
+
+    @Test
+    public void testInvalidateForgetsThePeer() {
+        PeerCapabilityCache cache = new PeerCapabilityCache(2, LONG_EXPIRY_MS, LONG_EXPIRY_MS);
+        cache.update(key(1), PeerCapabilityCache.CAPABILITY_NPP, false);
+        cache.update(key(2), PeerCapabilityCache.CAPABILITY_NPP, false);
+
+        cache.invalidate(key(1));
+        cache.invalidate(key(1));
+        cache.invalidate(null);
+
+        assertThat(cache.get(key(1))).isNull();
+        assertThat(cache.get(key(2))).isNotNull();
+        assertThat(cache.mInvalidations).isEqualTo(1);
+    }
+
+    @Test
+    public void testGetReturnsACopy() {
+        PeerCapabilityCache cache = new PeerCapabilityCache(2, LONG_EXPIRY_MS, LONG_EXPIRY_MS);
+        cache.update(key(1), PeerCapabilityCache.CAPABILITY_SNEP, true);
+        PeerCapabilityCache.Capabilities copy = cache.get(key(1));
+
+        cache.update(key(1), PeerCapabilityCache.CAPABILITY_SNEP, false);
+
+        assertThat(copy.isSupported(PeerCapabilityCache.CAPABILITY_SNEP)).isTrue();
+        assertThat(cache.get(key(1)).isUnsupported(PeerCapabilityCache.CAPABILITY_SNEP)).isTrue();
+    }
+}
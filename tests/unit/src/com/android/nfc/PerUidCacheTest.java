@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public final class PerUidCacheTest {
+    private static final String TAG = PerUidCacheTest.class.getSimpleName();
+
+    private static final int UID_A = 10001;
+    private static final int UID_B = 1010002;
+    private static final int UID_C = 10003;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final AtomicInteger mLoads = new AtomicInteger();
+
+    private String load(int uid) {
+        mLoads.incrementAndGet();
+        return "uid" + uid;
+    }
+
+    @Test
+    public void testEvictsTheLeastRecentlyUsedUid() {
+        PerUidCache<String> cache = new PerUidCache<>(2, this::load);
+        cache.get(UID_B);
+        cache.get(UID_A);
+        // UID_B is the lowest key, but UID_A is the least recently used
+        cache.get(UID_B);
+
+        cache.get(UID_C);
+
+        assertThat(mLoads.get()).isEqualTo(3);
+        assertThat(cache.get(UID_B)).isEqualTo("uid" + UID_B);
+        assertThat(cache.get(UID_C)).isEqualTo("uid" + UID_C);
+        assertThat(mLoads.get()).isEqualTo(3);
+        assertThat(cache.get(UID_A)).isEqualTo("uid" + UID_A);
+        assertThat(mLoads.get()).isEqualTo(4);
+        assertThat(cache.mEntries.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testInvalidateDropsEveryUid() {
+        PerUidCache<String> cache = new PerUidCache<>(2, this::load);
+        cache.get(UID_A);
+        cache.get(UID_A);
+        assertThat(cache.mHits).isEqualTo(1);
+
+        cache.invalidate();
+        cache.get(UID_A);
+
+        assertThat(mLoads.get()).isEqualTo(2);
+        assertThat(cache.mMisses).isEqualTo(2);
+    }
+
+    @Test
+    public void testDoesNotKeepALoadThatRacedAnInvalidation() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch invalidated = new CountDownLatch(1);
+        PerUidCache<String> cache = new PerUidCache<>(2, uid -> {
+            if (mLoads.incrementAndGet() == 1) {
+                loading.countDown();
+                try {
+                    invalidated.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    // Done
+                }
+                return "stale";
+            }
+            return "fresh";
+        });
+        CompletableFuture<String> stale = CompletableFuture.supplyAsync(() -> cache.get(UID_A));
+        assertThat(loading.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+
+        cache.invalidate();
+        invalidated.countDown();
+
+        // The racing caller still gets its value, but the cache loads again
+        assertThat(stale.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)).isEqualTo("stale");
+        assertThat(cache.get(UID_A)).isEqualTo("fresh");
+        assertThat(cache.get(UID_A)).isEqualTo("fresh");
+        assertThat(mLoads.get()).isEqualTo(2);
+    }
+}
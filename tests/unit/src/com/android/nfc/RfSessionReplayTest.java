@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.tech.TagTechnology;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+@RunWith(AndroidJUnit4.class)
+public final class RfSessionReplayTest {
+    private static final String TAG = RfSessionReplayTest.class.getSimpleName();
+
+    private static final int NUM_APDUS = 200;
+    private static final long HANDLING_MS = 2;
+    private static final byte[] SW_OK = {(byte) 0x90, 0x00};
+    private static final byte[] UID = {0x04, 0x11, 0x22, 0x33};
+
+    private FakeDeviceHost mHost;
+    private ByteArrayOutputStream mCapture;
+    private RfSessionRecorder mRecorder;
+    private CountingListener mListener;
+
+    /** Counts events and answers HCE data right away, like a fast service would. */
+    private class CountingListener implements DeviceHost.DeviceHostListener {
+        final int[] mCounts = new int[RfSessionCapture.MAX_EVENT + 1];
+        DeviceHost.TagEndpoint mLastTag;
+        String mLastSeName;
+
+        @Override
+        public void onRemoteEndpointDiscovered(DeviceHost.TagEndpoint tag) {
+            mCounts[RfSessionCapture.EVENT_TAG_DISCOVERED]++;
+            mLastTag = tag;
+        }
+
+        @Override
+        public void onHostCardEmulationActivated(int technology) {
+            mCounts[RfSessionCapture.EVENT_HCE_ACTIVATED]++;
+        }
+
+        @Override
+        public void onHostCardEmulationData(int technology, byte[] data) {
+            mCounts[RfSessionCapture.EVENT_HCE_DATA]++;
+            if (mHost != null) mHost.sendRawFrame(SW_OK);
+        }
+
+        @Override
+        public void onHostCardEmulationDeactivated(int technology) {
+            mCounts[RfSessionCapture.EVENT_HCE_DEACTIVATED]++;
+        }
+
+        @Override
+        public void onLlcpLinkActivated(DeviceHost.NfcDepEndpoint device) {
+            mCounts[RfSessionCapture.EVENT_LLCP_LINK_ACTIVATED]++;
+        }
+
+        @Override
+        public void onLlcpLinkDeactivated(DeviceHost.NfcDepEndpoint device) {
+            mCounts[RfSessionCapture.EVENT_LLCP_LINK_DEACTIVATED]++;
+        }
+
+        @Override
+        public void onLlcpFirstPacketReceived(DeviceHost.NfcDepEndpoint device) {
+            mCounts[RfSessionCapture.EVENT_LLCP_FIRST_PACKET]++;
+        }
+
+        @Override
+        public void onRemoteFieldActivated() {
+            mCounts[RfSessionCapture.EVENT_FIELD_ACTIVATED]++;
+        }
+
+        @Override
+        public void onRemoteFieldDeactivated() {
+            mCounts[RfSessionCapture.EVENT_FIELD_DEACTIVATED]++;
+        }
+
+        @Override
+        public void onNfcTransactionEvent(byte[] aid, byte[] data, String seName) {
+            mCounts[RfSessionCapture.EVENT_TRANSACTION]++;
+            mLastSeName = seName;
+        }
+
+        @Override
+        public void onEeUpdated() {
+            mCounts[RfSessionCapture.EVENT_EE_UPDATED]++;
+        }
+
+        @Override
+        public void onHwErrorReported() {
+            mCounts[RfSessionCapture.EVENT_HW_ERROR]++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mListener = new CountingListener();
+        mCapture = new ByteArrayOutputStream();
+        mRecorder = new RfSessionRecorder(mListener, mCapture, 1 << 20, true);
+        mHost = new FakeDeviceHost(mRecorder, 512, NfcService.NCI_VERSION_2_0);
+    }
+
+    @After
+    public void tearDown() {
+        if (mHost != null) mHost.shutdown();
+    }
+
+    /** Field on, a tag, an HCE transaction of NUM_APDUS commands, a transaction event, field off. */
+    private void recordSession() throws Exception {
+        mHost.activateField();
+        mHost.discoverTag(new FakeTagEndpoint(new int[] {TagTechnology.NFC_A}, UID));
+        FakeHceReader reader = new FakeHceReader(TagTechnology.ISO_DEP);
+        for (int i = 0; i < NUM_APDUS; i++) {
+            reader.addCommand(new byte[] {0x00, (byte) 0xB0, (byte) (i >> 8), (byte) i, 0x00},
+                    SW_OK);
+        }
+        assertThat(mHost.runHceReader(reader).getNumResponses()).isEqualTo(NUM_APDUS);
+        mHost.sendTransactionEvent(new byte[] {(byte) 0xA0, 0x00, 0x00, 0x00, 0x03},
+                new byte[] {0x01}, "SIM1");
+        mHost.deactivateField();
+        mHost.drain();
+        mRecorder.flush();
+    }
+
+    private List<RfSessionCapture.Event> readCapture() throws Exception {
+        return RfSessionCapture.read(new ByteArrayInputStream(mCapture.toByteArray()));
+    }
+
+    @Test
+    public void testRecordedSessionRoundTrips() throws Exception {
+        recordSession();
+
+        List<RfSessionCapture.Event> events = readCapture();
+
+        // field on, tag, HCE activated, data, deactivated, transaction, field off
+        assertThat(events).hasSize(NUM_APDUS + 6);
+        assertThat(events.get(0).type).isEqualTo(RfSessionCapture.EVENT_FIELD_ACTIVATED);
+        RfSessionCapture.Event tag = events.get(1);
+        assertThat(tag.type).isEqualTo(RfSessionCapture.EVENT_TAG_DISCOVERED);
+        assertThat(tag.techList).isEqualTo(new int[] {TagTechnology.NFC_A});
+        assertThat(tag.data).isEqualTo(UID);
+        RfSessionCapture.Event apdu = events.get(3 + NUM_APDUS - 1);
+        assertThat(apdu.type).isEqualTo(RfSessionCapture.EVENT_HCE_DATA);
+        assertThat(apdu.data).isEqualTo(new byte[] {0x00, (byte) 0xB0,
+                (byte) ((NUM_APDUS - 1) >> 8), (byte) (NUM_APDUS - 1), 0x00});
+        RfSessionCapture.Event transaction = events.get(events.size() - 2);
+        assertThat(transaction.type).isEqualTo(RfSessionCapture.EVENT_TRANSACTION);
+        assertThat(transaction.name).isEqualTo("SIM1");
+        assertThat(events.get(events.size() - 1).type)
+                .isEqualTo(RfSessionCapture.EVENT_FIELD_DEACTIVATED);
+        for (int i = 1; i < events.size(); i++) {
+            assertThat(events.get(i).timeUs).isAtLeast(events.get(i - 1).timeUs);
+        }
+    }
+
+    @Test
+    public void testTruncatedCaptureKeepsCompleteEvents() throws Exception {
+        recordSession();
+        byte[] capture = mCapture.toByteArray();
+
+        List<RfSessionCapture.Event> events = RfSessionCapture.read(
+                new ByteArrayInputStream(Arrays.copyOf(capture, capture.length - 1)));
+
+        assertThat(events).hasSize(NUM_APDUS + 5);
+    }
+
+    @Test
+    public void testRecorderStopsAtSizeLimit() throws Exception {
+        mCapture = new ByteArrayOutputStream();
+        mRecorder = new RfSessionRecorder(mListener, mCapture, 64, true);
+        mHost.setListener(mRecorder);
+
+        recordSession();
+
+        // Every event still reaches the listener
+        assertThat(mListener.mCounts[RfSessionCapture.EVENT_HCE_DATA]).isEqualTo(NUM_APDUS);
+        assertThat(mRecorder.mNumDropped).isGreaterThan(0L);
+        assertThat(mCapture.size()).isLessThan(64 + 16);
+        assertThat(readCapture().size()).isEqualTo((int) mRecorder.mNumRecorded);
+    }
+
+    @Test
+    public void testRedactsPayloadsUnlessAskedFor() throws Exception {
+        mCapture = new ByteArrayOutputStream();
+        mRecorder = new RfSessionRecorder(mListener, mCapture, 1 << 20, false);
+        mHost.setListener(mRecorder);
+
+        recordSession();
+
+        List<RfSessionCapture.Event> events = readCapture();
+        RfSessionCapture.Event apdu = events.get(3 + NUM_APDUS - 1);
+        // The header is kept, the rest only has its length
+        assertThat(apdu.data).isEqualTo(new byte[] {0x00, (byte) 0xB0,
+                (byte) ((NUM_APDUS - 1) >> 8), (byte) (NUM_APDUS - 1), 0x00});
+        RfSessionCapture.Event transaction = events.get(events.size() - 2);
+        assertThat(transaction.data).isEqualTo(new byte[] {(byte) 0xA0, 0x00, 0x00, 0x00, 0x03});
+        assertThat(transaction.data2).isEqualTo(new byte[] {0x00});
+        // Every event still reaches the listener as is
+        assertThat(mListener.mCounts[RfSessionCapture.EVENT_TRANSACTION]).isEqualTo(1);
+
+        byte[] select = {0x00, (byte) 0xA4, 0x04, 0x00, 0x02, (byte) 0xA0, 0x01};
+        byte[] update = {0x00, (byte) 0xD6, 0x00, 0x00, 0x02, 0x12, 0x34};
+        assertThat(RfSessionRecorder.redactApdu(select)).isEqualTo(select);
+        assertThat(RfSessionRecorder.redactApdu(update)).isEqualTo(
+                new byte[] {0x00, (byte) 0xD6, 0x00, 0x00, 0x00, 0x00, 0x00});
+    }
+
+    @Test
+    public void testReplayWaitsForTheHandlerThread() throws Exception {
+        recordSession();
+        List<RfSessionCapture.Event> events = readCapture();
+        ExecutorService handler = Executors.newSingleThreadExecutor();
+        // Hands every event over to the handler thread, like NfcService does
+        CountingListener target = new CountingListener() {
+            @Override
+            public void onHostCardEmulationData(int technology, byte[] data) {
+                handler.execute(() -> {
+                    SystemClock.sleep(HANDLING_MS);
+                    mCounts[RfSessionCapture.EVENT_HCE_DATA]++;
+                });
+            }
+        };
+
+        RfSessionReplayer.Stats stats =
+                new RfSessionReplayer(target, handler::execute).replay(events, 0);
+        handler.shutdown();
+
+        assertThat(target.mCounts[RfSessionCapture.EVENT_HCE_DATA]).isEqualTo(NUM_APDUS);
+        assertThat(stats.getAverageNs(RfSessionCapture.EVENT_HCE_DATA))
+                .isAtLeast(HANDLING_MS * 1000000);
+    }
+
+    @Test
+    public void testReplaySkipsTheIdleTimeBeforeAndBetweenSessions() throws Exception {
+        long hourUs = 3600L * 1000000;
+        List<RfSessionCapture.Event> events = Arrays.asList(
+                new RfSessionCapture.Event(RfSessionCapture.EVENT_FIELD_ACTIVATED, hourUs),
+                new RfSessionCapture.Event(RfSessionCapture.EVENT_FIELD_DEACTIVATED,
+                        hourUs + 1000),
+                new RfSessionCapture.Event(RfSessionCapture.EVENT_FIELD_ACTIVATED, 2 * hourUs));
+        CountingListener target = new CountingListener();
+
+        RfSessionReplayer.Stats stats = new RfSessionReplayer(target).replay(events, 1);
+
+        assertThat(target.mCounts[RfSessionCapture.EVENT_FIELD_ACTIVATED]).isEqualTo(2);
+        assertThat(stats.getDurationUs()).isAtLeast(RfSessionReplayer.MAX_GAP_MS * 1000);
+        assertThat(stats.getDurationUs()).isLessThan(2 * RfSessionReplayer.MAX_GAP_MS * 1000);
+    }
+
+    @Test
+    public void testReplayBenchmark() throws Exception {
+        recordSession();
+        List<RfSessionCapture.Event> events = readCapture();
+        mHost.shutdown();
+        mHost = null;
+
+        for (float speed : new float[] {0, 10}) {
+            CountingListener target = new CountingListener();
+            RfSessionReplayer.Stats stats = new RfSessionReplayer(target).replay(events, speed);
+
+            StringWriter out = new StringWriter();
+            stats.dump(new PrintWriter(out, true));
+            Log.i(TAG, "speed " + speed + ": " + out);
+            assertThat(target.mCounts[RfSessionCapture.EVENT_HCE_DATA]).isEqualTo(NUM_APDUS);
+            assertThat(stats.getCount(RfSessionCapture.EVENT_HCE_DATA)).isEqualTo(
+                    (long) NUM_APDUS);
+            assertThat(target.mCounts[RfSessionCapture.EVENT_TRANSACTION]).isEqualTo(1);
+            assertThat(target.mLastSeName).isEqualTo("SIM1");
+            assertThat(target.mLastTag.getUid()).isEqualTo(UID);
+            assertThat(stats.getPercentileNs(RfSessionCapture.EVENT_HCE_DATA, 90))
+                    .isAtMost(stats.getMaxNs(RfSessionCapture.EVENT_HCE_DATA));
+        }
+    }
+}
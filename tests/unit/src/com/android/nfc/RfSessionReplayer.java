@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.nfc.NdefMessage;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.android.nfc.DeviceHost.DeviceHostListener;
+import com.android.nfc.DeviceHost.NfcDepEndpoint;
+import com.android.nfc.DeviceHost.TagDisconnectedCallback;
+import com.android.nfc.DeviceHost.TagEndpoint;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds an RF session capture back into a DeviceHostListener, at the
+ * recorded speed or accelerated, and measures how long the listener takes
+ * to handle each type of event. Timing starts at the first event, and
+ * gaps between events are shortened to MAX_GAP_MS, so that the idle time
+ * between RF sessions does not stretch a replay.
+ *
+ * A listener that hands events over to another thread, like NfcService
+ * does to its Handler, returns long before they are handled. For those the
+ * replayer is given that thread as an Executor, and an event counts as
+ * handled once everything queued on it up to then has run.
+ *
+ * Replayed tags and LLCP peers only carry what was captured: their
+ * identity and technologies. Tags report themselves as gone after the
+ * first presence check, and any I/O on them fails. Hardware errors are
+ * not replayed, since they restart the NFC stack.
+ */
+public class RfSessionReplayer {
+    // Latency buckets: <50us, <100us, <200us, ... doubling up to the last, open bucket
+    static final int NUM_BUCKETS = 16;
+    static final long FIRST_BUCKET_NS = 50000;
+    static final long HANDLER_TIMEOUT_MS = 5000;
+    static final long MAX_GAP_MS = 1000;
+
+    /** Per event type handling latency of a replay. */
+    public static final class Stats {
+        final long[] mCount = new long[RfSessionCapture.MAX_EVENT + 1];
+        final long[] mTotalNs = new long[RfSessionCapture.MAX_EVENT + 1];
+        final long[] mMaxNs = new long[RfSessionCapture.MAX_EVENT + 1];
+        final long[][] mBuckets = new long[RfSessionCapture.MAX_EVENT + 1][NUM_BUCKETS];
+        long mLagMaxUs;
+        long mDurationUs;
+
+        void add(int type, long ns) {
+            mCount[type]++;
+            mTotalNs[type] += ns;
+            mMaxNs[type] = Math.max(mMaxNs[type], ns);
+            int bucket = 0;
+            for (long bound = FIRST_BUCKET_NS; ns >= bound && bucket < NUM_BUCKETS - 1;
+                    bound <<= 1) {
+                bucket++;
+            }
+            mBuckets[type][bucket]++;
+        }
+
+        public long getCount(int type) {
+            return mCount[type];
+        }
+
+        public long getAverageNs(int type) {
+            return mCount[type] > 0 ? mTotalNs[type] / mCount[type] : 0;
+        }
+
+        public long getMaxNs(int type) {
+            return mMaxNs[type];
+        }
+
+        /** Upper bound of the latency bucket holding {@code percentile} (0-100) of events. */
+        public long getPercentileNs(int type, int percentile) {
+            long target = (mCount[type] * percentile + 99) / 100;
+            long seen = 0;
+            long bound = FIRST_BUCKET_NS;
+            for (int bucket = 0; bucket < NUM_BUCKETS - 1; bucket++, bound <<= 1) {
+                seen += mBuckets[type][bucket];
+                if (seen >= target) return Math.min(bound, mMaxNs[type]);
+            }
+            return mMaxNs[type];
+        }
+
+        /** How far behind the recorded timing the replay fell at most. */
+        public long getMaxLagUs() {
+            return mLagMaxUs;
+        }
+
+        public long getDurationUs() {
+            return mDurationUs;
+        }
+
+        public void dump(PrintWriter pw) {
+            pw.println("RF session replay: took " + mDurationUs / 1000 + "ms, max lag "
+                    + mLagMaxUs / 1000 + "ms");
+            for (int type = 1; type <= RfSessionCapture.MAX_EVENT; type++) {
+                if (mCount[type] == 0) continue;
+                pw.println("    " + RfSessionCapture.eventToString(type)
+                        + ": count=" + mCount[type]
+                        + " avgUs=" + getAverageNs(type) / 1000
+                        + " p90Us=" + getPercentileNs(type, 90) / 1000
+                        + " maxUs=" + mMaxNs[type] / 1000);
+            }
+        }
+    }
+
+    static final class ReplayedTag implements TagEndpoint {
+        final int mHandle;
+        final int[] mTechList;
+        final byte[] mUid;
+
+        ReplayedTag(RfSessionCapture.Event event) {
+            mHandle = event.value;
+            mTechList = event.techList != null ? event.techList : new int[0];
+            mUid = event.data != null ? event.data : new byte[0];
+        }
+
+        @Override
+        public boolean connect(int technology) {
+            return false;
+        }
+
+        @Override
+        public boolean reconnect() {
+            return false;
+        }
+
+        @Override
+        public boolean disconnect() {
+            return true;
+        }
+
+        @Override
+        public boolean presenceCheck() {
+            return false;
+        }
+
+        @Override
+        public boolean isPresent() {
+            return false;
+        }
+
+        @Override
+        public void startPresenceChecking(int presenceCheckDelay,
+                TagDisconnectedCallback callback) {
+            if (callback != null) callback.onTagDisconnected(mHandle);
+        }
+
+        @Override
+        public void stopPresenceChecking() {}
+
+        @Override
+        public int[] getTechList() {
+            return mTechList;
+        }
+
+        @Override
+        public void removeTechnology(int tech) {}
+
+        @Override
+        public Bundle[] getTechExtras() {
+            Bundle[] extras = new Bundle[mTechList.length];
+            Arrays.setAll(extras, i -> new Bundle());
+            return extras;
+        }
+
+        @Override
+        public byte[] getUid() {
+            return mUid;
+        }
+
+        @Override
+        public int getHandle() {
+            return mHandle;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data, boolean raw, int[] returnCode) {
+            return null;
+        }
+
+        @Override
+        public boolean checkNdef(int[] out) {
+            return false;
+        }
+
+        @Override
+        public byte[] readNdef() {
+            return null;
+        }
+
+        @Override
+        public boolean writeNdef(byte[] data) {
+            return false;
+        }
+
+        @Override
+        public NdefMessage findAndReadNdef() {
+            return null;
+        }
+
+        @Override
+        public boolean formatNdef(byte[] key) {
+            return false;
+        }
+
+        @Override
+        public boolean isNdefFormatable() {
+            return false;
+        }
+
+        @Override
+        public boolean makeReadOnly() {
+            return false;
+        }
+
+        @Override
+        public int getConnectedTechnology() {
+            return -1;
+        }
+
+        @Override
+        public void findNdef() {}
+    }
+
+    static final class ReplayedPeer implements NfcDepEndpoint {
+        final int mHandle;
+        final int mMode;
+        final byte mLlcpVersion;
+        final byte[] mGeneralBytes;
+
+        ReplayedPeer(RfSessionCapture.Event event) {
+            mHandle = event.value;
+            mMode = event.mode;
+            mLlcpVersion = (byte) event.llcpVersion;
+            mGeneralBytes = event.data;
+        }
+
+        @Override
+        public byte[] receive() {
+            return null;
+        }
+
+        @Override
+        public boolean send(byte[] data) {
+            return false;
+        }
+
+        @Override
+        public boolean connect() {
+            return false;
+        }
+
+        @Override
+        public boolean disconnect() {
+            return true;
+        }
+
+        @Override
+        public byte[] transceive(byte[] data) {
+            return null;
+        }
+
+        @Override
+        public int getHandle() {
+            return mHandle;
+        }
+
+        @Override
+        public int getMode() {
+            return mMode;
+        }
+
+        @Override
+        public byte[] getGeneralBytes() {
+            return mGeneralBytes;
+        }
+
+        @Override
+        public byte getLlcpVersion() {
+            return mLlcpVersion;
+        }
+    }
+
+    final DeviceHostListener mListener;
+    final Executor mHandlerExecutor;
+
+    /** Replays into a listener that handles events before returning. */
+    public RfSessionReplayer(DeviceHostListener listener) {
+        this(listener, null);
+    }
+
+    /**
+     * @param handlerExecutor the thread {@code listener} hands events over
+     *     to, for instance {@code handler::post}, or null if it handles them
+     *     before returning
+     */
+    public RfSessionReplayer(DeviceHostListener listener, Executor handlerExecutor) {
+        mListener = listener;
+        mHandlerExecutor = handlerExecutor;
+    }
+
+    /**
+     * Replays {@code events} on the calling thread. {@code speed} scales the
+     * recorded timing: 1 replays in real time, 10 ten times faster, and 0 or
+     * less sends every event as soon as the previous one was handled. No gap
+     * between two events is replayed longer than MAX_GAP_MS. Each event is
+     * timed from its dispatch until it was handled, including the time it
+     * spent queued on the handler thread if there is one.
+     */
+    public Stats replay(List<RfSessionCapture.Event> events, float speed) {
+        Stats stats = new Stats();
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        long dueNs = startNs;
+        long previousUs = events.isEmpty() ? 0 : events.get(0).timeUs;
+        for (RfSessionCapture.Event event : events) {
+            if (speed > 0) {
+                long gapNs = (long) ((event.timeUs - previousUs) * 1000 / speed);
+                dueNs += Math.min(gapNs, TimeUnit.MILLISECONDS.toNanos(MAX_GAP_MS));
+                previousUs = event.timeUs;
+                long waitNs = dueNs - SystemClock.elapsedRealtimeNanos();
+                if (waitNs > 0) {
+                    SystemClock.sleep(waitNs / 1000000);
+                } else {
+                    stats.mLagMaxUs = Math.max(stats.mLagMaxUs, -waitNs / 1000);
+                }
+            }
+            long dispatchNs = SystemClock.elapsedRealtimeNanos();
+            dispatch(event);
+            waitForHandler();
+            stats.add(event.type, SystemClock.elapsedRealtimeNanos() - dispatchNs);
+        }
+        stats.mDurationUs = (SystemClock.elapsedRealtimeNanos() - startNs) / 1000;
+        return stats;
+    }
+
+    /** Waits until the handler thread ran everything queued so far. */
+    void waitForHandler() {
+        if (mHandlerExecutor == null) return;
+        CountDownLatch handled = new CountDownLatch(1);
+        mHandlerExecutor.execute(handled::countDown);
+        try {
+            handled.await(HANDLER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void dispatch(RfSessionCapture.Event event) {
+        switch (event.type) {
+            case RfSessionCapture.EVENT_TAG_DISCOVERED:
+                mListener.onRemoteEndpointDiscovered(new ReplayedTag(event));
+                break;
+            case RfSessionCapture.EVENT_HCE_ACTIVATED:
+                mListener.onHostCardEmulationActivated(event.value);
+                break;
+            case RfSessionCapture.EVENT_HCE_DATA:
+                mListener.onHostCardEmulationData(event.value, event.data);
+                break;
+            case RfSessionCapture.EVENT_HCE_DEACTIVATED:
+                mListener.onHostCardEmulationDeactivated(event.value);
+                break;
+            case RfSessionCapture.EVENT_LLCP_LINK_ACTIVATED:
+                mListener.onLlcpLinkActivated(new ReplayedPeer(event));
+                break;
+            case RfSessionCapture.EVENT_LLCP_LINK_DEACTIVATED:
+                mListener.onLlcpLinkDeactivated(new ReplayedPeer(event));
+                break;
+            case RfSessionCapture.EVENT_LLCP_FIRST_PACKET:
+                mListener.onLlcpFirstPacketReceived(new ReplayedPeer(event));
+                break;
+            case RfSessionCapture.EVENT_FIELD_ACTIVATED:
+                mListener.onRemoteFieldActivated();
+                break;
+            case RfSessionCapture.EVENT_FIELD_DEACTIVATED:
+                mListener.onRemoteFieldDeactivated();
+                break;
+            case RfSessionCapture.EVENT_TRANSACTION:
+                mListener.onNfcTransactionEvent(event.data, event.data2, event.name);
+                break;
+            case RfSessionCapture.EVENT_EE_UPDATED:
+                mListener.onEeUpdated();
+                break;
+            case RfSessionCapture.EVENT_HW_ERROR:
+                // Not replayed, since it restarts the NFC stack
+                break;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+
+/**
+ * Measures the routing computation of AidRoutingManager.configureRouting()
+ * without committing to the controller: resolving the route of every AID and
+ * planning the table.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class AidRoutingBenchmarkTest {
+    private static final String TAG = AidRoutingBenchmarkTest.class.getSimpleName();
+
+    private static final int[] NUM_AIDS = {64, 512, 2048, 8192};
+    private static final int[] TABLE_SIZES = {256, 1024, 4096};
+    private static final int NUM_ITERATIONS = 20;
+    private static final String[] SECURE_ELEMENTS = {null, "eSE1", "SIM1"};
+    private static final int ROUTE_ESE = 0x86;
+    private static final int ROUTE_UICC = 0x81;
+
+    private AidRoutingManager mManager;
+
+    @Before
+    public void setUp() {
+        // One eSE and one UICC, so that eSE2 and beyond are unknown
+        mManager = new AidRoutingManager(AidRoutingManager.ROUTE_HOST, ROUTE_ESE,
+                new byte[] {(byte) ROUTE_UICC}, new byte[] {(byte) ROUTE_ESE},
+                AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX, AidRoutingManager.ROUTE_HOST);
+    }
+
+    private HashMap<String, AidRoutingManager.AidEntry> createAidMap(int numAids) {
+        HashMap<String, AidRoutingManager.AidEntry> aidMap = new HashMap<>();
+        for (int i = 0; i < numAids; i++) {
+            AidRoutingManager.AidEntry entry = mManager.new AidEntry();
+            // Half of the AIDs are on the host, the rest spread over the secure elements
+            entry.isOnHost = i % 2 == 0;
+            entry.offHostSE = entry.isOnHost ? null : SECURE_ELEMENTS[(i / 2) % 3];
+            entry.power = entry.isOnHost
+                    ? RegisteredAidCache.POWER_STATE_SWITCH_ON
+                            | RegisteredAidCache.POWER_STATE_SCREEN_ON_LOCKED
+                    : RegisteredAidCache.POWER_STATE_ALL;
+            aidMap.put(String.format("A0%04X%08X", i % 64, i), entry);
+        }
+        return aidMap;
+    }
+
+    @Test
+    public void testResolvesSecureElementNamesOnce() {
+        HashMap<String, AidRoutingManager.AidEntry> aidMap = createAidMap(512);
+        AidRoutingManager.AidEntry invalid = mManager.new AidEntry();
+        invalid.offHostSE = "eSE99";
+        aidMap.put("A000000099", invalid);
+
+        AidRoutingManager.ResolvedRoutes resolved =
+                mManager.resolveRoutes(aidMap, mManager.mConfiguredDefaultRoute);
+
+        assertThat(resolved.routeForAid).doesNotContainKey("A000000099");
+        // Removed, so that the map can be planned as is
+        assertThat(aidMap).doesNotContainKey("A000000099");
+        assertThat(aidMap.get(String.format("A0%04X%08X", 3, 3)).route).isEqualTo(ROUTE_ESE);
+        assertThat(aidMap.get(String.format("A0%04X%08X", 5, 5)).route).isEqualTo(ROUTE_UICC);
+        assertThat(resolved.routes.get(0)).isEqualTo(mManager.mConfiguredDefaultRoute);
+        assertThat(resolved.routes).contains(AidRoutingManager.ROUTE_HOST);
+        assertThat(mManager.mRouteForSecureElement).containsKey("eSE99");
+        // AIDs on the default off-host route share one boxed route
+        Integer offHostRoute = resolved.routeForAid.get(String.format("A0%04X%08X", 1, 1));
+        for (int i = 1; i < 512; i += 6) {
+            assertThat(resolved.routeForAid.get(String.format("A0%04X%08X", i % 64, i)))
+                    .isSameInstanceAs(offHostRoute);
+        }
+    }
+
+    @Test
+    public void testRoutingComputationBenchmark() {
+        RoutingCapacityPlanner planner = new RoutingCapacityPlanner(
+                mManager.mAidMatchingSupport, mManager.mDefaultIsoDepRoute, true);
+        for (int numAids : NUM_AIDS) {
+            HashMap<String, AidRoutingManager.AidEntry> aidMap = createAidMap(numAids);
+            for (int tableSize : TABLE_SIZES) {
+                long resolveNs = 0;
+                long planNs = 0;
+                RoutingCapacityPlanner.Plan plan = null;
+                for (int i = 0; i < NUM_ITERATIONS; i++) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    AidRoutingManager.ResolvedRoutes resolved =
+                            mManager.resolveRoutes(aidMap, mManager.mConfiguredDefaultRoute);
+                    long resolvedAt = SystemClock.elapsedRealtimeNanos();
+                    plan = planner.plan(aidMap, resolved.routes, tableSize);
+                    planNs += SystemClock.elapsedRealtimeNanos() - resolvedAt;
+                    resolveNs += resolvedAt - start;
+                }
+                Log.i(TAG, numAids + " AIDs, " + tableSize + " byte table: resolve="
+                        + resolveNs / NUM_ITERATIONS / 1000 + "us plan="
+                        + planNs / NUM_ITERATIONS / 1000 + "us size=" + plan.getSize()
+                        + " fallbacks=" + plan.getFallbacks().size());
+                assertThat(plan.fits()).isTrue();
+            }
+        }
+    }
+}
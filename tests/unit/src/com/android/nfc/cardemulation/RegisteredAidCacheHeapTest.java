@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import android.nfc.cardemulation.AidGroup;
+import android.nfc.cardemulation.ApduServiceInfo;
+import android.nfc.cardemulation.CardEmulation;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RunWith(AndroidJUnit4.class)
+public final class RegisteredAidCacheHeapTest {
+    private static final String TAG = RegisteredAidCacheHeapTest.class.getSimpleName();
+
+    private static final int NUM_SERVICES = 100;
+    private static final int AIDS_PER_SERVICE = 50;
+    // AIDs every service registers, like the payment AIDs of several wallets
+    private static final int NUM_SHARED_AIDS = 5;
+    // Retained heap budget. The tree entries, the one-element service list and
+    // the ServiceAidInfo of an AID come to about 250 bytes; the budget leaves
+    // room for the runtime, but not for a copy of the AID string or a resolve
+    // result of its own per AID, which is what the sharing removed.
+    private static final long MAX_BYTES_PER_AID = 512;
+    private static final long MAX_BYTES_PER_SERVICE = 1024;
+
+    private Context mContext;
+    private int mUserId;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mUserId = ActivityManager.getCurrentUser();
+    }
+
+    private static ApduServiceInfo createService(int index) {
+        ArrayList<String> aids = new ArrayList<>();
+        for (int i = 0; i < AIDS_PER_SERVICE - NUM_SHARED_AIDS; i++) {
+            // Build each AID, as parsing a service's XML would
+            aids.add(String.format("F0%04X%08X", index, i));
+        }
+        ArrayList<String> sharedAids = new ArrayList<>();
+        for (int i = 0; i < NUM_SHARED_AIDS; i++) {
+            sharedAids.add(new StringBuilder("A00000000").append(i).append("1010").toString());
+        }
+        ArrayList<AidGroup> groups = new ArrayList<>();
+        groups.add(new AidGroup(aids, CardEmulation.CATEGORY_OTHER));
+        groups.add(new AidGroup(sharedAids, CardEmulation.CATEGORY_OTHER));
+        ResolveInfo resolveInfo = new ResolveInfo();
+        resolveInfo.serviceInfo = new ServiceInfo();
+        resolveInfo.serviceInfo.packageName = "com.android.nfc.test";
+        resolveInfo.serviceInfo.name = "Service" + index;
+        return new ApduServiceInfo(resolveInfo, true, "Service " + index, groups,
+                new ArrayList<AidGroup>(), false, 0, Process.myUid(), null, null, null);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void testHeapFootprintWith5kAids() {
+        List<ApduServiceInfo> services = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVICES; i++) {
+            services.add(createService(i));
+        }
+        long before = usedHeap();
+        RegisteredAidCache cache = new RegisteredAidCache(mContext);
+        cache.onServicesUpdated(mUserId, services, ServiceDiff.rebuild());
+        long after = usedHeap();
+
+        int numAids = NUM_SERVICES * (AIDS_PER_SERVICE - NUM_SHARED_AIDS) + NUM_SHARED_AIDS;
+        Log.i(TAG, numAids + " AIDs of " + NUM_SERVICES + " services: "
+                + (after - before) / 1024 + "KB, " + (after - before) / numAids + " bytes/AID");
+        assertThat(after - before).isAtMost(
+                numAids * MAX_BYTES_PER_AID + NUM_SERVICES * MAX_BYTES_PER_SERVICE);
+        assertThat(cache.mAidServices).hasSize(numAids);
+        assertThat(cache.mAidCache).hasSize(numAids);
+
+        // Every registration of a shared AID uses the string of the map key
+        for (Map.Entry<String, ArrayList<RegisteredAidCache.ServiceAidInfo>> entry :
+                cache.mAidServices.entrySet()) {
+            for (RegisteredAidCache.ServiceAidInfo serviceAidInfo : entry.getValue()) {
+                assertThat(serviceAidInfo.aid == entry.getKey()).isTrue();
+            }
+        }
+
+        // AIDs of a service share one result; shared AIDs resolve to all services
+        IdentityHashMap<RegisteredAidCache.AidResolveInfo, Boolean> results =
+                new IdentityHashMap<>();
+        for (RegisteredAidCache.AidResolveInfo resolveInfo : cache.mAidCache.values()) {
+            results.put(resolveInfo, true);
+        }
+        assertThat(results.size()).isEqualTo(NUM_SERVICES + 1);
+        RegisteredAidCache.AidResolveInfo shared = cache.resolveAid("A0000000001010");
+        assertThat(shared.services).hasSize(NUM_SERVICES);
+        assertThat(shared.defaultService).isNull();
+        RegisteredAidCache.AidResolveInfo single = cache.mAidCache.get("F0000700000003");
+        assertThat(single.defaultService).isSameInstanceAs(services.get(7));
+        assertThat(Collections.frequency(new ArrayList<>(cache.mAidCache.values()), single))
+                .isEqualTo(AIDS_PER_SERVICE - NUM_SHARED_AIDS);
+    }
+
+    @Test
+    public void testPreferredServiceChangeKeepsSharing() {
+        List<ApduServiceInfo> services = new ArrayList<>();
+        for (int i = 0; i < NUM_SERVICES; i++) {
+            services.add(createService(i));
+        }
+        RegisteredAidCache cache = new RegisteredAidCache(mContext);
+        cache.onServicesUpdated(mUserId, services, ServiceDiff.rebuild());
+
+        ComponentName foreground = services.get(3).getComponent();
+        cache.onPreferredForegroundServiceChanged(mUserId, foreground);
+
+        RegisteredAidCache.AidResolveInfo preferred = cache.mAidCache.get("A0000000021010");
+        assertThat(preferred.defaultService).isSameInstanceAs(services.get(3));
+        assertThat(preferred).isSameInstanceAs(cache.mAidCache.get("A0000000041010"));
+        assertThat(cache.resolveAid("F0000300000001").defaultService)
+                .isSameInstanceAs(services.get(3));
+    }
+}
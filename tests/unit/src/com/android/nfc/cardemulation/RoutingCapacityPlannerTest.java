@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.cardemulation;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.FakeDeviceHost;
+import com.android.nfc.NfcService;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+@RunWith(AndroidJUnit4.class)
+public final class RoutingCapacityPlannerTest {
+    private static final String TAG = RoutingCapacityPlannerTest.class.getSimpleName();
+
+    private static final int ROUTE_HOST = AidRoutingManager.ROUTE_HOST;
+    private static final int ROUTE_ESE = 0x86;
+    private static final int ROUTE_UICC = 0x81;
+    private static final int POWER_HOST = RegisteredAidCache.POWER_STATE_SWITCH_ON
+            | RegisteredAidCache.POWER_STATE_SCREEN_ON_LOCKED;
+    private static final int POWER_ALL = RegisteredAidCache.POWER_STATE_ALL;
+    private static final int EXACT = 0x00;
+    private static final int PREFIX = RegisteredAidCache.AID_ROUTE_QUAL_PREFIX;
+
+    private static final int[] TABLE_SIZES = {64, 128, 256, 512, 1024};
+    private static final int[] REGISTRATION_COUNTS = {8, 64, 256, 1024};
+
+    private final HashMap<String, RoutingCapacityPlanner.Entry> mAids = new HashMap<>();
+
+    private void register(String aid, int route, int power) {
+        mAids.put(aid, new RoutingCapacityPlanner.Entry(route,
+                aid.endsWith("*") ? PREFIX : EXACT, power));
+    }
+
+    private static RoutingCapacityPlanner newPlanner(int aidMatchingSupport) {
+        return new RoutingCapacityPlanner(aidMatchingSupport, ROUTE_HOST, true);
+    }
+
+    /** Pushes the plan through the fake controller, the way AidRoutingManager commits it. */
+    private static FakeDeviceHost commit(RoutingCapacityPlanner.Plan plan, int tableSize) {
+        FakeDeviceHost host = new FakeDeviceHost(tableSize, NfcService.NCI_VERSION_2_0);
+        for (Map.Entry<String, RoutingCapacityPlanner.Entry> entry
+                : plan.getTable().entrySet()) {
+            host.routeAid(FakeDeviceHost.fromHex(entry.getKey()), entry.getValue().route,
+                    entry.getValue().aidInfo, entry.getValue().power);
+        }
+        assertThat(host.commitRouting()).isTrue();
+        assertThat(host.getCommittedSize()).isEqualTo(plan.getSize());
+        return host;
+    }
+
+    /**
+     * Every exact AID must reach its own route, or the default route if the
+     * plan reported it as a fallback.
+     */
+    private void assertRoutedAsPlanned(RoutingCapacityPlanner.Plan plan, FakeDeviceHost host) {
+        Set<String> fallbacks = new HashSet<>();
+        for (RoutingCapacityPlanner.Fallback fallback : plan.getFallbacks()) {
+            fallbacks.add(fallback.aid);
+        }
+        for (Map.Entry<String, RoutingCapacityPlanner.Entry> entry : mAids.entrySet()) {
+            String aid = entry.getKey();
+            if (aid.endsWith("*")) continue;
+            int expected = fallbacks.contains(aid) ? plan.getDefaultRoute()
+                    : entry.getValue().route;
+            assertThat(host.resolveRoute(aid, PREFIX)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testFitsWithoutCompaction() {
+        register("A000000003101001", ROUTE_HOST, POWER_HOST);
+        register("A000000004101001", ROUTE_ESE, POWER_ALL);
+        register("F0010203040506", ROUTE_UICC, POWER_ALL);
+
+        RoutingCapacityPlanner.Plan plan = newPlanner(AidRoutingManager.AID_MATCHING_EXACT_ONLY)
+                .plan(mAids, List.of(ROUTE_HOST, ROUTE_ESE, ROUTE_UICC), 64);
+
+        assertThat(plan.getDefaultRoute()).isEqualTo(ROUTE_HOST);
+        assertThat(plan.fits()).isTrue();
+        assertThat(plan.getFoldedAids()).isEmpty();
+        assertThat(plan.getFallbacks()).isEmpty();
+        // Two off-host AIDs plus the empty AID for the host default route
+        assertThat(plan.getTable()).hasSize(3);
+        assertRoutedAsPlanned(plan, commit(plan, 64));
+    }
+
+    @Test
+    public void testSwitchesToSmallestDefaultRoute() {
+        register("A000000003101001", ROUTE_HOST, POWER_HOST);
+        for (int i = 0; i < 8; i++) {
+            register("A00000000410100" + i, ROUTE_ESE, POWER_ALL);
+        }
+        register("F0010203040506", ROUTE_UICC, POWER_ALL);
+
+        // 8 eSE AIDs need 96 bytes when the host is the default route
+        RoutingCapacityPlanner.Plan plan = newPlanner(AidRoutingManager.AID_MATCHING_EXACT_ONLY)
+                .plan(mAids, List.of(ROUTE_HOST, ROUTE_ESE, ROUTE_UICC), 48);
+
+        assertThat(plan.getDefaultRoute()).isEqualTo(ROUTE_ESE);
+        assertThat(plan.fits()).isTrue();
+        assertThat(plan.getFallbacks()).isEmpty();
+        assertRoutedAsPlanned(plan, commit(plan, 48));
+    }
+
+    @Test
+    public void testFoldsExactAidsIntoRegisteredPrefix() {
+        register("A000000004*", ROUTE_ESE, POWER_ALL);
+        for (int i = 0; i < 6; i++) {
+            register("A00000000410100" + i, ROUTE_ESE, POWER_ALL);
+        }
+        // A longer prefix of another route keeps this one from being folded
+        register("A00000000420*", ROUTE_UICC, POWER_ALL);
+        register("A000000004201005", ROUTE_ESE, POWER_ALL);
+
+        RoutingCapacityPlanner.Plan plan =
+                newPlanner(AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX)
+                        .plan(mAids, List.of(ROUTE_HOST), 40);
+
+        assertThat(plan.fits()).isTrue();
+        assertThat(plan.getFallbacks()).isEmpty();
+        assertThat(plan.getSynthesizedPrefixes()).isEmpty();
+        assertThat(plan.getTable()).containsKey("A000000004201005");
+        assertThat(plan.getTable()).doesNotContainKey("A000000004101001");
+        assertRoutedAsPlanned(plan, commit(plan, 40));
+    }
+
+    @Test
+    public void testSynthesizesPrefixOnlyWithoutCapture() {
+        for (int i = 0; i < 8; i++) {
+            register("A00000000410100" + i, ROUTE_ESE, POWER_ALL);
+            register("A00000000510100" + i, ROUTE_UICC, POWER_ALL);
+        }
+        // A default route AID among the UICC AIDs must not be captured by a prefix
+        register("A00000000510100F", ROUTE_HOST, POWER_HOST);
+
+        RoutingCapacityPlanner.Plan plan =
+                newPlanner(AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX)
+                        .plan(mAids, List.of(ROUTE_HOST), 128);
+
+        assertThat(plan.fits()).isTrue();
+        assertThat(plan.getFallbacks()).isEmpty();
+        assertThat(plan.getSynthesizedPrefixes()).containsExactly("A0000000041010");
+        assertRoutedAsPlanned(plan, commit(plan, 128));
+    }
+
+    @Test
+    public void testReportsFallbacks() {
+        register("A000000004*", ROUTE_ESE, POWER_ALL);
+        for (int i = 0; i < 8; i++) {
+            register("F00000000" + i, ROUTE_UICC, POWER_ALL);
+        }
+
+        RoutingCapacityPlanner.Plan plan = newPlanner(AidRoutingManager.AID_MATCHING_EXACT_ONLY)
+                .plan(mAids, List.of(ROUTE_HOST), 40);
+
+        assertThat(plan.fits()).isTrue();
+        int unsupported = 0;
+        int full = 0;
+        for (RoutingCapacityPlanner.Fallback fallback : plan.getFallbacks()) {
+            if (fallback.reason.equals(RoutingCapacityPlanner.REASON_PREFIX_UNSUPPORTED)) {
+                assertThat(fallback.aid).isEqualTo("A000000004*");
+                unsupported++;
+            } else {
+                assertThat(fallback.reason).isEqualTo(RoutingCapacityPlanner.REASON_TABLE_FULL);
+                full++;
+            }
+        }
+        assertThat(unsupported).isEqualTo(1);
+        // 40 bytes hold the empty AID and 4 of the 9-byte entries
+        assertThat(full).isEqualTo(4);
+        assertRoutedAsPlanned(plan, commit(plan, 40));
+    }
+
+    @Test
+    public void testSyntheticRegistrationsAlwaysCommit() {
+        int[] routes = {ROUTE_HOST, ROUTE_ESE, ROUTE_UICC};
+        for (int count : REGISTRATION_COUNTS) {
+            Random random = new Random(count);
+            mAids.clear();
+            while (mAids.size() < count) {
+                // Apps own a RID and register several AIDs under it, with the
+                // odd AID of another app's RID.
+                int rid = random.nextInt(Math.max(1, count / 8));
+                int route = random.nextInt(10) == 0 ? routes[random.nextInt(routes.length)]
+                        : routes[rid % routes.length];
+                StringBuilder aid = new StringBuilder(String.format("A0%08X", rid));
+                int pixLength = 1 + random.nextInt(6);
+                for (int i = 0; i < pixLength; i++) {
+                    aid.append(String.format("%02X", random.nextInt(256)));
+                }
+                register(aid.toString(), route, route == ROUTE_HOST ? POWER_HOST : POWER_ALL);
+            }
+            for (int aidMatchingSupport : new int[] {AidRoutingManager.AID_MATCHING_EXACT_ONLY,
+                    AidRoutingManager.AID_MATCHING_EXACT_OR_PREFIX}) {
+                for (int tableSize : TABLE_SIZES) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    RoutingCapacityPlanner.Plan plan = newPlanner(aidMatchingSupport)
+                            .plan(mAids, List.of(ROUTE_HOST, ROUTE_ESE, ROUTE_UICC), tableSize);
+                    long elapsedUs = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                    Log.i(TAG, count + " AIDs, mode " + aidMatchingSupport + ", " + tableSize
+                            + " bytes: default 0x" + Integer.toHexString(plan.getDefaultRoute())
+                            + ", " + plan.getSize() + " bytes used, "
+                            + plan.getFoldedAids().size() + " folded, "
+                            + plan.getFallbacks().size() + " fallbacks in " + elapsedUs + "us");
+
+                    assertThat(plan.fits()).isTrue();
+                    if (aidMatchingSupport == AidRoutingManager.AID_MATCHING_EXACT_ONLY) {
+                        assertThat(plan.getFoldedAids()).isEmpty();
+                    }
+                    assertRoutedAsPlanned(plan, commit(plan, tableSize));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.echoserver;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpEventLoop;
+import com.android.nfc.LoopbackLlcpLink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs the connection-oriented echo service on an LlcpEventLoop, against
+ * blocking clients over a LoopbackLlcpLink.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class ConnectionEchoServerTest {
+    private static final String TAG = ConnectionEchoServerTest.class.getSimpleName();
+
+    private static final int MIU = 128;
+    private static final int RW = 4;
+    private static final int QUEUE_SIZE = 2;
+    private static final long TIMEOUT_MS = 5000;
+
+    private LoopbackLlcpLink mLink;
+    private LlcpEventLoop mLoop;
+    private ScheduledExecutorService mExecutor;
+    private ConnectionEchoServer mServer;
+
+    @Before
+    public void setUp() {
+        mLink = new LoopbackLlcpLink();
+        mLoop = new LlcpEventLoop("TestEchoLoop");
+        mExecutor = Executors.newScheduledThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.stop();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void startServer(long echoDelayMs, int echoMiu) throws Exception {
+        ConnectionEchoServer.EventScheduler scheduler = new ConnectionEchoServer.EventScheduler() {
+            @Override
+            public void post(Runnable task) {
+                mLoop.post(task);
+            }
+
+            @Override
+            public void postDelayed(Runnable task, long delayMs) {
+                mExecutor.schedule(() -> mLoop.post(task), delayMs, TimeUnit.MILLISECONDS);
+            }
+        };
+        mServer = new ConnectionEchoServer(mLoop.wrap(mLink.getRemote().createLlcpServerSocket(
+                EchoServer.DEFAULT_CO_SAP, EchoServer.CONNECTION_SERVICE_NAME, MIU, RW, 1024)),
+                scheduler, QUEUE_SIZE, echoDelayMs, echoMiu);
+        mServer.start();
+    }
+
+    private LlcpSocket connect() throws Exception {
+        LlcpSocket client = mLink.getLocal().createLlcpSocket(0, MIU, RW, 1024);
+        client.connectToService(EchoServer.CONNECTION_SERVICE_NAME);
+        return client;
+    }
+
+    /** Reads server state on the event thread, where it lives. */
+    private <T> T onEventThread(Supplier<T> supplier) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        mLoop.post(() -> result.complete(supplier.get()));
+        return result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testEchoesSplitUnitsAfterTheDelay() throws Exception {
+        long delayMs = 100;
+        startServer(delayMs, 4);
+        LlcpSocket client = connect();
+        byte[] unit = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+
+        long start = SystemClock.elapsedRealtime();
+        client.send(unit);
+        byte[] buffer = new byte[MIU];
+        assertThat(client.receive(buffer)).isEqualTo(4);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        assertThat(buffer[0]).isEqualTo((byte) 0);
+        assertThat(client.receive(buffer)).isEqualTo(4);
+        assertThat(buffer[0]).isEqualTo((byte) 4);
+        assertThat(client.receive(buffer)).isEqualTo(2);
+        assertThat(buffer[1]).isEqualTo((byte) 9);
+
+        assertThat(elapsed).isAtLeast(delayMs);
+        client.close();
+    }
+
+    @Test
+    public void testStopsReadingWhileTheQueueIsFull() throws Exception {
+        // One more than the server reads plus its receive window
+        int units = QUEUE_SIZE + RW + 1;
+        startServer(200, MIU);
+        LlcpSocket client = connect();
+        // The sends past the receive window of the server wait for it to read
+        Future<?> sent = mExecutor.submit(() -> {
+            for (int i = 0; i < units; i++) {
+                client.send(new byte[] {(byte) i});
+            }
+            return null;
+        });
+
+        SystemClock.sleep(100);
+        assertThat(onEventThread(() -> mServer.mConnections.get(0).mReceivedUnits))
+                .isEqualTo((long) QUEUE_SIZE);
+        assertThat(sent.isDone()).isFalse();
+
+        byte[] buffer = new byte[MIU];
+        for (int i = 0; i < units; i++) {
+            assertThat(client.receive(buffer)).isEqualTo(1);
+            assertThat(buffer[0]).isEqualTo((byte) i);
+        }
+        sent.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        client.close();
+    }
+
+    @Test
+    public void testStopClosesTheConnections() throws Exception {
+        startServer(TIMEOUT_MS, MIU);
+        LlcpSocket client = connect();
+        client.send(new byte[] {1});
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (onEventThread(() -> mServer.mConnections.isEmpty()
+                || mServer.mConnections.get(0).mReceivedUnits == 0)) {
+            assertThat(SystemClock.elapsedRealtime()).isLessThan(deadline);
+            SystemClock.sleep(1);
+        }
+
+        mServer.stop();
+
+        // The queued unit is dropped rather than echoed
+        assertThat(client.receive(new byte[MIU])).isEqualTo(-1);
+        assertThat(onEventThread(() -> mServer.mConnections.isEmpty())).isTrue();
+        assertThat(onEventThread(() -> mServer.mStopped)).isTrue();
+        assertThat(mServer.mLastReport).contains("received 1 PDUs");
+        client.close();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.echoserver;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.LlcpConnectionlessSocket;
+import com.android.nfc.DeviceHost.LlcpServerSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LlcpPacket;
+import com.android.nfc.LoopbackLlcpLink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the throughput mode of the echo server over a LoopbackLlcpLink, the
+ * way the interop lab drives it, and logs the rates it sustains.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class ThroughputEchoMachineTest {
+    private static final String TAG = ThroughputEchoMachineTest.class.getSimpleName();
+
+    private static final int MIU = 248;
+    private static final int RW = 4;
+    private static final int PDU_COUNT = 2000;
+
+    private LoopbackLlcpLink mLink;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mLink = new LoopbackLlcpLink();
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    /** Echoes one connection the way EchoServer does in throughput mode. */
+    private ThroughputEchoMachine serve(LlcpSocket socket) {
+        ThroughputEchoMachine machine = new ThroughputEchoMachine(
+                EchoServer.CONNECTION_SERVICE_NAME, (remoteSap, data) -> socket.send(data),
+                socket.getLocalMiu(), false);
+        machine.start();
+        try {
+            ThroughputEchoMachine.Unit unit;
+            while ((unit = machine.obtainUnit()) != null) {
+                int size = socket.receive(unit.getBuffer());
+                if (size < 0) {
+                    machine.returnUnit(unit);
+                    break;
+                }
+                unit.setLength(size);
+                machine.pushUnit(unit);
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+        return machine;
+    }
+
+    @Test
+    public void testEchoesConnectionOrientedPdus() throws Exception {
+        LlcpServerSocket server = mLink.getRemote().createLlcpServerSocket(
+                EchoServer.DEFAULT_CO_SAP, EchoServer.CONNECTION_SERVICE_NAME, MIU, RW, 1024);
+        Future<ThroughputEchoMachine> served = mExecutor.submit(() -> serve(server.accept()));
+        LlcpSocket client = mLink.getLocal().createLlcpSocket(0, MIU, RW, 1024);
+        client.connectToService(EchoServer.CONNECTION_SERVICE_NAME);
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        Future<?> sender = mExecutor.submit(() -> {
+            for (int i = 0; i < PDU_COUNT; i++) {
+                byte[] pdu = new byte[i % 2 == 0 ? MIU : 1 + i % MIU];
+                pdu[0] = (byte) i;
+                client.send(pdu);
+            }
+            return null;
+        });
+        byte[] buffer = new byte[MIU];
+        for (int i = 0; i < PDU_COUNT; i++) {
+            assertThat(client.receive(buffer)).isEqualTo(i % 2 == 0 ? MIU : 1 + i % MIU);
+            assertThat(buffer[0]).isEqualTo((byte) i);
+        }
+        long elapsedNs = SystemClock.elapsedRealtimeNanos() - start;
+        sender.get(5, TimeUnit.SECONDS);
+        client.close();
+        ThroughputEchoMachine machine = served.get(5, TimeUnit.SECONDS);
+        String report = machine.stop();
+        server.close();
+
+        Log.i(TAG, "co-echo: " + PDU_COUNT * 1000000000L / Math.max(elapsedNs, 1)
+                + " PDUs/s round trip, " + report);
+        assertThat(machine.mEchoedUnits).isEqualTo((long) PDU_COUNT);
+        assertThat(machine.mFailedUnits).isEqualTo(0L);
+        assertThat(machine.mBatches).isAtMost((long) PDU_COUNT);
+    }
+
+    @Test
+    public void testStopWakesAnIdleSender() throws Exception {
+        ThroughputEchoMachine machine = new ThroughputEchoMachine(
+                EchoServer.CONNECTION_SERVICE_NAME, (remoteSap, data) -> {}, MIU, false);
+        assertThat(machine.start()).isTrue();
+
+        long start = SystemClock.elapsedRealtime();
+        machine.stop();
+
+        assertThat(SystemClock.elapsedRealtime() - start)
+                .isLessThan(ThroughputEchoMachine.STOP_TIMEOUT_MS);
+        assertThat(machine.mSenderDone.getCount()).isEqualTo(0L);
+        // Every buffer went back to the pool
+        assertThat(machine.mFree).isEmpty();
+        assertThat(machine.mQueued).isEmpty();
+    }
+
+    @Test
+    public void testDropsConnectionlessPdusWhenFull() throws Exception {
+        LlcpConnectionlessSocket echo = mLink.getRemote().createLlcpConnectionlessSocket(
+                EchoServer.DEFAULT_CL_SAP, EchoServer.CONNECTIONLESS_SERVICE_NAME);
+        LlcpConnectionlessSocket client = mLink.getLocal().createLlcpConnectionlessSocket(
+                0x20, null);
+        // Every echo waits for the link, so the queue fills up
+        mLink.setPduLatencyUs(200);
+        ThroughputEchoMachine machine = new ThroughputEchoMachine(
+                EchoServer.CONNECTIONLESS_SERVICE_NAME,
+                (remoteSap, data) -> {
+                    SystemClock.sleep(1);
+                    echo.send(remoteSap, data);
+                },
+                echo.getLinkMiu(), true);
+        machine.start();
+        Future<?> receiver = mExecutor.submit(() -> {
+            LlcpPacket dropped = new LlcpPacket();
+            for (int i = 0; i < PDU_COUNT; i++) {
+                ThroughputEchoMachine.Unit unit = machine.obtainUnit();
+                if (unit == null) {
+                    machine.dropUnit(echo.receive(dropped));
+                    continue;
+                }
+                echo.receive(unit.getPacket());
+                machine.pushUnit(unit);
+            }
+            return null;
+        });
+
+        for (int i = 0; i < PDU_COUNT; i++) {
+            client.send(EchoServer.DEFAULT_CL_SAP, new byte[] {(byte) i});
+        }
+        receiver.get(30, TimeUnit.SECONDS);
+        String report = machine.stop();
+        echo.close();
+        client.close();
+
+        Log.i(TAG, "cl-echo: " + report);
+        assertThat(machine.mReceivedUnits).isEqualTo((long) PDU_COUNT);
+        assertThat(machine.mDroppedUnits).isGreaterThan(0L);
+        assertThat(machine.mEchoedUnits + machine.mDroppedUnits).isAtMost((long) PDU_COUNT);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.handover;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.LlcpServerSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LoopbackLlcpLink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures handover request/select exchanges of HandoverClient over a
+ * LoopbackLlcpLink. The peer reassembles requests and fragments its select
+ * message like HandoverServer, without starting a Beam transfer.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class HandoverLoopbackBenchmarkTest {
+    private static final String TAG = HandoverLoopbackBenchmarkTest.class.getSimpleName();
+
+    // The SAP P2pLinkManager registers the handover server on
+    private static final int HANDOVER_SAP = 0x14;
+    private static final int CLIENT_MIU = 128;
+    // Carrier configurations of a Bluetooth or Wi-Fi handover, and larger
+    private static final int[] UNTHROTTLED_SIZES = {64, 512, 4 * 1024, 16 * 1024};
+    private static final int UNTHROTTLED_ITERATIONS = 10;
+    private static final int[] THROTTLED_SIZES = {64, 512, 2 * 1024};
+    private static final int THROTTLED_ITERATIONS = 3;
+    private static final long THROTTLED_BYTES_PER_SECOND = 424000 / 8;
+    private static final long THROTTLED_PDU_LATENCY_US = 500;
+
+    private LoopbackLlcpLink mLink;
+    private LlcpServerSocket mServerSocket;
+    private final ExecutorService mServerExecutor = Executors.newCachedThreadPool();
+    private volatile NdefMessage mHandoverSelect;
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new LoopbackLlcpLink();
+        mServerSocket = mLink.getRemote().createLlcpServerSocket(HANDOVER_SAP,
+                HandoverServer.HANDOVER_SERVICE_NAME, HandoverServer.MIU, 1, 1024);
+        mServerExecutor.execute(this::acceptLoop);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        mServerExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                LlcpSocket socket = mServerSocket.accept();
+                mServerExecutor.execute(() -> answer(socket));
+            }
+        } catch (Exception e) {
+            // Server socket closed
+        }
+    }
+
+    /** Answers handover requests on the connection until it is closed. */
+    private void answer(LlcpSocket socket) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        byte[] partial = new byte[socket.getLocalMiu()];
+        try {
+            int size;
+            while ((size = socket.receive(partial)) >= 0) {
+                byteStream.write(partial, 0, size);
+                try {
+                    new NdefMessage(byteStream.toByteArray());
+                } catch (FormatException e) {
+                    // Ignore, and try to fetch more bytes
+                    continue;
+                }
+                byte[] buffer = mHandoverSelect.toByteArray();
+                int remoteMiu = socket.getRemoteMiu();
+                for (int offset = 0; offset < buffer.length; offset += remoteMiu) {
+                    socket.send(Arrays.copyOfRange(buffer, offset,
+                            Math.min(buffer.length, offset + remoteMiu)));
+                }
+                byteStream.reset();
+            }
+        } catch (IOException e) {
+            // Closed by the client
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private HandoverClient connect() throws Exception {
+        LlcpSocket socket = mLink.getLocal().createLlcpSocket(0, CLIENT_MIU, 1, 1024);
+        socket.connectToService(HandoverServer.HANDOVER_SERVICE_NAME);
+        HandoverClient client = new HandoverClient();
+        client.mSocket = socket;
+        client.mState = HandoverClient.CONNECTED;
+        return client;
+    }
+
+    private static NdefMessage createMessage(int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        return new NdefMessage(NdefRecord.createMime("application/vnd.bluetooth.ep.oob",
+                payload));
+    }
+
+    private void runExchanges(String profile, int[] sizes, int iterations) throws Exception {
+        for (int size : sizes) {
+            NdefMessage request = createMessage(size);
+            mHandoverSelect = createMessage(size);
+            long[] exchangeNs = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                // HandoverClient closes its socket after every exchange
+                long start = SystemClock.elapsedRealtimeNanos();
+                HandoverClient client = connect();
+                NdefMessage response = client.sendHandoverRequest(request);
+                exchangeNs[i] = SystemClock.elapsedRealtimeNanos() - start;
+                client.close();
+                assertThat(response).isEqualTo(mHandoverSelect);
+            }
+            Arrays.sort(exchangeNs);
+            long medianNs = exchangeNs[iterations / 2];
+            int length = request.toByteArray().length;
+            Log.i(TAG, profile + " " + length + " byte handover: median="
+                    + medianNs / 1000 + "us min=" + exchangeNs[0] / 1000
+                    + "us max=" + exchangeNs[iterations - 1] / 1000 + "us "
+                    + (2L * length * 1000000000L / Math.max(medianNs, 1)) / 1024 + "KB/s");
+        }
+    }
+
+    @Test
+    public void testUnthrottledExchanges() throws Exception {
+        runExchanges("unthrottled", UNTHROTTLED_SIZES, UNTHROTTLED_ITERATIONS);
+    }
+
+    @Test
+    public void testExchangesAt424Kbps() throws Exception {
+        mLink.setBandwidth(THROTTLED_BYTES_PER_SECOND);
+        mLink.setPduLatencyUs(THROTTLED_PDU_LATENCY_US);
+
+        runExchanges("424kbps", THROTTLED_SIZES, THROTTLED_ITERATIONS);
+
+        assertThat(mLink.getPduCount()).isGreaterThan(0L);
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.ndefpush;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.LoopbackLlcpSocket;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public final class NdefPushCodecTest {
+    private static final String TAG = NdefPushCodecTest.class.getSimpleName();
+
+    private static final int[] MIUS = {1, 7, 128, 248, 2048};
+    private static final int[] PAYLOAD_SIZES = {1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    private static final int FUZZ_ITERATIONS = 2000;
+    private static final int FUZZ_MAX_LENGTH = 4096;
+    private static final long SEED = 0x4e5050L;
+
+    private final ExecutorService mSender = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mSender.shutdownNow();
+    }
+
+    private static NdefMessage createMessage(int payloadSize, Random random) {
+        byte[] payload = new byte[payloadSize];
+        random.nextBytes(payload);
+        return new NdefMessage(NdefRecord.createMime("application/octet-stream", payload));
+    }
+
+    /** Encodes the set the way the protocol describes it, in one piece. */
+    private static byte[] encodeWhole(byte[] actions, NdefMessage[] messages) {
+        int length = 5;
+        for (NdefMessage message : messages) {
+            length += 5 + message.toByteArray().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put((byte) 1).putInt(messages.length);
+        for (int i = 0; i < messages.length; i++) {
+            byte[] ndef = messages[i].toByteArray();
+            buffer.put(actions[i]).putInt(ndef.length).put(ndef);
+        }
+        return buffer.array();
+    }
+
+    /** Pushes the set over a loopback link and decodes it on the other end. */
+    private NdefPushProtocol push(NdefPushProtocol set, int miu) throws Exception {
+        LoopbackLlcpSocket[] sockets = LoopbackLlcpSocket.createPair(miu, 1);
+        Future<?> sent = mSender.submit(() -> {
+            NdefPushCodec.Encoder encoder = new NdefPushCodec.Encoder(set);
+            while (encoder.hasNext()) {
+                sockets[0].send(encoder.next(sockets[0].getRemoteMiu()));
+            }
+            sockets[0].close();
+            return null;
+        });
+        NdefPushCodec.Decoder decoder = new NdefPushCodec.Decoder();
+        byte[] partial = new byte[miu];
+        int size;
+        while (!decoder.isComplete() && (size = sockets[1].receive(partial)) >= 0) {
+            decoder.decode(partial, 0, size);
+        }
+        sent.get(10, TimeUnit.SECONDS);
+        return decoder.getMessageSet();
+    }
+
+    @Test
+    public void testEncoderFragmentsMatchWholeSet() {
+        Random random = new Random(SEED);
+        byte[] actions = {NdefPushProtocol.ACTION_BACKGROUND, NdefPushProtocol.ACTION_IMMEDIATE};
+        NdefMessage[] messages = {createMessage(300, random), createMessage(1, random)};
+        byte[] expected = encodeWhole(actions, messages);
+
+        for (int miu : MIUS) {
+            NdefPushCodec.Encoder encoder =
+                    new NdefPushCodec.Encoder(new NdefPushProtocol(actions, messages));
+            assertThat(encoder.getLength()).isEqualTo(expected.length);
+            ByteBuffer encoded = ByteBuffer.allocate(expected.length);
+            while (encoder.hasNext()) {
+                byte[] fragment = encoder.next(miu);
+                assertThat(fragment.length).isAtMost(miu);
+                encoded.put(fragment);
+            }
+            assertThat(encoded.array()).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testRoundTripOverLoopback() throws Exception {
+        Random random = new Random(SEED);
+        byte[] actions = {NdefPushProtocol.ACTION_BACKGROUND, NdefPushProtocol.ACTION_IMMEDIATE};
+        NdefMessage[] messages = {createMessage(500, random), createMessage(20, random)};
+
+        for (int miu : MIUS) {
+            NdefPushProtocol received = push(new NdefPushProtocol(actions, messages), miu);
+
+            assertThat(received).isNotNull();
+            assertThat(received.getImmediate()).isEqualTo(messages[1]);
+            assertThat(received.toByteArray()).isEqualTo(encodeWhole(actions, messages));
+        }
+    }
+
+    @Test
+    public void testRejectsOversizedMessageFromHeader() {
+        NdefPushCodec.Decoder decoder = new NdefPushCodec.Decoder(1, 64 * 1024);
+        // One message declared as 16MB; nothing is allocated for it
+        byte[] header = {1, 0, 0, 0, 1, NdefPushProtocol.ACTION_IMMEDIATE, 1, 0, 0, 0};
+
+        FormatException rejected = null;
+        try {
+            decoder.decode(header, 0, header.length);
+        } catch (FormatException e) {
+            rejected = e;
+        }
+
+        assertThat(rejected).isNotNull();
+        assertThat(decoder.mNdef).isNull();
+    }
+
+    @Test
+    public void testRejectsTooManyMessages() {
+        NdefPushCodec.Decoder decoder = new NdefPushCodec.Decoder();
+        byte[] header = {1, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+
+        FormatException rejected = null;
+        try {
+            decoder.decode(header, 0, header.length);
+        } catch (FormatException e) {
+            rejected = e;
+        }
+
+        assertThat(rejected).isNotNull();
+    }
+
+    @Test
+    public void testRejectsTruncatedSet() {
+        Random random = new Random(SEED);
+        byte[] whole = encodeWhole(new byte[] {NdefPushProtocol.ACTION_IMMEDIATE},
+                new NdefMessage[] {createMessage(100, random)});
+
+        FormatException rejected = null;
+        try {
+            new NdefPushProtocol(Arrays.copyOf(whole, whole.length - 1));
+        } catch (FormatException e) {
+            rejected = e;
+        }
+
+        assertThat(rejected).isNotNull();
+    }
+
+    @Test
+    public void testFuzzedSetsOnlyFailWithFormatException() {
+        Random random = new Random(SEED);
+        int completed = 0;
+        int rejected = 0;
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            int numMessages = 1 + random.nextInt(3);
+            byte[] actions = new byte[numMessages];
+            NdefMessage[] messages = new NdefMessage[numMessages];
+            for (int j = 0; j < numMessages; j++) {
+                actions[j] = (byte) (1 + random.nextInt(2));
+                messages[j] = createMessage(random.nextInt(600), random);
+            }
+            byte[] data = encodeWhole(actions, messages);
+            // Flip a few bytes, biased towards the headers, and maybe cut the set short
+            int flips = random.nextInt(4);
+            for (int j = 0; j < flips; j++) {
+                int index = random.nextBoolean() ? random.nextInt(Math.min(16, data.length))
+                        : random.nextInt(data.length);
+                data[index] = (byte) random.nextInt(256);
+            }
+            if (random.nextInt(4) == 0) {
+                data = Arrays.copyOf(data, random.nextInt(data.length));
+            }
+
+            NdefPushCodec.Decoder decoder =
+                    new NdefPushCodec.Decoder(NdefPushCodec.DEFAULT_MAX_MESSAGES, FUZZ_MAX_LENGTH);
+            try {
+                int offset = 0;
+                while (offset < data.length && !decoder.isComplete()) {
+                    int length = Math.min(data.length - offset, 1 + random.nextInt(300));
+                    offset += decoder.decode(data, offset, length);
+                    // Never buffers beyond what the limits allow
+                    assertThat(decoder.mDeclaredLength).isAtMost((long) FUZZ_MAX_LENGTH);
+                }
+                if (decoder.isComplete()) {
+                    completed++;
+                    assertThat(decoder.getDecodedLength()).isAtMost(FUZZ_MAX_LENGTH);
+                    assertThat(decoder.getMessageSet()).isNotNull();
+                }
+            } catch (FormatException e) {
+                rejected++;
+            }
+        }
+        Log.i(TAG, FUZZ_ITERATIONS + " fuzzed sets: " + completed + " decoded, "
+                + rejected + " rejected");
+        assertThat(completed).isGreaterThan(0);
+        assertThat(rejected).isGreaterThan(0);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testPushThroughputAndAllocations() throws Exception {
+        Random random = new Random(SEED);
+        for (int payloadSize : PAYLOAD_SIZES) {
+            NdefMessage ndef = createMessage(payloadSize, random);
+            NdefPushProtocol set = new NdefPushProtocol(ndef, NdefPushProtocol.ACTION_IMMEDIATE);
+            int length = set.toByteArray().length;
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocSize();
+            long start = SystemClock.elapsedRealtimeNanos();
+            NdefPushProtocol received = push(set, 248);
+            long elapsedNs = SystemClock.elapsedRealtimeNanos() - start;
+            long allocated = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+
+            Log.i(TAG, length + " byte push: " + elapsedNs / 1000 + "us, "
+                    + (length * 1000000000L / Math.max(elapsedNs, 1)) / 1024 + "KB/s, "
+                    + allocated + " bytes allocated by the receiver");
+            assertThat(received.getImmediate()).isEqualTo(ndef);
+            // The NDEF bytes plus the records parsed out of them
+            assertThat(allocated).isAtMost(3L * length + 64 * 1024);
+        }
+    }
+}
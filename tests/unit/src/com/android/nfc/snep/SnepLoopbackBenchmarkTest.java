@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.snep;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.DeviceHost.LlcpServerSocket;
+import com.android.nfc.DeviceHost.LlcpSocket;
+import com.android.nfc.LoopbackLlcpLink;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures SNEP PUT and GET exchanges between SnepMessenger clients and the
+ * request handling of SnepServer, over a LoopbackLlcpLink with and without a
+ * simulated 424 kbit/s link.
+ */
+@RunWith(AndroidJUnit4.class)
+public final class SnepLoopbackBenchmarkTest {
+    private static final String TAG = SnepLoopbackBenchmarkTest.class.getSimpleName();
+
+    private static final int MIU = 248;
+    private static final int ACCEPTABLE_LENGTH = 1024 * 1024;
+    private static final int[] UNTHROTTLED_SIZES = {1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    private static final int UNTHROTTLED_ITERATIONS = 20;
+    private static final int[] THROTTLED_SIZES = {256, 1024, 4 * 1024};
+    private static final int THROTTLED_ITERATIONS = 3;
+    // 424 kbit/s, the fastest NFC-F bit rate
+    private static final long THROTTLED_BYTES_PER_SECOND = 424000 / 8;
+    private static final long THROTTLED_PDU_LATENCY_US = 500;
+
+    private LoopbackLlcpLink mLink;
+    private LlcpServerSocket mServerSocket;
+    private final ExecutorService mServerExecutor = Executors.newCachedThreadPool();
+    private volatile NdefMessage mGetResponse;
+
+    private final SnepServer.Callback mCallback = new SnepServer.Callback() {
+        @Override
+        public SnepMessage doPut(NdefMessage msg) {
+            return SnepMessage.getMessage(SnepMessage.RESPONSE_SUCCESS);
+        }
+
+        @Override
+        public SnepMessage doGet(int acceptableLength, NdefMessage msg) {
+            return SnepMessage.getSuccessResponse(mGetResponse);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mLink = new LoopbackLlcpLink();
+        mServerSocket = mLink.getRemote().createLlcpServerSocket(SnepServer.DEFAULT_PORT,
+                SnepServer.DEFAULT_SERVICE_NAME, MIU, 1, 1024);
+        mServerExecutor.execute(this::acceptLoop);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServerSocket.close();
+        mServerExecutor.shutdownNow();
+    }
+
+    /** Serves connections the way the connection tasks of SnepServer do. */
+    private void acceptLoop() {
+        try {
+            while (true) {
+                LlcpSocket socket = mServerSocket.accept();
+                mServerExecutor.execute(() -> {
+                    SnepMessenger messenger = new SnepMessenger(false, socket, MIU);
+                    try {
+                        while (SnepServer.handleRequest(messenger, mCallback)) {}
+                    } catch (IOException e) {
+                        // Closed by the client
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // Ignore
+                        }
+                    }
+                });
+            }
+        } catch (Exception e) {
+            // Server socket closed
+        }
+    }
+
+    private SnepMessenger connect() throws Exception {
+        LlcpSocket socket = mLink.getLocal().createLlcpSocket(0, MIU, 1, 1024);
+        socket.connectToService(SnepServer.DEFAULT_SERVICE_NAME);
+        return new SnepMessenger(true, socket, socket.getRemoteMiu(), ACCEPTABLE_LENGTH);
+    }
+
+    private static NdefMessage createMessage(int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        return new NdefMessage(NdefRecord.createMime("application/octet-stream", payload));
+    }
+
+    /** Runs PUT and GET for every size and logs their latency and throughput. */
+    private void runExchanges(String profile, int[] sizes, int iterations) throws Exception {
+        long start = SystemClock.elapsedRealtimeNanos();
+        SnepMessenger client = connect();
+        Log.i(TAG, profile + " connect: " + (SystemClock.elapsedRealtimeNanos() - start) / 1000
+                + "us");
+        NdefMessage getRequest = createMessage(16);
+        for (int size : sizes) {
+            NdefMessage ndef = createMessage(size);
+            mGetResponse = ndef;
+            long[] putNs = new long[iterations];
+            long[] getNs = new long[iterations];
+            for (int i = 0; i < iterations; i++) {
+                start = SystemClock.elapsedRealtimeNanos();
+                client.sendMessage(SnepMessage.getPutRequest(ndef));
+                SnepMessage putResponse = client.getMessage();
+                putNs[i] = SystemClock.elapsedRealtimeNanos() - start;
+                assertThat(putResponse.getField()).isEqualTo(SnepMessage.RESPONSE_SUCCESS);
+
+                start = SystemClock.elapsedRealtimeNanos();
+                client.sendMessage(SnepMessage.getGetRequest(ACCEPTABLE_LENGTH, getRequest));
+                SnepMessage getResponse = client.getMessage();
+                getNs[i] = SystemClock.elapsedRealtimeNanos() - start;
+                assertThat(getResponse.getField()).isEqualTo(SnepMessage.RESPONSE_SUCCESS);
+                assertThat(getResponse.getNdefMessage()).isEqualTo(ndef);
+            }
+            int length = ndef.toByteArray().length;
+            Log.i(TAG, profile + " " + length + " byte PUT: " + summarize(putNs, length));
+            Log.i(TAG, profile + " " + length + " byte GET: " + summarize(getNs, length));
+        }
+        client.mSocket.close();
+    }
+
+    private static String summarize(long[] ns, int length) {
+        long[] sorted = ns.clone();
+        Arrays.sort(sorted);
+        long medianNs = sorted[sorted.length / 2];
+        return "median=" + medianNs / 1000 + "us min=" + sorted[0] / 1000
+                + "us max=" + sorted[sorted.length - 1] / 1000 + "us "
+                + (length * 1000000000L / Math.max(medianNs, 1)) / 1024 + "KB/s";
+    }
+
+    @Test
+    public void testUnthrottledExchanges() throws Exception {
+        runExchanges("unthrottled", UNTHROTTLED_SIZES, UNTHROTTLED_ITERATIONS);
+    }
+
+    @Test
+    public void testExchangesAt424Kbps() throws Exception {
+        mLink.setBandwidth(THROTTLED_BYTES_PER_SECOND);
+        mLink.setPduLatencyUs(THROTTLED_PDU_LATENCY_US);
+        long start = SystemClock.elapsedRealtime();
+
+        runExchanges("424kbps", THROTTLED_SIZES, THROTTLED_ITERATIONS);
+
+        // Nothing can beat the bit rate
+        long bytes = mLink.getByteCount();
+        assertThat(SystemClock.elapsedRealtime() - start)
+                .isAtLeast(bytes * 1000 / THROTTLED_BYTES_PER_SECOND);
+    }
+
+    @Test
+    public void testExchangesOnLossyLink() throws Exception {
+        mLink.setPduLatencyUs(THROTTLED_PDU_LATENCY_US);
+        mLink.setLossRate(0.1);
+
+        runExchanges("lossy", THROTTLED_SIZES, THROTTLED_ITERATIONS);
+
+        assertThat(mLink.getLostPduCount()).isGreaterThan(0L);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.nfc.snep;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.nfc.LoopbackLlcpSocket;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public final class SnepMessengerBenchmarkTest {
+    private static final String TAG = SnepMessengerBenchmarkTest.class.getSimpleName();
+
+    private static final int[] PAYLOAD_SIZES = {1024, 16 * 1024, 64 * 1024, 256 * 1024,
+            1024 * 1024};
+    private static final int MIU = 2048;
+    private static final int MAX_MESSAGE_LENGTH = 2 * 1024 * 1024;
+
+    private final ExecutorService mSender = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mSender.shutdownNow();
+    }
+
+    private static NdefMessage createMessage(int payloadSize) {
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        return new NdefMessage(NdefRecord.createMime("application/octet-stream", payload));
+    }
+
+    private Future<?> send(SnepMessenger messenger, SnepMessage message) {
+        return mSender.submit(() -> {
+            messenger.sendMessage(message);
+            return null;
+        });
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testPutThroughputAndAllocations() throws Exception {
+        for (int payloadSize : PAYLOAD_SIZES) {
+            LoopbackLlcpSocket[] sockets = LoopbackLlcpSocket.createPair(MIU, 1);
+            SnepMessenger client = new SnepMessenger(true, sockets[0], MIU);
+            SnepMessenger server = new SnepMessenger(false, sockets[1], MIU, MAX_MESSAGE_LENGTH);
+            NdefMessage ndef = createMessage(payloadSize);
+            int length = ndef.toByteArray().length;
+
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocSize();
+            long start = SystemClock.elapsedRealtimeNanos();
+            Future<?> sent = send(client, SnepMessage.getPutRequest(ndef));
+            SnepMessage request = server.getMessage();
+            long elapsedNs = SystemClock.elapsedRealtimeNanos() - start;
+            long allocated = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+            sent.get(10, TimeUnit.SECONDS);
+
+            Log.i(TAG, length + " byte PUT: " + elapsedNs / 1000 + "us, "
+                    + (length * 1000000000L / Math.max(elapsedNs, 1)) / 1024 + "KB/s, "
+                    + allocated + " bytes allocated by the receiver");
+            assertThat(request.getField()).isEqualTo(SnepMessage.REQUEST_PUT);
+            assertThat(request.getLength()).isEqualTo(length);
+            assertThat(request.getNdefMessage()).isEqualTo(ndef);
+            // The reassembly buffer plus the record payload parsed out of it
+            assertThat(allocated).isAtMost(3L * length + 64 * 1024);
+        }
+    }
+
+    @Test
+    public void testGetRequestSplitAcrossFragments() throws Exception {
+        // Seven byte fragments split the acceptable length of the GET request
+        LoopbackLlcpSocket[] sockets = LoopbackLlcpSocket.createPair(7, 1);
+        SnepMessenger client = new SnepMessenger(true, sockets[0], 7);
+        SnepMessenger server = new SnepMessenger(false, sockets[1], 7);
+        NdefMessage ndef = createMessage(40);
+
+        Future<?> sent = send(client, SnepMessage.getGetRequest(0x01020304, ndef));
+        SnepMessage request = server.getMessage();
+        sent.get(10, TimeUnit.SECONDS);
+
+        assertThat(request.getField()).isEqualTo(SnepMessage.REQUEST_GET);
+        assertThat(request.getAcceptableLength()).isEqualTo(0x01020304);
+        assertThat(request.getNdefMessage()).isEqualTo(ndef);
+    }
+
+    @Test
+    public void testRejectsMessageOverLimit() throws Exception {
+        LoopbackLlcpSocket[] sockets = LoopbackLlcpSocket.createPair(MIU, 1);
+        SnepMessenger client = new SnepMessenger(true, sockets[0], MIU);
+        SnepMessenger server = new SnepMessenger(false, sockets[1], MIU, 16 * 1024);
+
+        Future<?> sent = send(client, SnepMessage.getPutRequest(createMessage(64 * 1024)));
+        IOException received = null;
+        try {
+            server.getMessage();
+        } catch (IOException e) {
+            received = e;
+        }
+
+        assertThat(received).isNotNull();
+        IOException rejected = null;
+        try {
+            sent.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            rejected = (IOException) e.getCause();
+        }
+        assertThat(rejected).isNotNull();
+    }
+}